@@ -0,0 +1,32 @@
+package org.apache.catalina;
+
+
+import java.io.IOException;
+
+
+/**
+ * 可以只保存会话中被修改的部分的<b>Store</b>.
+ * <p>
+ * 这样的Store为每个会话保存一个完整的副本, 以及此后的一系列修改记录;
+ * 加载会话时依次应用这些修改记录. 修改记录积累到一定数目时, Store重新写入整个会话(压缩).
+ * 没有被修改的会话根本不需要写入.
+ */
+public interface DeltaStore extends Store {
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 保存指定的Session自上次保存到这个Store以来修改的部分.
+     * 如果Store中还没有这个会话的完整副本, 或者修改记录需要压缩, 保存整个会话.
+     * 如果会话没有被修改过, 不执行任何操作.
+     *
+     * @param session Session to be saved
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public void saveDelta(Session session) throws IOException;
+
+
+}
@@ -125,6 +125,30 @@ public final class Globals {
     public static final String REQUEST_URI_ATTR = "javax.servlet.include.request_uri";
 
 
+    /**
+     * 请求属性，连接器能够直接从文件发送响应体时设置为<code>Boolean.TRUE</code>
+     */
+    public static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+
+
+    /**
+     * 请求属性，要由连接器发送的文件的规范路径. 设置它的servlet不再写入响应体
+     */
+    public static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+
+
+    /**
+     * 请求属性，要发送的文件范围的起始位置(<code>Long</code>)
+     */
+    public static final String SENDFILE_FILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+
+
+    /**
+     * 请求属性，要发送的文件范围的结束位置(<code>Long</code>, 不包含)
+     */
+    public static final String SENDFILE_FILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+
     /**
      * 请求属性，重定向Servlet名称到一个错误页面
      */
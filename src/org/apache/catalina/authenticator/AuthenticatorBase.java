@@ -36,6 +36,7 @@ import org.apache.catalina.ValveContext;
 import org.apache.catalina.deploy.LoginConfig;
 import org.apache.catalina.deploy.SecurityConstraint;
 import org.apache.catalina.util.LifecycleSupport;
+import org.apache.catalina.util.SessionIdGenerator;
 import org.apache.catalina.util.StringManager;
 import org.apache.catalina.valves.ValveBase;
 
@@ -68,8 +69,9 @@ public abstract class AuthenticatorBase extends ValveBase implements Authenticat
 
 
     /**
-     * 生成会话标识符时要使用的消息摘要算法. 
-     * 它必须被<code>java.security.MessageDigest</code>类支持
+     * 消息摘要算法. 
+     * 它必须被<code>java.security.MessageDigest</code>类支持.
+     * 会话标识符直接由随机字节生成, 不再使用这个算法
      */
     protected String algorithm = DEFAULT_ALGORITHM;
 
@@ -133,6 +135,18 @@ public abstract class AuthenticatorBase extends ValveBase implements Authenticat
     protected String randomClass = "java.security.SecureRandom";
 
 
+    /**
+     * 生成会话标识符时使用的生成器, 在第一次使用时根据当前的属性创建
+     */
+    protected volatile SessionIdGenerator sessionIdGenerator = null;
+
+
+    /**
+     * 生成会话标识符时要包含的随机字节数
+     */
+    protected int sessionIdLength = SESSION_ID_BYTES;
+
+
     /**
      * 此包的字符串管理器
      */
@@ -252,6 +266,7 @@ public abstract class AuthenticatorBase extends ValveBase implements Authenticat
      */
     public void setEntropy(String entropy) {
         this.entropy = entropy;
+        this.sessionIdGenerator = null;
     }
 
 
@@ -278,6 +293,26 @@ public abstract class AuthenticatorBase extends ValveBase implements Authenticat
      */
     public void setRandomClass(String randomClass) {
         this.randomClass = randomClass;
+        this.sessionIdGenerator = null;
+    }
+
+
+    /**
+     * 返回生成会话标识符时要包含的随机字节数
+     */
+    public int getSessionIdLength() {
+        return (this.sessionIdLength);
+    }
+
+
+    /**
+     * 设置生成会话标识符时要包含的随机字节数
+     *
+     * @param sessionIdLength 随机字节数
+     */
+    public void setSessionIdLength(int sessionIdLength) {
+        this.sessionIdLength = sessionIdLength;
+        this.sessionIdGenerator = null;
     }
 
     /**
@@ -680,29 +715,32 @@ public abstract class AuthenticatorBase extends ValveBase implements Authenticat
     /**
      * 生成并返回标识SSO主体的cookie的新会话标识符
      */
-    protected synchronized String generateSessionId() {
-
-        //生成包含会话标识符的字节数组
-        Random random = getRandom();
-        byte bytes[] = new byte[SESSION_ID_BYTES];
-        getRandom().nextBytes(bytes);
-        bytes = getDigest().digest(bytes);
-
-        //将结果呈现为十六进制数字的字符串
-        StringBuffer result = new StringBuffer();
-        for (int i = 0; i < bytes.length; i++) {
-            byte b1 = (byte) ((bytes[i] & 0xf0) >> 4);
-            byte b2 = (byte) (bytes[i] & 0x0f);
-            if (b1 < 10)
-                result.append((char) ('0' + b1));
-            else
-                result.append((char) ('A' + (b1 - 10)));
-            if (b2 < 10)
-                result.append((char) ('0' + b2));
-            else
-                result.append((char) ('A' + (b2 - 10)));
+    protected String generateSessionId() {
+        return (getSessionIdGenerator().generateSessionId());
+    }
+
+
+    /**
+     * 返回生成会话标识符时使用的生成器. 如果还没有创建，根据当前的属性创建一个
+     */
+    protected SessionIdGenerator getSessionIdGenerator() {
+
+        SessionIdGenerator generator = this.sessionIdGenerator;
+        if (generator != null)
+            return (generator);
+        synchronized (this) {
+            if (this.sessionIdGenerator == null) {
+                try {
+                    this.sessionIdGenerator = new SessionIdGenerator
+                        (randomClass, getEntropy(), sessionIdLength);
+                } catch (IllegalArgumentException e) {
+                    this.sessionIdGenerator = new SessionIdGenerator
+                        (SessionIdGenerator.DEFAULT_RANDOM_CLASS,
+                         getEntropy(), SESSION_ID_BYTES);
+                }
+            }
+            return (this.sessionIdGenerator);
         }
-        return (result.toString());
 
     }
 
@@ -0,0 +1,392 @@
+package org.apache.catalina.cluster;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.apache.catalina.util.StringManager;
+
+
+/**
+ * 把Cluster接收的消息按senderId分发给各个<code>ClusterReceiver</code>.
+ * <p>
+ * 每个已启动的接收者有一个有界的队列. 设置了监听器的接收者的消息由一个分发线程按到达的顺序交给监听器,
+ * 所以一个Cluster的所有Context共用一个线程, 并且消息到达之后立即被处理.
+ * 没有监听器的接收者的消息保存在队列中, 直到<code>getObjects()</code>取走它们.
+ * <p>
+ * 队列满时, 可靠的传输使用<code>offer()</code>, 保留这条消息并停止读取它的连接,
+ * 直到分发线程腾出空间时通知它, 这样压力只传回这个连接的发送方; 多播则丢弃消息.
+ * 没有监听器的队列满时丢弃最早的消息.
+ * <p>
+ * <b>IMPLEMENTATION NOTE</b>: 所有的队列操作在这个对象上同步; 调用监听器时不持有锁.
+ */
+
+final class ClusterDispatcher implements Runnable {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * @param cluster 拥有这个分发器的Cluster
+     * @param capacity 每个接收者的队列的最大消息数
+     */
+    ClusterDispatcher(StandardCluster cluster, int capacity) {
+        this.cluster = cluster;
+        this.capacity = Math.max(1, capacity);
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * 每次从一个队列中取出的最大消息数, 使其它接收者的消息不必等待太久.
+     */
+    private static final int MAX_BATCH = 100;
+
+
+    /**
+     * 每个接收者的队列的最大消息数.
+     */
+    private final int capacity;
+
+
+    /**
+     * 分发器是否已经关闭?
+     */
+    private boolean closed = false;
+
+
+    /**
+     * 拥有这个分发器的Cluster.
+     */
+    private final StandardCluster cluster;
+
+
+    /**
+     * 因为队列满而被丢弃的消息数.
+     */
+    private long dropped = 0L;
+
+
+    /**
+     * 自上次通知<code>spaceListener</code>以来, <code>offer()</code>是否因为队列满而拒绝了消息?
+     */
+    private boolean full = false;
+
+
+    /**
+     * senderId -> <code>Route</code>.
+     */
+    private final HashMap routes = new HashMap();
+
+
+    /**
+     * <code>offer()</code>拒绝了消息之后, 队列有空间时调用, 如果没有, 为<code>null</code>.
+     */
+    private Runnable spaceListener = null;
+
+
+    /**
+     * 字符串管理器
+     */
+    private static final StringManager sm =
+        StringManager.getManager(Constants.Package);
+
+
+    /**
+     * 分发线程.
+     */
+    private Thread thread = null;
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 把一条消息放入它的senderId的队列. 队列满时丢弃这条消息.
+     *
+     * @param message 接收的消息
+     * @return 消息是否被放入队列? 如果没有这个senderId的接收者, 或者消息被丢弃, 返回<code>false</code>
+     */
+    synchronized boolean dispatch(ReplicationWrapper message) {
+
+        Route route = (Route) routes.get(message.getSenderId());
+        if ((route == null) || closed)
+            return (false);
+        if (route.receiver.getListener() == null) {
+            // Nobody may ever poll: keep the newest messages
+            if (route.queue.size() >= capacity) {
+                route.queue.removeFirst();
+                dropped++;
+            }
+            route.queue.add(message);
+            return (true);
+        }
+        if (route.queue.size() >= capacity) {
+            dropped++;
+            return (false);
+        }
+        route.queue.add(message);
+        notifyAll();
+        return (true);
+
+    }
+
+
+    /**
+     * 把一条消息放入它的senderId的队列, 不等待. 队列满时不放入这条消息, 也不把它计为丢弃;
+     * 调用者稍后重试, 队列有空间时<code>spaceListener</code>被调用.
+     *
+     * @param message 接收的消息
+     * @return 队列满时返回<code>false</code>; 否则返回<code>true</code>, 包括没有这个senderId的接收者时
+     */
+    synchronized boolean offer(ReplicationWrapper message) {
+
+        Route route = (Route) routes.get(message.getSenderId());
+        if ((route != null) && !closed &&
+            (route.receiver.getListener() != null) &&
+            (route.queue.size() >= capacity)) {
+            full = true;
+            return (false);
+        }
+        dispatch(message);
+        return (true);
+
+    }
+
+
+    /**
+     * 返回因为队列满而被丢弃的消息数.
+     */
+    synchronized long getDropped() {
+        return (dropped);
+    }
+
+
+    /**
+     * 返回所有队列中的消息数.
+     */
+    synchronized int getQueueDepth() {
+
+        int count = 0;
+        Iterator values = routes.values().iterator();
+        while (values.hasNext())
+            count += ((Route) values.next()).queue.size();
+        return (count);
+
+    }
+
+
+    /**
+     * 接收者的监听器被修改时调用, 使分发线程处理已经排队的消息.
+     */
+    synchronized void listenerChanged() {
+        space();
+        notifyAll();
+    }
+
+
+    /**
+     * 取走指定接收者的队列中的所有消息, 如果它没有监听器.
+     *
+     * @param receiver 接收者
+     */
+    synchronized Object[] poll(ClusterReceiver receiver) {
+
+        Route route = (Route) routes.get(receiver.getSenderId());
+        if ((route == null) || (route.receiver != receiver) ||
+            (receiver.getListener() != null))
+            return (new Object[0]);
+        Object messages[] = route.queue.toArray();
+        route.queue.clear();
+        return (messages);
+
+    }
+
+
+    /**
+     * 设置<code>offer()</code>拒绝了消息之后, 队列有空间时调用的监听器.
+     * 它在持有这个对象的锁时被调用, 所以不能阻塞.
+     *
+     * @param listener 监听器, 或者<code>null</code>
+     */
+    synchronized void setSpaceListener(Runnable listener) {
+        this.spaceListener = listener;
+    }
+
+
+    /**
+     * 开始接收指定接收者的senderId的消息. 同一个senderId的接收者替换原来的接收者.
+     *
+     * @param receiver 接收者
+     */
+    synchronized void register(ClusterReceiver receiver) {
+        routes.put(receiver.getSenderId(), new Route(receiver));
+        notifyAll();
+    }
+
+
+    /**
+     * 启动分发线程.
+     *
+     * @param name 分发线程的名称
+     */
+    void start(String name) {
+
+        synchronized (this) {
+            closed = false;
+        }
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+
+    }
+
+
+    /**
+     * 把已经排队的消息交给监听器, 然后停止分发线程. 此后所有的消息被丢弃.
+     */
+    void stop() {
+
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        if (thread == null)
+            return;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+
+    }
+
+
+    /**
+     * 停止接收指定接收者的消息, 丢弃它的队列.
+     *
+     * @param receiver 接收者
+     */
+    synchronized void unregister(ClusterReceiver receiver) {
+
+        Route route = (Route) routes.get(receiver.getSenderId());
+        if ((route != null) && (route.receiver == receiver)) {
+            routes.remove(receiver.getSenderId());
+            space();
+            notifyAll();
+        }
+
+    }
+
+
+    // ------------------------------------------------------ Background Thread
+
+
+    /**
+     * 分发线程: 依次把消息交给监听器, 直到分发器关闭并且没有可以分发的消息.
+     */
+    public void run() {
+
+        Object batch[] = null;
+        while ((batch = take()) != null) {
+            for (int i = 0; i < batch.length; i += 2) {
+                ClusterMessageListener listener =
+                    (ClusterMessageListener) batch[i];
+                ReplicationWrapper message = (ReplicationWrapper) batch[i + 1];
+                try {
+                    listener.messageReceived(message);
+                } catch (Throwable t) {
+                    cluster.log(sm.getString
+                                ("clusterDispatcher.listenerException",
+                                 message.getSenderId(), t.toString()));
+                }
+            }
+        }
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * 从每个有监听器的队列中取出下一批消息. 如果没有, 等待;
+     * 如果分发器已经关闭并且没有可以分发的消息, 返回<code>null</code>.
+     *
+     * @return 交替排列的监听器和消息
+     */
+    private synchronized Object[] take() {
+
+        while (true) {
+            ArrayList results = new ArrayList();
+            Iterator values = routes.values().iterator();
+            while (values.hasNext()) {
+                Route route = (Route) values.next();
+                ClusterMessageListener listener = route.receiver.getListener();
+                if (listener == null)
+                    continue;
+                for (int i = 0; (i < MAX_BATCH) && !route.queue.isEmpty(); i++) {
+                    results.add(listener);
+                    results.add(route.queue.removeFirst());
+                }
+            }
+            if (!results.isEmpty()) {
+                // Room for more messages
+                space();
+                return (results.toArray());
+            }
+            if (closed)
+                return (null);
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                ;
+            }
+        }
+
+    }
+
+
+    /**
+     * 如果<code>offer()</code>拒绝了消息, 通知<code>spaceListener</code>可以重试. 调用者持有这个对象的锁.
+     */
+    private void space() {
+
+        if (!full)
+            return;
+        full = false;
+        if (spaceListener != null)
+            spaceListener.run();
+
+    }
+
+
+    // --------------------------------------------------------- Inner Classes
+
+
+    /**
+     * 一个接收者和它的队列.
+     */
+    private static final class Route {
+
+        Route(ClusterReceiver receiver) {
+            this.receiver = receiver;
+            this.senderId = receiver.getSenderId();
+        }
+
+        final ClusterReceiver receiver;
+
+        final String senderId;
+
+        final LinkedList queue = new LinkedList();
+
+    }
+
+
+}
@@ -1,22 +1,50 @@
 package org.apache.catalina.cluster;
 
 import java.io.Serializable;
+import java.util.HashMap;
 
 import org.apache.catalina.util.ServerInfo;
 
 /**
- * 表示一个Cluster的成员, 保存可以使用的信息，在实现类使用Cluster的时候
+ * 表示一个Cluster的成员, 保存可以使用的信息，在实现类使用Cluster的时候.
+ * 每个成员定期通过多播发送自己的<code>ClusterMemberInfo</code>作为心跳.
  */
 
 public final class ClusterMemberInfo implements Serializable {
 
     // ----------------------------------------------------- Instance Variables
 
-    private static String clusterName = null;
+    private String clusterName = null;
 
-    private static String hostName = null;
+    private String hostName = null;
 
-    private static String clusterInfo = null;
+    private String clusterInfo = null;
+
+    /**
+     * 这个成员接收复制消息的TCP端口, 0表示它不使用TCP传输
+     */
+    private int tcpPort = 0;
+
+    /**
+     * 成员的唯一标识, 每次启动都不同
+     */
+    private String memberId = null;
+
+    /**
+     * 心跳的序号
+     */
+    private long sequence = 0L;
+
+    /**
+     * 发送心跳时成员的负载: 每个处理器的系统平均负载, 不可用时为负数
+     */
+    private double load = -1.0;
+
+    /**
+     * 成员标识 -> 从那个成员收到的最后一个心跳的序号, 以及从收到它到发送这个心跳经过的毫秒数
+     * (<code>long[2]</code>). 那个成员用它计算往返时间.
+     */
+    private HashMap echoes = null;
 
     // ------------------------------------------------------------- Properties
 
@@ -47,4 +75,44 @@ public final class ClusterMemberInfo implements Serializable {
     public String getClusterInfo() {
         return(this.clusterInfo);
     }
+
+    public void setTcpPort(int tcpPort) {
+        this.tcpPort = tcpPort;
+    }
+
+    public int getTcpPort() {
+        return(this.tcpPort);
+    }
+
+    public void setMemberId(String memberId) {
+        this.memberId = memberId;
+    }
+
+    public String getMemberId() {
+        return(this.memberId);
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public long getSequence() {
+        return(this.sequence);
+    }
+
+    public void setLoad(double load) {
+        this.load = load;
+    }
+
+    public double getLoad() {
+        return(this.load);
+    }
+
+    public void setEchoes(HashMap echoes) {
+        this.echoes = echoes;
+    }
+
+    public HashMap getEchoes() {
+        return(this.echoes);
+    }
 }
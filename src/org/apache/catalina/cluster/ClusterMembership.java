@@ -0,0 +1,566 @@
+package org.apache.catalina.cluster;
+
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.apache.catalina.util.StringManager;
+
+
+/**
+ * Cluster的成员服务: 心跳和失败检测.
+ * <p>
+ * 每个成员每隔<code>heartbeatInterval</code>毫秒通过多播发送它的<code>ClusterMemberInfo</code>,
+ * 其中包含一个递增的序号, 它的负载, 以及它从每个成员收到的最后一个心跳的序号和持有的时间.
+ * 收到自己的心跳的回显时, 成员用发送时间, 接收时间和对方持有的时间计算往返时间.
+ * <p>
+ * 失败检测使用phi累积(phi-accrual)检测器: 对每个成员保存最近的心跳间隔,
+ * 按它们的均值和标准差计算当前的沉默时间的可疑度<code>phi</code>.
+ * <code>phi</code>超过<code>suspectThreshold</code>时成员被怀疑, 它不再被选择为备份节点;
+ * 超过<code>memberDropTime</code>毫秒没有心跳时成员被删除. 被怀疑的成员再次发送心跳时恢复.
+ * <p>
+ * <b>IMPLEMENTATION NOTE</b>: 成员视图在这个对象上同步; 调用监听器时不持有锁.
+ */
+
+final class ClusterMembership implements Runnable {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * @param cluster 拥有这个服务的Cluster
+     */
+    ClusterMembership(StandardCluster cluster) {
+        this.cluster = cluster;
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * 每个成员保存的心跳间隔的数目.
+     */
+    private static final int WINDOW = 100;
+
+
+    /**
+     * 通知监听器的事件类型.
+     */
+    private static final int MEMBER_ADDED = 0;
+
+    private static final int MEMBER_SUSPECTED = 1;
+
+    private static final int MEMBER_REMOVED = 2;
+
+
+    /**
+     * 记住发送时间的心跳的数目, 更早的心跳的回显不再用来计算往返时间.
+     */
+    private static final int SENT_HISTORY = 64;
+
+
+    /**
+     * 拥有这个服务的Cluster.
+     */
+    private final StandardCluster cluster;
+
+
+    /**
+     * 发送心跳的间隔(毫秒).
+     */
+    private long heartbeatInterval = 1000L;
+
+
+    /**
+     * 注册的<code>MembershipListener</code>.
+     */
+    private final ArrayList listeners = new ArrayList();
+
+
+    /**
+     * 本地成员的信息, 作为心跳发送.
+     */
+    private ClusterMemberInfo local = null;
+
+
+    /**
+     * 没有心跳多长时间(毫秒)之后删除一个成员.
+     */
+    private long memberDropTime = 10000L;
+
+
+    /**
+     * 成员标识 -> <code>Member</code>.
+     */
+    private final HashMap members = new HashMap();
+
+
+    /**
+     * 发送心跳的多播发送者.
+     */
+    private ClusterSender sender = null;
+
+
+    /**
+     * 最近的心跳的发送时间, 按序号取模索引.
+     */
+    private final long sent[] = new long[SENT_HISTORY];
+
+
+    /**
+     * 字符串管理器
+     */
+    private static final StringManager sm =
+        StringManager.getManager(Constants.Package);
+
+
+    /**
+     * 怀疑一个成员的<code>phi</code>阈值.
+     */
+    private double suspectThreshold = 8.0;
+
+
+    /**
+     * 心跳线程.
+     */
+    private Thread thread = null;
+
+
+    /**
+     * 心跳线程是否应该停止?
+     */
+    private volatile boolean threadDone = false;
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 添加一个成员变化的监听器.
+     */
+    void addMembershipListener(MembershipListener listener) {
+
+        synchronized (listeners) {
+            listeners.add(listener);
+        }
+
+    }
+
+
+    /**
+     * 删除一个成员变化的监听器.
+     */
+    void removeMembershipListener(MembershipListener listener) {
+
+        synchronized (listeners) {
+            listeners.remove(listener);
+        }
+
+    }
+
+
+    /**
+     * 返回没有被怀疑的成员, 不包括本地成员.
+     */
+    synchronized ClusterMemberInfo[] getMembers() {
+
+        ArrayList results = new ArrayList();
+        Iterator values = members.values().iterator();
+        while (values.hasNext()) {
+            Member member = (Member) values.next();
+            if (!member.suspected)
+                results.add(member.info);
+        }
+        return ((ClusterMemberInfo[])
+                results.toArray(new ClusterMemberInfo[results.size()]));
+
+    }
+
+
+    /**
+     * 返回每个成员的状态: 地址, 往返时间(毫秒), 当前的<code>phi</code>, 负载, 以及是否被怀疑.
+     */
+    synchronized String[] getMemberStatus() {
+
+        long timeNow = System.currentTimeMillis();
+        String results[] = new String[members.size()];
+        Iterator values = members.values().iterator();
+        for (int i = 0; values.hasNext(); i++) {
+            Member member = (Member) values.next();
+            StringBuffer sb = new StringBuffer(member.info.getMemberId());
+            sb.append(" rtt=");
+            if (member.rtt < 0)
+                sb.append('-');
+            else
+                sb.append(Math.round(member.rtt * 100.0) / 100.0);
+            sb.append(" phi=");
+            sb.append(Math.round(member.phi(timeNow) * 100.0) / 100.0);
+            sb.append(" load=");
+            sb.append(Math.round(member.info.getLoad() * 100.0) / 100.0);
+            if (member.suspected)
+                sb.append(" suspected");
+            results[i] = sb.toString();
+        }
+        return (results);
+
+    }
+
+
+    /**
+     * 处理一个成员的心跳, 由分发线程调用. 本地成员的心跳和重复或过时的心跳被忽略.
+     *
+     * @param info 心跳中的成员信息
+     */
+    void heartbeatReceived(ClusterMemberInfo info) {
+
+        String id = info.getMemberId();
+        long timeNow = System.currentTimeMillis();
+        Member member = null;
+        boolean added = false;
+        synchronized (this) {
+            if ((id == null) || (local == null) ||
+                id.equals(local.getMemberId()))
+                return;
+            member = (Member) members.get(id);
+            if (member == null) {
+                member = new Member(info, timeNow, heartbeatInterval);
+                members.put(id, member);
+                added = true;
+            } else {
+                if (info.getSequence() <= member.info.getSequence())
+                    return;
+                member.arrived(info, timeNow);
+                if (member.suspected) {
+                    member.suspected = false;
+                    added = true;
+                }
+            }
+            member.echo(echoOf(info), timeNow);
+        }
+        if (added) {
+            if (cluster.getDebug() > 0)
+                cluster.log(sm.getString("clusterMembership.memberAdded", id));
+            fire(MEMBER_ADDED, info);
+        }
+
+    }
+
+
+    /**
+     * 设置心跳的参数. 在<code>start()</code>之前调用.
+     *
+     * @param heartbeatInterval 发送心跳的间隔(毫秒)
+     * @param suspectThreshold 怀疑一个成员的<code>phi</code>阈值
+     * @param memberDropTime 没有心跳多长时间(毫秒)之后删除一个成员
+     */
+    void setParameters(long heartbeatInterval, double suspectThreshold,
+                       long memberDropTime) {
+
+        this.heartbeatInterval = Math.max(10L, heartbeatInterval);
+        this.suspectThreshold = suspectThreshold;
+        this.memberDropTime = Math.max(this.heartbeatInterval, memberDropTime);
+
+    }
+
+
+    /**
+     * 启动心跳线程. 第一个心跳立即发送.
+     *
+     * @param name 心跳线程的名称
+     * @param sender 发送心跳的多播发送者
+     * @param local 本地成员的信息
+     */
+    void start(String name, ClusterSender sender, ClusterMemberInfo local) {
+
+        synchronized (this) {
+            this.sender = sender;
+            this.local = local;
+        }
+        threadDone = false;
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+
+    }
+
+
+    /**
+     * 停止心跳线程并清空成员视图, 不通知监听器.
+     * 其它成员在<code>memberDropTime</code>之后删除这个成员.
+     */
+    void stop() {
+
+        threadDone = true;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+        synchronized (this) {
+            members.clear();
+        }
+
+    }
+
+
+    // ------------------------------------------------------ Background Thread
+
+
+    /**
+     * 心跳线程: 发送心跳, 然后检查所有的成员.
+     */
+    public void run() {
+
+        while (!threadDone) {
+            try {
+                sender.send(heartbeat());
+                check();
+            } catch (Throwable t) {
+                cluster.log(sm.getString("clusterMembership.heartbeatException",
+                                         t.toString()));
+            }
+            try {
+                Thread.sleep(heartbeatInterval);
+            } catch (InterruptedException e) {
+                ;
+            }
+        }
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * 怀疑心跳迟到的成员, 删除太长时间没有心跳的成员.
+     */
+    private void check() {
+
+        long timeNow = System.currentTimeMillis();
+        ArrayList suspected = new ArrayList();
+        ArrayList removed = new ArrayList();
+        synchronized (this) {
+            Iterator values = members.values().iterator();
+            while (values.hasNext()) {
+                Member member = (Member) values.next();
+                if (timeNow - member.lastArrival >= memberDropTime) {
+                    values.remove();
+                    removed.add(member.info);
+                } else if (!member.suspected &&
+                           (member.phi(timeNow) >= suspectThreshold)) {
+                    member.suspected = true;
+                    suspected.add(member.info);
+                }
+            }
+        }
+
+        for (int i = 0; i < suspected.size(); i++) {
+            ClusterMemberInfo info = (ClusterMemberInfo) suspected.get(i);
+            cluster.log(sm.getString("clusterMembership.memberSuspected",
+                                     info.getMemberId()));
+            fire(MEMBER_SUSPECTED, info);
+        }
+        for (int i = 0; i < removed.size(); i++) {
+            ClusterMemberInfo info = (ClusterMemberInfo) removed.get(i);
+            cluster.log(sm.getString("clusterMembership.memberRemoved",
+                                     info.getMemberId()));
+            fire(MEMBER_REMOVED, info);
+        }
+
+    }
+
+
+    /**
+     * 返回心跳中本地成员的回显: 序号和持有的时间, 如果没有, 返回<code>null</code>.
+     */
+    private long[] echoOf(ClusterMemberInfo info) {
+
+        HashMap echoes = info.getEchoes();
+        if (echoes == null)
+            return (null);
+        long echo[] = (long[]) echoes.get(local.getMemberId());
+        if ((echo == null) || (echo.length < 2))
+            return (null);
+        long seq = echo[0];
+        // Only recent heartbeats still have their send time
+        if ((seq <= 0) || (seq <= local.getSequence() - SENT_HISTORY) ||
+            (seq > local.getSequence()))
+            return (null);
+        return (new long[] { sent[(int) (seq % SENT_HISTORY)], echo[1] });
+
+    }
+
+
+    /**
+     * 通知所有的监听器.
+     */
+    private void fire(int type, ClusterMemberInfo info) {
+
+        MembershipListener interested[] = null;
+        synchronized (listeners) {
+            interested = (MembershipListener[]) listeners.toArray
+                (new MembershipListener[listeners.size()]);
+        }
+        for (int i = 0; i < interested.length; i++) {
+            try {
+                switch (type) {
+                case MEMBER_ADDED:
+                    interested[i].memberAdded(info);
+                    break;
+                case MEMBER_SUSPECTED:
+                    interested[i].memberSuspected(info);
+                    break;
+                default:
+                    interested[i].memberRemoved(info);
+                }
+            } catch (Throwable t) {
+                cluster.log(sm.getString("clusterMembership.listenerException",
+                                         info.getMemberId(), t.toString()));
+            }
+        }
+
+    }
+
+
+    /**
+     * 准备下一个心跳: 序号, 负载和回显.
+     */
+    private synchronized ClusterMemberInfo heartbeat() {
+
+        long timeNow = System.currentTimeMillis();
+        long seq = local.getSequence() + 1;
+        local.setSequence(seq);
+        sent[(int) (seq % SENT_HISTORY)] = timeNow;
+        local.setLoad(load());
+
+        HashMap echoes = new HashMap();
+        Iterator values = members.values().iterator();
+        while (values.hasNext()) {
+            Member member = (Member) values.next();
+            echoes.put(member.info.getMemberId(), new long[]
+                { member.info.getSequence(), timeNow - member.lastArrival });
+        }
+        local.setEchoes(echoes);
+        return (local);
+
+    }
+
+
+    /**
+     * 返回每个处理器的系统平均负载, 如果不可用, 返回负数.
+     */
+    private static double load() {
+
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        double load = os.getSystemLoadAverage();
+        if (load < 0)
+            return (load);
+        return (load / Math.max(1, os.getAvailableProcessors()));
+
+    }
+
+
+    // --------------------------------------------------------- Inner Classes
+
+
+    /**
+     * 一个远程成员: 它最近的心跳, 心跳间隔和往返时间.
+     */
+    private static final class Member {
+
+        Member(ClusterMemberInfo info, long timeNow, long expected) {
+            this.info = info;
+            this.lastArrival = timeNow;
+            // Until real intervals arrive, assume the nominal interval
+            record(expected);
+        }
+
+        ClusterMemberInfo info;
+
+        long lastArrival;
+
+        boolean suspected = false;
+
+        /**
+         * 往返时间的指数移动平均(毫秒), 还没有测量时为负数.
+         */
+        double rtt = -1.0;
+
+        private final long intervals[] = new long[WINDOW];
+
+        private int count = 0;
+
+        private int next = 0;
+
+        private double sum = 0.0;
+
+        private double sumSquares = 0.0;
+
+        /**
+         * 收到一个新的心跳.
+         */
+        void arrived(ClusterMemberInfo info, long timeNow) {
+            record(timeNow - lastArrival);
+            this.info = info;
+            this.lastArrival = timeNow;
+        }
+
+        /**
+         * 用心跳中的回显更新往返时间.
+         *
+         * @param echo 发送时间和对方持有的时间, 或者<code>null</code>
+         */
+        void echo(long echo[], long timeNow) {
+            if (echo == null)
+                return;
+            long sample = timeNow - echo[0] - echo[1];
+            if (sample < 0)
+                return;
+            rtt = (rtt < 0) ? sample : (0.8 * rtt + 0.2 * sample);
+        }
+
+        /**
+         * 返回从上一个心跳到现在的沉默时间的可疑度. 心跳间隔被看作正态分布,
+         * 累积分布函数使用逻辑近似.
+         */
+        double phi(long timeNow) {
+            double mean = sum / count;
+            double variance = sumSquares / count - mean * mean;
+            // Jitter on a quiet network must not make one late packet fatal
+            double deviation = Math.max(Math.sqrt(Math.max(variance, 0.0)),
+                                        mean / 4.0);
+            double y = (timeNow - lastArrival - mean) / deviation;
+            double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            if (timeNow - lastArrival > mean)
+                return (-Math.log10(e / (1.0 + e)));
+            return (-Math.log10(1.0 - 1.0 / (1.0 + e)));
+        }
+
+        private void record(long interval) {
+            if (count == WINDOW) {
+                long oldest = intervals[next];
+                sum -= oldest;
+                sumSquares -= (double) oldest * oldest;
+            } else {
+                count++;
+            }
+            intervals[next] = interval;
+            next = (next + 1) % WINDOW;
+            sum += interval;
+            sumSquares += (double) interval * interval;
+        }
+
+    }
+
+
+}
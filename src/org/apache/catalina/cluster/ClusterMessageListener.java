@@ -0,0 +1,16 @@
+package org.apache.catalina.cluster;
+
+/**
+ * 接收集群消息的监听器. 注册到<code>ClusterReceiver</code>之后,
+ * 消息到达时由Cluster的分发线程立即交给它, 不再需要轮询<code>getObjects()</code>.
+ * 同一个Cluster的所有监听器由一个线程依次调用, 所以实现类不应该长时间阻塞.
+ */
+public interface ClusterMessageListener {
+
+    /**
+     * 接收到一条发给这个监听器的senderId的消息.
+     *
+     * @param message The received message
+     */
+    public void messageReceived(ReplicationWrapper message);
+}
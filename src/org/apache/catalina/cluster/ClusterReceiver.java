@@ -68,12 +68,25 @@ public interface ClusterReceiver extends Runnable {
 
     /**
      * 获取接收到的对象数组.
-     * 只有接收到的对象拥有同样的senderId,正如为此<code>ClusterReceiver</code>指定的 将被返回
+     * 只有接收到的对象拥有同样的senderId,正如为此<code>ClusterReceiver</code>指定的 将被返回.
+     * 如果设置了监听器, 消息被交给监听器, 这个方法返回零长度数组.
      *
      * @return a value of type 'Object[]'
      */
     public Object[] getObjects();
 
+    /**
+     * 设置接收消息的监听器. 此后消息到达时被立即交给它, 而不是保存到<code>getObjects()</code>被调用.
+     *
+     * @param listener The listener, or <code>null</code> to poll again
+     */
+    public void setListener(ClusterMessageListener listener);
+
+    /**
+     * 返回接收消息的监听器, 如果没有, 返回<code>null</code>.
+     */
+    public ClusterMessageListener getListener();
+
     /**
      * 启动Cluster时调用.
      */
@@ -0,0 +1,28 @@
+package org.apache.catalina.cluster;
+
+/**
+ * 接收集群成员变化的监听器. 由Cluster的成员服务调用, 实现类不应该长时间阻塞.
+ */
+public interface MembershipListener {
+
+    /**
+     * 一个新的成员出现, 或者一个被怀疑的成员又发送了心跳.
+     *
+     * @param member The member
+     */
+    public void memberAdded(ClusterMemberInfo member);
+
+    /**
+     * 一个成员的心跳迟到太久, 它可能已经失败. 它仍然在成员视图中, 直到被删除或者恢复.
+     *
+     * @param member The member
+     */
+    public void memberSuspected(ClusterMemberInfo member);
+
+    /**
+     * 一个成员已经离开集群或者失败, 从成员视图中被删除.
+     *
+     * @param member The member
+     */
+    public void memberRemoved(ClusterMemberInfo member);
+}
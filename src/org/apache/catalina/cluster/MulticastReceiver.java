@@ -6,11 +6,12 @@ import java.io.ObjectInputStream;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
-import java.util.Vector;
+import java.net.SocketTimeoutException;
 
 
 /**
- * 这个类负责检查传入的多播数据，并确定数据是否属于我们，如果是的话，将其推入一个内部堆栈，并在需要时读取
+ * 这个类负责接收传入的多播数据, 交给Cluster的<code>ClusterDispatcher</code>按senderId分发.
+ * 后台线程阻塞在套接字上, 数据包到达时立即被分发, 不再休眠轮询.
  */
 
 public final class MulticastReceiver
@@ -18,11 +19,6 @@ public final class MulticastReceiver
 
     // ----------------------------------------------------- Instance Variables
 
-    /**
-     * 唯一的ID
-     */
-    private static String senderId = null;
-
     /**
      * The MulticastSocket to use
      */
@@ -39,9 +35,14 @@ public final class MulticastReceiver
     private String receiverName = "MulticastReceiver";
 
     /**
-     * 保存传入请求的堆栈
+     * 分发消息的分发器
+     */
+    private ClusterDispatcher dispatcher = null;
+
+    /**
+     * 接收消息的监听器
      */
-    private static Vector stack = new Vector();
+    private volatile ClusterMessageListener listener = null;
 
     /**
      * 组件是否已经启动
@@ -56,7 +57,7 @@ public final class MulticastReceiver
     /**
      * 后台线程是否完成信号量
      */
-    protected boolean threadDone = false;
+    protected volatile boolean threadDone = false;
 
     /**
      * 后台线程休眠的时间间隔
@@ -68,11 +69,14 @@ public final class MulticastReceiver
     /**
      * @param senderId The unique senderId
      * @param multicastSocket The MulticastSocket to use
+     * @param dispatcher The dispatcher to use
      */
     MulticastReceiver(String senderId, MulticastSocket multicastSocket,
-                    InetAddress multicastAddress, int multicastPort) {
+                    InetAddress multicastAddress, int multicastPort,
+                    ClusterDispatcher dispatcher) {
         this.multicastSocket = multicastSocket;
-        this.senderId = senderId;
+        this.dispatcher = dispatcher;
+        setSenderId(senderId);
     }
 
     /**
@@ -108,11 +112,16 @@ public final class MulticastReceiver
      * @return An array with objects
      */
     public Object[] getObjects() {
-        synchronized (stack) {
-            Object[] objs = stack.toArray();
-            stack.removeAllElements();
-            return (objs);
-        }
+        return (dispatcher.poll(this));
+    }
+
+    public void setListener(ClusterMessageListener listener) {
+        this.listener = listener;
+        dispatcher.listenerChanged();
+    }
+
+    public ClusterMessageListener getListener() {
+        return (this.listener);
     }
 
     /**
@@ -120,6 +129,7 @@ public final class MulticastReceiver
      */
     public void start() {
         started = true;
+        dispatcher.register(this);
 
         // Start the background reaper thread
         threadStart();
@@ -130,6 +140,7 @@ public final class MulticastReceiver
      */
     public void stop() {
         started = false;
+        dispatcher.unregister(this);
 
         // Stop the background reaper thread
         threadStop();
@@ -149,13 +160,17 @@ public final class MulticastReceiver
             ObjectInputStream ois = null;
 
             multicastSocket.receive(recv);
-            ips = new ByteArrayInputStream(buf, 0, buf.length);
+            ips = new ByteArrayInputStream(buf, 0, recv.getLength());
             ois = new ObjectInputStream(ips);
             ReplicationWrapper obj = (ReplicationWrapper)ois.readObject();
 
-            if(obj.getSenderId().equals(this.senderId))
-                stack.add(obj);
+            // Datagrams are not retransmitted: drop when the queue is full
+            dispatcher.dispatch(obj);
+        } catch (SocketTimeoutException e) {
+            ;   // Check threadDone
         } catch (IOException e) {
+            if (threadDone)
+                return;
             log("An error occurred when trying to replicate: "+
                 e.toString());
         } catch (ClassNotFoundException e) {
@@ -173,18 +188,6 @@ public final class MulticastReceiver
         // 循环直到终止信号量被设置
         while (!threadDone) {
             receive();
-            threadSleep();
-        }
-    }
-
-    /**
-     * 睡眠时间，被<code>checkInterval</code>属性指定
-     */
-    private void threadSleep() {
-        try {
-            Thread.sleep(checkInterval * 1000L);
-        } catch (InterruptedException e) {
-            ;
         }
     }
 
@@ -196,7 +199,7 @@ public final class MulticastReceiver
             return;
 
         threadDone = false;
-        threadName = threadName+"["+senderId+"]";
+        threadName = threadName+"["+getSenderId()+"]";
         thread = new Thread(this, threadName);
         thread.setDaemon(true);
         thread.start();
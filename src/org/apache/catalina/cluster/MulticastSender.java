@@ -17,11 +17,6 @@ public class MulticastSender extends ClusterSessionBase implements ClusterSender
 
     // ----------------------------------------------------- Instance Variables
 
-    /**
-     * 唯一的消息ID
-     */
-    private static String senderId = null;
-
     /**
      * 组件的名称，用于日志记录
      */
@@ -54,7 +49,7 @@ public class MulticastSender extends ClusterSessionBase implements ClusterSender
         this.multicastAddress = multicastAddress;
         this.multicastPort = multicastPort;
         this.multicastSocket = multicastSocket;
-        this.senderId = senderId;
+        setSenderId(senderId);
     }
 
     /**
@@ -96,7 +91,7 @@ public class MulticastSender extends ClusterSessionBase implements ClusterSender
      * @param b data to be sent
      */
     public void send(byte[] b) {
-        ReplicationWrapper out = new ReplicationWrapper(b, senderId);
+        ReplicationWrapper out = new ReplicationWrapper(b, getSenderId());
         ObjectOutputStream oos = null;
         ByteArrayOutputStream bos = null;
 
@@ -1,11 +1,15 @@
 package org.apache.catalina.cluster;
 
 import java.beans.PropertyChangeSupport;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
 import java.net.UnknownHostException;
-import java.util.Vector;
+import java.util.HashSet;
+import java.util.StringTokenizer;
 
 import org.apache.catalina.Cluster;
 import org.apache.catalina.Container;
@@ -17,10 +21,20 @@ import org.apache.catalina.util.LifecycleSupport;
 import org.apache.catalina.util.StringManager;
 
 /**
- * <b>Cluster</b>实现类. 负责建立集群，向调用者提供有效的多播receiver/sender
+ * <b>Cluster</b>实现类. 负责建立集群，向调用者提供有效的receiver/sender.
+ * <p>
+ * 如果设置了<code>tcpListenPort</code>, 复制消息通过<code>TcpTransport</code>可靠地发送给每个成员,
+ * 多播只用来发现成员; 成员也可以通过<code>tcpMembers</code>静态配置. 否则所有的消息都使用多播.
+ * <p>
+ * 接收的消息由一个<code>ClusterDispatcher</code>线程按senderId分发给所有Context的接收者,
+ * 消息到达时立即被交给接收者的监听器.
+ * <p>
+ * 每个成员通过多播定期发送心跳, <code>ClusterMembership</code>按心跳维护成员视图并检测失败的成员.
+ * 新的成员被加入TCP传输, 失败的成员被删除; Manager通过<code>getBackupMembers()</code>
+ * 在活动的成员中选择一个会话的备份节点.
  */
 
-public final class StandardCluster implements Cluster, Lifecycle, Runnable {
+public final class StandardCluster implements Cluster, Lifecycle {
 
     // ----------------------------------------------------- Instance Variables
 
@@ -30,7 +44,7 @@ public final class StandardCluster implements Cluster, Lifecycle, Runnable {
     private static final String info = "StandardCluster/1.0";
 
     /**
-     * 注册后台线程的名称
+     * 分发线程的名称
      */
     private String threadName = "StandardCluster";
 
@@ -50,19 +64,58 @@ public final class StandardCluster implements Cluster, Lifecycle, Runnable {
     private ClusterMemberInfo localClusterMember = null;
 
     /**
-     * 保存传入集群成员的堆栈
+     * 心跳和失败检测, 维护远程成员的视图
      */
-    private Vector clusterMembers = new Vector();
+    private ClusterMembership membership = new ClusterMembership(this);
 
     /**
-     * 后台线程
+     * 发送心跳的间隔(毫秒)
      */
-    private Thread thread = null;
+    private long heartbeatInterval = 1000L;
 
     /**
-     * 后台线程是否完成信号量
+     * 怀疑一个成员的phi阈值
      */
-    private boolean threadDone = false;
+    private double suspectThreshold = 8.0;
+
+    /**
+     * 没有心跳多长时间(毫秒)之后删除一个成员
+     */
+    private long memberDropTime = 10000L;
+
+    /**
+     * 静态配置的成员的地址, 它们不因为没有心跳而被删除
+     */
+    private HashSet staticMembers = new HashSet();
+
+    /**
+     * 把新的成员加入TCP传输, 删除失败的成员
+     */
+    private MembershipListener transportListener = new MembershipListener() {
+        public void memberAdded(ClusterMemberInfo member) {
+            InetSocketAddress address = tcpAddress(member);
+            TcpTransport transport = StandardCluster.this.transport;
+            if ((address != null) && (transport != null))
+                transport.addMember(address);
+        }
+        public void memberSuspected(ClusterMemberInfo member) {
+            // Keep the connection: a slow member catches up from its queue
+        }
+        public void memberRemoved(ClusterMemberInfo member) {
+            InetSocketAddress address = tcpAddress(member);
+            TcpTransport transport = StandardCluster.this.transport;
+            if ((address == null) || (transport == null) ||
+                staticMembers.contains(address))
+                return;
+            // A restarted member reuses the address under a new identity
+            ClusterMemberInfo[] members = getRemoteClusterMembers();
+            for (int i = 0; i < members.length; i++) {
+                if (address.equals(tcpAddress(members[i])))
+                    return;
+            }
+            transport.removeMember(address);
+        }
+    };
 
     /**
      * 集群名称
@@ -124,6 +177,46 @@ public final class StandardCluster implements Cluster, Lifecycle, Runnable {
      */
     private int checkInterval = 60;
 
+    /**
+     * 接收复制消息的TCP地址, <code>null</code>表示所有的本地地址
+     */
+    private String tcpListenAddress = null;
+
+    /**
+     * 接收复制消息的TCP端口, 0表示不使用TCP传输
+     */
+    private int tcpListenPort = 0;
+
+    /**
+     * 静态配置的成员, 以逗号分隔的<code>host:port</code>
+     */
+    private String tcpMembers = null;
+
+    /**
+     * 合并复制消息的等待时间(毫秒)
+     */
+    private int tcpLingerTime = 5;
+
+    /**
+     * 发送复制消息之后等待所有成员确认的时间(毫秒), 0表示不等待
+     */
+    private long ackTimeout = 0L;
+
+    /**
+     * 复制消息的TCP传输, 如果没有使用, 为<code>null</code>
+     */
+    private TcpTransport transport = null;
+
+    /**
+     * 每个接收者最多排队的消息数
+     */
+    private int receiveQueueSize = 10000;
+
+    /**
+     * 把接收的消息分发给接收者的分发器
+     */
+    private ClusterDispatcher dispatcher = null;
+
     // ------------------------------------------------------------- Properties
 
     /**
@@ -246,17 +339,231 @@ public final class StandardCluster implements Cluster, Lifecycle, Runnable {
         return(this.checkInterval);
     }
 
+    public void setTcpListenAddress(String tcpListenAddress) {
+        String oldTcpListenAddress = this.tcpListenAddress;
+        this.tcpListenAddress = tcpListenAddress;
+        support.firePropertyChange("tcpListenAddress",
+                                   oldTcpListenAddress,
+                                   this.tcpListenAddress);
+    }
+
+    public String getTcpListenAddress() {
+        return(this.tcpListenAddress);
+    }
+
+    public void setTcpListenPort(int tcpListenPort) {
+        int oldTcpListenPort = this.tcpListenPort;
+        this.tcpListenPort = tcpListenPort;
+        support.firePropertyChange("tcpListenPort",
+                                   oldTcpListenPort,
+                                   this.tcpListenPort);
+    }
+
+    public int getTcpListenPort() {
+        return(this.tcpListenPort);
+    }
+
+    /**
+     * 设置静态配置的成员
+     *
+     * @param tcpMembers 以逗号分隔的<code>host:port</code>, 可以包含这个节点自己
+     */
+    public void setTcpMembers(String tcpMembers) {
+        String oldTcpMembers = this.tcpMembers;
+        this.tcpMembers = tcpMembers;
+        support.firePropertyChange("tcpMembers",
+                                   oldTcpMembers,
+                                   this.tcpMembers);
+    }
+
+    public String getTcpMembers() {
+        return(this.tcpMembers);
+    }
+
+    public void setTcpLingerTime(int tcpLingerTime) {
+        int oldTcpLingerTime = this.tcpLingerTime;
+        this.tcpLingerTime = tcpLingerTime;
+        support.firePropertyChange("tcpLingerTime",
+                                   oldTcpLingerTime,
+                                   this.tcpLingerTime);
+    }
+
+    public int getTcpLingerTime() {
+        return(this.tcpLingerTime);
+    }
+
+    /**
+     * 设置发送复制消息之后等待所有成员确认的时间(毫秒). 0表示不等待,
+     * 没有被确认的消息仍然在重新连接之后重发.
+     *
+     * @param ackTimeout The time to wait
+     */
+    public void setAckTimeout(long ackTimeout) {
+        long oldAckTimeout = this.ackTimeout;
+        this.ackTimeout = ackTimeout;
+        support.firePropertyChange("ackTimeout",
+                                   new Long(oldAckTimeout),
+                                   new Long(this.ackTimeout));
+    }
+
+    public long getAckTimeout() {
+        return(this.ackTimeout);
+    }
+
+    public void setReceiveQueueSize(int receiveQueueSize) {
+        int oldReceiveQueueSize = this.receiveQueueSize;
+        this.receiveQueueSize = receiveQueueSize;
+        support.firePropertyChange("receiveQueueSize",
+                                   oldReceiveQueueSize,
+                                   this.receiveQueueSize);
+    }
+
+    public int getReceiveQueueSize() {
+        return(this.receiveQueueSize);
+    }
+
+    /**
+     * 返回接收之后等待被分发或读取的消息数
+     */
+    public int getReceiveQueueDepth() {
+        ClusterDispatcher dispatcher = this.dispatcher;
+        return((dispatcher == null) ? 0 : dispatcher.getQueueDepth());
+    }
+
+    /**
+     * 返回因为接收队列满而被丢弃的消息数
+     */
+    public long getDroppedMessages() {
+        ClusterDispatcher dispatcher = this.dispatcher;
+        return((dispatcher == null) ? 0L : dispatcher.getDropped());
+    }
+
+    /**
+     * 返回已经发送但还没有被成员确认的复制消息数
+     */
+    public int getPendingAcks() {
+        TcpTransport transport = this.transport;
+        return((transport == null) ? 0 : transport.getPendingAcks());
+    }
+
+    public void setHeartbeatInterval(long heartbeatInterval) {
+        long oldHeartbeatInterval = this.heartbeatInterval;
+        this.heartbeatInterval = heartbeatInterval;
+        support.firePropertyChange("heartbeatInterval",
+                                   new Long(oldHeartbeatInterval),
+                                   new Long(this.heartbeatInterval));
+    }
+
+    public long getHeartbeatInterval() {
+        return(this.heartbeatInterval);
+    }
+
+    /**
+     * 设置怀疑一个成员的phi阈值. phi为<code>n</code>时, 成员仍然活动的概率约为<code>10^-n</code>
+     *
+     * @param suspectThreshold The threshold
+     */
+    public void setSuspectThreshold(double suspectThreshold) {
+        double oldSuspectThreshold = this.suspectThreshold;
+        this.suspectThreshold = suspectThreshold;
+        support.firePropertyChange("suspectThreshold",
+                                   new Double(oldSuspectThreshold),
+                                   new Double(this.suspectThreshold));
+    }
+
+    public double getSuspectThreshold() {
+        return(this.suspectThreshold);
+    }
+
+    public void setMemberDropTime(long memberDropTime) {
+        long oldMemberDropTime = this.memberDropTime;
+        this.memberDropTime = memberDropTime;
+        support.firePropertyChange("memberDropTime",
+                                   new Long(oldMemberDropTime),
+                                   new Long(this.memberDropTime));
+    }
+
+    public long getMemberDropTime() {
+        return(this.memberDropTime);
+    }
+
+    /**
+     * 返回每个远程成员的状态: 成员标识, 往返时间(毫秒), phi, 负载, 以及是否被怀疑
+     */
+    public String[] getMemberStatus() {
+        return(membership.getMemberStatus());
+    }
+
     // --------------------------------------------------------- Public Methods
 
     /**
      * 在这个集群的远程成员上,返回包含<code>ClusterMemberInfo</code>的集合. 
      * 此方法不包含本地主机, 在本地主机上检索<code>ClusterMemberInfo</code>使用
-     * <code>getLocalClusterInfo()</code>方法
+     * <code>getLocalClusterInfo()</code>方法. 被怀疑已经失败的成员不包括在内.
      *
      * @return Collection with all members in the Cluster
      */
     public ClusterMemberInfo[] getRemoteClusterMembers() {
-        return((ClusterMemberInfo[])this.clusterMembers.toArray());
+        return(membership.getMembers());
+    }
+
+    /**
+     * 添加一个成员变化的监听器
+     *
+     * @param listener The listener to add
+     */
+    public void addMembershipListener(MembershipListener listener) {
+        membership.addMembershipListener(listener);
+    }
+
+    /**
+     * 删除一个成员变化的监听器
+     *
+     * @param listener The listener to remove
+     */
+    public void removeMembershipListener(MembershipListener listener) {
+        membership.removeMembershipListener(listener);
+    }
+
+    /**
+     * 在活动的, 有TCP监听端口的成员中选择指定的键的备份节点.
+     * 使用最高随机权重(rendezvous)哈希: 每个成员的权重由键和成员的地址决定,
+     * 所以一个成员加入或离开时, 只有以它为备份节点的键改变备份节点.
+     *
+     * @param key 键, 例如会话标识符
+     * @param count 备份节点的数目
+     * @return 按权重排列的备份节点, 如果成员不够, 返回所有的成员
+     */
+    public ClusterMemberInfo[] getBackupMembers(String key, int count) {
+        ClusterMemberInfo[] members = getRemoteClusterMembers();
+        int n = 0;
+        long[] weights = new long[members.length];
+        for (int i = 0; i < members.length; i++) {
+            if ((members[i].getHostName() == null) ||
+                (members[i].getTcpPort() <= 0))
+                continue;
+            weights[n] = weight(key, members[i]);
+            members[n++] = members[i];
+        }
+
+        ClusterMemberInfo[] results =
+            new ClusterMemberInfo[Math.max(0, Math.min(count, n))];
+        for (int i = 0; i < results.length; i++) {
+            // Selection sort: the count is small
+            int best = i;
+            for (int j = i + 1; j < n; j++) {
+                if (weights[j] > weights[best])
+                    best = j;
+            }
+            long weight = weights[i];
+            weights[i] = weights[best];
+            weights[best] = weight;
+            ClusterMemberInfo member = members[i];
+            members[i] = members[best];
+            members[best] = member;
+            results[i] = members[i];
+        }
+        return(results);
     }
 
     /**
@@ -276,10 +583,14 @@ public final class StandardCluster implements Cluster, Lifecycle, Runnable {
      */
     public ClusterSender getClusterSender(String senderId) {
         Logger logger = null;
-        MulticastSender send = new MulticastSender(senderId,
-                                                   multicastSocket,
-                                                   multicastAddress,
-                                                   multicastPort);
+        ClusterSender send = null;
+        if ((transport != null) && !senderId.equals(getName()))
+            send = new TcpSender(senderId, transport);
+        else
+            send = new MulticastSender(senderId,
+                                       multicastSocket,
+                                       multicastAddress,
+                                       multicastPort);
         if (container != null)
             logger = container.getLogger();
 
@@ -300,10 +611,17 @@ public final class StandardCluster implements Cluster, Lifecycle, Runnable {
      */
     public ClusterReceiver getClusterReceiver(String senderId) {
         Logger logger = null;
-        MulticastReceiver recv = new MulticastReceiver(senderId,
-                                                       multicastSocket,
-                                                       multicastAddress,
-                                                       multicastPort);
+        ClusterReceiver recv = null;
+        if (dispatcher == null)
+            dispatcher = new ClusterDispatcher(this, receiveQueueSize);
+        if ((transport != null) && !senderId.equals(getName()))
+            recv = new TcpReceiver(senderId, dispatcher);
+        else
+            recv = new MulticastReceiver(senderId,
+                                         multicastSocket,
+                                         multicastAddress,
+                                         multicastPort,
+                                         dispatcher);
 
         if (container != null)
             logger = container.getLogger();
@@ -345,11 +663,83 @@ public final class StandardCluster implements Cluster, Lifecycle, Runnable {
 
     // --------------------------------------------------------- Private Methods
 
-    private void processReceive() {
-        Object[] objs = clusterReceiver.getObjects();
+    /**
+     * 处理一个成员的心跳, 由分发线程调用
+     */
+    private void processMember(ReplicationWrapper message) {
+        ClusterMemberInfo member = null;
+        try {
+            byte[] buf = message.getDataStream();
+            ObjectInputStream ois =
+                new ObjectInputStream(new ByteArrayInputStream(buf));
+            member = (ClusterMemberInfo)ois.readObject();
+        } catch (Exception e) {
+            log(sm.getString("standardCluster.memberException",
+                             e.toString()));
+            return;
+        }
+        membership.heartbeatReceived(member);
+    }
+
+    /**
+     * 返回一个成员的TCP监听地址, 如果它没有, 返回<code>null</code>
+     */
+    private static InetSocketAddress tcpAddress(ClusterMemberInfo member) {
+        if ((member.getHostName() == null) || (member.getTcpPort() <= 0))
+            return(null);
+        return(new InetSocketAddress(member.getHostName(),
+                                     member.getTcpPort()));
+    }
 
-        for(int i=0; i < objs.length;i++) {
-            clusterMembers.add((ClusterMemberInfo)objs[i]);
+    /**
+     * 返回一个成员作为指定的键的备份节点的权重
+     */
+    private static long weight(String key, ClusterMemberInfo member) {
+        long h = key.hashCode() * 0x9E3779B97F4A7C15L +
+            (member.getHostName() + ":" + member.getTcpPort()).hashCode();
+        // 64-bit finalizer of MurmurHash3
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return(h);
+    }
+
+    /**
+     * 启动复制消息的TCP传输, 并连接静态配置的成员
+     */
+    private void startTransport() {
+        try {
+            InetAddress address = (tcpListenAddress == null) ?
+                null : InetAddress.getByName(tcpListenAddress);
+            transport = new TcpTransport(this, dispatcher,
+                                         new InetSocketAddress(address,
+                                                               tcpListenPort),
+                                         tcpLingerTime, ackTimeout);
+            transport.start();
+        } catch (IOException e) {
+            log(sm.getString("tcpTransport.bindException",
+                             String.valueOf(tcpListenPort), e.toString()));
+            transport = null;
+            return;
+        }
+
+        if (tcpMembers == null)
+            return;
+        StringTokenizer tokens = new StringTokenizer(tcpMembers, ", ");
+        while (tokens.hasMoreTokens()) {
+            String member = tokens.nextToken();
+            int colon = member.lastIndexOf(':');
+            try {
+                InetSocketAddress address = new InetSocketAddress
+                    (member.substring(0, colon),
+                     Integer.parseInt(member.substring(colon + 1)));
+                staticMembers.add(address);
+                transport.addMember(address);
+            } catch (Exception e) {
+                log(sm.getString("tcpTransport.invalidMember", member));
+            }
         }
     }
 
@@ -396,21 +786,52 @@ public final class StandardCluster implements Cluster, Lifecycle, Runnable {
         if (started)
             throw new LifecycleException(sm.getString("standardCluster.alreadyStarted"));
 
+        threadName = "StandardCluster[" + getClusterName() + "]";
+        if (dispatcher == null)
+            dispatcher = new ClusterDispatcher(this, receiveQueueSize);
+        dispatcher.start(threadName);
+
+        if (tcpListenPort > 0)
+            startTransport();
+        if (transport != null)
+            membership.addMembershipListener(transportListener);
+
         try {
             multicastSocket = new MulticastSocket(multicastPort);
 
             if(multicastSocket != null && multicastAddress != null) {
+                // Lets the receiver threads notice that they were stopped
+                multicastSocket.setSoTimeout(1000);
                 multicastSocket.joinGroup(multicastAddress);
 
                 clusterSender = getClusterSender(getName());
                 clusterReceiver = getClusterReceiver(getName());
+                clusterReceiver.setListener(new ClusterMessageListener() {
+                    public void messageReceived(ReplicationWrapper message) {
+                        processMember(message);
+                    }
+                });
 
                 localClusterMember = new ClusterMemberInfo();
                 localClusterMember.setClusterName(getClusterName());
-                localClusterMember.setHostName(null);
                 localClusterMember.setClusterInfo(getInfo());
-
-                clusterSender.send(localClusterMember);
+                String hostName = (tcpListenAddress != null) ?
+                    tcpListenAddress :
+                    InetAddress.getLocalHost().getHostAddress();
+                if (transport != null) {
+                    localClusterMember.setHostName(hostName);
+                    localClusterMember.setTcpPort(tcpListenPort);
+                }
+                // Differs on every start, so a restarted member is a new member
+                localClusterMember.setMemberId(hostName + ":" + tcpListenPort +
+                    "/" + Long.toHexString(System.currentTimeMillis()) +
+                    Integer.toHexString(System.identityHashCode(this)));
+
+                // The first heartbeat announces us
+                membership.setParameters(heartbeatInterval, suspectThreshold,
+                                         memberDropTime);
+                membership.start(threadName + "-heartbeat", clusterSender,
+                                 localClusterMember);
 
                 if (debug > 1)
                     log(sm.getString("standardCluster.joinGroup",
@@ -424,9 +845,6 @@ public final class StandardCluster implements Cluster, Lifecycle, Runnable {
 
         lifecycle.fireLifecycleEvent(START_EVENT, null);
         started = true;
-
-        // Start the background reaper thread
-        threadStart();
     }
 
     /**
@@ -440,14 +858,29 @@ public final class StandardCluster implements Cluster, Lifecycle, Runnable {
         if (!started)
             log(sm.getString("standardCluster.notStarted"));
 
+        membership.stop();
+        membership.removeMembershipListener(transportListener);
+
+        if (clusterReceiver != null) {
+            clusterReceiver.stop();
+            clusterReceiver = null;
+        }
+
         try {
-            multicastSocket.leaveGroup(multicastAddress);
+            if (multicastSocket != null && multicastAddress != null)
+                multicastSocket.leaveGroup(multicastAddress);
             multicastSocket = null;
         } catch (IOException e) {
             log(sm.getString("standardCluster.leaveException",
                              multicastAddress));
         }
 
+        if (transport != null) {
+            transport.stop();
+            transport = null;
+        }
+        staticMembers.clear();
+
         if (debug > 1)
             log(sm.getString("standardCluster.leaveGroup",
                              multicastAddress));
@@ -455,62 +888,10 @@ public final class StandardCluster implements Cluster, Lifecycle, Runnable {
         lifecycle.fireLifecycleEvent(STOP_EVENT, null);
         started = false;
 
-        // Stop the background reaper thread
-        threadStop();
-    }
-
-    // ------------------------------------------------------ Background Thread
-
-    /**
-     * 后台线程
-     */
-    public void run() {
-        // Loop until the termination semaphore is set
-        while (!threadDone) {
-            processReceive();
-            threadSleep();
-        }
-    }
-
-    /**
-     * 休眠时间，使用<code>checkInterval</code>属性设置
-     */
-    private void threadSleep() {
-        try {
-            Thread.sleep(checkInterval * 1000L);
-        } catch (InterruptedException e) {
-            ;
-        }
-    }
-
-    /**
-     * 开始后台线程
-     */
-    private void threadStart() {
-        if (thread != null)
-            return;
-
-        threadDone = false;
-        threadName = "StandardCluster[" + getClusterName() + "]";
-        thread = new Thread(this, threadName);
-        thread.setDaemon(true);
-        thread.start();
-    }
-
-    /**
-     * 停止后台线程
-     */
-    private void threadStop() {
-        if (thread == null)
-            return;
-
-        threadDone = true;
-        thread.interrupt();
-        try {
-            thread.join();
-        } catch (InterruptedException e) {
-            ;
+        // Deliver the messages already received
+        if (dispatcher != null) {
+            dispatcher.stop();
+            dispatcher = null;
         }
-        thread = null;
     }
 }
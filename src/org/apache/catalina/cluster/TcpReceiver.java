@@ -0,0 +1,98 @@
+package org.apache.catalina.cluster;
+
+/**
+ * 接收<code>TcpTransport</code>交付的senderId相同的消息.
+ * 消息到达时由Cluster的<code>ClusterDispatcher</code>交给监听器, 或者保存到被读取为止.
+ */
+public final class TcpReceiver
+    extends ClusterSessionBase implements ClusterReceiver {
+
+    // ----------------------------------------------------- Instance Variables
+
+    /**
+     * 组件名称，用于日志记录
+     */
+    private String receiverName = "TcpReceiver";
+
+    /**
+     * 分发消息的分发器
+     */
+    private ClusterDispatcher dispatcher = null;
+
+    /**
+     * 接收消息的监听器
+     */
+    private volatile ClusterMessageListener listener = null;
+
+    /**
+     * 检查新接收的数据的时间间隔; 只为了兼容<code>ClusterReceiver</code>接口
+     */
+    private int checkInterval = 5;
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * @param senderId The unique senderId
+     * @param dispatcher The dispatcher to use
+     */
+    TcpReceiver(String senderId, ClusterDispatcher dispatcher) {
+        setSenderId(senderId);
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * 返回一个字符串，包含实现类的名称，用于日志记录
+     *
+     * @return The name of the implementation
+     */
+    public String getName() {
+        return(this.receiverName);
+    }
+
+    public void setCheckInterval(int checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+
+    public int getCheckInterval() {
+        return(this.checkInterval);
+    }
+
+    /**
+     * 接收当前堆栈中的对象，并清除
+     *
+     * @return An array with objects
+     */
+    public Object[] getObjects() {
+        return (dispatcher.poll(this));
+    }
+
+    public void setListener(ClusterMessageListener listener) {
+        this.listener = listener;
+        dispatcher.listenerChanged();
+    }
+
+    public ClusterMessageListener getListener() {
+        return (this.listener);
+    }
+
+    /**
+     * 开始接收这个senderId的消息
+     */
+    public void start() {
+        dispatcher.register(this);
+    }
+
+    /**
+     * 停止接收
+     */
+    public void stop() {
+        dispatcher.unregister(this);
+    }
+
+    /**
+     * 消息由传输的后台线程交付, 这个组件没有自己的线程
+     */
+    public void run() {
+        ;
+    }
+}
@@ -0,0 +1,98 @@
+package org.apache.catalina.cluster;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+
+/**
+ * 通过<code>TcpTransport</code>向集群的所有成员发送数据.
+ * 数据原样写入一个帧, 不再被包装和序列化; 传输保证按顺序交付, 并且每条消息只交付一次.
+ */
+public final class TcpSender extends ClusterSessionBase implements ClusterSender {
+
+    // ----------------------------------------------------- Instance Variables
+
+    /**
+     * 组件的名称，用于日志记录
+     */
+    private String senderName = "TcpSender";
+
+    /**
+     * 发送数据的传输
+     */
+    private TcpTransport transport = null;
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * @param senderId The senderId
+     * @param transport the transport to use
+     */
+    TcpSender(String senderId, TcpTransport transport) {
+        setSenderId(senderId);
+        this.transport = transport;
+    }
+
+    /**
+     * 返回一个字符串，包含实现类的名称，用于日志记录
+     *
+     * @return The name of the implementation
+     */
+    public String getName() {
+        return(this.senderName);
+    }
+
+    /**
+     * Send an object
+     *
+     * @param o The object to be sent.
+     */
+    public void send(Object o) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ObjectOutputStream oos =
+                new ObjectOutputStream(new BufferedOutputStream(bos));
+            oos.writeObject(o);
+            oos.flush();
+            send(bos.toByteArray());
+        } catch (IOException e) {
+            log(sm.getString("tcpSender.sendException", e.toString()));
+        }
+    }
+
+    /**
+     * 发送数据. 如果Cluster设置了<code>ackTimeout</code>, 等待所有成员的确认.
+     *
+     * @param b data to be sent
+     */
+    public void send(byte[] b) {
+        try {
+            if (!transport.send(getSenderId(), b))
+                log(sm.getString("tcpSender.ackTimeout", getSenderId()));
+        } catch (IOException e) {
+            log(sm.getString("tcpSender.sendException", e.toString()));
+        }
+    }
+
+    /**
+     * 只把数据发送给指定的成员, 例如一个会话的备份节点. 没有TCP监听端口的成员被忽略.
+     * 如果Cluster设置了<code>ackTimeout</code>, 等待这些成员的确认.
+     *
+     * @param b data to be sent
+     * @param members 接收数据的成员
+     */
+    public void send(byte[] b, ClusterMemberInfo[] members) {
+        InetSocketAddress[] targets = new InetSocketAddress[members.length];
+        for (int i = 0; i < members.length; i++)
+            targets[i] = new InetSocketAddress(members[i].getHostName(),
+                                               members[i].getTcpPort());
+        try {
+            if (!transport.send(getSenderId(), b, targets))
+                log(sm.getString("tcpSender.ackTimeout", getSenderId()));
+        } catch (IOException e) {
+            log(sm.getString("tcpSender.sendException", e.toString()));
+        }
+    }
+}
@@ -0,0 +1,1164 @@
+package org.apache.catalina.cluster;
+
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.catalina.util.StringManager;
+
+
+/**
+ * 集群成员之间基于NIO TCP的可靠传输.
+ * <p>
+ * 每个成员保持一个到其它每个成员的持久连接. 消息被编码为带长度前缀的帧:
+ * 长度(<code>int</code>), 序号(<code>long</code>), senderId(UTF)和数据;
+ * 在<code>lingerTime</code>毫秒之内发送的消息被合并, 一次聚集写入(gathering write).
+ * 接收方处理完读到的帧之后回复最后一个帧的序号作为确认. 没有被确认的帧在重新连接之后重发,
+ * 接收方按发送方的节点标识丢弃已经收到的序号, 所以每条消息只被交付一次.
+ * <p>
+ * 所有的连接, 读写和确认都由一个线程在一个<code>Selector</code>上处理.
+ * 其它线程只把帧加入连接的队列, 必要时唤醒这个线程. 接收的消息交给Cluster的<code>ClusterDispatcher</code>;
+ * 接收者的队列满时, 只停止读取这个入站连接并推迟确认, 直到分发器腾出空间, 其它连接不受影响.
+ */
+
+final class TcpTransport implements Runnable {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * @param cluster 拥有这个传输的Cluster
+     * @param dispatcher 分发接收的消息的分发器
+     * @param address 监听的地址
+     * @param lingerTime 合并消息的等待时间(毫秒)
+     * @param ackTimeout 发送消息之后等待确认的时间(毫秒); 0表示不等待
+     */
+    TcpTransport(StandardCluster cluster, ClusterDispatcher dispatcher,
+                 InetSocketAddress address, int lingerTime, long ackTimeout) {
+        this.cluster = cluster;
+        this.dispatcher = dispatcher;
+        this.address = address;
+        this.lingerTime = Math.max(0, lingerTime);
+        this.ackTimeout = Math.max(0L, ackTimeout);
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * 达到这个字节数时不再等待, 立即写入排队的帧.
+     */
+    private static final int BATCH_BYTES = 64 * 1024;
+
+
+    /**
+     * 没有设置<code>ackTimeout</code>时, 发送者等待落后的成员的最长时间(毫秒).
+     */
+    private static final long CONGESTION_TIMEOUT = 5000L;
+
+
+    /**
+     * 问候帧的序号. 问候帧是每个连接的第一个帧, 数据是发送方的节点标识.
+     */
+    private static final long HELLO = -1L;
+
+
+    /**
+     * 允许的最大帧长度.
+     */
+    private static final int MAX_FRAME = 64 * 1024 * 1024;
+
+
+    /**
+     * 每个连接最多保留的未发送和未确认的帧数. 已连接的成员达到这个数目时发送者等待一段有限的时间;
+     * 超出这个数目时丢弃最早的帧.
+     */
+    private static final int MAX_QUEUED = 10000;
+
+
+    /**
+     * 连接失败之后, 重新连接之前等待的时间(毫秒).
+     */
+    private static final long RECONNECT_DELAY = 1000L;
+
+
+    /**
+     * 发送消息之后等待确认的时间(毫秒).
+     */
+    private final long ackTimeout;
+
+
+    /**
+     * 监听的地址.
+     */
+    private final InetSocketAddress address;
+
+
+    /**
+     * 拥有这个传输的Cluster.
+     */
+    private final StandardCluster cluster;
+
+
+    /**
+     * 到其它成员的连接.
+     */
+    private final CopyOnWriteArrayList connections = new CopyOnWriteArrayList();
+
+
+    /**
+     * 分发接收的消息的分发器.
+     */
+    private final ClusterDispatcher dispatcher;
+
+
+    /**
+     * 节点标识 -> 这个节点的已经交付的最大序号(<code>Long</code>).
+     */
+    private final ConcurrentHashMap delivered = new ConcurrentHashMap();
+
+
+    /**
+     * 合并消息的等待时间(毫秒).
+     */
+    private final int lingerTime;
+
+
+    /**
+     * 这个节点的标识: 监听地址加上启动时间, 重新启动之后序号从头开始.
+     */
+    private String nodeId = null;
+
+
+    /**
+     * 所有连接使用的Selector.
+     */
+    private Selector selector = null;
+
+
+    /**
+     * 下一个帧的序号.
+     */
+    private long sequence = 0L;
+
+
+    /**
+     * 监听的ServerSocketChannel.
+     */
+    private ServerSocketChannel server = null;
+
+
+    /**
+     * 字符串管理器
+     */
+    private static final StringManager sm =
+        StringManager.getManager(Constants.Package);
+
+
+    /**
+     * 后台线程.
+     */
+    private Thread thread = null;
+
+
+    /**
+     * 后台线程是否完成信号量.
+     */
+    private volatile boolean threadDone = false;
+
+
+    /**
+     * 分发器是否已经为被阻塞的入站连接腾出了空间?
+     */
+    private volatile boolean resume = false;
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 添加一个成员, 如果它不是这个节点, 并且还没有连接.
+     *
+     * @param member 成员的监听地址
+     * @return 是否添加了一个新的成员?
+     */
+    boolean addMember(InetSocketAddress member) {
+
+        if (isLocal(member))
+            return (false);
+        synchronized (connections) {
+            if (findConnection(member) != null)
+                return (false);
+            connections.add(new Connection(member));
+        }
+        wakeup();
+        return (true);
+
+    }
+
+
+    /**
+     * 返回这个节点的监听地址.
+     */
+    InetSocketAddress getAddress() {
+        return (address);
+    }
+
+
+    /**
+     * 返回所有连接中还没有被确认的帧数, 包括还没有写入的帧.
+     */
+    int getPendingAcks() {
+
+        int count = 0;
+        Iterator iterator = connections.iterator();
+        while (iterator.hasNext())
+            count += ((Connection) iterator.next()).pending();
+        return (count);
+
+    }
+
+
+    /**
+     * 删除一个成员, 关闭到它的连接. 没有发送或确认的帧被丢弃.
+     *
+     * @param member 成员的监听地址
+     */
+    void removeMember(InetSocketAddress member) {
+
+        Connection connection = null;
+        synchronized (connections) {
+            connection = findConnection(member);
+            if (connection == null)
+                return;
+            connections.remove(connection);
+        }
+        connection.removed = true;
+        wakeup();
+
+    }
+
+
+    /**
+     * 把一条消息发送给所有的成员. 如果设置了<code>ackTimeout</code>, 等待所有成员的确认.
+     *
+     * @param senderId 接收这条消息的<code>ClusterReceiver</code>的senderId
+     * @param data 消息的数据
+     * @return 所有成员都确认了这条消息, 或者不等待确认时, 返回<code>true</code>;
+     *  在<code>ackTimeout</code>之内没有得到确认时返回<code>false</code>
+     *
+     * @exception IOException if the message cannot be encoded
+     */
+    boolean send(String senderId, byte data[]) throws IOException {
+        return (send(senderId, data, null));
+    }
+
+
+    /**
+     * 把一条消息发送给指定的成员. 不在这个传输的成员中的地址被忽略.
+     * 如果设置了<code>ackTimeout</code>, 等待这些成员的确认.
+     *
+     * @param senderId 接收这条消息的<code>ClusterReceiver</code>的senderId
+     * @param data 消息的数据
+     * @param targets 成员的监听地址, <code>null</code>表示所有的成员
+     * @return 所有的目标成员都确认了这条消息, 或者不等待确认时, 返回<code>true</code>;
+     *  在<code>ackTimeout</code>之内没有得到确认时返回<code>false</code>
+     *
+     * @exception IOException if the message cannot be encoded
+     */
+    boolean send(String senderId, byte data[], InetSocketAddress targets[])
+        throws IOException {
+
+        // Frames must be queued in sequence order on every connection
+        Frame frame = null;
+        boolean wake = false;
+        Iterator iterator = null;
+        long deadline = System.currentTimeMillis() +
+            ((ackTimeout > 0) ? ackTimeout : CONGESTION_TIMEOUT);
+        synchronized (this) {
+            while (!threadDone && congested()) {
+                // A member that stays behind loses frames from its queue
+                // instead of stalling every sender on this node
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0)
+                    break;
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            lagging();
+            frame = new Frame(++sequence, senderId, data);
+            iterator = connections.iterator();
+            while (iterator.hasNext()) {
+                Connection connection = (Connection) iterator.next();
+                // Receivers accept gaps in the sequence of a node
+                if (isTarget(connection, targets))
+                    wake |= connection.enqueue(frame);
+            }
+        }
+        if (wake)
+            wakeup();
+
+        if (ackTimeout == 0)
+            return (true);
+        synchronized (this) {
+            while (true) {
+                boolean acked = true;
+                iterator = connections.iterator();
+                while (iterator.hasNext() && acked) {
+                    Connection connection = (Connection) iterator.next();
+                    acked = connection.acked(frame.sequence);
+                    // Do not wait out the timeout for a lagging member
+                    if (!acked && connection.lagging)
+                        return (false);
+                }
+                if (acked)
+                    return (true);
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0)
+                    return (false);
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return (false);
+                }
+            }
+        }
+
+    }
+
+
+    /**
+     * 开始监听并启动后台线程.
+     *
+     * @exception IOException if the address cannot be bound
+     */
+    void start() throws IOException {
+
+        nodeId = address.getAddress().getHostAddress() + ":" +
+            address.getPort() + "/" + System.currentTimeMillis();
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        try {
+            server.socket().setReuseAddress(true);
+            server.socket().bind(address);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            server.close();
+            selector.close();
+            throw e;
+        }
+
+        threadDone = false;
+        dispatcher.setSpaceListener(new Runnable() {
+                public void run() {
+                    resume = true;
+                    wakeup();
+                }
+            });
+        thread = new Thread(this, "TcpTransport[" + address + "]");
+        thread.setDaemon(true);
+        thread.start();
+
+    }
+
+
+    /**
+     * 停止后台线程, 关闭所有的连接.
+     */
+    void stop() {
+
+        if (thread == null)
+            return;
+        threadDone = true;
+        dispatcher.setSpaceListener(null);
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            ;
+        }
+        thread = null;
+
+        Iterator keys = selector.keys().iterator();
+        while (keys.hasNext())
+            close(((SelectionKey) keys.next()).channel());
+        try {
+            selector.close();
+        } catch (IOException e) {
+            ;
+        }
+        connections.clear();
+        synchronized (this) {
+            notifyAll();
+        }
+
+    }
+
+
+    // ------------------------------------------------------ Background Thread
+
+
+    /**
+     * 后台线程: 处理连接, 读写和确认, 直到停止.
+     */
+    public void run() {
+
+        while (!threadDone) {
+            try {
+                long timeout = prepare(System.currentTimeMillis());
+                if (timeout < 0)
+                    selector.selectNow();
+                else
+                    selector.select(timeout);
+                Iterator keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = (SelectionKey) keys.next();
+                    keys.remove();
+                    process(key);
+                }
+            } catch (Throwable t) {
+                log(sm.getString("tcpTransport.selectException",
+                                         t.toString()));
+            }
+        }
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * 接受一个新的连接.
+     */
+    private void accept() throws IOException {
+
+        SocketChannel channel = server.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.register(selector, SelectionKey.OP_READ, new Inbound());
+
+    }
+
+
+    /**
+     * 是否有一个已连接的成员落后太多? 发送者等待它确认, 超时之后不再等待, 丢弃它最早的帧.
+     */
+    private boolean congested() {
+
+        Iterator iterator = connections.iterator();
+        while (iterator.hasNext()) {
+            Connection connection = (Connection) iterator.next();
+            if (connection.connected && !connection.lagging &&
+                (connection.pending() >= MAX_QUEUED))
+                return (true);
+        }
+        return (false);
+
+    }
+
+
+    /**
+     * 把仍然落后太多的已连接成员标记为落后, 发送者不再等待它们, 直到它们确认了足够的帧.
+     */
+    private void lagging() {
+
+        Iterator iterator = connections.iterator();
+        while (iterator.hasNext()) {
+            Connection connection = (Connection) iterator.next();
+            if (connection.connected && !connection.lagging &&
+                (connection.pending() >= MAX_QUEUED)) {
+                connection.lagging = true;
+                log(sm.getString("tcpTransport.lagging",
+                                 connection.address.toString()));
+            }
+        }
+
+    }
+
+
+    /**
+     * 指定的连接是否是一个目标成员的连接?
+     */
+    private static boolean isTarget(Connection connection,
+                                    InetSocketAddress targets[]) {
+
+        if (targets == null)
+            return (true);
+        for (int i = 0; i < targets.length; i++) {
+            if (connection.address.equals(targets[i]))
+                return (true);
+        }
+        return (false);
+
+    }
+
+
+    /**
+     * 关闭一个通道, 忽略错误.
+     */
+    private static void close(java.nio.channels.Channel channel) {
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            ;
+        }
+
+    }
+
+
+    /**
+     * 返回到指定成员的连接, 如果没有, 返回<code>null</code>.
+     */
+    private Connection findConnection(InetSocketAddress member) {
+
+        Iterator iterator = connections.iterator();
+        while (iterator.hasNext()) {
+            Connection connection = (Connection) iterator.next();
+            if (connection.address.equals(member))
+                return (connection);
+        }
+        return (null);
+
+    }
+
+
+    /**
+     * 指定的地址是否是这个节点的监听地址?
+     */
+    private boolean isLocal(InetSocketAddress member) {
+
+        if (member.getPort() != address.getPort())
+            return (false);
+        if (member.equals(address))
+            return (true);
+        if (!address.getAddress().isAnyLocalAddress() ||
+            (member.getAddress() == null))
+            return (false);
+        try {
+            return (member.getAddress().isLoopbackAddress() ||
+                    (NetworkInterface.getByInetAddress(member.getAddress())
+                     != null));
+        } catch (IOException e) {
+            return (false);
+        }
+
+    }
+
+
+    /**
+     * 记录日志.
+     */
+    private void log(String message) {
+        cluster.log(message);
+    }
+
+
+    /**
+     * 在每次select之前调用: 建立需要的连接, 开始写入等待时间已到的帧,
+     * 关闭被删除的连接, 并重试被阻塞的入站连接.
+     *
+     * @return select的超时时间(毫秒); 0表示无限等待, 小于0表示不等待
+     */
+    private long prepare(long timeNow) {
+
+        long timeout = 0L;
+        boolean resume = this.resume;
+        if (resume)
+            this.resume = false;
+        Iterator keys = selector.keys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = (SelectionKey) keys.next();
+            Object attachment = key.attachment();
+            if ((attachment instanceof Connection) &&
+                ((Connection) attachment).removed) {
+                ((Connection) attachment).disconnect(false);
+            } else if (resume && (attachment instanceof Inbound) &&
+                       ((Inbound) attachment).blocked && key.isValid()) {
+                ((Inbound) attachment).process(key, false);
+            }
+        }
+        Iterator iterator = connections.iterator();
+        while (iterator.hasNext()) {
+            Connection connection = (Connection) iterator.next();
+            long wait = connection.prepare(timeNow);
+            if ((wait > 0) && ((timeout == 0) || (wait < timeout)))
+                timeout = wait;
+            else if (wait < 0)
+                timeout = -1;
+        }
+        return (timeout);
+
+    }
+
+
+    /**
+     * 处理一个就绪的通道.
+     */
+    private void process(SelectionKey key) {
+
+        if (!key.isValid())
+            return;
+        Object attachment = key.attachment();
+        if (attachment == null) {
+            try {
+                accept();
+            } catch (IOException e) {
+                log(sm.getString("tcpTransport.acceptException",
+                                         e.toString()));
+            }
+        } else if (attachment instanceof Connection) {
+            ((Connection) attachment).process(key);
+        } else {
+            ((Inbound) attachment).process(key, key.isReadable());
+        }
+
+    }
+
+
+    /**
+     * 唤醒后台线程.
+     */
+    private void wakeup() {
+
+        Selector selector = this.selector;
+        if (selector != null)
+            selector.wakeup();
+
+    }
+
+
+    // --------------------------------------------------------- Inner Classes
+
+
+    /**
+     * 一个编码好的帧. 同一个帧被发送给所有的成员, 每个连接使用缓冲区的副本.
+     */
+    private static final class Frame {
+
+        Frame(long sequence, String senderId, byte data[])
+            throws UnsupportedEncodingException {
+
+            this.sequence = sequence;
+            byte id[] = senderId.getBytes("UTF-8");
+            header = ByteBuffer.allocate(4 + 8 + 2 + id.length);
+            header.putInt(8 + 2 + id.length + data.length);
+            header.putLong(sequence);
+            header.putShort((short) id.length);
+            header.put(id);
+            header.flip();
+            this.data = ByteBuffer.wrap(data);
+
+        }
+
+        final long sequence;
+
+        final ByteBuffer header;
+
+        final ByteBuffer data;
+
+        int length() {
+            return (header.remaining() + data.remaining());
+        }
+
+    }
+
+
+    /**
+     * 到一个成员的出站连接, 以及发送给它的帧.
+     * 队列由发送线程和后台线程共享, 在这个对象上同步; 其它状态只由后台线程访问.
+     */
+    private final class Connection {
+
+        Connection(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        final InetSocketAddress address;
+
+        /**
+         * 成员已经被删除, 连接应该被关闭.
+         */
+        volatile boolean removed = false;
+
+        /**
+         * 成员确认的最大序号.
+         */
+        volatile long acked = 0L;
+
+        /**
+         * 等待写入的帧.
+         */
+        private final ArrayList queue = new ArrayList();
+
+        /**
+         * 排队的字节数.
+         */
+        private int queuedBytes = 0;
+
+        /**
+         * 队列中第一个帧排队的时间.
+         */
+        private long queuedTime = 0L;
+
+        /**
+         * 已经写入但还没有被确认的帧. 帧在被确认之前都保留在这里, 以便重新连接之后重发.
+         */
+        private final LinkedList unacked = new LinkedList();
+
+        /**
+         * 最后一个被排队的帧的序号.
+         */
+        private volatile long last = 0L;
+
+        private SocketChannel channel = null;
+
+        private SelectionKey key = null;
+
+        /**
+         * 连接是否已经建立? 只由后台线程修改.
+         */
+        volatile boolean connected = false;
+
+        /**
+         * 成员是否落后太多, 发送者不再等待它? 确认了一半的队列之后被清除.
+         */
+        volatile boolean lagging = false;
+
+        /**
+         * 正在写入的缓冲区, 从<code>offset</code>开始.
+         */
+        private ByteBuffer writing[] = null;
+
+        private int offset = 0;
+
+        /**
+         * 读取确认的缓冲区.
+         */
+        private final ByteBuffer ack = ByteBuffer.allocate(8);
+
+        /**
+         * 不早于这个时间重新连接.
+         */
+        private long reconnectTime = 0L;
+
+        /**
+         * 是否已经记录了队列溢出?
+         */
+        private boolean overflowLogged = false;
+
+        /**
+         * 成员是否已经确认了指定的帧? 被删除的成员不再等待.
+         */
+        boolean acked(long sequence) {
+            return (removed || (acked >= sequence) || (last < sequence));
+        }
+
+        /**
+         * 把一个帧加入队列.
+         *
+         * @return 是否需要唤醒后台线程?
+         */
+        synchronized boolean enqueue(Frame frame) {
+
+            boolean empty = queue.isEmpty();
+            if (empty)
+                queuedTime = System.currentTimeMillis();
+            queue.add(frame);
+            queuedBytes += frame.length();
+            last = frame.sequence;
+            if (queue.size() + unackedSize > MAX_QUEUED) {
+                Frame dropped = (Frame) queue.remove(0);
+                queuedBytes -= dropped.length();
+                if (!overflowLogged) {
+                    overflowLogged = true;
+                    log(sm.getString("tcpTransport.overflow",
+                                             address.toString()));
+                }
+            }
+            return (empty || (lingerTime == 0) || (queuedBytes >= BATCH_BYTES));
+
+        }
+
+        /**
+         * 已经写入但还没有被确认的帧数; 由后台线程维护, 其它线程只读取.
+         */
+        private volatile int unackedSize = 0;
+
+        synchronized int pending() {
+            return (queue.size() + unackedSize);
+        }
+
+        /**
+         * 关闭连接. 如果要重新连接, 所有没有被确认的帧回到队列的前面.
+         */
+        void disconnect(boolean reconnect) {
+
+            if (channel != null) {
+                close(channel);
+                channel = null;
+                key = null;
+            }
+            connected = false;
+            lagging = false;
+            writing = null;
+            ack.clear();
+            synchronized (this) {
+                if (reconnect) {
+                    queue.addAll(0, unacked);
+                    Iterator frames = unacked.iterator();
+                    while (frames.hasNext())
+                        queuedBytes += ((Frame) frames.next()).length();
+                    if (!queue.isEmpty())
+                        queuedTime = 0L;
+                } else {
+                    queue.clear();
+                    queuedBytes = 0;
+                }
+                unacked.clear();
+                unackedSize = 0;
+            }
+            reconnectTime = System.currentTimeMillis() + RECONNECT_DELAY;
+            synchronized (TcpTransport.this) {
+                TcpTransport.this.notifyAll();
+            }
+
+        }
+
+        /**
+         * 建立连接, 或者开始写入等待时间已到的帧.
+         *
+         * @return 下一次需要处理这个连接的等待时间(毫秒); 0表示不需要, 小于0表示立即
+         */
+        long prepare(long timeNow) {
+
+            if (removed)
+                return (0L);
+            if (channel == null) {
+                if (timeNow < reconnectTime)
+                    return (reconnectTime - timeNow);
+                connect();
+                return (0L);
+            }
+            if (!connected || (writing != null))
+                return (0L);
+            synchronized (this) {
+                if (queue.isEmpty())
+                    return (0L);
+                long wait = queuedTime + lingerTime - timeNow;
+                if ((wait > 0) && (queuedBytes < BATCH_BYTES))
+                    return (wait);
+                writing = new ByteBuffer[queue.size() * 2];
+                for (int i = 0; i < queue.size(); i++) {
+                    Frame frame = (Frame) queue.get(i);
+                    writing[i * 2] = frame.header.duplicate();
+                    writing[i * 2 + 1] = frame.data.duplicate();
+                }
+                unacked.addAll(queue);
+                unackedSize = unacked.size();
+                queue.clear();
+                queuedBytes = 0;
+            }
+            offset = 0;
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            return (0L);
+
+        }
+
+        /**
+         * 开始一个非阻塞的连接, 并写入问候帧.
+         */
+        private void connect() {
+
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                connected = channel.connect(address);
+                key = channel.register(selector, connected ?
+                                       SelectionKey.OP_READ :
+                                       SelectionKey.OP_CONNECT, this);
+                if (connected)
+                    hello();
+            } catch (IOException e) {
+                failed(e);
+            }
+
+        }
+
+        /**
+         * 在发送任何帧之前写入问候帧.
+         */
+        private void hello() throws IOException {
+
+            Frame hello = new Frame(HELLO, "", nodeId.getBytes("UTF-8"));
+            writing = new ByteBuffer[] { hello.header, hello.data };
+            offset = 0;
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+
+        }
+
+        /**
+         * 连接失败或中断: 记录日志, 稍后重新连接.
+         */
+        private void failed(IOException e) {
+
+            if (connected || (cluster.getDebug() > 1))
+                log(sm.getString("tcpTransport.connectionLost",
+                                         address.toString(), e.toString()));
+            disconnect(true);
+
+        }
+
+        /**
+         * 处理就绪的连接.
+         */
+        void process(SelectionKey key) {
+
+            try {
+                if (key.isConnectable()) {
+                    channel.finishConnect();
+                    connected = true;
+                    key.interestOps(SelectionKey.OP_READ);
+                    hello();
+                    return;
+                }
+                if (key.isReadable())
+                    readAcks();
+                if (key.isValid() && key.isWritable())
+                    write();
+            } catch (IOException e) {
+                failed(e);
+            }
+
+        }
+
+        /**
+         * 读取确认, 释放被确认的帧.
+         */
+        private void readAcks() throws IOException {
+
+            long acked = this.acked;
+            while (true) {
+                int n = channel.read(ack);
+                if (n < 0)
+                    throw new IOException("Connection closed by peer");
+                if (ack.hasRemaining())
+                    break;
+                ack.flip();
+                acked = Math.max(acked, ack.getLong());
+                ack.clear();
+            }
+            if (acked == this.acked)
+                return;
+            synchronized (this) {
+                while (!unacked.isEmpty() &&
+                       (((Frame) unacked.getFirst()).sequence <= acked))
+                    unacked.removeFirst();
+                unackedSize = unacked.size();
+                if (queue.size() + unackedSize < MAX_QUEUED / 2)
+                    lagging = false;
+            }
+            this.acked = acked;
+            synchronized (TcpTransport.this) {
+                TcpTransport.this.notifyAll();
+            }
+
+        }
+
+        /**
+         * 聚集写入正在写入的缓冲区.
+         */
+        private void write() throws IOException {
+
+            if (writing == null) {
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            channel.write(writing, offset, writing.length - offset);
+            while ((offset < writing.length) && !writing[offset].hasRemaining())
+                offset++;
+            if (offset < writing.length)
+                return;
+            writing = null;
+            key.interestOps(SelectionKey.OP_READ);
+
+        }
+
+    }
+
+
+    /**
+     * 一个入站连接: 读取帧, 把消息交给接收者, 并回复确认.
+     * 只由后台线程访问.
+     */
+    private final class Inbound {
+
+        /**
+         * 读取的缓冲区, 按需要扩大.
+         */
+        private ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+        /**
+         * 正在写入的确认; 没有剩余的字节时表示没有确认正在写入.
+         */
+        private final ByteBuffer ack = (ByteBuffer) ByteBuffer.allocate(8).flip();
+
+        /**
+         * 还没有写入的最大确认序号, 如果没有, 为0.
+         */
+        private long ackPending = 0L;
+
+        /**
+         * 发送方的节点标识, 在问候帧之后可用.
+         */
+        private String node = null;
+
+        /**
+         * 接收者的队列是否已满? 此时缓冲区中保留没有交付的帧, 不再读取这个连接.
+         */
+        boolean blocked = false;
+
+        /**
+         * 读取和交付帧, 并写入确认.
+         *
+         * @param read 是否从通道读取? 否则只重试缓冲区中的帧
+         */
+        void process(SelectionKey key, boolean read) {
+
+            SocketChannel channel = (SocketChannel) key.channel();
+            try {
+                if (read && !blocked) {
+                    int n = channel.read(buffer);
+                    if (n < 0) {
+                        close(channel);
+                        return;
+                    }
+                }
+                long sequence = frames();
+                if (sequence > 0)
+                    ackPending = Math.max(ackPending, sequence);
+                while (true) {
+                    if (!ack.hasRemaining()) {
+                        if (ackPending == 0L)
+                            break;
+                        ack.clear();
+                        ack.putLong(ackPending);
+                        ack.flip();
+                        ackPending = 0L;
+                    }
+                    channel.write(ack);
+                    if (ack.hasRemaining())
+                        break;
+                }
+                // Stop reading until the dispatcher has room
+                int ops = blocked ? 0 : SelectionKey.OP_READ;
+                if (ack.hasRemaining())
+                    ops |= SelectionKey.OP_WRITE;
+                key.interestOps(ops);
+            } catch (IOException e) {
+                if (cluster.getDebug() > 1)
+                    log(sm.getString("tcpTransport.connectionLost",
+                                             String.valueOf(node),
+                                             e.toString()));
+                close(channel);
+            }
+
+        }
+
+        /**
+         * 解析缓冲区中所有完整的帧, 把消息交给接收者. 接收者的队列满时,
+         * 这个帧和它之后的帧留在缓冲区中.
+         *
+         * @return 最后一个被交付的帧的序号, 如果没有, 返回0
+         */
+        private long frames() throws IOException {
+
+            buffer.flip();
+            blocked = false;
+            long sequence = 0L;
+            while (buffer.remaining() >= 4) {
+                int start = buffer.position();
+                int length = buffer.getInt(start);
+                if ((length < 10) || (length > MAX_FRAME))
+                    throw new IOException("Invalid frame length " + length);
+                if (buffer.remaining() < 4 + length)
+                    break;
+                buffer.getInt();
+                long seq = buffer.getLong();
+                byte id[] = new byte[buffer.getShort() & 0xffff];
+                buffer.get(id);
+                byte data[] = new byte[length - 10 - id.length];
+                buffer.get(data);
+                if (seq == HELLO) {
+                    node = new String(data, "UTF-8");
+                    continue;
+                }
+                if (node == null)
+                    throw new IOException("Missing hello frame");
+                if (!deliver(seq, new String(id, "UTF-8"), data)) {
+                    buffer.position(start);
+                    blocked = true;
+                    break;
+                }
+                sequence = seq;
+            }
+            buffer.compact();
+            if (!blocked && !buffer.hasRemaining()) {
+                // Grow to hold the next frame
+                int length = (buffer.position() >= 4) ?
+                    buffer.getInt(0) + 4 : buffer.capacity() * 2;
+                ByteBuffer larger = ByteBuffer.allocate
+                    (Math.max(buffer.capacity() * 2, length));
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+            return (sequence);
+
+        }
+
+        /**
+         * 把一条消息交给接收者, 除非它已经被交付过.
+         *
+         * @return 接收者的队列满时返回<code>false</code>, 消息必须稍后重试
+         */
+        private boolean deliver(long seq, String senderId, byte data[]) {
+
+            Long last = (Long) delivered.get(node);
+            if ((last != null) && (seq <= last.longValue()))
+                return (true);
+            if (!dispatcher.offer(new ReplicationWrapper(data, senderId)))
+                return (false);
+            delivered.put(node, new Long(seq));
+            return (true);
+
+        }
+
+    }
+
+
+}
@@ -2,8 +2,6 @@ package org.apache.catalina.core;
 
 import java.io.IOException;
 import java.security.PrivilegedActionException;
-import java.util.ArrayList;
-import java.util.Iterator;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -21,6 +19,9 @@ import org.apache.catalina.util.StringManager;
 /**
  * <code>javax.servlet.FilterChain</code>实现类，用于管理特定请求的一组过滤器的执行. 
  * 当定义的一组过滤器已经执行的时候，下一个调用<code>doFilter()</code>将执行servlet的<code>service()</code>方法本身
+ * <p>
+ * 过滤器由一个不可变的模板数组提供, 链本身不会修改它.
+ * 每个线程缓存一个链实例, 通过<code>acquire()</code>获取, 并在<code>release()</code>后重用.
  */
 final class ApplicationFilterChain implements FilterChain {
 
@@ -36,16 +37,27 @@ final class ApplicationFilterChain implements FilterChain {
 
 
     /**
-     * 链中将被执行的过滤器集合
+     * 每个线程缓存的链实例.
      */
-    private ArrayList filters = new ArrayList();
+    private static final ThreadLocal pool = new ThreadLocal();
 
 
     /**
-     * 用于保持过滤器链中的当前位置.
-     * <code>doFilter()</code>调用的时候，它被第一次调用
+     * 链中将被执行的过滤器集合 (共享的模板, 不能修改)
      */
-    private Iterator iterator = null;
+    private ApplicationFilterConfig filters[] = FilterMapIndex.EMPTY;
+
+
+    /**
+     * 这个实例当前是否正在被使用?
+     */
+    private boolean inUse = false;
+
+
+    /**
+     * 用于保持过滤器链中的当前位置, 即下一个要执行的过滤器的下标.
+     */
+    private int pos = 0;
 
 
     /**
@@ -111,14 +123,9 @@ final class ApplicationFilterChain implements FilterChain {
     private void internalDoFilter(ServletRequest request, ServletResponse response)
         throws IOException, ServletException {
 
-        //第一次调用这个方法时构造一个迭代器
-        if (this.iterator == null)
-            this.iterator = filters.iterator();
-
         //调用下一个过滤器
-        if (this.iterator.hasNext()) {
-            ApplicationFilterConfig filterConfig =
-              (ApplicationFilterConfig) iterator.next();
+        if (pos < filters.length) {
+            ApplicationFilterConfig filterConfig = filters[pos++];
             Filter filter = null;
             try {
                 filter = filterConfig.getFilter();
@@ -189,22 +196,41 @@ final class ApplicationFilterChain implements FilterChain {
     // -------------------------------------------------------- Package Methods
 
     /**
-     * 添加一个过滤器到过滤器链中
-     *
-     * @param filterConfig The FilterConfig for the servlet to be executed
+     * 返回一个空闲的链实例, 优先使用当前线程缓存的实例.
+     * 如果缓存的实例正在被使用(嵌套调用), 创建一个新实例.
      */
-    void addFilter(ApplicationFilterConfig filterConfig) {
-        this.filters.add(filterConfig);
+    static ApplicationFilterChain acquire() {
+        ApplicationFilterChain chain = (ApplicationFilterChain) pool.get();
+        if (chain == null) {
+            chain = new ApplicationFilterChain();
+            pool.set(chain);
+        } else if (chain.inUse) {
+            chain = new ApplicationFilterChain();
+        }
+        chain.inUse = true;
+        return (chain);
     }
 
 
     /**
-     * 释放对该链执行的过滤器和包装器的引用
+     * 释放对该链执行的过滤器和包装器的引用, 使这个实例可以被重用
      */
     void release() {
-        this.filters.clear();
-        this.iterator = iterator;
+        this.filters = FilterMapIndex.EMPTY;
+        this.pos = 0;
         this.servlet = null;
+        this.support = null;
+        this.inUse = false;
+    }
+
+
+    /**
+     * 设置将被执行的过滤器.
+     *
+     * @param filters 过滤器链模板, 这个链不会修改它
+     */
+    void setFilters(ApplicationFilterConfig filters[]) {
+        this.filters = filters;
     }
 
 
@@ -0,0 +1,135 @@
+package org.apache.catalina.core;
+
+
+import org.apache.catalina.Container;
+import org.apache.catalina.Context;
+
+
+/**
+ * <code>StandardHost</code>的Context路径索引, 按路径段组织成一棵前缀树.
+ * 每当部署或卸载一个Context时重新构建, 并作为不可变快照发布,
+ * 使<code>StandardHost.map()</code>可以不获取锁、不创建子串地完成最长前缀匹配.
+ * <p>
+ * <b>IMPLEMENTATION NOTE</b>: 实例构造完成后不再修改, 可以被任意多个线程并发读取.
+ */
+
+final class ContextPathIndex {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * 使用指定的子级Context构造一个新索引. 每个Context使用它的名称(即Context路径)作为key.
+     *
+     * @param children 主机当前的子级Container
+     */
+    ContextPathIndex(Container children[]) {
+
+        Node root = new Node();
+        for (int i = 0; i < children.length; i++) {
+            String path = children[i].getName();
+            if (path == null)
+                continue;
+            if (path.length() == 0) {
+                root.context = (Context) children[i];
+                continue;
+            }
+            if (path.charAt(0) != '/')
+                continue;
+            Node node = root;
+            int start = 1;
+            while (start <= path.length()) {
+                int end = path.indexOf('/', start);
+                if (end < 0)
+                    end = path.length();
+                String segment = path.substring(start, end);
+                Node next = (Node) node.children.get(segment, 0,
+                                                     segment.length());
+                if (next == null) {
+                    next = new Node();
+                    node.children.put(segment, next);
+                }
+                node = next;
+                start = end + 1;
+            }
+            node.context = (Context) children[i];
+        }
+        this.root = root;
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * 前缀树的根节点, 对应于默认Context (路径为"").
+     */
+    private final Node root;
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 返回默认Context (路径为""), 或者<code>null</code>.
+     */
+    Context defaultContext() {
+        return (root.context);
+    }
+
+
+    /**
+     * 返回Context路径是指定URI最长前缀的Context, 或者<code>null</code>.
+     * 前缀只在路径段边界上匹配, 例如"/foo"匹配"/foo/bar"但不匹配"/foobar".
+     *
+     * @param uri 请求URI
+     */
+    Context map(String uri) {
+
+        int length = uri.length();
+        Context match = root.context;
+        if ((length == 0) || (uri.charAt(0) != '/'))
+            return (match);
+
+        Node node = root;
+        int start = 1;
+        while (start <= length) {
+            int end = uri.indexOf('/', start);
+            if (end < 0)
+                end = length;
+            node = (Node) node.children.get(uri, start, end);
+            if (node == null)
+                break;
+            if (node.context != null)
+                match = node.context;
+            start = end + 1;
+        }
+        return (match);
+
+    }
+
+
+    // --------------------------------------------------------- Inner Classes
+
+
+    /**
+     * 前缀树的一个节点.
+     */
+    private static final class Node {
+
+        /**
+         * 子节点, 使用下一个路径段作为key.
+         */
+        final SegmentTable children = new SegmentTable();
+
+        /**
+         * 路径恰好是这个节点的Context, 如果只是中间节点则为<code>null</code>.
+         */
+        Context context = null;
+
+    }
+
+
+}
@@ -0,0 +1,381 @@
+package org.apache.catalina.core;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.apache.catalina.deploy.FilterMap;
+
+
+/**
+ * <code>StandardContext</code>的过滤器映射的预编译索引.
+ * 每当过滤器映射被添加或删除, 或过滤器被启动或停止时重新构建, 并作为不可变快照发布.
+ * <p>
+ * 基于URL模式的过滤器映射(最多64个)各占用一个位, 按它们在部署描述符中的顺序编号.
+ * 对于一个请求路径, <code>match()</code>返回所有匹配的过滤器映射组成的位掩码,
+ * 同一个Wrapper上具有相同掩码的请求使用同一个不可变的过滤器链模板.
+ * 如果基于URL模式的过滤器映射超过64个, 索引退化为逐个匹配.
+ * <p>
+ * <b>IMPLEMENTATION NOTE</b>: 实例构造完成后不再修改, 可以被任意多个线程并发读取.
+ */
+
+final class FilterMapIndex {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * 使用指定的过滤器映射构造一个新索引.
+     * 找不到初始化的<code>FilterConfig</code>的映射被忽略, 与以前在请求时的行为一致.
+     *
+     * @param filterMaps 按定义顺序排列的过滤器映射
+     * @param context 拥有这些映射的Context
+     */
+    FilterMapIndex(FilterMap filterMaps[], StandardContext context) {
+
+        ArrayList urlMaps = new ArrayList();
+        ArrayList urlConfigs = new ArrayList();
+        HashMap servletConfigs = new HashMap();
+        for (int i = 0; i < filterMaps.length; i++) {
+            ApplicationFilterConfig filterConfig = (ApplicationFilterConfig)
+                context.findFilterConfig(filterMaps[i].getFilterName());
+            if (filterConfig == null)
+                continue;       // FIXME - log configuration problem
+            if (filterMaps[i].getURLPattern() != null) {
+                urlMaps.add(filterMaps[i]);
+                urlConfigs.add(filterConfig);
+            }
+            String servletName = filterMaps[i].getServletName();
+            if (servletName != null) {
+                ArrayList list = (ArrayList) servletConfigs.get(servletName);
+                if (list == null) {
+                    list = new ArrayList();
+                    servletConfigs.put(servletName, list);
+                }
+                list.add(filterConfig);
+            }
+        }
+
+        this.urlMaps =
+            (FilterMap[]) urlMaps.toArray(new FilterMap[urlMaps.size()]);
+        this.urlConfigs = (ApplicationFilterConfig[])
+            urlConfigs.toArray(new ApplicationFilterConfig[urlConfigs.size()]);
+        this.servletConfigs = new HashMap();
+        Iterator names = servletConfigs.keySet().iterator();
+        while (names.hasNext()) {
+            String name = (String) names.next();
+            ArrayList list = (ArrayList) servletConfigs.get(name);
+            this.servletConfigs.put(name, (ApplicationFilterConfig[])
+                list.toArray(new ApplicationFilterConfig[list.size()]));
+        }
+
+        Node root = new Node();
+        HashMap exact = new HashMap();
+        SegmentTable extensions = new SegmentTable();
+        boolean indexed = (this.urlMaps.length <= 64);
+        for (int i = 0; indexed && (i < this.urlMaps.length); i++) {
+            String pattern = this.urlMaps[i].getURLPattern();
+            long bit = 1L << i;
+            if (pattern.endsWith("/*")) {
+                String path = pattern.substring(0, pattern.length() - 2);
+                Node node = root;
+                int start = 1;
+                while (start <= path.length()) {
+                    int end = path.indexOf('/', start);
+                    if (end < 0)
+                        end = path.length();
+                    String segment = path.substring(start, end);
+                    Node next = (Node) node.children.get(segment, 0,
+                                                         segment.length());
+                    if (next == null) {
+                        next = new Node();
+                        node.children.put(segment, next);
+                    }
+                    node = next;
+                    start = end + 1;
+                }
+                node.mask |= bit;
+            } else if (pattern.startsWith("*.")) {
+                String extension = pattern.substring(2);
+                Long mask = (Long) extensions.get(extension, 0,
+                                                  extension.length());
+                long value = (mask == null) ? bit : (mask.longValue() | bit);
+                extensions.put(extension, new Long(value));
+            } else {
+                Long mask = (Long) exact.get(pattern);
+                long value = (mask == null) ? bit : (mask.longValue() | bit);
+                exact.put(pattern, new Long(value));
+            }
+        }
+        this.indexed = indexed;
+        this.root = root;
+        this.exact = exact;
+        this.extensions = extensions;
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * 一个零长度的过滤器数组.
+     */
+    static final ApplicationFilterConfig EMPTY[] = new ApplicationFilterConfig[0];
+
+
+    /**
+     * 精确匹配的URL模式, 使用完整路径作为key, 匹配掩码(<code>Long</code>)作为值.
+     */
+    private final HashMap exact;
+
+
+    /**
+     * 扩展名匹配的URL模式, 使用不带"*."的扩展名作为key.
+     */
+    private final SegmentTable extensions;
+
+
+    /**
+     * 是否可以使用位掩码, 即基于URL模式的过滤器映射不超过64个.
+     */
+    private final boolean indexed;
+
+
+    /**
+     * 路径匹配("/.../*")的前缀树的根节点, 对应于"/*"模式.
+     */
+    private final Node root;
+
+
+    /**
+     * servlet名称 -> 按定义顺序排列的过滤器数组.
+     */
+    private final HashMap servletConfigs;
+
+
+    /**
+     * 与<code>urlMaps</code>一一对应的过滤器.
+     */
+    private final ApplicationFilterConfig urlConfigs[];
+
+
+    /**
+     * 基于URL模式的过滤器映射, 按定义顺序排列.
+     */
+    private final FilterMap urlMaps[];
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 这个索引是否可以使用位掩码?
+     * 如果返回<code>false</code>, 调用者应该使用<code>createChain()</code>.
+     */
+    boolean isIndexed() {
+        return (indexed);
+    }
+
+
+    /**
+     * 返回指定的上下文相对请求路径匹配的所有URL过滤器映射组成的位掩码.
+     *
+     * @param requestPath 上下文相对请求路径, 或者<code>null</code>
+     */
+    long match(String requestPath) {
+
+        if (requestPath == null)
+            return (0L);
+
+        // Case 1 - Exact match
+        long mask = 0L;
+        Long exactMask = (Long) exact.get(requestPath);
+        if (exactMask != null)
+            mask |= exactMask.longValue();
+
+        // Case 2 - Path match ("/.../*"), every prefix applies
+        int length = requestPath.length();
+        mask |= root.mask;
+        if ((length > 0) && (requestPath.charAt(0) == '/')) {
+            Node node = root;
+            int start = 1;
+            while (start <= length) {
+                int end = requestPath.indexOf('/', start);
+                if (end < 0)
+                    end = length;
+                node = (Node) node.children.get(requestPath, start, end);
+                if (node == null)
+                    break;
+                mask |= node.mask;
+                start = end + 1;
+            }
+        }
+
+        // Case 3 - Extension match
+        int slash = requestPath.lastIndexOf('/');
+        int period = requestPath.lastIndexOf('.');
+        if ((slash >= 0) && (period > slash)) {
+            Long extensionMask =
+                (Long) extensions.get(requestPath, period + 1, length);
+            if (extensionMask != null)
+                mask |= extensionMask.longValue();
+        }
+
+        return (mask);
+
+    }
+
+
+    /**
+     * 为指定的URL匹配掩码和servlet名称构造一个过滤器链模板:
+     * 先是按定义顺序排列的URL过滤器, 然后是servlet名称过滤器.
+     *
+     * @param mask <code>match()</code>返回的掩码
+     * @param servletName 要执行的servlet的名称
+     */
+    ApplicationFilterConfig[] createTemplate(long mask, String servletName) {
+
+        ApplicationFilterConfig servletFilters[] =
+            findServletFilters(servletName);
+        int n = servletFilters.length;
+        for (long m = mask; m != 0L; m &= (m - 1))
+            n++;
+        if (n == 0)
+            return (EMPTY);
+
+        ApplicationFilterConfig results[] = new ApplicationFilterConfig[n];
+        int j = 0;
+        for (int i = 0; i < urlConfigs.length; i++) {
+            if ((mask & (1L << i)) != 0L)
+                results[j++] = urlConfigs[i];
+        }
+        System.arraycopy(servletFilters, 0, results, j, servletFilters.length);
+        return (results);
+
+    }
+
+
+    /**
+     * 不使用位掩码, 为指定的请求路径和servlet名称逐个匹配过滤器映射.
+     * 只在<code>isIndexed()</code>返回<code>false</code>时使用.
+     *
+     * @param requestPath 上下文相对请求路径, 或者<code>null</code>
+     * @param servletName 要执行的servlet的名称
+     */
+    ApplicationFilterConfig[] createChain(String requestPath,
+                                          String servletName) {
+
+        ApplicationFilterConfig servletFilters[] =
+            findServletFilters(servletName);
+        ArrayList results = new ArrayList();
+        for (int i = 0; i < urlMaps.length; i++) {
+            if (matchFiltersURL(urlMaps[i], requestPath))
+                results.add(urlConfigs[i]);
+        }
+        for (int i = 0; i < servletFilters.length; i++)
+            results.add(servletFilters[i]);
+        return ((ApplicationFilterConfig[])
+                results.toArray(new ApplicationFilterConfig[results.size()]));
+
+    }
+
+
+    /**
+     * 返回按servlet名称映射到指定servlet的过滤器.
+     *
+     * @param servletName Servlet name being checked
+     */
+    ApplicationFilterConfig[] findServletFilters(String servletName) {
+
+        if (servletName == null)
+            return (EMPTY);
+        ApplicationFilterConfig results[] =
+            (ApplicationFilterConfig[]) servletConfigs.get(servletName);
+        if (results == null)
+            return (EMPTY);
+        return (results);
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * 返回<code>true</code>，如果上下文相对请求路径与指定过滤器映射的要求相匹配;
+     * 否则返回<code>false</code>.
+     *
+     * @param filterMap Filter mapping being checked
+     * @param requestPath 此请求的上下文相对请求路径
+     */
+    private static boolean matchFiltersURL(FilterMap filterMap,
+                                           String requestPath) {
+
+        if (requestPath == null)
+            return (false);
+
+        // 上下文相关请求路径上的匹配
+        String testPath = filterMap.getURLPattern();
+        if (testPath == null)
+            return (false);
+
+        // Case 1 - 精确匹配
+        if (testPath.equals(requestPath))
+            return (true);
+
+        // Case 2 - 路径匹配 ("/.../*")
+        if (testPath.equals("/*"))
+            return (true);      // Optimize a common case
+        if (testPath.endsWith("/*")) {
+            String comparePath = requestPath;
+            while (true) {
+                if (testPath.equals(comparePath + "/*"))
+                    return (true);
+                int slash = comparePath.lastIndexOf('/');
+                if (slash < 0)
+                    break;
+                comparePath = comparePath.substring(0, slash);
+            }
+            return (false);
+        }
+
+        // Case 3 - 扩展匹配
+        if (testPath.startsWith("*.")) {
+            int slash = requestPath.lastIndexOf('/');
+            int period = requestPath.lastIndexOf('.');
+            if ((slash >= 0) && (period > slash))
+                return (testPath.equals("*." +
+                                        requestPath.substring(period + 1)));
+        }
+
+        // Case 4 - "Default" Match
+        return (false); // NOTE - Not relevant for selecting filters
+
+    }
+
+
+    // --------------------------------------------------------- Inner Classes
+
+
+    /**
+     * 路径匹配前缀树的一个节点.
+     */
+    private static final class Node {
+
+        /**
+         * 子节点, 使用下一个路径段作为key.
+         */
+        final SegmentTable children = new SegmentTable();
+
+        /**
+         * 以这个节点的路径加"/*"为模式的过滤器映射的掩码.
+         */
+        long mask = 0L;
+
+    }
+
+
+}
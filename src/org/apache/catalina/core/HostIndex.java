@@ -0,0 +1,132 @@
+package org.apache.catalina.core;
+
+
+import java.util.HashMap;
+
+import org.apache.catalina.Container;
+import org.apache.catalina.Host;
+
+
+/**
+ * <code>StandardEngine</code>的虚拟主机索引, 包括所有子级Host的名称和别名(均为小写).
+ * 每当添加或删除Host、别名, 或修改默认主机时重新构建, 并作为不可变快照发布,
+ * 使主机选择成为不需要任何锁的O(1)查找.
+ * <p>
+ * 未知的主机名被记录在一个固定大小的否定缓存中, 所以使用随机Host头的请求
+ * 在第一次之后直接解析为默认主机, 而不再转换大小写; 缓存大小固定, 不会因此无限增长.
+ * <p>
+ * <b>IMPLEMENTATION NOTE</b>: 除否定缓存外, 实例构造完成后不再修改.
+ * 否定缓存的每个槽只保存一个不可变的<code>String</code>, 并发覆盖是无害的.
+ */
+
+final class HostIndex {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * 使用指定的子级Host构造一个新索引.
+     *
+     * @param children Engine当前的子级Container
+     * @param defaultHost 默认主机的名称, 或者<code>null</code>
+     */
+    HostIndex(Container children[], String defaultHost) {
+
+        HashMap names = new HashMap();
+        for (int i = 0; i < children.length; i++) {
+            Host host = (Host) children[i];
+            String aliases[] = host.findAliases();
+            for (int j = 0; j < aliases.length; j++)
+                names.put(aliases[j].toLowerCase(), host);
+        }
+        // Host names take precedence over any conflicting alias
+        for (int i = 0; i < children.length; i++)
+            names.put(children[i].getName().toLowerCase(), children[i]);
+
+        this.names = names;
+        if (defaultHost == null)
+            this.defaultHost = null;
+        else
+            this.defaultHost = (Host) names.get(defaultHost.toLowerCase());
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * 否定缓存的槽数, 必须是2的幂.
+     */
+    private static final int MISSES = 256;
+
+
+    /**
+     * 用于未知主机名的默认主机, 或者<code>null</code>.
+     */
+    private final Host defaultHost;
+
+
+    /**
+     * 最近遇到的未知主机名, 按哈希值直接映射到槽.
+     */
+    private final String misses[] = new String[MISSES];
+
+
+    /**
+     * 小写的主机名和别名 -> Host.
+     */
+    private final HashMap names;
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 返回默认主机, 或者<code>null</code>.
+     */
+    Host getDefaultHost() {
+        return (defaultHost);
+    }
+
+
+    /**
+     * 返回指定名称或别名(不区分大小写)对应的Host, 或者<code>null</code>.
+     *
+     * @param name 请求的服务器名称
+     */
+    Host findHost(String name) {
+
+        Host host = (Host) names.get(name);
+        if (host != null)
+            return (host);
+        int slot = name.hashCode() & (MISSES - 1);
+        if (name.equals(misses[slot]))
+            return (null);
+        String lower = name.toLowerCase();
+        if (lower != name)
+            host = (Host) names.get(lower);
+        if (host == null)
+            misses[slot] = name;
+        return (host);
+
+    }
+
+
+    /**
+     * 返回指定服务器名称对应的Host; 如果名称未知, 返回默认主机.
+     *
+     * @param name 请求的服务器名称
+     */
+    Host map(String name) {
+
+        Host host = findHost(name);
+        if (host == null)
+            host = defaultHost;
+        return (host);
+
+    }
+
+
+}
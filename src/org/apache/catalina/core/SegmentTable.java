@@ -0,0 +1,99 @@
+package org.apache.catalina.core;
+
+
+/**
+ * 一个小型开放寻址哈希表, 使用字符串作为key.
+ * 查找时直接使用请求URI的一部分, 因此不需要创建子串.
+ */
+
+final class SegmentTable {
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * key数组, 长度总是2的幂.
+     */
+    private String keys[] = new String[4];
+
+
+    /**
+     * 与<code>keys</code>一一对应的值.
+     */
+    private Object values[] = new Object[4];
+
+
+    /**
+     * 当前的条目数.
+     */
+    private int count = 0;
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 返回与<code>s</code>中从<code>start</code>到<code>end</code>的字符相等的key
+     * 对应的值, 或者<code>null</code>.
+     */
+    Object get(String s, int start, int end) {
+        if (count == 0)
+            return (null);
+        int len = end - start;
+        int mask = keys.length - 1;
+        int i = hash(s, start, end) & mask;
+        while (keys[i] != null) {
+            String key = keys[i];
+            if ((key.length() == len) &&
+                key.regionMatches(0, s, start, len))
+                return (values[i]);
+            i = (i + 1) & mask;
+        }
+        return (null);
+    }
+
+
+    /**
+     * 添加或替换指定key的值.
+     */
+    void put(String key, Object value) {
+        if ((count + 1) * 2 > keys.length) {
+            String oldKeys[] = keys;
+            Object oldValues[] = values;
+            keys = new String[oldKeys.length * 2];
+            values = new Object[oldKeys.length * 2];
+            count = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null)
+                    put(oldKeys[i], oldValues[i]);
+            }
+        }
+        int mask = keys.length - 1;
+        int i = hash(key, 0, key.length()) & mask;
+        while (keys[i] != null) {
+            if (keys[i].equals(key)) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        count++;
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    private static int hash(String s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++)
+            h = 31 * h + s.charAt(i);
+        return (h ^ (h >>> 16));
+    }
+
+
+}
+
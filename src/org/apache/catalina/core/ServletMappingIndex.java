@@ -0,0 +1,221 @@
+package org.apache.catalina.core;
+
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.catalina.Container;
+import org.apache.catalina.Wrapper;
+
+
+/**
+ * <code>StandardContext</code>的servlet映射的预编译索引.
+ * 每当servlet映射或子级Wrapper改变时, 重新编译一次, 并作为不可变快照发布,
+ * 使<code>StandardContextMapper</code>在处理请求时不需要获取锁, 也几乎不分配对象.
+ * <p>
+ * 包括四个部分, 与Servlet规范中的四条映射规则一一对应:
+ * 精确匹配表, 按路径段组织的前缀匹配树, 扩展名匹配表, 以及默认servlet.
+ * <p>
+ * <b>IMPLEMENTATION NOTE</b>: 实例构造完成后不再修改, 可以被任意多个线程并发读取.
+ */
+
+final class ServletMappingIndex {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * 使用指定的映射集合构造一个新索引.
+     * 映射的servlet名称在这里被解析为对应的<code>Wrapper</code>;
+     * 找不到的servlet将被忽略, 与原来在请求时调用<code>findChild()</code>的行为一致.
+     *
+     * @param mappings 映射模式 -> servlet名称
+     * @param context 拥有这些映射的Context
+     */
+    ServletMappingIndex(Map mappings, Container context) {
+
+        Node root = new Node("");
+        SegmentTable extensions = new SegmentTable();
+        Wrapper defaultWrapper = null;
+        HashMap exact = new HashMap();
+
+        Iterator entries = mappings.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry entry = (Map.Entry) entries.next();
+            String pattern = (String) entry.getKey();
+            Wrapper wrapper =
+                (Wrapper) context.findChild((String) entry.getValue());
+            if (wrapper == null)
+                continue;
+            if (pattern.equals("/")) {
+                defaultWrapper = wrapper;
+            } else if (pattern.startsWith("*.")) {
+                extensions.put(pattern.substring(2), wrapper);
+            } else if (pattern.endsWith("/*")) {
+                String path = pattern.substring(0, pattern.length() - 2);
+                Node node = root;
+                int start = 1;
+                while (start <= path.length()) {
+                    int end = path.indexOf('/', start);
+                    if (end < 0)
+                        end = path.length();
+                    node = node.child(path.substring(0, end),
+                                      path.substring(start, end));
+                    start = end + 1;
+                }
+                node.wrapper = wrapper;
+            } else {
+                exact.put(pattern, wrapper);
+            }
+        }
+
+        this.root = root;
+        this.extensions = extensions;
+        this.defaultWrapper = defaultWrapper;
+        this.exact = exact;
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * 默认servlet (映射模式为"/"), 或者<code>null</code>.
+     */
+    private final Wrapper defaultWrapper;
+
+
+    /**
+     * 精确匹配的映射, 使用完整路径作为key.
+     */
+    private final HashMap exact;
+
+
+    /**
+     * 扩展名匹配的映射, 使用不带"*."的扩展名作为key.
+     */
+    private final SegmentTable extensions;
+
+
+    /**
+     * 前缀匹配树的根节点, 对应于"/*"模式.
+     */
+    private final Node root;
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 返回默认servlet的Wrapper, 或者<code>null</code>.
+     */
+    Wrapper defaultMatch() {
+        return (defaultWrapper);
+    }
+
+
+    /**
+     * 返回与指定的相对URI精确匹配的Wrapper, 或者<code>null</code>.
+     *
+     * @param uri Context-relative URI
+     */
+    Wrapper exactMatch(String uri) {
+        return ((Wrapper) exact.get(uri));
+    }
+
+
+    /**
+     * 返回与指定相对URI的最后一个路径段的扩展名匹配的Wrapper, 或者<code>null</code>.
+     *
+     * @param uri Context-relative URI
+     */
+    Wrapper extensionMatch(String uri) {
+
+        int slash = uri.lastIndexOf('/');
+        if (slash < 0)
+            return (null);
+        int period = uri.lastIndexOf('.');
+        if (period <= slash)
+            return (null);
+        return ((Wrapper) extensions.get(uri, period + 1, uri.length()));
+
+    }
+
+
+    /**
+     * 返回与指定相对URI匹配的最长前缀模式所对应的节点, 或者<code>null</code>.
+     * 节点的<code>path</code>就是请求的servlet路径.
+     *
+     * @param uri Context-relative URI
+     */
+    Node prefixMatch(String uri) {
+
+        int length = uri.length();
+        if ((length > 0) && (uri.charAt(0) != '/'))
+            return (null);
+
+        Node node = root;
+        Node match = (root.wrapper != null) ? root : null;
+        int start = 1;
+        while (start <= length) {
+            int end = uri.indexOf('/', start);
+            if (end < 0)
+                end = length;
+            node = (Node) node.children.get(uri, start, end);
+            if (node == null)
+                break;
+            if (node.wrapper != null)
+                match = node;
+            start = end + 1;
+        }
+        return (match);
+
+    }
+
+
+    // --------------------------------------------------------- Inner Classes
+
+
+    /**
+     * 前缀匹配树的一个节点, 对应于一个以"/*"结尾的映射模式的路径部分.
+     */
+    static final class Node {
+
+        Node(String path) {
+            this.path = path;
+        }
+
+        /**
+         * 子节点, 使用下一个路径段作为key.
+         */
+        final SegmentTable children = new SegmentTable();
+
+        /**
+         * 从Context根开始到这个节点的路径, 即匹配时的servlet路径.
+         */
+        final String path;
+
+        /**
+         * 映射到这个节点的Wrapper, 如果只是中间节点则为<code>null</code>.
+         */
+        Wrapper wrapper = null;
+
+        /**
+         * 返回指定路径段对应的子节点, 如有必要则创建它.
+         */
+        Node child(String path, String segment) {
+            Node node = (Node) children.get(segment, 0, segment.length());
+            if (node == null) {
+                node = new Node(path);
+                children.put(segment, node);
+            }
+            return (node);
+        }
+
+    }
+
+
+}
@@ -0,0 +1,260 @@
+package org.apache.catalina.core;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+import javax.servlet.UnavailableException;
+
+import org.apache.catalina.util.StringManager;
+
+
+/**
+ * 实现了<code>SingleThreadModel</code>的servlet的实例池.
+ * <p>
+ * 同时分配的实例数由一个信号量限制为<code>maxInstances</code>; 空闲实例保存在一个无锁的双端队列中,
+ * 最近归还的实例最先被重用. 分配和归还实例都不需要获取Wrapper的监视器,
+ * 只有在池中没有空闲实例时才创建新实例, 创建时也不持有Wrapper的监视器.
+ * 池记录它创建的每个实例, 只接受归还自己的实例, 所以重新加载之前分配的实例不会进入新的池.
+ * 如果在指定时间内得不到实例, <code>allocate()</code>抛出<code>UnavailableException</code>.
+ * 空闲时间超过<code>idleTimeout</code>的实例, 在超过<code>minInstances</code>的部分被销毁.
+ */
+
+final class SingleThreadModelPool {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * @param wrapper 拥有这个池的Wrapper
+     * @param maxInstances 实例的最大数目
+     */
+    SingleThreadModelPool(StandardWrapper wrapper, int maxInstances) {
+        this.wrapper = wrapper;
+        this.permits = new Semaphore(maxInstances, true);
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * 这个池是否已经被关闭?
+     */
+    private volatile boolean closed = false;
+
+
+    /**
+     * 当前存在的实例数, 包括空闲的和已分配的.
+     */
+    private final AtomicInteger count = new AtomicInteger();
+
+
+    /**
+     * 空闲的实例, 最近归还的在前面.
+     */
+    private final ConcurrentLinkedDeque idle = new ConcurrentLinkedDeque();
+
+
+    /**
+     * 属于这个池的实例, 包括空闲的和已分配的, 按对象标识比较.
+     */
+    private final Map owned =
+        Collections.synchronizedMap(new IdentityHashMap());
+
+
+    /**
+     * 每个已分配的实例占用一个许可.
+     */
+    private final Semaphore permits;
+
+
+    /**
+     * The string manager for this package.
+     */
+    private static final StringManager sm =
+        StringManager.getManager(Constants.Package);
+
+
+    /**
+     * 拥有这个池的Wrapper.
+     */
+    private final StandardWrapper wrapper;
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 将一个新创建的实例作为空闲实例加入这个池, 例如在<code>load()</code>时预热的实例.
+     *
+     * @param servlet 新创建的实例
+     */
+    void add(Servlet servlet) {
+        owned.put(servlet, servlet);
+        count.incrementAndGet();
+        idle.offerLast(new Entry(servlet, System.currentTimeMillis()));
+    }
+
+
+    /**
+     * 分配一个实例, 如有必要则创建一个.
+     *
+     * @param timeout 等待实例的最长时间(毫秒), 或者负数表示一直等待
+     *
+     * @exception UnavailableException 如果在指定时间内没有可用的实例, 或者池已经被关闭
+     * @exception ServletException 如果创建实例失败
+     */
+    Servlet allocate(long timeout) throws ServletException {
+
+        try {
+            if (timeout < 0)
+                permits.acquire();
+            else if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+                throw new UnavailableException
+                    (sm.getString("standardWrapper.allocateTimeout",
+                                  wrapper.getName()), 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnavailableException
+                (sm.getString("standardWrapper.allocateTimeout",
+                              wrapper.getName()), 0);
+        }
+
+        // The pool may have been closed while this thread was waiting
+        if (closed) {
+            permits.release();
+            throw new UnavailableException
+                (sm.getString("standardWrapper.unloading",
+                              wrapper.getName()), 0);
+        }
+
+        Entry entry = (Entry) idle.pollFirst();
+        if (entry != null)
+            return (entry.servlet);
+
+        // No idle instance, so every existing one is held by another permit
+        Servlet servlet = null;
+        try {
+            servlet = wrapper.loadInstance();
+        } catch (ServletException e) {
+            permits.release();
+            throw e;
+        } catch (Throwable e) {
+            permits.release();
+            throw new ServletException
+                (sm.getString("standardWrapper.allocate"), e);
+        }
+        if (closed) {
+            permits.release();
+            wrapper.destroyInstance(servlet);
+            throw new UnavailableException
+                (sm.getString("standardWrapper.unloading",
+                              wrapper.getName()), 0);
+        }
+        owned.put(servlet, servlet);
+        count.incrementAndGet();
+        return (servlet);
+
+    }
+
+
+    /**
+     * 关闭这个池, 返回当前所有的空闲实例, 由调用者销毁.
+     * 关闭之后归还的实例被立即销毁.
+     */
+    Servlet[] close() {
+
+        closed = true;
+        ArrayList results = new ArrayList();
+        Entry entry = null;
+        while ((entry = (Entry) idle.pollFirst()) != null) {
+            count.decrementAndGet();
+            owned.remove(entry.servlet);
+            results.add(entry.servlet);
+        }
+        return ((Servlet[]) results.toArray(new Servlet[results.size()]));
+
+    }
+
+
+    /**
+     * 将先前分配的实例归还到这个池, 并销毁空闲太久的实例.
+     * 如果实例不是由这个池分配的, 什么也不做, 由调用者销毁它.
+     *
+     * @param servlet 要归还的实例
+     * @param minInstances 收缩时保留的最少实例数
+     * @param idleTimeout 空闲实例被销毁之前的最长空闲时间(毫秒), 或者非正数表示从不收缩
+     * @return 实例是否属于这个池
+     */
+    boolean deallocate(Servlet servlet, int minInstances, long idleTimeout) {
+
+        if (!owned.containsKey(servlet))
+            return (false);
+        long now = System.currentTimeMillis();
+        if (closed) {
+            owned.remove(servlet);
+            count.decrementAndGet();
+            permits.release();
+            wrapper.destroyInstance(servlet);
+            return (true);
+        }
+        idle.offerFirst(new Entry(servlet, now));
+        permits.release();
+
+        // Shrink from the least recently used end
+        if (idleTimeout <= 0)
+            return (true);
+        while (count.get() > minInstances) {
+            Entry last = (Entry) idle.peekLast();
+            if ((last == null) || ((now - last.time) < idleTimeout))
+                break;
+            if (idle.removeLastOccurrence(last)) {
+                count.decrementAndGet();
+                owned.remove(last.servlet);
+                wrapper.destroyInstance(last.servlet);
+            }
+        }
+        return (true);
+
+    }
+
+
+    /**
+     * 返回当前存在的实例数, 包括空闲的和已分配的.
+     */
+    int getCount() {
+        return (count.get());
+    }
+
+
+    // --------------------------------------------------------- Inner Classes
+
+
+    /**
+     * 一个空闲实例, 以及它被归还的时间.
+     */
+    private static final class Entry {
+
+        Entry(Servlet servlet, long time) {
+            this.servlet = servlet;
+            this.time = time;
+        }
+
+        final Servlet servlet;
+
+        final long time;
+
+    }
+
+
+}
@@ -184,6 +184,13 @@ public class StandardContext extends ContainerBase implements Context {
     private FilterMap filterMaps[] = new FilterMap[0];
 
 
+    /**
+     * 过滤器映射的预编译索引, 每当过滤器映射或过滤器配置改变时重新生成.
+     */
+    private volatile FilterMapIndex filterMapIndex =
+        new FilterMapIndex(filterMaps, this);
+
+
     /**
      * 描述信息
      */
@@ -289,6 +296,13 @@ public class StandardContext extends ContainerBase implements Context {
     private HashMap servletMappings = new HashMap();
 
 
+    /**
+     * servlet映射的预编译索引, 每当映射或子级Wrapper改变时重新生成.
+     */
+    private volatile ServletMappingIndex servletMappingIndex =
+        new ServletMappingIndex(servletMappings, this);
+
+
     /**
      * 会话超时时间(in minutes)
      */
@@ -1106,6 +1120,7 @@ public class StandardContext extends ContainerBase implements Context {
         }
 
         super.addChild(child);
+        rebuildServletMappingIndex();
     }
 
 
@@ -1272,6 +1287,7 @@ public class StandardContext extends ContainerBase implements Context {
             results[filterMaps.length] = filterMap;
             filterMaps = results;
         }
+        rebuildFilterMapIndex();
         fireContainerEvent("addFilterMap", filterMap);
     }
 
@@ -1434,6 +1450,7 @@ public class StandardContext extends ContainerBase implements Context {
         // Add this mapping to our registered set
         synchronized (servletMappings) {
             servletMappings.put(pattern, name);
+            rebuildServletMappingIndex();
         }
         fireContainerEvent("addServletMapping", pattern);
 
@@ -2296,6 +2313,19 @@ public class StandardContext extends ContainerBase implements Context {
     }
 
 
+    /**
+     * 移除子级Container, 并重新编译servlet映射索引.
+     *
+     * @param child Existing child Container to be removed
+     */
+    public void removeChild(Container child) {
+
+        super.removeChild(child);
+        rebuildServletMappingIndex();
+
+    }
+
+
     /**
      * 从这个Web应用程序中移除指定的安全约束.
      *
@@ -2419,6 +2449,7 @@ public class StandardContext extends ContainerBase implements Context {
             filterMaps = results;
 
         }
+        rebuildFilterMapIndex();
 
         // Inform interested listeners
         fireContainerEvent("removeFilterMap", filterMap);
@@ -2588,6 +2619,7 @@ public class StandardContext extends ContainerBase implements Context {
     public void removeServletMapping(String pattern) {
         synchronized (servletMappings) {
             servletMappings.remove(pattern);
+            rebuildServletMappingIndex();
         }
         fireContainerEvent("removeServletMapping", pattern);
     }
@@ -2748,6 +2780,7 @@ public class StandardContext extends ContainerBase implements Context {
                 }
             }
         }
+        rebuildFilterMapIndex();
         return (ok);
     }
 
@@ -2774,6 +2807,7 @@ public class StandardContext extends ContainerBase implements Context {
             }
             filterConfigs.clear();
         }
+        rebuildFilterMapIndex();
         return (true);
     }
 
@@ -3358,9 +3392,50 @@ public class StandardContext extends ContainerBase implements Context {
     }
 
 
+    /**
+     * 返回当前的过滤器映射索引快照. 调用者不需要任何同步.
+     */
+    FilterMapIndex getFilterMapIndex() {
+        return (this.filterMapIndex);
+    }
+
+
+    /**
+     * 返回当前的servlet映射索引快照. 调用者不需要任何同步.
+     */
+    ServletMappingIndex getServletMappingIndex() {
+        return (this.servletMappingIndex);
+    }
+
+
     // -------------------------------------------------------- Private Methods
 
 
+    /**
+     * 根据当前的过滤器映射和过滤器配置重新编译并发布过滤器映射索引.
+     */
+    private void rebuildFilterMapIndex() {
+
+        synchronized (filterConfigs) {
+            filterMapIndex = new FilterMapIndex(filterMaps, this);
+        }
+
+    }
+
+
+    /**
+     * 根据当前的servlet映射和子级Wrapper重新编译并发布映射索引.
+     */
+    private void rebuildServletMappingIndex() {
+
+        synchronized (servletMappings) {
+            servletMappingIndex =
+                new ServletMappingIndex(servletMappings, this);
+        }
+
+    }
+
+
     /**
      * 绑定当前线程, 对CL目的和JNDI ENC的支持 : 上下文的startup, shutdown, realoading
      * 
@@ -122,44 +122,29 @@ public final class StandardContextMapper implements Mapper {
                         "' and relativeURI='" + relativeURI + "'");
 
         // Apply the standard request URI mapping rules from the specification
+        ServletMappingIndex index = context.getServletMappingIndex();
         Wrapper wrapper = null;
         String servletPath = relativeURI;
         String pathInfo = null;
-        String name = null;
 
         // Rule 1 -- Exact Match
         if (wrapper == null) {
             if (debug >= 2)
                 context.log("  Trying exact match");
             if (!(relativeURI.equals("/")))
-                name = context.findServletMapping(relativeURI);
-            if (name != null)
-                wrapper = (Wrapper) context.findChild(name);
-            if (wrapper != null) {
-                servletPath = relativeURI;
-                pathInfo = null;
-            }
+                wrapper = index.exactMatch(relativeURI);
         }
 
         // Rule 2 -- Prefix Match
         if (wrapper == null) {
             if (debug >= 2)
                 context.log("  Trying prefix match");
-            servletPath = relativeURI;
-            while (true) {
-                name = context.findServletMapping(servletPath + "/*");
-                if (name != null)
-                    wrapper = (Wrapper) context.findChild(name);
-                if (wrapper != null) {
+            ServletMappingIndex.Node node = index.prefixMatch(relativeURI);
+            if (node != null) {
+                wrapper = node.wrapper;
+                servletPath = node.path;
+                if (relativeURI.length() > servletPath.length())
                     pathInfo = relativeURI.substring(servletPath.length());
-                    if (pathInfo.length() == 0)
-                        pathInfo = null;
-                    break;
-                }
-                int slash = servletPath.lastIndexOf('/');
-                if (slash < 0)
-                    break;
-                servletPath = servletPath.substring(0, slash);
             }
         }
 
@@ -167,34 +152,14 @@ public final class StandardContextMapper implements Mapper {
         if (wrapper == null) {
             if (debug >= 2)
                 context.log("  Trying extension match");
-            int slash = relativeURI.lastIndexOf('/');
-            if (slash >= 0) {
-                String last = relativeURI.substring(slash);
-                int period = last.lastIndexOf('.');
-                if (period >= 0) {
-                    String pattern = "*" + last.substring(period);
-                    name = context.findServletMapping(pattern);
-                    if (name != null)
-                        wrapper = (Wrapper) context.findChild(name);
-                    if (wrapper != null) {
-                        servletPath = relativeURI;
-                        pathInfo = null;
-                    }
-                }
-            }
+            wrapper = index.extensionMatch(relativeURI);
         }
 
         // Rule 4 -- Default Match
         if (wrapper == null) {
             if (debug >= 2)
                 context.log("  Trying default match");
-            name = context.findServletMapping("/");
-            if (name != null)
-                wrapper = (Wrapper) context.findChild(name);
-            if (wrapper != null) {
-                servletPath = relativeURI;
-                pathInfo = null;
-            }
+            wrapper = index.defaultMatch();
         }
 
         // Update the Request (if requested) and return this Wrapper
@@ -2,6 +2,8 @@ package org.apache.catalina.core;
 
 
 import org.apache.catalina.Container;
+import org.apache.catalina.ContainerEvent;
+import org.apache.catalina.ContainerListener;
 import org.apache.catalina.Context;
 import org.apache.catalina.DefaultContext;
 import org.apache.catalina.Engine;
@@ -31,6 +33,19 @@ public class StandardEngine extends ContainerBase implements Engine {
     private String defaultHost = null;
 
 
+    /**
+     * 子级Host的名称和别名索引, 每当Host、别名或默认主机改变时重新构建.
+     */
+    private volatile HostIndex hostIndex =
+        new HostIndex(new Container[0], null);
+
+
+    /**
+     * 注册到每个子级Host的监听器, 在别名改变时重新构建主机索引.
+     */
+    private ContainerListener hostListener = new HostListener();
+
+
     /**
      * 描述信息
      */
@@ -85,6 +100,7 @@ public class StandardEngine extends ContainerBase implements Engine {
         } else {
             this.defaultHost = host.toLowerCase();
         }
+        rebuildHostIndex();
         support.firePropertyChange("defaultHost", oldDefaultHost,
                                    this.defaultHost);
     }
@@ -195,6 +211,8 @@ public class StandardEngine extends ContainerBase implements Engine {
             throw new IllegalArgumentException
                 (sm.getString("standardEngine.notHost"));
         super.addChild(child);
+        child.addContainerListener(hostListener);
+        rebuildHostIndex();
     }
 
 
@@ -207,6 +225,20 @@ public class StandardEngine extends ContainerBase implements Engine {
     }
 
 
+    /**
+     * 移除子级Container, 并重新构建主机索引.
+     *
+     * @param child Existing child Container to be removed
+     */
+    public void removeChild(Container child) {
+
+        super.removeChild(child);
+        child.removeContainerListener(hostListener);
+        rebuildHostIndex();
+
+    }
+
+
     /**
      * 不允许为这个Container设置一个父级Container, 因为Engine应该位于容器Container结构的顶部
      *
@@ -250,4 +282,45 @@ public class StandardEngine extends ContainerBase implements Engine {
     protected void addDefaultMapper(String mapperClass) {
         super.addDefaultMapper(this.mapperClass);
     }
+
+
+    /**
+     * 返回当前的主机索引快照. 调用者不需要任何同步.
+     */
+    HostIndex getHostIndex() {
+        return (this.hostIndex);
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * 根据当前的子级Host、它们的别名和默认主机重新构建并发布主机索引.
+     */
+    private void rebuildHostIndex() {
+
+        synchronized (children) {
+            hostIndex = new HostIndex(findChildren(), defaultHost);
+        }
+
+    }
+
+
+    // --------------------------------------------------------- Inner Classes
+
+
+    /**
+     * 在子级Host添加或删除别名时重新构建主机索引.
+     */
+    private class HostListener implements ContainerListener {
+
+        public void containerEvent(ContainerEvent event) {
+            String type = event.getType();
+            if (Host.ADD_ALIAS_EVENT.equals(type) ||
+                Host.REMOVE_ALIAS_EVENT.equals(type))
+                rebuildHostIndex();
+        }
+
+    }
 }
@@ -104,38 +104,20 @@ public class StandardEngineMapper implements Mapper {
         }
         if (server == null)
             return (null);
-        server = server.toLowerCase();
         if (debug >= 1)
             engine.log("Mapping server name '" + server + "'");
 
-        // 直接查找匹配的子级Host
+        // 在主机索引中查找匹配的主机名或别名
         if (debug >= 2)
-            engine.log(" Trying a direct match");
-        Host host = (Host) engine.findChild(server);
-
-        // 通过别名查找一个匹配的Host.  FIXME - Optimize this!
-        if (host == null) {
-            if (debug >= 2)
-                engine.log(" Trying an alias match");
-            Container children[] = engine.findChildren();
-            for (int i = 0; i < children.length; i++) {
-                String aliases[] = ((Host) children[i]).findAliases();
-                for (int j = 0; j < aliases.length; j++) {
-                    if (server.equals(aliases[j])) {
-                        host = (Host) children[i];
-                        break;
-                    }
-                }
-                if (host != null)
-                    break;
-            }
-        }
+            engine.log(" Trying a direct or alias match");
+        HostIndex index = engine.getHostIndex();
+        Host host = index.findHost(server);
 
         //尝试“默认”主机，如果有的话
         if (host == null) {
             if (debug >= 2)
                 engine.log(" Trying the default host");
-            host = (Host) engine.findChild(engine.getDefaultHost());
+            host = index.getDefaultHost();
         }
 
         // Update the Request if requested, and return the selected Host
@@ -56,6 +56,13 @@ public class StandardHost extends ContainerBase implements Deployer, Host {
     private String configClass = "org.apache.catalina.startup.ContextConfig";
 
 
+    /**
+     * 子级Context的路径索引, 每当部署或卸载Context时重新构建.
+     */
+    private volatile ContextPathIndex contextIndex =
+        new ContextPathIndex(new Container[0]);
+
+
     /**
      * 默认的Context实现类类名, 用于部署web应用程序
      */
@@ -416,6 +423,7 @@ public class StandardHost extends ContainerBase implements Deployer, Host {
             throw new IllegalArgumentException
                 (sm.getString("standardHost.notContext"));
         super.addChild(child);
+        rebuildContextIndex();
     }
 
 
@@ -452,23 +460,14 @@ public class StandardHost extends ContainerBase implements Deployer, Host {
         // 匹配尽可能长的上下文路径前缀
         if (debug > 1)
             log("  Trying the longest context path prefix");
-        Context context = null;
-        String mapuri = uri;
-        while (true) {
-            context = (Context) findChild(mapuri);
-            if (context != null)
-                break;
-            int slash = mapuri.lastIndexOf('/');
-            if (slash < 0)
-                break;
-            mapuri = mapuri.substring(0, slash);
-        }
+        ContextPathIndex index = contextIndex;
+        Context context = index.map(uri);
 
         // 如果没有匹配到Context, 选择默认的Context
         if (context == null) {
             if (debug > 1)
                 log("  Trying the default context");
-            context = (Context) findChild("");
+            context = index.defaultContext();
         }
 
         // Complain if no Context has been selected
@@ -520,6 +519,19 @@ public class StandardHost extends ContainerBase implements Deployer, Host {
     }
 
 
+    /**
+     * 移除子级Container, 并重新构建Context路径索引.
+     *
+     * @param child Existing child Container to be removed
+     */
+    public void removeChild(Container child) {
+
+        super.removeChild(child);
+        rebuildContextIndex();
+
+    }
+
+
     /**
      * 返回此组件的字符串表示形式
      */
@@ -696,4 +708,19 @@ public class StandardHost extends ContainerBase implements Deployer, Host {
     protected void addDefaultMapper(String mapperClass) {
         super.addDefaultMapper(this.mapperClass);
     }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * 根据当前的子级Context重新构建并发布路径索引.
+     */
+    private void rebuildContextIndex() {
+
+        synchronized (children) {
+            contextIndex = new ContextPathIndex(findChildren());
+        }
+
+    }
 }
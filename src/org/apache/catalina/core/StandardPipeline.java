@@ -24,9 +24,11 @@ import org.apache.catalina.util.StringManager;
  * <b>Pipeline</b>的标准实现类，将执行一系列 Valves，已配置为按顺序调用. 
  * 此实现可用于任何类型的Container.
  *
- * <b>实施预警</b> - 此实现假定没有调用<code>addValve()</code>或<code>removeValve</code>是允许的，
- * 当一个请求正在处理的时候. 
- * 否则，就需要一个维护每个线程状态的机制.
+ * <p>
+ * 每当<code>addValve()</code>, <code>removeValve()</code>或<code>setBasic()</code>
+ * 改变Valve集合时, 这些Valve被预先链接为一组不可变的<code>ValveContext</code>.
+ * 因为这些上下文不保存任何请求状态, 所有请求线程共享它们, 处理请求时不分配任何对象.
+ * 正在处理中的请求继续使用它开始时的Valve链.
  */
 public class StandardPipeline implements Pipeline, Contained, Lifecycle {
 
@@ -51,7 +53,7 @@ public class StandardPipeline implements Pipeline, Contained, Lifecycle {
     /**
      * 关联的基础Valve.
      */
-    protected Valve basic = null;
+    protected volatile Valve basic = null;
 
     /**
      * 关联的Container.
@@ -92,7 +94,19 @@ public class StandardPipeline implements Pipeline, Contained, Lifecycle {
     /**
      * 关联的一系列Valves (不包含基础的那个)
      */
-    protected Valve valves[] = new Valve[0];
+    protected volatile Valve valves[] = new Valve[0];
+
+
+    /**
+     * 修改<code>valves</code>和<code>basic</code>以及重新链接Valve链时持有的锁.
+     */
+    private final Object valvesLock = new Object();
+
+
+    /**
+     * 预先链接的Valve链的第一个上下文, 每当Valve集合改变时重新构建.
+     */
+    private volatile ValveContext first = link(valves, null);
 
 
     // --------------------------------------------------------- Public Methods
@@ -279,7 +293,10 @@ public class StandardPipeline implements Pipeline, Contained, Lifecycle {
                 return;
             }
         }
-        this.basic = valve;
+        synchronized (valvesLock) {
+            this.basic = valve;
+            relink();
+        }
     }
 
 
@@ -312,11 +329,12 @@ public class StandardPipeline implements Pipeline, Contained, Lifecycle {
         }
 
         // Add this Valve to the set associated with this Pipeline
-        synchronized (valves) {
+        synchronized (valvesLock) {
             Valve results[] = new Valve[valves.length +1];
             System.arraycopy(valves, 0, results, 0, valves.length);
             results[valves.length] = valve;
             valves = results;
+            relink();
         }
     }
 
@@ -326,9 +344,9 @@ public class StandardPipeline implements Pipeline, Contained, Lifecycle {
      * 如果没有, 返回一个零长度数组.
      */
     public Valve[] getValves() {
-        if (basic == null)
-            return (valves);
-        synchronized (valves) {
+        synchronized (valvesLock) {
+            if (basic == null)
+                return (valves);
             Valve results[] = new Valve[valves.length + 1];
             System.arraycopy(valves, 0, results, 0, valves.length);
             results[valves.length] = basic;
@@ -351,7 +369,7 @@ public class StandardPipeline implements Pipeline, Contained, Lifecycle {
         throws IOException, ServletException {
 
         // Invoke the first Valve in this pipeline for this request
-        (new StandardPipelineValveContext()).invokeNext(request, response);
+        first.invokeNext(request, response);
 
     }
 
@@ -364,7 +382,7 @@ public class StandardPipeline implements Pipeline, Contained, Lifecycle {
      */
     public void removeValve(Valve valve) {
 
-        synchronized (valves) {
+        synchronized (valvesLock) {
 
             // Locate this Valve in our list
             int j = -1;
@@ -386,6 +404,7 @@ public class StandardPipeline implements Pipeline, Contained, Lifecycle {
                 results[n++] = valves[i];
             }
             valves = results;
+            relink();
             try {
                 if (valve instanceof Contained)
                     ((Contained) valve).setContainer(null);
@@ -450,13 +469,58 @@ public class StandardPipeline implements Pipeline, Contained, Lifecycle {
     }
 
 
-    // ------------------------------- StandardPipelineValveContext Inner Class
+    // -------------------------------------------------------- Private Methods
 
-    protected class StandardPipelineValveContext implements ValveContext {
+
+    /**
+     * 根据当前的Valve集合和基础Valve重新构建并发布预先链接的Valve链.
+     * 调用者必须持有<code>valvesLock</code>.
+     */
+    private void relink() {
+        first = link(valves, basic);
+    }
+
+
+    /**
+     * 将指定的Valve和基础Valve链接为一组<code>ValveContext</code>, 并返回第一个.
+     *
+     * @param valves 按顺序排列的Valve (不包含基础的那个)
+     * @param basic 基础Valve, 或者<code>null</code>
+     */
+    private ValveContext link(Valve valves[], Valve basic) {
+        ValveContext context = new LinkedValveContext(null, null);
+        if (basic != null)
+            context = new LinkedValveContext(basic, context);
+        for (int i = valves.length - 1; i >= 0; i--)
+            context = new LinkedValveContext(valves[i], context);
+        return (context);
+    }
+
+
+    // --------------------------------------- LinkedValveContext Inner Class
+
+    /**
+     * 一个预先链接的<code>ValveContext</code>: 调用一个固定的Valve, 并把下一个上下文传递给它.
+     * 最后一个上下文没有Valve, 调用它将抛出异常.
+     */
+    private final class LinkedValveContext implements ValveContext {
 
         // ------------------------------------------------- Instance Variables
 
-        protected int stage = 0;
+        /**
+         * 调用<code>invokeNext()</code>时执行的Valve, 或者<code>null</code>.
+         */
+        private final Valve valve;
+
+        /**
+         * 传递给<code>valve</code>的下一个上下文.
+         */
+        private final ValveContext next;
+
+        LinkedValveContext(Valve valve, ValveContext next) {
+            this.valve = valve;
+            this.next = next;
+        }
 
         // --------------------------------------------------------- Properties
 
@@ -471,7 +535,7 @@ public class StandardPipeline implements Pipeline, Contained, Lifecycle {
 
 
         /**
-         * 调用下一个Valve的<code>invoke()</code>方法, 传递指定的请求和响应对象以及这个<code>ValveContext</code>实例. 
+         * 调用下一个Valve的<code>invoke()</code>方法, 传递指定的请求和响应对象以及下一个<code>ValveContext</code>. 
          * 执行Valve(或一个Filter ， Servlet)抛出的异常将被传递给调用者.
          *
          * 如果没有更多的Valve执行, 一个合适的ServletException将被这个ValveContext抛出.
@@ -485,18 +549,10 @@ public class StandardPipeline implements Pipeline, Contained, Lifecycle {
          */
         public void invokeNext(Request request, Response response) throws IOException, ServletException {
 
-            int subscript = stage;
-            stage = stage + 1;
-
-            // Invoke the requested Valve for the current request thread
-            if (subscript < valves.length) {
-                valves[subscript].invoke(request, response, this);
-            } else if ((subscript == valves.length) && (basic != null)) {
-                basic.invoke(request, response, this);
-            } else {
+            if (valve == null)
                 throw new ServletException
                     (sm.getString("standardPipeline.noValve"));
-            }
+            valve.invoke(request, response, next);
         }
     }
 }
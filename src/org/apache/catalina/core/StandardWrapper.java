@@ -4,7 +4,7 @@ package org.apache.catalina.core;
 import java.io.PrintStream;
 import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.Stack;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.servlet.Servlet;
 import javax.servlet.ServletConfig;
@@ -25,6 +25,7 @@ import org.apache.catalina.connector.HttpRequestBase;
 import org.apache.catalina.connector.HttpResponseBase;
 import org.apache.catalina.util.Enumerator;
 import org.apache.catalina.util.InstanceSupport;
+import org.apache.catalina.util.LatencyHistogram;
 import org.apache.tomcat.util.log.SystemLogHandler;
 
 
@@ -54,7 +55,7 @@ public final class StandardWrapper extends ContainerBase implements ServletConfi
     /**
      * 当前活动的分配数(即使它们是相同的实例，在非STM servlet上也是如此).
      */
-    private int countAllocated = 0;
+    private final LongAdder countAllocated = new LongAdder();
 
 
     /**
@@ -143,15 +144,27 @@ public final class StandardWrapper extends ContainerBase implements ServletConfi
 
 
     /**
-     * 一个STM servlet当前加载的实例数.
+     * 在<code>load()</code>时预先创建, 并在收缩空闲实例时保留的STM实例的最少数目.
      */
-    private int nInstances = 0;
+    private int minInstances = 0;
 
 
     /**
-     * 包含STM实例的堆栈
+     * 等待一个STM实例的最长时间(毫秒), 超时后返回SC_SERVICE_UNAVAILABLE. 负数表示一直等待.
      */
-    private Stack instancePool = null;
+    private long allocateTimeout = 30000L;
+
+
+    /**
+     * 空闲的STM实例被销毁之前的最长空闲时间(毫秒). 非正数表示从不收缩.
+     */
+    private long instanceIdleTimeout = 300000L;
+
+
+    /**
+     * STM实例池
+     */
+    private volatile SingleThreadModelPool instancePool = null;
 
 
     /**
@@ -195,7 +208,7 @@ public final class StandardWrapper extends ContainerBase implements ServletConfi
      * 返回此servlet的活动分配数, 即使它们都是同一个实例(将真正的servlet没有实现<code>SingleThreadModel</code>.
      */
     public int getCountAllocated() {
-        return (this.countAllocated);
+        return (this.countAllocated.intValue());
     }
 
 
@@ -302,6 +315,50 @@ public final class StandardWrapper extends ContainerBase implements ServletConfi
 
 
 
+    /**
+     * 返回等待一个STM实例的最长时间(毫秒).
+     */
+    public long getAllocateTimeout() {
+        return (this.allocateTimeout);
+    }
+
+
+    /**
+     * 设置等待一个STM实例的最长时间(毫秒). 负数表示一直等待.
+     *
+     * @param allocateTimeout The new allocate timeout
+     */
+    public void setAllocateTimeout(long allocateTimeout) {
+        long oldAllocateTimeout = this.allocateTimeout;
+        this.allocateTimeout = allocateTimeout;
+        support.firePropertyChange("allocateTimeout",
+                                   new Long(oldAllocateTimeout),
+                                   new Long(this.allocateTimeout));
+    }
+
+
+    /**
+     * 返回空闲的STM实例被销毁之前的最长空闲时间(毫秒).
+     */
+    public long getInstanceIdleTimeout() {
+        return (this.instanceIdleTimeout);
+    }
+
+
+    /**
+     * 设置空闲的STM实例被销毁之前的最长空闲时间(毫秒). 非正数表示从不收缩.
+     *
+     * @param instanceIdleTimeout The new idle timeout
+     */
+    public void setInstanceIdleTimeout(long instanceIdleTimeout) {
+        long oldInstanceIdleTimeout = this.instanceIdleTimeout;
+        this.instanceIdleTimeout = instanceIdleTimeout;
+        support.firePropertyChange("instanceIdleTimeout",
+                                   new Long(oldInstanceIdleTimeout),
+                                   new Long(this.instanceIdleTimeout));
+    }
+
+
     /**
      * 返回当使用单个线程模型servlet时, 将分配的实例的最大数量.
      */
@@ -323,6 +380,27 @@ public final class StandardWrapper extends ContainerBase implements ServletConfi
     }
 
 
+    /**
+     * 返回在<code>load()</code>时预先创建的STM实例的最少数目.
+     */
+    public int getMinInstances() {
+        return (this.minInstances);
+    }
+
+
+    /**
+     * 设置在<code>load()</code>时预先创建, 并在收缩时保留的STM实例的最少数目.
+     *
+     * @param minInstances New value of minInstances
+     */
+    public void setMinInstances(int minInstances) {
+        int oldMinInstances = this.minInstances;
+        this.minInstances = minInstances;
+        support.firePropertyChange("minInstances", oldMinInstances,
+                                   this.minInstances);
+    }
+
+
     /**
      * 设置父级Container, 但只有当它是Context.
      *
@@ -497,9 +575,10 @@ public final class StandardWrapper extends ContainerBase implements ServletConfi
             // Load and initialize our instance if necessary
             if (instance == null) {
                 synchronized (this) {
-                    if (instance == null) {
+                    if ((instance == null) && !singleThreadModel) {
                         try {
                             instance = loadServlet();
+                            poolInstance();
                         } catch (ServletException e) {
                             throw e;
                         } catch (Throwable e) {
@@ -513,39 +592,17 @@ public final class StandardWrapper extends ContainerBase implements ServletConfi
             if (!singleThreadModel) {
                 if (debug >= 2)
                     log("  Returning non-STM instance");
-                countAllocated++;
+                countAllocated.increment();
                 return (instance);
             }
 
         }
 
-        synchronized (instancePool) {
-
-            while (countAllocated >= nInstances) {
-                // Allocate a new instance if possible, or else wait
-                if (nInstances < maxInstances) {
-                    try {
-                        instancePool.push(loadServlet());
-                        nInstances++;
-                    } catch (ServletException e) {
-                        throw e;
-                    } catch (Throwable e) {
-                        throw new ServletException
-                            (sm.getString("standardWrapper.allocate"), e);
-                    }
-                } else {
-                    try {
-                        instancePool.wait();
-                    } catch (InterruptedException e) {
-                        ;
-                    }
-                }
-            }
-            if (debug >= 2)
-                log("  Returning allocated STM instance");
-            countAllocated++;
-            return (Servlet) instancePool.pop();
-        }
+        Servlet servlet = instancePool.allocate(allocateTimeout);
+        if (debug >= 2)
+            log("  Returning allocated STM instance");
+        countAllocated.increment();
+        return (servlet);
     }
 
 
@@ -558,17 +615,19 @@ public final class StandardWrapper extends ContainerBase implements ServletConfi
      * @exception ServletException if a deallocation error occurs
      */
     public void deallocate(Servlet servlet) throws ServletException {
-        // If not SingleThreadModel, no action is required
-        if (!singleThreadModel) {
-            countAllocated--;
+        // If not SingleThreadModel, no action is required.  unload() clears
+        // the flag, so test the instance itself
+        if (!(servlet instanceof SingleThreadModel)) {
+            countAllocated.decrement();
             return;
         }
-        // Unlock and free this instance
-        synchronized (instancePool) {
-            countAllocated--;
-            instancePool.push(servlet);
-            instancePool.notify();
-        }
+        // Return this instance to the pool that allocated it; one allocated
+        // before an unload belongs to no current pool
+        countAllocated.decrement();
+        SingleThreadModelPool pool = instancePool;
+        if ((pool == null) ||
+            !pool.deallocate(servlet, minInstances, instanceIdleTimeout))
+            destroyInstance(servlet);
     }
 
 
@@ -632,6 +691,15 @@ public final class StandardWrapper extends ContainerBase implements ServletConfi
      */
     public synchronized void load() throws ServletException {
         instance = loadServlet();
+        poolInstance();
+
+        // Pre-warm the STM instance pool
+        SingleThreadModelPool pool = instancePool;
+        if (pool != null) {
+            while ((pool.getCount() < minInstances) &&
+                   (pool.getCount() < maxInstances))
+                pool.add(loadServlet());
+        }
     }
 
 
@@ -644,6 +712,26 @@ public final class StandardWrapper extends ContainerBase implements ServletConfi
         // 如果已经有实例或实例池，则无需做任何事情
         if (!singleThreadModel && (instance != null))
             return instance;
+        Servlet servlet = createServlet();
+
+        // 注册新初始化的实例
+        singleThreadModel = servlet instanceof SingleThreadModel;
+        if (singleThreadModel) {
+            if (instancePool == null)
+                instancePool =
+                    new SingleThreadModelPool(this, maxInstances);
+        }
+        fireContainerEvent("load", this);
+        return servlet;
+
+    }
+
+
+    /**
+     * 加载并初始化此servlet的一个新实例, 不修改这个Wrapper的状态.
+     */
+    private Servlet createServlet() throws ServletException {
+
         PrintStream out = System.out;
         if (swallowOutput) {
             SystemLogHandler.startCapture();
@@ -766,14 +854,6 @@ public final class StandardWrapper extends ContainerBase implements ServletConfi
                 throw new ServletException
                     (sm.getString("standardWrapper.initException", getName()), f);
             }
-    
-            // 注册新初始化的实例
-            singleThreadModel = servlet instanceof SingleThreadModel;
-            if (singleThreadModel) {
-                if (instancePool == null)
-                    instancePool = new Stack();
-            }
-            fireContainerEvent("load", this);
         } finally {
             if (swallowOutput) {
                 String log = SystemLogHandler.stopCapture();
@@ -880,11 +960,11 @@ public final class StandardWrapper extends ContainerBase implements ServletConfi
 
         // 如果当前实例被分配，就花一段时间
         // (possibly more than once if non-STM)
-        if (countAllocated > 0) {
+        if (countAllocated.intValue() > 0) {
             int nRetries = 0;
-            while (nRetries < 10) {
+            while ((nRetries < 10) && (countAllocated.intValue() > 0)) {
                 if (nRetries == 0) {
-                    log("Waiting for " + countAllocated +
+                    log("Waiting for " + countAllocated.intValue() +
                         " instance(s) to be deallocated");
                 }
                 try {
@@ -896,6 +976,22 @@ public final class StandardWrapper extends ContainerBase implements ServletConfi
             }
         }
 
+        // Destroy the pooled STM instances; any still allocated are
+        // destroyed when they are returned
+        if (singleThreadModel) {
+            SingleThreadModelPool pool = instancePool;
+            instancePool = null;
+            if (pool != null) {
+                Servlet servlets[] = pool.close();
+                for (int i = 0; i < servlets.length; i++)
+                    destroyInstance(servlets[i]);
+            }
+            singleThreadModel = false;
+            unloading = false;
+            fireContainerEvent("unload", this);
+            return;
+        }
+
         ClassLoader oldCtxClassLoader =
             Thread.currentThread().getContextClassLoader();
         ClassLoader classLoader = instance.getClass().getClassLoader();
@@ -917,8 +1013,6 @@ public final class StandardWrapper extends ContainerBase implements ServletConfi
             instanceSupport.fireInstanceEvent
               (InstanceEvent.AFTER_DESTROY_EVENT, instance, t);
             instance = null;
-            instancePool = null;
-            nInstances = 0;
             fireContainerEvent("unload", this);
             unloading = false;
             throw new ServletException
@@ -943,29 +1037,6 @@ public final class StandardWrapper extends ContainerBase implements ServletConfi
         // Deregister the destroyed instance
         instance = null;
 
-        if (singleThreadModel && (instancePool != null)) {
-            try {
-                Thread.currentThread().setContextClassLoader(classLoader);
-                while (!instancePool.isEmpty()) {
-                    ((Servlet) instancePool.pop()).destroy();
-                }
-            } catch (Throwable t) {
-                instancePool = null;
-                nInstances = 0;
-                unloading = false;
-                fireContainerEvent("unload", this);
-                throw new ServletException
-                    (sm.getString("standardWrapper.destroyException", 
-                                  getName()), t);
-            } finally {
-                // restore the context ClassLoader
-                Thread.currentThread().setContextClassLoader
-                    (oldCtxClassLoader);
-            }
-            instancePool = null;
-            nInstances = 0;
-        }
-
         singleThreadModel = false;
 
         unloading = false;
@@ -1156,7 +1227,98 @@ public final class StandardWrapper extends ContainerBase implements ServletConfi
         return swValve.getErrorCount();
     }
 
+    /**
+     * 返回处理时间的近似中位数(毫秒).
+     */
+    public long getLatencyP50() {
+        return swValve.getLatency().getPercentile(50.0);
+    }
+
+    /**
+     * 返回处理时间的近似第99百分位数(毫秒).
+     */
+    public long getLatencyP99() {
+        return swValve.getLatency().getPercentile(99.0);
+    }
+
+    /**
+     * 返回处理时间直方图的桶上界(毫秒).
+     */
+    public long[] getLatencyBounds() {
+        return LatencyHistogram.getBounds();
+    }
+
+    /**
+     * 返回处理时间直方图每个桶的计数, 最后一个桶没有上界.
+     */
+    public long[] getLatencyCounts() {
+        return swValve.getLatency().getCounts();
+    }
+
     public void setErrorCount(int errorCount) {
            swValve.setErrorCount(errorCount);
     }
+
+
+    // -------------------------------------------------------- Package Methods
+
+
+    /**
+     * 为STM实例池加载并初始化一个新实例. 不获取Wrapper的监视器,
+     * 所以一个较慢的<code>init()</code>不会阻塞其它线程创建实例.
+     *
+     * @exception ServletException if the servlet init() method threw
+     *  an exception
+     * @exception ServletException if some other loading problem occurs
+     */
+    Servlet loadInstance() throws ServletException {
+        Servlet servlet = createServlet();
+        fireContainerEvent("load", this);
+        return servlet;
+    }
+
+
+    /**
+     * 销毁一个不再需要的STM实例, 例如被收缩的空闲实例, 或者在卸载之后归还的实例.
+     * destroy()方法抛出的异常被记录, 而不会被传递给调用者.
+     *
+     * @param servlet The servlet instance to be destroyed
+     */
+    void destroyInstance(Servlet servlet) {
+
+        ClassLoader oldCtxClassLoader =
+            Thread.currentThread().getContextClassLoader();
+        try {
+            instanceSupport.fireInstanceEvent
+              (InstanceEvent.BEFORE_DESTROY_EVENT, servlet);
+            Thread.currentThread().setContextClassLoader
+                (servlet.getClass().getClassLoader());
+            servlet.destroy();
+            instanceSupport.fireInstanceEvent
+              (InstanceEvent.AFTER_DESTROY_EVENT, servlet);
+        } catch (Throwable t) {
+            instanceSupport.fireInstanceEvent
+              (InstanceEvent.AFTER_DESTROY_EVENT, servlet, t);
+            log(sm.getString("standardWrapper.destroyException", getName()), t);
+        } finally {
+            Thread.currentThread().setContextClassLoader(oldCtxClassLoader);
+        }
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * 如果刚刚加载的<code>instance</code>实现了SingleThreadModel, 把它交给实例池.
+     */
+    private void poolInstance() {
+
+        if (singleThreadModel && (instance != null)) {
+            instancePool.add(instance);
+            instance = null;
+        }
+
+    }
 }
@@ -1,6 +1,8 @@
 package org.apache.catalina.core;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
@@ -16,7 +18,7 @@ import org.apache.catalina.Request;
 import org.apache.catalina.Response;
 import org.apache.catalina.ValveContext;
 import org.apache.catalina.deploy.FilterDef;
-import org.apache.catalina.deploy.FilterMap;
+import org.apache.catalina.util.LatencyHistogram;
 import org.apache.catalina.util.StringManager;
 import org.apache.catalina.valves.ValveBase;
 
@@ -40,11 +42,20 @@ final class StandardWrapperValve extends ValveBase {
 
     // 一些JMX统计. 这个vavle 被关联到StandardWrapper.
     // We exponse the StandardWrapper as JMX ( j2eeType=Servlet ). The fields
-    // are here for performance.
-    private long processingTime;
-    private long maxTime;
-    private int requestCount;
-    private int errorCount;
+    // are here for performance. They are updated by every request thread,
+    // so striped counters are used instead of plain fields.
+    private final LongAdder processingTime = new LongAdder();
+    private final AtomicLong maxTime = new AtomicLong();
+    private final LongAdder requestCount = new LongAdder();
+    private final LongAdder errorCount = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+
+    /**
+     * 这个Wrapper的过滤器链模板缓存, 在Context的过滤器映射索引改变时丢弃.
+     */
+    private volatile FilterChainTemplates templates =
+        new FilterChainTemplates(null);
 
     /**
      * 描述信息
@@ -86,7 +97,7 @@ final class StandardWrapperValve extends ValveBase {
                        ValveContext valveContext)
         throws IOException, ServletException {
         long t1=System.currentTimeMillis();
-        requestCount++;
+        requestCount.increment();
         // 初始化可能需要的局部变量
         boolean unavailable = false;
         Throwable throwable = null;
@@ -130,6 +141,14 @@ final class StandardWrapperValve extends ValveBase {
             if (!unavailable) {
                 servlet = wrapper.allocate();
             }
+        } catch (UnavailableException e) {
+            log(sm.getString("standardWrapper.allocateException",
+                             wrapper.getName()), e);
+            if (hres != null)
+                hres.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                               sm.getString("standardWrapper.isUnavailable",
+                                            wrapper.getName()));
+            servlet = null;
         } catch (ServletException e) {
             log(sm.getString("standardWrapper.allocateException",
                              wrapper.getName()), e);
@@ -254,8 +273,11 @@ final class StandardWrapperValve extends ValveBase {
         }
         long t2=System.currentTimeMillis();
         long time=t2-t1;
-        processingTime+=time;
-        if( time > maxTime ) maxTime=time;
+        processingTime.add(time);
+        latency.record(time);
+        long max = maxTime.get();
+        while ((time > max) && !maxTime.compareAndSet(max, time))
+            max = maxTime.get();
     }
 
 
@@ -266,7 +288,8 @@ final class StandardWrapperValve extends ValveBase {
      * 构造并返回一个 FilterChain实现类，它将包装指定servlet实例的执行.
      * 如果根本不执行过滤器链, 返回<code>null</code>.
      * <p>
-     * <strong>FIXME</strong> - Pool the chain instances!
+     * 链实例来自每个线程的缓存, 过滤器来自这个Wrapper缓存的不可变模板,
+     * 所以在通常情况下这个方法不分配任何对象.
      *
      * @param request 正在处理的servlet请求
      * @param servlet 要包装的servlet实例
@@ -278,23 +301,15 @@ final class StandardWrapperValve extends ValveBase {
         if (servlet == null)
             return (null);
 
-        // Create and initialize a filter chain object
-        ApplicationFilterChain filterChain =
-          new ApplicationFilterChain();
+        // Acquire and initialize a filter chain object
+        ApplicationFilterChain filterChain = ApplicationFilterChain.acquire();
         filterChain.setServlet(servlet);
         StandardWrapper wrapper = (StandardWrapper) getContainer();
         filterChain.setSupport(wrapper.getInstanceSupport());
 
         // Acquire the filter mappings for this Context
         StandardContext context = (StandardContext) wrapper.getParent();
-        FilterMap filterMaps[] = context.findFilterMaps();
-
-        // If there are no filter mappings, we are done
-        if ((filterMaps == null) || (filterMaps.length == 0))
-            return (filterChain);
-//        if (debug >= 1)
-//            log("createFilterChain:  Processing " + filterMaps.length +
-//                " filter map entries");
+        FilterMapIndex index = context.getFilterMapIndex();
 
         // Acquire the information we will need to match filter mappings
         String requestPath = null;
@@ -309,61 +324,24 @@ final class StandardWrapperValve extends ValveBase {
                 requestPath = requestURI.substring(contextPath.length());
         }
         String servletName = wrapper.getName();
-//        if (debug >= 1) {
-//            log(" requestPath=" + requestPath);
-//            log(" servletName=" + servletName);
-//        }
-        int n = 0;
-
-        // Add the relevant path-mapped filters to this filter chain
-        for (int i = 0; i < filterMaps.length; i++) {
-//            if (debug >= 2)
-//                log(" Checking path-mapped filter '" +
-//                    filterMaps[i] + "'");
-            if (!matchFiltersURL(filterMaps[i], requestPath))
-                continue;
-            ApplicationFilterConfig filterConfig = (ApplicationFilterConfig)
-                context.findFilterConfig(filterMaps[i].getFilterName());
-            if (filterConfig == null) {
-//                if (debug >= 2)
-//                    log(" Missing path-mapped filter '" +
-//                        filterMaps[i] + "'");
-                ;       // FIXME - log configuration problem
-                continue;
-            }
-//            if (debug >= 2)
-//                log(" Adding path-mapped filter '" +
-//                    filterConfig.getFilterName() + "'");
-            filterChain.addFilter(filterConfig);
-            n++;
-        }
 
-        // Add filters that match on servlet name second
-        for (int i = 0; i < filterMaps.length; i++) {
-//            if (debug >= 2)
-//                log(" Checking servlet-mapped filter '" +
-//                    filterMaps[i] + "'");
-            if (!matchFiltersServlet(filterMaps[i], servletName))
-                continue;
-            ApplicationFilterConfig filterConfig = (ApplicationFilterConfig)
-                context.findFilterConfig(filterMaps[i].getFilterName());
-            if (filterConfig == null) {
-//                if (debug >= 2)
-//                    log(" Missing servlet-mapped filter '" +
-//                        filterMaps[i] + "'");
-                ;       // FIXME - log configuration problem
-                continue;
-            }
-//            if (debug >= 2)
-//                log(" Adding servlet-mapped filter '" +
-//                     filterMaps[i] + "'");
-            filterChain.addFilter(filterConfig);
-            n++;
+        // Select the filters: path-mapped filters first, then servlet-mapped
+        if (!index.isIndexed()) {
+            filterChain.setFilters(index.createChain(requestPath, servletName));
+            return (filterChain);
         }
-
-        // Return the completed filter chain
-//        if (debug >= 2)
-//            log(" Returning chain with " + n + " filters");
+        long mask = index.match(requestPath);
+        FilterChainTemplates cache = templates;
+        ApplicationFilterConfig filters[] = null;
+        if (cache.index == index)
+            filters = cache.find(mask);
+        else
+            cache = new FilterChainTemplates(index);
+        if (filters == null) {
+            filters = index.createTemplate(mask, servletName);
+            templates = cache.add(mask, filters);
+        }
+        filterChain.setFilters(filters);
         return (filterChain);
 
     }
@@ -379,7 +357,7 @@ final class StandardWrapperValve extends ValveBase {
      */
     private void exception(Request request, Response response,
                            Throwable exception) {
-        errorCount++;
+        errorCount.increment();
         ServletRequest sreq = request.getRequest();
         sreq.setAttribute(Globals.EXCEPTION_ATTR, exception);
 
@@ -437,109 +415,111 @@ final class StandardWrapperValve extends ValveBase {
     }
 
 
-    /**
-     * 返回<code>true</code>，如果指定的servlet名称匹配指定过滤器映射的要求; 否则返回<code>false</code>.
-     *
-     * @param filterMap Filter mapping being checked
-     * @param servletName Servlet name being checked
-     */
-    private boolean matchFiltersServlet(FilterMap filterMap, String servletName) {
-//      if (debug >= 3)
-//          log("  Matching servlet name '" + servletName +
-//              "' against mapping " + filterMap);
-
-        if (servletName == null)
-            return (false);
-        else
-            return (servletName.equals(filterMap.getServletName()));
-    }
-
-
-    /**
-     * 返回<code>true</code>，如果上下文相对请求路径与指定过滤器映射的要求相匹配;
-     * 否则返回<code>null</code>.
-     *
-     * @param filterMap Filter mapping being checked
-     * @param requestPath 此请求的上下文相对请求路径
-     */
-    private boolean matchFiltersURL(FilterMap filterMap,
-                                    String requestPath) {
-
-//      if (debug >= 3)
-//          log("  Matching request path '" + requestPath +
-//              "' against mapping " + filterMap);
-
-        if (requestPath == null)
-            return (false);
-
-        // 上下文相关请求路径上的匹配
-        String testPath = filterMap.getURLPattern();
-        if (testPath == null)
-            return (false);
-
-        // Case 1 - 精确匹配
-        if (testPath.equals(requestPath))
-            return (true);
-
-        // Case 2 - 路径匹配 ("/.../*")
-        if (testPath.equals("/*"))
-            return (true);      // Optimize a common case
-        if (testPath.endsWith("/*")) {
-            String comparePath = requestPath;
-            while (true) {
-                if (testPath.equals(comparePath + "/*"))
-                    return (true);
-                int slash = comparePath.lastIndexOf('/');
-                if (slash < 0)
-                    break;
-                comparePath = comparePath.substring(0, slash);
-            }
-            return (false);
-        }
-
-        // Case 3 - 扩展匹配
-        if (testPath.startsWith("*.")) {
-            int slash = requestPath.lastIndexOf('/');
-            int period = requestPath.lastIndexOf('.');
-            if ((slash >= 0) && (period > slash))
-                return (testPath.equals("*." +
-                                        requestPath.substring(period + 1)));
-        }
-
-        // Case 4 - "Default" Match
-        return (false); // NOTE - Not relevant for selecting filters
-
-    }
-
     public long getProcessingTime() {
-        return processingTime;
+        return processingTime.sum();
     }
 
     public void setProcessingTime(long processingTime) {
-        this.processingTime = processingTime;
+        this.processingTime.reset();
+        this.processingTime.add(processingTime);
     }
 
     public long getMaxTime() {
-        return maxTime;
+        return maxTime.get();
     }
 
     public void setMaxTime(long maxTime) {
-        this.maxTime = maxTime;
+        this.maxTime.set(maxTime);
     }
 
     public int getRequestCount() {
-        return requestCount;
+        return requestCount.intValue();
     }
 
     public void setRequestCount(int requestCount) {
-        this.requestCount = requestCount;
+        this.requestCount.reset();
+        this.requestCount.add(requestCount);
+        if (requestCount == 0)
+            latency.reset();
     }
 
     public int getErrorCount() {
-        return errorCount;
+        return errorCount.intValue();
     }
 
     public void setErrorCount(int errorCount) {
-        this.errorCount = errorCount;
+        this.errorCount.reset();
+        this.errorCount.add(errorCount);
+    }
+
+    /**
+     * 返回处理时间的直方图.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+
+    // --------------------------------------------------------- Inner Classes
+
+
+    /**
+     * 一个Wrapper的过滤器链模板的不可变缓存, 使用URL匹配掩码作为key.
+     * 添加模板时创建一个新的副本; 并发添加时可能丢失一个条目, 这是无害的.
+     */
+    private static final class FilterChainTemplates {
+
+        /**
+         * 缓存的模板的最大数量.
+         */
+        private static final int MAX_TEMPLATES = 32;
+
+        FilterChainTemplates(FilterMapIndex index) {
+            this(index, new long[0], new ApplicationFilterConfig[0][]);
+        }
+
+        private FilterChainTemplates(FilterMapIndex index, long masks[],
+                                     ApplicationFilterConfig chains[][]) {
+            this.index = index;
+            this.masks = masks;
+            this.chains = chains;
+        }
+
+        /**
+         * 构造这些模板时使用的Context过滤器映射索引.
+         */
+        final FilterMapIndex index;
+
+        private final long masks[];
+
+        private final ApplicationFilterConfig chains[][];
+
+        /**
+         * 返回指定掩码的模板, 或者<code>null</code>.
+         */
+        ApplicationFilterConfig[] find(long mask) {
+            for (int i = 0; i < masks.length; i++) {
+                if (masks[i] == mask)
+                    return (chains[i]);
+            }
+            return (null);
+        }
+
+        /**
+         * 返回一个增加了指定模板的新缓存; 如果缓存已满, 返回这个缓存.
+         */
+        FilterChainTemplates add(long mask, ApplicationFilterConfig chain[]) {
+            if (masks.length >= MAX_TEMPLATES)
+                return (this);
+            long newMasks[] = new long[masks.length + 1];
+            System.arraycopy(masks, 0, newMasks, 0, masks.length);
+            newMasks[masks.length] = mask;
+            ApplicationFilterConfig newChains[][] =
+                new ApplicationFilterConfig[chains.length + 1][];
+            System.arraycopy(chains, 0, newChains, 0, chains.length);
+            newChains[chains.length] = chain;
+            return (new FilterChainTemplates(index, newMasks, newChains));
+        }
+
     }
 }
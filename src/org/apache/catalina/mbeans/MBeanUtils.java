@@ -11,6 +11,7 @@ import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
 import javax.management.modelmbean.ModelMBean;
 
+import org.apache.catalina.Cluster;
 import org.apache.catalina.Connector;
 import org.apache.catalina.Contained;
 import org.apache.catalina.Container;
@@ -407,6 +408,32 @@ public class MBeanUtils {
         return (mbean);       
     }
 
+    /**
+     * 创建, 注册, 并返回一个MBean，为这个<code>Cluster</code>对象.
+     *
+     * @param cluster The Cluster to be managed
+     *
+     * @exception Exception 如果无法创建或注册MBean
+     */
+    public static ModelMBean createMBean(Cluster cluster)
+        throws Exception {
+
+        String mname = createManagedName(cluster);
+        ManagedBean managed = registry.findManagedBean(mname);
+        if (managed == null) {
+            Exception e = new Exception("ManagedBean is not found with "+mname);
+            throw new MBeanException(e);
+        }
+        String domain = managed.getDomain();
+        if (domain == null)
+            domain = mserver.getDefaultDomain();
+        ModelMBean mbean = managed.createMBean(cluster);
+        ObjectName oname = createObjectName(domain, cluster);
+        mserver.registerMBean(mbean, oname);
+        return (mbean);
+    }
+
+
     /**
      * 创建, 注册, 并返回一个MBean，为这个<code>Logger</code>对象.
      *
@@ -1013,6 +1040,48 @@ public class MBeanUtils {
     }
     
     
+    /**
+     * 为这个<code>Cluster</code>对象创建一个<code>ObjectName</code>.
+     *
+     * @param domain 要创建此名称的域名
+     * @param cluster The Cluster to be named
+     *
+     * @exception MalformedObjectNameException 如果不能创建名称
+     */
+    public static ObjectName createObjectName(String domain,
+                                              Cluster cluster)
+        throws MalformedObjectNameException {
+
+        ObjectName name = null;
+        Container container = cluster.getContainer();
+
+        if (container instanceof Engine) {
+            Service service = ((Engine)container).getService();
+            name = new ObjectName(domain + ":type=Cluster,service=" +
+                              service.getName());
+        } else if (container instanceof Host) {
+            Engine engine = (Engine) container.getParent();
+            Service service = engine.getService();
+            name = new ObjectName(domain + ":type=Cluster,host=" +
+                              container.getName() + ",service=" +
+                              service.getName());
+        } else if (container instanceof Context) {
+            String path = ((Context)container).getPath();
+            if (path.length() < 1) {
+                path = "/";
+            }
+            Host host = (Host) container.getParent();
+            Engine engine = (Engine) host.getParent();
+            Service service = engine.getService();
+            name = new ObjectName(domain + ":type=Cluster,path=" + path +
+                              ",host=" + host.getName() + ",service=" +
+                              service.getName());
+        }
+
+        return (name);
+    }
+
+
     /**
      * 为这个<code>DefaultContext</code>对象创建一个<code>ObjectName</code>.
      *
@@ -1846,6 +1915,28 @@ public class MBeanUtils {
     }
 
 
+    /**
+     * 为这个<code>Cluster</code>对象注销MBean.
+     *
+     * @param cluster The Cluster to be managed
+     *
+     * @exception Exception 如果MBean不能注销
+     */
+    public static void destroyMBean(Cluster cluster) throws Exception {
+
+        String mname = createManagedName(cluster);
+        ManagedBean managed = registry.findManagedBean(mname);
+        if (managed == null) {
+            return;
+        }
+        String domain = managed.getDomain();
+        if (domain == null)
+            domain = mserver.getDefaultDomain();
+        ObjectName oname = createObjectName(domain, cluster);
+        mserver.unregisterMBean(oname);
+    }
+
+
     /**
      * 为这个<code>Manager</code>对象注销MBean.
      *
@@ -6,6 +6,7 @@ import java.util.StringTokenizer;
 
 import javax.management.MBeanException;
 
+import org.apache.catalina.Cluster;
 import org.apache.catalina.Connector;
 import org.apache.catalina.Container;
 import org.apache.catalina.ContainerEvent;
@@ -354,6 +355,13 @@ public class ServerLifecycleListener
                 log("Creating MBean for Realm " + cRealm);
             MBeanUtils.createMBean(cRealm);
         }
+        Cluster hCluster = context.getParent().getCluster();
+        Cluster cCluster = context.getCluster();
+        if ((cCluster != null) && (cCluster != hCluster)) {
+            if (debug >= 4)
+                log("Creating MBean for Cluster " + cCluster);
+            MBeanUtils.createMBean(cCluster);
+        }
 
         // Create the mbeans for servlets
         if( jsr77Names ) {
@@ -533,6 +541,16 @@ public class ServerLifecycleListener
                 log( "Can't create mbean for realm " + eRealm );
             }
         }
+        Cluster eCluster = engine.getCluster();
+        if (eCluster != null) {
+            if (debug >= 2)
+                log("Creating MBean for Cluster " + eCluster);
+            try {
+                MBeanUtils.createMBean(eCluster);
+            } catch( Exception ex ) {
+                log( "Can't create mbean for cluster " + eCluster );
+            }
+        }
 
         // Create the MBeans for the associated Valves
         if (engine instanceof StandardEngine) {
@@ -597,6 +615,13 @@ public class ServerLifecycleListener
                 log("Creating MBean for Realm " + hRealm);
             MBeanUtils.createMBean(hRealm);
         }
+        Cluster eCluster = host.getParent().getCluster();
+        Cluster hCluster = host.getCluster();
+        if ((hCluster != null) && (hCluster != eCluster)) {
+            if (debug >= 3)
+                log("Creating MBean for Cluster " + hCluster);
+            MBeanUtils.createMBean(hCluster);
+        }
 
         // Create the MBeans for the associated Valves
         if (host instanceof StandardHost) {
@@ -812,6 +837,13 @@ public class ServerLifecycleListener
         }
 
         // Destroy the MBeans for the associated nested components
+        Cluster hCluster = context.getParent().getCluster();
+        Cluster cCluster = context.getCluster();
+        if ((cCluster != null) && (cCluster != hCluster)) {
+            if (debug >= 4)
+                log("Destroying MBean for Cluster " + cCluster);
+            MBeanUtils.destroyMBean(cCluster);
+        }
         Realm hRealm = context.getParent().getRealm();
         Realm cRealm = context.getRealm();
         if ((cRealm != null) && (cRealm != hRealm)) {
@@ -995,6 +1027,12 @@ public class ServerLifecycleListener
         }
 
         // Deregister the MBeans for the associated nested components
+        Cluster eCluster = engine.getCluster();
+        if (eCluster != null) {
+            if (debug >= 3)
+                log("Destroying MBean for Cluster " + eCluster);
+            MBeanUtils.destroyMBean(eCluster);
+        }
         Realm eRealm = engine.getRealm();
         if (eRealm != null) {
             if (debug >= 3)
@@ -1045,6 +1083,13 @@ public class ServerLifecycleListener
         }
 
         // Deregister the MBeans for the associated nested components
+        Cluster eCluster = host.getParent().getCluster();
+        Cluster hCluster = host.getCluster();
+        if ((hCluster != null) && (hCluster != eCluster)) {
+            if (debug >= 3)
+                log("Destroying MBean for Cluster " + hCluster);
+            MBeanUtils.destroyMBean(hCluster);
+        }
         Realm eRealm = host.getParent().getRealm();
         Realm hRealm = host.getRealm();
         if ((hRealm != null) && (hRealm != eRealm)) {
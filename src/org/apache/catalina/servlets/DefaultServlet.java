@@ -13,6 +13,8 @@ import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Timestamp;
@@ -38,13 +40,17 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.catalina.Globals;
+import org.apache.catalina.connector.RequestFacade;
+import org.apache.catalina.connector.ResponseFacade;
 import org.apache.catalina.util.FastHttpDateFormat;
 import org.apache.catalina.util.MD5Encoder;
 import org.apache.catalina.util.ServerInfo;
 import org.apache.catalina.util.StringManager;
 import org.apache.catalina.util.URLEncoder;
+import org.apache.naming.resources.ProxyDirContext;
 import org.apache.naming.resources.Resource;
 import org.apache.naming.resources.ResourceAttributes;
+import org.apache.naming.resources.ResourceMetadata;
 
 
 /**
@@ -84,6 +90,46 @@ public class DefaultServlet extends HttpServlet {
     protected int output = 2048;
 
 
+    /**
+     * 从文件复制资源时每次读取的字节数.
+     */
+    protected int fileBuffer = 65536;
+
+
+    /**
+     * 连接器支持时, 由连接器直接从文件发送的最小资源大小(in bytes). 负数禁用这个功能.
+     */
+    protected int sendfileSize = 48 * 1024;
+
+
+    /**
+     * 客户端接受时, 是否发送资源的gzip压缩形式?
+     */
+    protected boolean gzip = true;
+
+
+    /**
+     * 可以压缩的内容类型的前缀. 只有这些类型的资源才查找<code>.gz</code>文件或者被压缩.
+     */
+    protected String gzipTypes[] = {
+        "text/", "application/javascript", "application/x-javascript",
+        "application/json", "application/xml", "application/xhtml+xml",
+        "image/svg+xml"
+    };
+
+
+    /**
+     * 压缩的资源的最小大小(in bytes). 更小的资源压缩之后不会明显变小.
+     */
+    protected static final int GZIP_MIN_SIZE = 256;
+
+
+    /**
+     * 是否在后台计算资源内容的摘要, 作为强ETag?
+     */
+    protected boolean strongETags = false;
+
+
     /**
      * 此Web应用程序的欢迎文件集合
      */
@@ -211,11 +257,47 @@ public class DefaultServlet extends HttpServlet {
             ;
         }
 
+        try {
+            value = getServletConfig().getInitParameter("fileBuffer");
+            fileBuffer = Integer.parseInt(value);
+        } catch (Throwable t) {
+            ;
+        }
+        try {
+            value = getServletConfig().getInitParameter("sendfileSize");
+            sendfileSize = Integer.parseInt(value) * 1024;
+        } catch (Throwable t) {
+            ;
+        }
+        try {
+            value = getServletConfig().getInitParameter("gzip");
+            if (value != null)
+                gzip = (new Boolean(value)).booleanValue();
+        } catch (Throwable t) {
+            ;
+        }
+        try {
+            value = getServletConfig().getInitParameter("strongETags");
+            if (value != null)
+                strongETags = (new Boolean(value)).booleanValue();
+        } catch (Throwable t) {
+            ;
+        }
+        value = getServletConfig().getInitParameter("gzipTypes");
+        if (value != null) {
+            StringTokenizer tokens = new StringTokenizer(value, ", ");
+            gzipTypes = new String[tokens.countTokens()];
+            for (int i = 0; i < gzipTypes.length; i++)
+                gzipTypes[i] = tokens.nextToken();
+        }
+
         // 对指定缓冲区大小的检查
         if (input < 256)
             input = 256;
         if (output < 256)
             output = 256;
+        if (fileBuffer < input)
+            fileBuffer = input;
 
         // 初始化此应用程序的欢迎文件集合
         welcomes = (String[]) getServletContext().getAttribute
@@ -649,6 +731,122 @@ public class DefaultServlet extends HttpServlet {
     }
 
 
+    /**
+     * 协商响应的内容编码. 如果资源的类型是可压缩的, 设置<code>Vary</code>标头;
+     * 如果客户端接受gzip, 并且没有请求范围, 返回资源的压缩形式: 预先压缩的<code>.gz</code>文件,
+     * 如果没有, 资源缓存中的压缩形式.
+     *
+     * @param request The servlet request we are processing
+     * @param response The servlet response we are creating
+     * @param resourceInfo 请求的资源
+     * @param resources 资源所在的目录上下文
+     * @return 压缩形式, 它的路径是请求的资源的路径; 或者<code>null</code>发送请求的资源本身
+     */
+    protected ResourceInfo checkGzip(HttpServletRequest request,
+                                     HttpServletResponse response,
+                                     ResourceInfo resourceInfo,
+                                     DirContext resources) {
+
+        if (!gzip || (resourceInfo.length < GZIP_MIN_SIZE))
+            return (null);
+        String contentType = resourceInfo.getContentType();
+        if (!isCompressible(contentType))
+            return (null);
+
+        // The response depends on Accept-Encoding from now on
+        response.addHeader("Vary", "Accept-Encoding");
+        if ((request.getHeader("Range") != null) || !acceptsGzip(request))
+            return (null);
+
+        ResourceInfo gzipInfo =
+            new ResourceInfo(resourceInfo.path + ".gz", resources);
+        if (gzipInfo.exists && !gzipInfo.collection) {
+            gzipInfo.path = resourceInfo.path;
+            gzipInfo.contentType = contentType;
+        } else if (resources instanceof ProxyDirContext) {
+            Resource compressed =
+                ((ProxyDirContext) resources).lookupGzip(resourceInfo.path);
+            if (compressed == null)
+                return (null);
+            gzipInfo = new ResourceInfo(resourceInfo, compressed, "gzip");
+        } else {
+            return (null);
+        }
+
+        if (debug > 0)
+            log("DefaultServlet.checkGzip:  sending '" + resourceInfo.path +
+                "' compressed, length=" + gzipInfo.length);
+        response.setHeader("Content-Encoding", "gzip");
+        return (gzipInfo);
+
+    }
+
+
+    /**
+     * 客户端是否接受gzip内容编码? 按照<code>Accept-Encoding</code>标头,
+     * 明确列出的<code>gzip</code>优先于<code>*</code>; 质量为0表示不接受.
+     *
+     * @param request The servlet request we are processing
+     */
+    protected boolean acceptsGzip(HttpServletRequest request) {
+
+        int gzipAccepted = -1;
+        int anyAccepted = -1;
+        Enumeration headers = request.getHeaders("Accept-Encoding");
+        while ((headers != null) && headers.hasMoreElements()) {
+            StringTokenizer tokens =
+                new StringTokenizer((String) headers.nextElement(), ",");
+            while (tokens.hasMoreTokens()) {
+                String token = tokens.nextToken();
+                String coding = token;
+                int accepted = 1;
+                int semicolon = token.indexOf(';');
+                if (semicolon >= 0) {
+                    coding = token.substring(0, semicolon);
+                    String parameter = token.substring(semicolon + 1).trim();
+                    if (parameter.startsWith("q=")) {
+                        try {
+                            if (Double.parseDouble
+                                (parameter.substring(2).trim()) <= 0.0)
+                                accepted = 0;
+                        } catch (NumberFormatException e) {
+                            accepted = 0;
+                        }
+                    }
+                }
+                coding = coding.trim();
+                if (coding.equalsIgnoreCase("gzip")
+                    || coding.equalsIgnoreCase("x-gzip"))
+                    gzipAccepted = accepted;
+                else if (coding.equals("*"))
+                    anyAccepted = accepted;
+            }
+        }
+        if (gzipAccepted >= 0)
+            return (gzipAccepted > 0);
+        return (anyAccepted > 0);
+
+    }
+
+
+    /**
+     * 指定的内容类型是否在可以压缩的类型中?
+     *
+     * @param contentType 内容类型, 可以包含参数
+     */
+    protected boolean isCompressible(String contentType) {
+
+        if (contentType == null)
+            return (false);
+        for (int i = 0; i < gzipTypes.length; i++) {
+            if (contentType.startsWith(gzipTypes[i]))
+                return (true);
+        }
+        return (false);
+
+    }
+
+
     /**
      * 检查可选的IF标头中指定的条件是否满足.
      *
@@ -829,6 +1027,9 @@ public class DefaultServlet extends HttpServlet {
             }
         }
 
+        ServletOutputStream ostream = null;
+        PrintWriter writer = null;
+
         // 如果资源是一个集合(aka a directory), 检查欢迎文件列表.
         if (resourceInfo.collection) {
 
@@ -859,9 +1060,26 @@ public class DefaultServlet extends HttpServlet {
 
         } else {
 
-            // Checking If headers
+            // Checking If headers, against the variant that will be sent
             boolean included =
                 (request.getAttribute(Globals.CONTEXT_PATH_ATTR) != null);
+            if (!included) {
+                // A body that has to go through the Writer cannot be
+                // compressed, so claim the output stream first
+                boolean bytes = true;
+                if (content) {
+                    try {
+                        ostream = response.getOutputStream();
+                    } catch (IllegalStateException e) {
+                        bytes = false;
+                    }
+                }
+                ResourceInfo gzipInfo = bytes ?
+                    checkGzip(request, response, resourceInfo, resources) :
+                    null;
+                if (gzipInfo != null)
+                    resourceInfo = gzipInfo;
+            }
             if (!included 
                 && !checkIfHeaders(request, response, resourceInfo)) {
                 return;
@@ -870,8 +1088,7 @@ public class DefaultServlet extends HttpServlet {
         }
 
         // Find content type.
-        String contentType =
-            getServletContext().getMimeType(resourceInfo.path);
+        String contentType = resourceInfo.getContentType();
 
         Vector ranges = null;
 
@@ -900,10 +1117,7 @@ public class DefaultServlet extends HttpServlet {
             response.setHeader("Last-Modified", resourceInfo.httpDate);
         }
 
-        ServletOutputStream ostream = null;
-        PrintWriter writer = null;
-
-        if (content) {
+        if (content && (ostream == null)) {
 
             // Trying to retrieve the servlet output stream
             try {
@@ -957,7 +1171,9 @@ public class DefaultServlet extends HttpServlet {
                     // Silent catch
                 }
                 if (ostream != null) {
-                    copy(resourceInfo, ostream);
+                    if (!checkSendfile(request, response, resourceInfo,
+                                       null))
+                        copy(resourceInfo, ostream);
                 } else {
                     copy(resourceInfo, writer);
                 }
@@ -993,7 +1209,9 @@ public class DefaultServlet extends HttpServlet {
                         // Silent catch
                     }
                     if (ostream != null) {
-                        copy(resourceInfo, ostream, range);
+                        if (!checkSendfile(request, response, resourceInfo,
+                                           range))
+                            copy(resourceInfo, ostream, range);
                     } else {
                         copy(resourceInfo, writer, range);
                     }
@@ -1410,6 +1628,54 @@ public class DefaultServlet extends HttpServlet {
     }
 
 
+    /**
+     * 检查连接器是否能够直接从文件发送资源. 如果可以, 设置文件名和范围的请求属性, 由连接器发送响应体.
+     * <p>
+     * 只有请求和响应都没有被包装时才这样做, 否则包装器看不到响应体.
+     *
+     * @param request The servlet request we are processing
+     * @param response The servlet response we are creating
+     * @param resourceInfo 要发送的资源
+     * @param range 要发送的范围, 或者<code>null</code>发送整个资源
+     * @return <code>true</code>如果响应体将由连接器发送
+     */
+    protected boolean checkSendfile(HttpServletRequest request,
+                                    HttpServletResponse response,
+                                    ResourceInfo resourceInfo,
+                                    Range range) {
+
+        if ((sendfileSize < 0) || (resourceInfo.length < sendfileSize))
+            return (false);
+        if (!Boolean.TRUE.equals
+            (request.getAttribute(Globals.SENDFILE_SUPPORTED_ATTR)))
+            return (false);
+        if (!(request instanceof RequestFacade) ||
+            !(response instanceof ResponseFacade))
+            return (false);
+        File file = resourceInfo.getFile();
+        if (file == null)
+            return (false);
+
+        request.setAttribute(Globals.SENDFILE_FILENAME_ATTR, file.getPath());
+        if (range == null) {
+            request.setAttribute(Globals.SENDFILE_FILE_START_ATTR,
+                                 new Long(0L));
+            request.setAttribute(Globals.SENDFILE_FILE_END_ATTR,
+                                 new Long(resourceInfo.length));
+        } else {
+            request.setAttribute(Globals.SENDFILE_FILE_START_ATTR,
+                                 new Long(range.start));
+            request.setAttribute(Globals.SENDFILE_FILE_END_ATTR,
+                                 new Long(range.end + 1));
+        }
+        if (debug > 0)
+            log("DefaultServlet.checkSendfile:  sending '" + file +
+                "' through the connector");
+        return (true);
+
+    }
+
+
     // -------------------------------------------------------- Private Methods
 
 
@@ -1427,20 +1693,12 @@ public class DefaultServlet extends HttpServlet {
                                  ResourceInfo resourceInfo)
         throws IOException {
 
-        String eTag = getETag(resourceInfo);
         String headerValue = request.getHeader("If-Match");
         if (headerValue != null) {
             if (headerValue.indexOf('*') == -1) {
 
-                StringTokenizer commaTokenizer = new StringTokenizer
-                    (headerValue, ",");
-                boolean conditionSatisfied = false;
-
-                while (!conditionSatisfied && commaTokenizer.hasMoreTokens()) {
-                    String currentToken = commaTokenizer.nextToken();
-                    if (currentToken.trim().equals(eTag))
-                        conditionSatisfied = true;
-                }
+                boolean conditionSatisfied =
+                    containsETag(headerValue, getETag(resourceInfo));
 
                 // If none of the given ETags match, 412 Precodition failed is
                 // sent back
@@ -1505,7 +1763,6 @@ public class DefaultServlet extends HttpServlet {
                                      ResourceInfo resourceInfo)
         throws IOException {
 
-        String eTag = getETag(resourceInfo);
         String headerValue = request.getHeader("If-None-Match");
         if (headerValue != null) {
 
@@ -1513,14 +1770,11 @@ public class DefaultServlet extends HttpServlet {
 
             if (!headerValue.equals("*")) {
 
-                StringTokenizer commaTokenizer = 
-                    new StringTokenizer(headerValue, ",");
-
-                while (!conditionSatisfied && commaTokenizer.hasMoreTokens()) {
-                    String currentToken = commaTokenizer.nextToken();
-                    if (currentToken.trim().equals(eTag))
-                        conditionSatisfied = true;
-                }
+                // Weak comparison: the weak ETag the client got before the
+                // strong one was computed still matches
+                conditionSatisfied =
+                    containsETag(headerValue, getETag(resourceInfo))
+                    || containsETag(headerValue, resourceInfo.weakETag);
 
             } else {
                 conditionSatisfied = true;
@@ -1547,6 +1801,38 @@ public class DefaultServlet extends HttpServlet {
     }
 
 
+    /**
+     * 逗号分隔的ETag列表中是否有指定的ETag? 不分配对象.
+     *
+     * @param headerValue If-Match或者If-None-Match标头的值
+     * @param eTag 资源的ETag
+     */
+    private static boolean containsETag(String headerValue, String eTag) {
+
+        if (eTag == null)
+            return false;
+        int length = eTag.length();
+        int start = 0;
+        while (start < headerValue.length()) {
+            int end = headerValue.indexOf(',', start);
+            if (end < 0)
+                end = headerValue.length();
+            int first = start;
+            int last = end;
+            while ((first < last) && (headerValue.charAt(first) <= ' '))
+                first++;
+            while ((last > first) && (headerValue.charAt(last - 1) <= ' '))
+                last--;
+            if ((last - first == length)
+                && headerValue.regionMatches(first, eTag, 0, length))
+                return true;
+            start = end + 1;
+        }
+        return false;
+
+    }
+
+
     /**
      * Check if the if-unmodified-since condition is satisfied.
      *
@@ -1593,6 +1879,21 @@ public class DefaultServlet extends HttpServlet {
 
         IOException exception = null;
 
+        File file = resourceInfo.getFile();
+        if (file != null) {
+            FileInputStream fileStream = new FileInputStream(file);
+            try {
+                FileChannel channel = fileStream.getChannel();
+                exception = copyRange(channel, ostream, 0L,
+                                      channel.size() - 1);
+            } finally {
+                fileStream.close();
+            }
+            if (exception != null)
+                throw exception;
+            return;
+        }
+
         // FIXME : i18n ?
         InputStream resourceInputStream = resourceInfo.getStream();
         InputStream istream = new BufferedInputStream
@@ -1663,6 +1964,20 @@ public class DefaultServlet extends HttpServlet {
 
         IOException exception = null;
 
+        File file = resourceInfo.getFile();
+        if (file != null) {
+            FileInputStream fileStream = new FileInputStream(file);
+            try {
+                exception = copyRange(fileStream.getChannel(), ostream,
+                                      range.start, range.end);
+            } finally {
+                fileStream.close();
+            }
+            if (exception != null)
+                throw exception;
+            return;
+        }
+
         InputStream resourceInputStream = resourceInfo.getStream();
         InputStream istream =
             new BufferedInputStream(resourceInputStream, input);
@@ -1729,11 +2044,18 @@ public class DefaultServlet extends HttpServlet {
 
         IOException exception = null;
 
+        // Every range is read from the same file, without reopening it
+        File file = resourceInfo.getFile();
+        FileInputStream fileStream = null;
+        if (file != null)
+            fileStream = new FileInputStream(file);
+
         while ( (exception == null) && (ranges.hasMoreElements()) ) {
 
-            InputStream resourceInputStream = resourceInfo.getStream();
-            InputStream istream =       // FIXME: internationalization???????
-                new BufferedInputStream(resourceInputStream, input);
+            InputStream istream = null;
+            if (fileStream == null)     // FIXME: internationalization???????
+                istream = new BufferedInputStream
+                    (resourceInfo.getStream(), input);
 
             Range currentRange = (Range) ranges.nextElement();
 
@@ -1747,6 +2069,11 @@ public class DefaultServlet extends HttpServlet {
             ostream.println();
 
             // Printing content
+            if (fileStream != null) {
+                exception = copyRange(fileStream.getChannel(), ostream,
+                                      currentRange.start, currentRange.end);
+                continue;
+            }
             exception = copyRange(istream, ostream, currentRange.start,
                                   currentRange.end);
 
@@ -1757,6 +2084,14 @@ public class DefaultServlet extends HttpServlet {
             }
         }
 
+        if (fileStream != null) {
+            try {
+                fileStream.close();
+            } catch (Throwable t) {
+                ;
+            }
+        }
+
         ostream.print("--" + mimeSeparation + "--");
 
         // Rethrow any exception that has occurred
@@ -1927,6 +2262,50 @@ public class DefaultServlet extends HttpServlet {
     }
 
 
+    /**
+     * 将文件的指定范围复制到指定的输出流. 用定位读取代替<code>skip()</code>,
+     * 每次读取<code>fileBuffer</code>字节直接写入输出流, 不经过中间的缓冲流.
+     *
+     * @param channel The file to read from
+     * @param ostream The output stream to write to
+     * @param start Start of the range which will be copied
+     * @param end End of the range which will be copied
+     * @return Exception which occurred during processing
+     */
+    private IOException copyRange(FileChannel channel,
+                                  ServletOutputStream ostream,
+                                  long start, long end) {
+
+        if (debug > 10)
+            System.out.println("Serving bytes:" + start + "-" + end);
+
+        IOException exception = null;
+        long position = start;
+        long bytesToRead = end - start + 1;
+
+        byte buffer[] = new byte[(int) Math.max(0L,
+            Math.min(fileBuffer, bytesToRead))];
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        try {
+            while (bytesToRead > 0) {
+                byteBuffer.clear();
+                if (bytesToRead < buffer.length)
+                    byteBuffer.limit((int) bytesToRead);
+                int len = channel.read(byteBuffer, position);
+                if (len == -1)
+                    break;
+                ostream.write(buffer, 0, len);
+                position += len;
+                bytesToRead -= len;
+            }
+        } catch (IOException e) {
+            exception = e;
+        }
+
+        return exception;
+    }
+
+
     /**
      * 将指定输入流的内容复制到指定的输出流, 并确保在返回之前关闭两个流
      * (即使面对一个异常).
@@ -2049,6 +2428,32 @@ public class DefaultServlet extends HttpServlet {
         }
 
 
+        /**
+         * 构建一个资源的编码形式, 它的路径和日期与原资源相同, ETag包含编码的名称.
+         *
+         * @param resourceInfo 原资源
+         * @param encoded 内容是编码的字节的资源
+         * @param encoding 内容编码的名称
+         */
+        public ResourceInfo(ResourceInfo resourceInfo, Resource encoded,
+                            String encoding) {
+            recycle();
+            path = resourceInfo.path;
+            resources = resourceInfo.resources;
+            object = encoded;
+            file = encoded;
+            creationDate = resourceInfo.creationDate;
+            httpDate = resourceInfo.httpDate;
+            date = resourceInfo.date;
+            contentType = resourceInfo.contentType;
+            length = encoded.getContent().length;
+            collection = false;
+            exists = true;
+            weakETag = encodedETag(resourceInfo.weakETag, encoding);
+            strongETag = encodedETag(resourceInfo.strongETag, encoding);
+        }
+
+
         public Object object;
         public DirContext directory;
         public Resource file;
@@ -2063,8 +2468,15 @@ public class DefaultServlet extends HttpServlet {
         public String strongETag;
         public boolean exists;
         public DirContext resources;
+        public String contentType;
         protected InputStream is;
 
+        /**
+         * 实际查找的资源的路径. 预先压缩的形式的<code>path</code>被替换为请求的资源的路径,
+         * 所以文件必须按照这个路径得到.
+         */
+        protected String lookupPath;
+
 
         public void recycle() {
             object = null;
@@ -2081,7 +2493,9 @@ public class DefaultServlet extends HttpServlet {
             strongETag = null;
             exists = false;
             resources = null;
+            contentType = null;
             is = null;
+            lookupPath = null;
         }
 
 
@@ -2090,6 +2504,7 @@ public class DefaultServlet extends HttpServlet {
             recycle();
 
             this.path = path;
+            this.lookupPath = path;
             this.resources = resources;
             exists = true;
             try {
@@ -2107,6 +2522,28 @@ public class DefaultServlet extends HttpServlet {
             } catch (NamingException e) {
                 exists = false;
             }
+            if (exists && (file != null)
+                && (resources instanceof ProxyDirContext)) {
+                // Headers computed once per version of the resource
+                ProxyDirContext proxy = (ProxyDirContext) resources;
+                ResourceMetadata metadata = proxy.lookupMetadata(path);
+                if (metadata == null)
+                    metadata = proxy.createMetadata
+                        (path, getServletContext().getMimeType(path),
+                         strongETags);
+                if (metadata != null) {
+                    contentType = metadata.getContentType();
+                    creationDate = metadata.getCreation();
+                    date = metadata.getLastModified();
+                    httpDate = metadata.getLastModifiedHttp();
+                    if (httpDate == null)
+                        httpDate = FastHttpDateFormat.getCurrentDate();
+                    weakETag = metadata.getETag();
+                    strongETag = metadata.getStrongETag();
+                    length = metadata.getContentLength();
+                    return;
+                }
+            }
             if (exists) {
                 try {
                     attributes = resources.getAttributes(path);
@@ -2137,6 +2574,19 @@ public class DefaultServlet extends HttpServlet {
         }
 
 
+        /**
+         * 在ETag的值的末尾加上编码的名称.
+         */
+        private String encodedETag(String eTag, String encoding) {
+            if (eTag == null)
+                return null;
+            if (eTag.endsWith("\"") && (eTag.length() > 1))
+                return eTag.substring(0, eTag.length() - 1) + "-" + encoding
+                    + "\"";
+            return eTag + "-" + encoding;
+        }
+
+
         /**
          * 测试相关资源是否存在.
          */
@@ -2153,6 +2603,16 @@ public class DefaultServlet extends HttpServlet {
         }
 
 
+        /**
+         * 返回资源的内容类型, 如果没有从缓存的元数据得到, 按照路径查找.
+         */
+        public String getContentType() {
+            if (contentType == null)
+                contentType = getServletContext().getMimeType(path);
+            return contentType;
+        }
+
+
         /**
          * 设置IS.
          */
@@ -2161,6 +2621,32 @@ public class DefaultServlet extends HttpServlet {
         }
 
 
+        /**
+         * 返回资源所在的文件, 如果资源来自文件系统, 并且它的内容没有被缓存在内存中.
+         * 否则返回<code>null</code>, 资源从<code>getStream()</code>读取.
+         */
+        public File getFile() {
+            if ((is != null) || (file == null) || (file.getContent() != null))
+                return null;
+            if ((attributes == null) && (resources != null)
+                && (lookupPath != null)) {
+                // Not needed to build the headers from the cached metadata
+                try {
+                    attributes = resources.getAttributes(lookupPath);
+                } catch (NamingException e) {
+                    return null;
+                }
+            }
+            if (!(attributes instanceof ResourceAttributes))
+                return null;
+            String canonicalPath =
+                ((ResourceAttributes) attributes).getCanonicalPath();
+            if (canonicalPath == null)
+                return null;
+            return new File(canonicalPath);
+        }
+
+
         /**
          * Get IS from resource.
          */
@@ -0,0 +1,962 @@
+package org.apache.catalina.session;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.catalina.Container;
+import org.apache.catalina.Loader;
+import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
+import org.apache.catalina.util.CustomObjectInputStream;
+
+
+/**
+ * <code>SessionCodec</code>的默认实现, 使用紧凑的二进制格式.
+ * <p>
+ * 会话的元数据被写成变长整数: 时间以它们之间的差值保存, 标志位合并为一个字节.
+ * <code>String</code>, 基本类型的包装类, <code>byte[]</code>, 以及只包含这些值的
+ * <code>ArrayList</code>, <code>HashSet</code>和<code>HashMap</code>, 直接写成带标记的二进制值.
+ * 其它属性值使用一个Java对象流序列化, 一个会话的所有这样的值共享同一个流.
+ * 对象流包含完整的类描述符(每个类在流中第一次出现时写入, 之后使用句柄), 所以类的字段改变之后,
+ * 仍然按照Java序列化的兼容演化规则读取重新部署之前写入的数据. 描述符不在不同的流之间共享,
+ * 每个流都可以单独读取.
+ * 读取时解析的类保存在一个类缓存中, 每个Manager(每个编解码器实例)一个, 所以每个类只通过
+ * Web应用程序的类加载器解析一次; Web应用程序重新加载后, 缓存被丢弃.
+ * <p>
+ * 数据的格式为: 类型(一个字节), 元数据和属性的长度(变长整数), 元数据和属性, 对象流.
+ * 以Java序列化流的魔数开始的旧格式数据, 以及类描述符只包含类名和serialVersionUID的早期数据,
+ * 仍然可以读取.
+ */
+
+public class CompactSessionCodec implements SessionCodec {
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * 整个会话的数据类型.
+     */
+    private static final int FULL = 0x53;
+
+
+    /**
+     * 修改记录的数据类型.
+     */
+    private static final int DELTA = 0x54;
+
+
+    /**
+     * 早期的整个会话的数据类型, 对象流中的类描述符只包含类名和serialVersionUID.
+     */
+    private static final int COMPACT_FULL = 0x51;
+
+
+    /**
+     * 早期的修改记录的数据类型, 对象流中的类描述符只包含类名和serialVersionUID.
+     */
+    private static final int COMPACT_DELTA = 0x52;
+
+
+    /**
+     * Java序列化流的魔数的第一个字节, 表示旧格式的数据.
+     */
+    private static final int LEGACY = 0xAC;
+
+
+    /**
+     * 标志位: 会话是新的.
+     */
+    private static final int FLAG_NEW = 0x01;
+
+
+    /**
+     * 标志位: 会话是有效的.
+     */
+    private static final int FLAG_VALID = 0x02;
+
+
+    // Value tags
+    private static final int TAG_NULL = 0;
+    private static final int TAG_STRING = 1;
+    private static final int TAG_INTEGER = 2;
+    private static final int TAG_LONG = 3;
+    private static final int TAG_TRUE = 4;
+    private static final int TAG_FALSE = 5;
+    private static final int TAG_SHORT = 6;
+    private static final int TAG_BYTE = 7;
+    private static final int TAG_CHARACTER = 8;
+    private static final int TAG_FLOAT = 9;
+    private static final int TAG_DOUBLE = 10;
+    private static final int TAG_BYTES = 11;
+    private static final int TAG_ARRAY_LIST = 12;
+    private static final int TAG_HASH_SET = 13;
+    private static final int TAG_HASH_MAP = 14;
+    private static final int TAG_OBJECT = 15;
+    private static final int TAG_REMOVED = 16;
+
+
+    /**
+     * 当前Web应用程序的类加载器解析的类.
+     */
+    private volatile ClassCache classCache = null;
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 从指定的数据中读取<code>encode()</code>写入的会话内容.
+     *
+     * @param session 要填充的空会话, 它的Manager已经设置
+     * @param data 包含数据的数组
+     * @param offset 数据在数组中的开始位置
+     * @param length 数据的字节数
+     *
+     * @exception ClassNotFoundException if an unknown class is specified
+     * @exception IOException if an input/output error occurs
+     */
+    public void decode(Session session, byte data[], int offset, int length)
+        throws ClassNotFoundException, IOException {
+
+        StandardSession standardSession = (StandardSession) session;
+        if ((length > 0) && ((data[offset] & 0xff) == LEGACY)) {
+            ObjectInputStream ois = getLegacyStream(standardSession,
+                                                    data, offset, length);
+            try {
+                standardSession.readObjectData(ois);
+            } finally {
+                ois.close();
+            }
+            return;
+        }
+
+        Input in = new Input(standardSession, data, offset, length, FULL,
+                             COMPACT_FULL);
+        standardSession.creationTime = in.readLong();
+        standardSession.lastAccessedTime =
+            standardSession.creationTime + in.readSignedLong();
+        standardSession.thisAccessedTime =
+            standardSession.lastAccessedTime + in.readSignedLong();
+        standardSession.maxInactiveInterval = (int) in.readSignedLong();
+        int flags = in.readByte();
+        standardSession.isNew = ((flags & FLAG_NEW) != 0);
+        standardSession.isValid = ((flags & FLAG_VALID) != 0);
+        standardSession.id = in.readString();
+
+        int n = in.readCount();
+        for (int i = 0; i < n; i++) {
+            String name = in.readString();
+            Object value = readValue(in, in.readByte());
+            synchronized (standardSession.attributes) {
+                standardSession.attributes.put(name, value);
+            }
+        }
+        in.close();
+        standardSession.setFullSaveRequired();
+
+    }
+
+
+    /**
+     * 从指定的数据中读取<code>encodeDelta()</code>写入的修改, 并应用到指定的会话.
+     * 元数据和应用的属性被标记为已修改, 所以下一次保存包含它们.
+     *
+     * @param session 要更新的会话
+     * @param data 包含数据的数组
+     * @param offset 数据在数组中的开始位置
+     * @param length 数据的字节数
+     *
+     * @exception ClassNotFoundException if an unknown class is specified
+     * @exception IOException if an input/output error occurs
+     */
+    public void decodeDelta(Session session, byte data[], int offset,
+                            int length)
+        throws ClassNotFoundException, IOException {
+
+        StandardSession standardSession = (StandardSession) session;
+        if ((length > 0) && ((data[offset] & 0xff) == LEGACY)) {
+            ObjectInputStream ois = getLegacyStream(standardSession,
+                                                    data, offset, length);
+            try {
+                standardSession.readDeltaData(ois);
+            } finally {
+                ois.close();
+            }
+            return;
+        }
+
+        Input in = new Input(standardSession, data, offset, length, DELTA,
+                             COMPACT_DELTA);
+        standardSession.lastAccessedTime = in.readLong();
+        standardSession.thisAccessedTime =
+            standardSession.lastAccessedTime + in.readSignedLong();
+        standardSession.maxInactiveInterval = (int) in.readSignedLong();
+        int flags = in.readByte();
+        standardSession.isNew = ((flags & FLAG_NEW) != 0);
+        standardSession.isValid = ((flags & FLAG_VALID) != 0);
+        // Applied changes are saved by this node's Store as well
+        standardSession.setChanged(null);
+
+        int n = in.readCount();
+        for (int i = 0; i < n; i++) {
+            String name = in.readString();
+            int tag = in.readByte();
+            Object value = (tag == TAG_REMOVED) ? null : readValue(in, tag);
+            synchronized (standardSession.attributes) {
+                if (tag == TAG_REMOVED)
+                    standardSession.attributes.remove(name);
+                else
+                    standardSession.attributes.put(name, value);
+                standardSession.setChanged(name);
+            }
+        }
+        in.close();
+
+    }
+
+
+    /**
+     * 返回指定会话的元数据和所有可序列化属性的编码. 不可序列化的属性被忽略.
+     *
+     * @param session 要编码的会话
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public byte[] encode(Session session) throws IOException {
+
+        StandardSession standardSession = (StandardSession) session;
+        HashSet skipped = new HashSet();
+        while (true) {
+            Output out = new Output();
+            out.writeLong(standardSession.creationTime);
+            out.writeSignedLong(standardSession.lastAccessedTime -
+                                standardSession.creationTime);
+            out.writeSignedLong(standardSession.thisAccessedTime -
+                                standardSession.lastAccessedTime);
+            out.writeSignedLong(standardSession.maxInactiveInterval);
+            out.writeByte(flags(standardSession));
+            out.writeString(standardSession.id);
+
+            // Accumulate the serializable attributes
+            ArrayList names = new ArrayList();
+            ArrayList values = new ArrayList();
+            synchronized (standardSession.attributes) {
+                Iterator entries =
+                    standardSession.attributes.entrySet().iterator();
+                while (entries.hasNext()) {
+                    Map.Entry entry = (Map.Entry) entries.next();
+                    Object value = entry.getValue();
+                    if ((value instanceof Serializable) &&
+                        !skipped.contains(entry.getKey())) {
+                        names.add(entry.getKey());
+                        values.add(value);
+                    }
+                }
+            }
+
+            out.writeInt(names.size());
+            String failed = null;
+            for (int i = 0; i < names.size(); i++) {
+                out.writeString((String) names.get(i));
+                try {
+                    writeValue(out, values.get(i));
+                } catch (NotSerializableException e) {
+                    log(standardSession, (String) names.get(i), e);
+                    failed = (String) names.get(i);
+                    break;
+                }
+            }
+            if (failed == null)
+                return (out.toByteArray(FULL));
+            // The object stream cannot recover from a failed write
+            skipped.add(failed);
+        }
+
+    }
+
+
+    /**
+     * 返回指定会话的元数据以及指定属性的当前值的编码.
+     * 已被删除的属性, 以及值不可序列化的属性, 被记录为已删除.
+     *
+     * @param session 要编码的会话
+     * @param names 要写入的属性名称
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public byte[] encodeDelta(Session session, String names[])
+        throws IOException {
+
+        StandardSession standardSession = (StandardSession) session;
+        HashSet skipped = new HashSet();
+        while (true) {
+            Output out = new Output();
+            out.writeLong(standardSession.lastAccessedTime);
+            out.writeSignedLong(standardSession.thisAccessedTime -
+                                standardSession.lastAccessedTime);
+            out.writeSignedLong(standardSession.maxInactiveInterval);
+            out.writeByte(flags(standardSession));
+
+            out.writeInt(names.length);
+            String failed = null;
+            for (int i = 0; i < names.length; i++) {
+                Object value = null;
+                synchronized (standardSession.attributes) {
+                    value = standardSession.attributes.get(names[i]);
+                }
+                out.writeString(names[i]);
+                if (!(value instanceof Serializable) ||
+                    skipped.contains(names[i])) {
+                    out.writeByte(TAG_REMOVED);
+                    continue;
+                }
+                try {
+                    writeValue(out, value);
+                } catch (NotSerializableException e) {
+                    log(standardSession, names[i], e);
+                    failed = names[i];
+                    break;
+                }
+            }
+            if (failed == null)
+                return (out.toByteArray(DELTA));
+            skipped.add(failed);
+        }
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * 返回指定会话的标志位.
+     */
+    private int flags(StandardSession session) {
+
+        int flags = 0;
+        if (session.isNew)
+            flags |= FLAG_NEW;
+        if (session.isValid)
+            flags |= FLAG_VALID;
+        return (flags);
+
+    }
+
+
+    /**
+     * 返回指定会话所属的Web应用程序的类缓存.
+     * 如果类加载器改变了(Web应用程序被重新加载), 创建一个新的缓存.
+     */
+    private ClassCache getClassCache(StandardSession session) {
+
+        ClassLoader classLoader = getClassLoader(session);
+        ClassCache result = classCache;
+        if ((result == null) || (result.classLoader != classLoader)) {
+            result = new ClassCache(classLoader);
+            classCache = result;
+        }
+        return (result);
+
+    }
+
+
+    /**
+     * 返回指定会话所属的Web应用程序的类加载器, 如果没有, 返回加载这个类的类加载器.
+     */
+    private ClassLoader getClassLoader(StandardSession session) {
+
+        Manager manager = session.getManager();
+        Container container = null;
+        Loader loader = null;
+        ClassLoader classLoader = null;
+        if (manager != null)
+            container = manager.getContainer();
+        if (container != null)
+            loader = container.getLoader();
+        if (loader != null)
+            classLoader = loader.getClassLoader();
+        if (classLoader == null)
+            classLoader = CompactSessionCodec.class.getClassLoader();
+        return (classLoader);
+
+    }
+
+
+    /**
+     * 返回读取旧格式数据的对象输入流.
+     */
+    private ObjectInputStream getLegacyStream(StandardSession session,
+                                              byte data[], int offset,
+                                              int length)
+        throws IOException {
+
+        return (new CustomObjectInputStream
+                (new ByteArrayInputStream(data, offset, length),
+                 getClassLoader(session)));
+
+    }
+
+
+    /**
+     * 值是不可变的, 并且可以直接写入吗?
+     */
+    private boolean isScalar(Object value) {
+
+        if (value == null)
+            return (true);
+        Class type = value.getClass();
+        return ((type == String.class) || (type == Integer.class) ||
+                (type == Long.class) || (type == Boolean.class) ||
+                (type == Short.class) || (type == Byte.class) ||
+                (type == Character.class) || (type == Float.class) ||
+                (type == Double.class));
+
+    }
+
+
+    /**
+     * 集合中的所有元素都可以直接写入吗?
+     * 包含其它对象的集合通过对象流序列化, 以便保留对象之间的引用.
+     */
+    private boolean isScalars(Collection values) {
+
+        Iterator iterator = values.iterator();
+        while (iterator.hasNext()) {
+            if (!isScalar(iterator.next()))
+                return (false);
+        }
+        return (true);
+
+    }
+
+
+    /**
+     * 记录不能序列化的属性.
+     */
+    private void log(StandardSession session, String name, Throwable t) {
+
+        Manager manager = session.getManager();
+        if (manager instanceof ManagerBase)
+            ((ManagerBase) manager).log
+                (ManagerBase.sm.getString("standardSession.notSerializable",
+                                          name, session.id), t);
+
+    }
+
+
+    /**
+     * 读取一个带有指定标记的值.
+     */
+    private Object readValue(Input in, int tag)
+        throws ClassNotFoundException, IOException {
+
+        switch (tag) {
+        case TAG_NULL:
+            return (null);
+        case TAG_STRING:
+            return (in.readString());
+        case TAG_INTEGER:
+            return (new Integer((int) in.readSignedLong()));
+        case TAG_LONG:
+            return (new Long(in.readSignedLong()));
+        case TAG_TRUE:
+            return (Boolean.TRUE);
+        case TAG_FALSE:
+            return (Boolean.FALSE);
+        case TAG_SHORT:
+            return (new Short((short) in.readSignedLong()));
+        case TAG_BYTE:
+            return (new Byte((byte) in.readByte()));
+        case TAG_CHARACTER:
+            return (new Character((char) in.readInt()));
+        case TAG_FLOAT:
+            return (new Float(Float.intBitsToFloat(in.readFixedInt())));
+        case TAG_DOUBLE:
+            return (new Double(Double.longBitsToDouble(in.readFixedLong())));
+        case TAG_BYTES:
+            return (in.readBytes());
+        case TAG_ARRAY_LIST: {
+            int n = in.readCount();
+            ArrayList list = new ArrayList(n);
+            for (int i = 0; i < n; i++)
+                list.add(readValue(in, in.readByte()));
+            return (list);
+        }
+        case TAG_HASH_SET: {
+            int n = in.readCount();
+            HashSet set = new HashSet(Math.max(2 * n, 16));
+            for (int i = 0; i < n; i++)
+                set.add(readValue(in, in.readByte()));
+            return (set);
+        }
+        case TAG_HASH_MAP: {
+            int n = in.readCount();
+            HashMap map = new HashMap(Math.max(2 * n, 16));
+            for (int i = 0; i < n; i++) {
+                Object key = readValue(in, in.readByte());
+                map.put(key, readValue(in, in.readByte()));
+            }
+            return (map);
+        }
+        case TAG_OBJECT:
+            return (in.objects().readObject());
+        default:
+            throw new StreamCorruptedException("Invalid value tag " + tag);
+        }
+
+    }
+
+
+    /**
+     * 写入一个带有标记的值.
+     *
+     * @exception NotSerializableException 如果值不能被序列化
+     */
+    private void writeValue(Output out, Object value) throws IOException {
+
+        if (value == null) {
+            out.writeByte(TAG_NULL);
+            return;
+        }
+        Class type = value.getClass();
+        if (type == String.class) {
+            out.writeByte(TAG_STRING);
+            out.writeString((String) value);
+        } else if (type == Integer.class) {
+            out.writeByte(TAG_INTEGER);
+            out.writeSignedLong(((Integer) value).intValue());
+        } else if (type == Long.class) {
+            out.writeByte(TAG_LONG);
+            out.writeSignedLong(((Long) value).longValue());
+        } else if (type == Boolean.class) {
+            out.writeByte(((Boolean) value).booleanValue() ?
+                          TAG_TRUE : TAG_FALSE);
+        } else if (type == Short.class) {
+            out.writeByte(TAG_SHORT);
+            out.writeSignedLong(((Short) value).shortValue());
+        } else if (type == Byte.class) {
+            out.writeByte(TAG_BYTE);
+            out.writeByte(((Byte) value).byteValue());
+        } else if (type == Character.class) {
+            out.writeByte(TAG_CHARACTER);
+            out.writeInt(((Character) value).charValue());
+        } else if (type == Float.class) {
+            out.writeByte(TAG_FLOAT);
+            out.writeFixedInt(Float.floatToIntBits(((Float) value).floatValue()));
+        } else if (type == Double.class) {
+            out.writeByte(TAG_DOUBLE);
+            out.writeFixedLong
+                (Double.doubleToLongBits(((Double) value).doubleValue()));
+        } else if (type == byte[].class) {
+            out.writeByte(TAG_BYTES);
+            out.writeBytes((byte[]) value);
+        } else if ((type == ArrayList.class) && isScalars((Collection) value)) {
+            ArrayList list = (ArrayList) value;
+            out.writeByte(TAG_ARRAY_LIST);
+            out.writeInt(list.size());
+            for (int i = 0; i < list.size(); i++)
+                writeValue(out, list.get(i));
+        } else if ((type == HashSet.class) && isScalars((Collection) value)) {
+            HashSet set = (HashSet) value;
+            out.writeByte(TAG_HASH_SET);
+            out.writeInt(set.size());
+            Iterator iterator = set.iterator();
+            while (iterator.hasNext())
+                writeValue(out, iterator.next());
+        } else if ((type == HashMap.class) &&
+                   isScalars(((HashMap) value).keySet()) &&
+                   isScalars(((HashMap) value).values())) {
+            HashMap map = (HashMap) value;
+            out.writeByte(TAG_HASH_MAP);
+            out.writeInt(map.size());
+            Iterator entries = map.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry entry = (Map.Entry) entries.next();
+                writeValue(out, entry.getKey());
+                writeValue(out, entry.getValue());
+            }
+        } else {
+            out.writeByte(TAG_OBJECT);
+            out.objects().writeObject(value);
+        }
+
+    }
+
+
+    // --------------------------------------------------------- Inner Classes
+
+
+    /**
+     * 一个Web应用程序的类加载器解析的类和早期数据使用的类描述符, 以类名为键.
+     */
+    private static final class ClassCache {
+
+        ClassCache(ClassLoader classLoader) {
+            this.classLoader = classLoader;
+        }
+
+        final ClassLoader classLoader;
+
+        final ConcurrentHashMap classes = new ConcurrentHashMap();
+
+        final ConcurrentHashMap descriptors = new ConcurrentHashMap();
+
+        Class resolve(String name) throws ClassNotFoundException {
+
+            Class result = (Class) classes.get(name);
+            if (result == null) {
+                result = Class.forName(name, false, classLoader);
+                classes.put(name, result);
+            }
+            return (result);
+
+        }
+
+        ObjectStreamClass lookup(String name, long serialVersionUID)
+            throws ClassNotFoundException, InvalidClassException {
+
+            ObjectStreamClass desc = (ObjectStreamClass) descriptors.get(name);
+            if (desc == null) {
+                desc = ObjectStreamClass.lookup
+                    (Class.forName(name, false, classLoader));
+                if (desc == null)
+                    throw new InvalidClassException(name, "not serializable");
+                descriptors.put(name, desc);
+            }
+            if (desc.getSerialVersionUID() != serialVersionUID)
+                throw new InvalidClassException
+                    (name, "local class serialVersionUID " +
+                     desc.getSerialVersionUID() + " does not match " +
+                     serialVersionUID);
+            return (desc);
+
+        }
+
+    }
+
+
+    /**
+     * 读取一个会话的编码.
+     */
+    private final class Input {
+
+        Input(StandardSession session, byte data[], int offset, int length,
+              int type, int compactType) throws IOException {
+
+            this.session = session;
+            this.data = data;
+            this.position = offset;
+            this.limit = offset + length;
+            this.end = limit;
+            int actual = readByte();
+            if ((actual != type) && (actual != compactType))
+                throw new StreamCorruptedException("Invalid session data");
+            this.compact = (actual == compactType);
+            int main = readInt();
+            if ((main < 0) || (main > limit - position))
+                throw new StreamCorruptedException("Invalid session data");
+            this.limit = position + main;
+
+        }
+
+        private final StandardSession session;
+
+        private final byte data[];
+
+        private final boolean compact;
+
+        private final int end;
+
+        private int limit;
+
+        private int position;
+
+        private ObjectInputStream objects = null;
+
+        void close() throws IOException {
+            if (position != limit)
+                throw new StreamCorruptedException("Invalid session data");
+            if (objects != null)
+                objects.close();
+        }
+
+        ObjectInputStream objects() throws IOException {
+            if (objects == null)
+                objects = new ObjectReader
+                    (new ByteArrayInputStream(data, limit, end - limit),
+                     getClassCache(session), compact);
+            return (objects);
+        }
+
+        int readByte() throws IOException {
+            if (position >= limit)
+                throw new EOFException();
+            return (data[position++] & 0xff);
+        }
+
+        byte[] readBytes() throws IOException {
+            int n = readInt();
+            if ((n < 0) || (n > limit - position))
+                throw new EOFException();
+            byte result[] = new byte[n];
+            System.arraycopy(data, position, result, 0, n);
+            position += n;
+            return (result);
+        }
+
+        int readFixedInt() throws IOException {
+            return ((readByte() << 24) | (readByte() << 16) |
+                    (readByte() << 8) | readByte());
+        }
+
+        long readFixedLong() throws IOException {
+            return (((long) readFixedInt() << 32) |
+                    (readFixedInt() & 0xffffffffL));
+        }
+
+        int readCount() throws IOException {
+            // Every element takes at least one byte
+            int n = readInt();
+            if ((n < 0) || (n > limit - position))
+                throw new StreamCorruptedException("Invalid count " + n);
+            return (n);
+        }
+
+        int readInt() throws IOException {
+            return ((int) readLong());
+        }
+
+        long readLong() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                result |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return (result);
+            }
+            throw new StreamCorruptedException("Invalid variable length");
+        }
+
+        long readSignedLong() throws IOException {
+            long n = readLong();
+            return ((n >>> 1) ^ -(n & 1));
+        }
+
+        String readString() throws IOException {
+            int header = readInt();
+            int n = header >>> 1;
+            if ((n < 0) || (n > limit - position))
+                throw new EOFException();
+            String result = new String(data, position, n,
+                                       ((header & 1) == 0) ?
+                                       StandardCharsets.ISO_8859_1 :
+                                       StandardCharsets.UTF_8);
+            position += n;
+            return (result);
+        }
+
+    }
+
+
+    /**
+     * 对象输入流, 通过类缓存解析类. 早期数据的类描述符只包含类名和serialVersionUID,
+     * 对它们使用类缓存中的本地类描述符.
+     */
+    private static final class ObjectReader extends ObjectInputStream {
+
+        ObjectReader(ByteArrayInputStream stream, ClassCache classCache,
+                     boolean compact)
+            throws IOException {
+            super(stream);
+            this.classCache = classCache;
+            this.compact = compact;
+        }
+
+        private final ClassCache classCache;
+
+        private final boolean compact;
+
+        protected ObjectStreamClass readClassDescriptor()
+            throws ClassNotFoundException, IOException {
+            if (!compact)
+                return (super.readClassDescriptor());
+            String name = readUTF();
+            return (classCache.lookup(name, readLong()));
+        }
+
+        protected void readStreamHeader() {
+            // No header
+        }
+
+        protected Class resolveClass(ObjectStreamClass desc)
+            throws ClassNotFoundException, IOException {
+            if (compact) {
+                Class result = desc.forClass();
+                if (result != null)
+                    return (result);
+            }
+            try {
+                return (classCache.resolve(desc.getName()));
+            } catch (ClassNotFoundException e) {
+                // Primitive types
+                return (super.resolveClass(desc));
+            }
+        }
+
+    }
+
+
+    /**
+     * 对象输出流, 没有流头.
+     */
+    private static final class ObjectWriter extends ObjectOutputStream {
+
+        ObjectWriter(OutputStream stream) throws IOException {
+            super(stream);
+        }
+
+        protected void writeStreamHeader() {
+            // No header
+        }
+
+    }
+
+
+    /**
+     * 写入一个会话的编码.
+     */
+    private static final class Output {
+
+        private byte buffer[] = new byte[256];
+
+        private int count = 0;
+
+        private ByteArrayOutputStream objectBytes = null;
+
+        private ObjectOutputStream objects = null;
+
+        ObjectOutputStream objects() throws IOException {
+            if (objects == null) {
+                objectBytes = new ByteArrayOutputStream();
+                objects = new ObjectWriter(objectBytes);
+            }
+            return (objects);
+        }
+
+        byte[] toByteArray(int type) throws IOException {
+            if (objects != null)
+                objects.close();
+            int extra = (objectBytes == null) ? 0 : objectBytes.size();
+            int header = 1;
+            for (int n = count; n >= 0x80; n >>>= 7)
+                header++;
+            byte result[] = new byte[1 + header + count + extra];
+            int position = 0;
+            result[position++] = (byte) type;
+            int n = count;
+            while (n >= 0x80) {
+                result[position++] = (byte) ((n & 0x7f) | 0x80);
+                n >>>= 7;
+            }
+            result[position++] = (byte) n;
+            System.arraycopy(buffer, 0, result, position, count);
+            if (objectBytes != null)
+                System.arraycopy(objectBytes.toByteArray(), 0,
+                                 result, position + count, extra);
+            return (result);
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buffer[count++] = (byte) b;
+        }
+
+        void writeBytes(byte b[]) {
+            writeInt(b.length);
+            ensure(b.length);
+            System.arraycopy(b, 0, buffer, count, b.length);
+            count += b.length;
+        }
+
+        void writeFixedInt(int n) {
+            ensure(4);
+            buffer[count++] = (byte) (n >>> 24);
+            buffer[count++] = (byte) (n >>> 16);
+            buffer[count++] = (byte) (n >>> 8);
+            buffer[count++] = (byte) n;
+        }
+
+        void writeFixedLong(long n) {
+            writeFixedInt((int) (n >>> 32));
+            writeFixedInt((int) n);
+        }
+
+        void writeInt(int n) {
+            writeLong(n & 0xffffffffL);
+        }
+
+        void writeLong(long n) {
+            ensure(10);
+            while ((n & ~0x7fL) != 0) {
+                buffer[count++] = (byte) ((n & 0x7f) | 0x80);
+                n >>>= 7;
+            }
+            buffer[count++] = (byte) n;
+        }
+
+        void writeSignedLong(long n) {
+            writeLong((n << 1) ^ (n >> 63));
+        }
+
+        void writeString(String s) {
+            int n = s.length();
+            boolean latin = true;
+            for (int i = 0; (i < n) && latin; i++)
+                latin = (s.charAt(i) < 0x80);
+            if (latin) {
+                writeInt(n << 1);
+                ensure(n);
+                for (int i = 0; i < n; i++)
+                    buffer[count++] = (byte) s.charAt(i);
+            } else {
+                byte b[] = s.getBytes(StandardCharsets.UTF_8);
+                writeInt((b.length << 1) | 1);
+                ensure(b.length);
+                System.arraycopy(b, 0, buffer, count, b.length);
+                count += b.length;
+            }
+        }
+
+        private void ensure(int n) {
+            if (count + n > buffer.length) {
+                byte grown[] = new byte[Math.max(buffer.length * 2, count + n)];
+                System.arraycopy(buffer, 0, grown, 0, count);
+                buffer = grown;
+            }
+        }
+
+    }
+
+
+}
@@ -1,26 +1,48 @@
 package org.apache.catalina.session;
 
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.catalina.Cluster;
 import org.apache.catalina.Container;
 import org.apache.catalina.LifecycleException;
-import org.apache.catalina.Loader;
+import org.apache.catalina.Pipeline;
 import org.apache.catalina.Session;
+import org.apache.catalina.cluster.ClusterMemberInfo;
+import org.apache.catalina.cluster.ClusterMessageListener;
 import org.apache.catalina.cluster.ClusterReceiver;
 import org.apache.catalina.cluster.ClusterSender;
 import org.apache.catalina.cluster.ReplicationWrapper;
-import org.apache.catalina.util.CustomObjectInputStream;
+import org.apache.catalina.cluster.StandardCluster;
+import org.apache.catalina.cluster.TcpSender;
 
 /**
  * 此Manager负责跨定义集群的会话的内存复制. 它还可以利用存储库使会话持久化.
+ * <p>
+ * 每个请求结束时, <code>ReplicationValve</code>把这个请求使用的会话复制到集群:
+ * 第一次发送整个会话, 此后只发送访问时间等元数据和自上次复制以来被设置或删除的属性.
+ * 每条消息带有这个会话的版本号, 接收方直接修改已有的会话, 并丢弃版本号不大于已应用版本的消息.
+ * 消息在持有会话的锁时编码和编号, 但在释放锁之后按版本顺序发送, 所以等待传输的线程不会阻塞使用这个会话的请求.
+ * 本地失效或超时的会话, 如果最后一次由这个节点复制, 通知其它节点删除它.
+ * 收到一个没有副本的会话的修改部分时(例如新加入或重新启动的节点), 请求最后复制它的节点重新发送整个会话.
+ * <p>
+ * 接收的消息由Cluster的分发线程在到达时交给<code>messageReceived()</code>.
+ * 每个Context使用自己的senderId, 所以共用一个Cluster的Context只接收自己的会话.
+ * <p>
+ * 如果设置了<code>backupCount</code>, 并且Cluster使用TCP传输, 每个会话只复制到
+ * Cluster在活动的成员中为它选择的备份节点. 备份节点改变时, 新的备份节点收到整个会话,
+ * 不再是备份节点的成员被通知删除它; 后台线程定期检查备份节点, 代替失败的成员.
  */
-public final class DistributedManager extends PersistentManagerBase {
+public final class DistributedManager extends PersistentManagerBase
+    implements ClusterMessageListener {
 
     // ----------------------------------------------------- Instance Variables
 
@@ -44,6 +66,39 @@ public final class DistributedManager extends PersistentManagerBase {
      */
     private ClusterReceiver clusterReceiver = null;
 
+    /**
+     * 消息类型: 整个会话, 修改的部分, 删除会话, 请求重新发送整个会话
+     */
+    private static final int FULL = 0;
+    private static final int DELTA = 1;
+    private static final int REMOVE = 2;
+    private static final int RESYNC = 3;
+
+    /**
+     * 在每个请求结束时复制会话的Valve, 如果容器有管道
+     */
+    private ReplicationValve valve = null;
+
+    /**
+     * 会话标识符 -> 最后一次发送或应用的<code>Version</code>
+     */
+    private final ConcurrentHashMap versions = new ConcurrentHashMap();
+
+    /**
+     * 自上次后台检查以来已经请求重新发送的会话标识符, 每个会话在每个检查周期最多请求一次
+     */
+    private final ConcurrentHashMap resyncs = new ConcurrentHashMap();
+
+    /**
+     * 每个会话的备份节点数, 0表示复制到所有的成员
+     */
+    private int backupCount = 0;
+
+    /**
+     * 选择备份节点的Cluster, 如果不能选择, 为<code>null</code>
+     */
+    private StandardCluster cluster = null;
+
     // ------------------------------------------------------------- Properties
 
     /**
@@ -61,36 +116,62 @@ public final class DistributedManager extends PersistentManagerBase {
         return (this.name);
     }
 
+    /**
+     * 返回每个会话的备份节点数
+     */
+    public int getBackupCount() {
+        return (this.backupCount);
+    }
+
+    /**
+     * 设置每个会话的备份节点数. 0表示复制到所有的成员.
+     *
+     * @param backupCount The new backup count
+     */
+    public void setBackupCount(int backupCount) {
+        int oldBackupCount = this.backupCount;
+        this.backupCount = backupCount;
+        support.firePropertyChange("backupCount",
+                                   new Integer(oldBackupCount),
+                                   new Integer(this.backupCount));
+    }
+
     // --------------------------------------------------------- Public Methods
 
     /**
-     * 创建一个会话并在Cluster(集群)中复制它
+     * 创建一个会话. 如果没有<code>ReplicationValve</code>在请求结束时复制它, 立即在Cluster(集群)中复制它.
      *
      * @return The newly created Session
      */
     public Session createSession() {
         Session session = super.createSession();
-        ObjectOutputStream oos = null;
-        ByteArrayOutputStream bos = null;
-        ByteArrayInputStream bis = null;
-
-        try {
-            bos = new ByteArrayOutputStream();
-            oos = new ObjectOutputStream(new BufferedOutputStream(bos));
-
-            ((StandardSession)session).writeObjectData(oos);
-            oos.close();
+        if (valve == null)
+            replicate(session);
+        return (session);
+    }
 
-            byte[] obs = bos.toByteArray();
-            clusterSender.send(obs);
+    /**
+     * 从活动会话以及Store中删除此会话. 如果它最后一次由这个节点复制, 通知其它节点删除它.
+     *
+     * @param session Session to be removed
+     */
+    public void remove(Session session) {
+        String id = session.getId();
+        super.remove(session);
+        if (id == null)
+            return;
 
-            if(debug > 0)
-                log("Replicating Session: "+session.getId());
-        } catch (IOException e) {
-            log("An error occurred when replicating Session: "+session.getId());
+        Version version = (Version) versions.remove(id);
+        if ((version == null) || (clusterSender == null))
+            return;
+        synchronized (version) {
+            if (!version.local)
+                return;
+            version.number++;
+            version.outbox.add(new Message(REMOVE, id, version.number,
+                                           new byte[0], version.backups));
         }
-
-        return (session);
+        flush(version);
     }
 
     /**
@@ -106,80 +187,446 @@ public final class DistributedManager extends PersistentManagerBase {
             cluster = container.getCluster();
 
         if(cluster != null) {
-            this.clusterSender = cluster.getClusterSender(getName());
-            this.clusterReceiver = cluster.getClusterReceiver(getName());
+            String senderId = senderId();
+            this.clusterSender = cluster.getClusterSender(senderId);
+            this.clusterReceiver = cluster.getClusterReceiver(senderId);
+            this.clusterReceiver.setListener(this);
+            if ((cluster instanceof StandardCluster) &&
+                (clusterSender instanceof TcpSender))
+                this.cluster = (StandardCluster) cluster;
         }
 
         super.start();
+
+        if ((clusterSender != null) && (container instanceof Pipeline)) {
+            valve = new ReplicationValve(this);
+            ((Pipeline) container).addValve(valve);
+        }
+    }
+
+    /**
+     * Stop this manager. 本地的会话被保存或失效, 但不通知其它节点删除它们.
+     *
+     * @exception LifecycleException if an error occurs
+     */
+    public void stop() throws LifecycleException {
+        if (valve != null) {
+            ((Pipeline) getContainer()).removeValve(valve);
+            valve = null;
+        }
+        versions.clear();
+        resyncs.clear();
+        if (clusterReceiver != null) {
+            clusterReceiver.stop();
+            clusterReceiver = null;
+        }
+
+        super.stop();
+        clusterSender = null;
+        cluster = null;
+    }
+
+    /**
+     * 由Cluster的分发线程调用, 应用一条接收的消息.
+     *
+     * @param message The received message
+     */
+    public void messageReceived(ReplicationWrapper message) {
+        try {
+            receive(message.getDataStream());
+        } catch (Exception e) {
+            log(sm.getString("distributedManager.receiveError",
+                             message.getSenderId(), e));
+        }
+    }
+
+    /**
+     * 请求结束时由<code>ReplicationValve</code>调用, 复制这个请求使用的会话.
+     *
+     * @param id 会话标识符
+     */
+    void requestCompleted(String id) {
+        Session session = (Session) sessions.get(id);
+        if ((session != null) && session.isValid())
+            replicate(session);
+    }
+
+    /**
+     * 除了持久化检查, 为备份节点已经改变的会话重新选择备份节点, 以代替失败的成员.
+     */
+    public void processPersistenceChecks() {
+        super.processPersistenceChecks();
+        resyncs.clear();
+        processBackups();
     }
 
     /**
-     * 从后台线程调用处理新接收的会话
+     * 处理还没有被交给<code>messageReceived()</code>的消息, 例如在设置监听器之前接收的消息
      */
     public void processClusterReceiver() {
+        if (clusterReceiver == null)
+            return;
         Object[] objs = clusterReceiver.getObjects();
-        StandardSession _session = null;
-        ByteArrayInputStream bis = null;
-        Loader loader = null;
-        ClassLoader classLoader = null;
-        ObjectInputStream ois = null;
-        byte[] buf = new byte[5000];
-        ReplicationWrapper repObj = null;
-
-        for(int i=0; i < objs.length;i++) {
-            try {
-                bis = new ByteArrayInputStream(buf);
-                repObj = (ReplicationWrapper)objs[i];
-                buf = repObj.getDataStream();
-                bis = new ByteArrayInputStream(buf, 0, buf.length);
 
-                if (container != null)
-                    loader = container.getLoader();
+        for(int i=0; i < objs.length;i++)
+            messageReceived((ReplicationWrapper)objs[i]);
+    }
 
-                if (loader != null)
-                    classLoader = loader.getClassLoader();
+    // -------------------------------------------------------- Private Methods
 
-                if (classLoader != null)
-                    ois = new CustomObjectInputStream(bis,
-                                                      classLoader);
-                else
-                    ois = new ObjectInputStream(bis);
+    /**
+     * 返回这个Manager的senderId: 名称加上容器及其所有父容器的名称
+     */
+    private String senderId() {
+        StringBuffer sb = new StringBuffer(getName());
+        for (Container c = getContainer(); c != null; c = c.getParent())
+            sb.append('/').append(c.getName());
+        return (sb.toString());
+    }
 
-                _session = (StandardSession) super.createSession();
-                _session.readObjectData(ois);
-                _session.setManager(this);
+    /**
+     * 把指定会话修改的部分, 或者如果它还没有被复制过, 整个会话, 发送到集群.
+     */
+    private void replicate(Session session) {
+        if ((clusterSender == null) || !(session instanceof StandardSession))
+            return;
+        StandardSession ss = (StandardSession) session;
+        String id = ss.getId();
+        Version version = version(id);
 
-                if (debug > 0)
-                    log("Loading replicated session: "+_session.getId());
+        // Concurrent requests for one session are numbered in order; the
+        // messages are sent after the locks are released
+        synchronized (ss) {
+            String names[] = ss.resetReplication();
+            try {
+                synchronized (version) {
+                    ClusterMemberInfo targets[] = backups(id);
+                    ClusterMemberInfo dropped[] =
+                        subtract(version.backups, targets);
+                    // New backups have no copy to apply a delta to
+                    if (!sameMembers(version.backups, targets) ||
+                        ((targets != null) && !version.local))
+                        names = null;
+                    SessionCodec codec = getCodec();
+                    byte data[] = (names == null) ?
+                        codec.encode(ss) : codec.encodeDelta(ss, names);
+                    version.number++;
+                    version.local = true;
+                    version.outbox.add
+                        (new Message((names == null) ? FULL : DELTA, id,
+                                     version.number, data, targets));
+                    if (dropped.length > 0)
+                        version.outbox.add
+                            (new Message(REMOVE, id, version.number,
+                                         new byte[0], dropped));
+                    version.backups = targets;
+                }
             } catch (IOException e) {
-                log("Error occurred when trying to read replicated session: "+
-                    e.toString());
-            } catch (ClassNotFoundException e) {
-                log("Error occurred when trying to read replicated session: "+
-                    e.toString());
-            } finally {
-                if (ois != null) {
-                    try {
-                        ois.close();
-                        bis = null;
-                    } catch (IOException e) {
-                        ;
+                ss.setFullReplicationRequired();
+                log(sm.getString("distributedManager.replicateError", id, e));
+                return;
+            }
+        }
+        flush(version);
+        if (debug > 0)
+            log("Replicating Session: " + id);
+    }
+
+    /**
+     * 按版本顺序发送一个会话排队的消息. 如果另一个线程正在发送, 由它发送排队的消息,
+     * 这个线程立即返回. 发送时不持有会话或<code>Version</code>的锁.
+     */
+    private void flush(Version version) {
+        synchronized (version) {
+            if (version.sending)
+                return;
+            version.sending = true;
+        }
+        boolean done = false;
+        try {
+            while (true) {
+                Message message = null;
+                synchronized (version) {
+                    if (version.outbox.isEmpty()) {
+                        version.sending = false;
+                        done = true;
+                        return;
                     }
+                    message = (Message) version.outbox.removeFirst();
+                }
+                try {
+                    send(message.type, message.id, message.number,
+                         message.data, message.targets);
+                } catch (IOException e) {
+                    // The next change sends the whole session again
+                    Session session = (Session) sessions.get(message.id);
+                    if (session instanceof StandardSession)
+                        ((StandardSession) session).setFullReplicationRequired();
+                    log(sm.getString("distributedManager.replicateError",
+                                     message.id, e));
                 }
             }
+        } finally {
+            if (!done) {
+                synchronized (version) {
+                    version.sending = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * 发送一条消息: 类型, 会话标识符, 版本号, 编解码器写入的数据.
+     */
+    private void send(int type, String id, long version, byte data[],
+                      ClusterMemberInfo targets[])
+        throws IOException {
+        ByteArrayOutputStream bos =
+            new ByteArrayOutputStream(data.length + id.length() + 16);
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeByte(type);
+        dos.writeUTF(id);
+        dos.writeLong(version);
+        dos.write(data);
+        dos.flush();
+        if (targets == null)
+            clusterSender.send(bos.toByteArray());
+        else if (targets.length > 0)
+            ((TcpSender) clusterSender).send(bos.toByteArray(), targets);
+    }
+
+    /**
+     * 返回一个会话的备份节点. 如果没有设置<code>backupCount</code>, 或者Cluster还不知道任何成员,
+     * 返回<code>null</code>, 会话被复制到所有的成员.
+     */
+    private ClusterMemberInfo[] backups(String id) {
+        StandardCluster cluster = this.cluster;
+        if ((backupCount <= 0) || (cluster == null))
+            return (null);
+        ClusterMemberInfo backups[] = cluster.getBackupMembers(id, backupCount);
+        return ((backups.length == 0) ? null : backups);
+    }
+
+    /**
+     * 两组成员是否相同? <code>null</code>表示所有的成员.
+     */
+    private static boolean sameMembers(ClusterMemberInfo a[],
+                                       ClusterMemberInfo b[]) {
+        if ((a == null) || (b == null))
+            return (a == b);
+        return ((a.length == b.length) && (subtract(a, b).length == 0));
+    }
+
+    /**
+     * 返回在<code>a</code>中但不在<code>b</code>中的成员. <code>null</code>表示所有的成员.
+     */
+    private static ClusterMemberInfo[] subtract(ClusterMemberInfo a[],
+                                                ClusterMemberInfo b[]) {
+        if ((a == null) || (b == null))
+            return (new ClusterMemberInfo[0]);
+        ArrayList results = new ArrayList();
+        for (int i = 0; i < a.length; i++) {
+            boolean found = false;
+            for (int j = 0; (j < b.length) && !found; j++)
+                found = a[i].getMemberId().equals(b[j].getMemberId());
+            if (!found)
+                results.add(a[i]);
+        }
+        return ((ClusterMemberInfo[])
+                results.toArray(new ClusterMemberInfo[results.size()]));
+    }
+
+    /**
+     * 重新复制由这个节点复制的, 备份节点已经改变的会话. 由后台线程调用.
+     */
+    private void processBackups() {
+        if ((backupCount <= 0) || (cluster == null))
+            return;
+        Iterator entries = versions.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry entry = (Map.Entry) entries.next();
+            String id = (String) entry.getKey();
+            Version version = (Version) entry.getValue();
+            ClusterMemberInfo targets[] = backups(id);
+            boolean changed = false;
+            synchronized (version) {
+                changed = version.local &&
+                    !sameMembers(version.backups, targets);
+            }
+            if (!changed)
+                continue;
+            Session session = (Session) sessions.get(id);
+            if ((session != null) && session.isValid())
+                replicate(session);
+        }
+    }
+
+    /**
+     * 请求最后复制指定会话的节点重新发送整个会话, 如果在这个检查周期还没有请求过.
+     */
+    private void requestResync(String id) throws IOException {
+        if ((clusterSender == null) || (resyncs.putIfAbsent(id, id) != null))
+            return;
+        if (debug > 0)
+            log("Requesting replicated session: " + id);
+        send(RESYNC, id, 0L, new byte[0], null);
+    }
+
+    /**
+     * 如果指定的会话最后一次由这个节点复制, 再次发送整个会话.
+     */
+    private void resync(String id) {
+        Version version = (Version) versions.get(id);
+        if (version == null)
+            return;
+        synchronized (version) {
+            if (!version.local)
+                return;
+        }
+        Session session = (Session) sessions.get(id);
+        if (!(session instanceof StandardSession) || !session.isValid())
+            return;
+        ((StandardSession) session).setFullReplicationRequired();
+        replicate(session);
+    }
+
+    /**
+     * 应用一条接收的消息. 版本号不大于已应用版本的消息被丢弃;
+     * 修改的部分只能应用到已有的会话, 否则请求重新发送整个会话.
+     */
+    private void receive(byte buf[])
+        throws ClassNotFoundException, IOException {
+        DataInputStream dis =
+            new DataInputStream(new ByteArrayInputStream(buf));
+        int type = dis.readByte();
+        String id = dis.readUTF();
+        long number = dis.readLong();
+        int offset = buf.length - dis.available();
+        int length = buf.length - offset;
+        if (type == RESYNC) {
+            resync(id);
+            return;
+        }
+
+        Version version = (type == FULL) ?
+            version(id) : (Version) versions.get(id);
+        if (version == null) {
+            // A member that joined or restarted has no copy to apply
+            // the change to
+            if (type == DELTA)
+                requestResync(id);
+            else if (debug > 0)
+                log("Ignoring replicated change to unknown session: " + id);
+            return;
+        }
+        synchronized (version) {
+            if (number <= version.number) {
+                if (debug > 0)
+                    log("Discarding stale replicated session: " + id +
+                        " version " + number);
+                return;
+            }
+            version.number = number;
+            version.local = false;
+
+            Session session = findSession(id);
+            if (type == REMOVE) {
+                versions.remove(id, version);
+                if (session instanceof StandardSession)
+                    ((StandardSession) session).expire(false);
+                else if (session != null)
+                    session.expire();
+            } else if ((type == DELTA) && (session != null)) {
+                getCodec().decodeDelta(session, buf, offset, length);
+            } else if (type == DELTA) {
+                requestResync(id);
+            } else if (type == FULL) {
+                resyncs.remove(id);
+                // Replace the local copy only; the Store keeps its copy
+                // until the new session is saved over it
+                if (session != null)
+                    sessions.remove(id);
+                session = createEmptySession();
+                getCodec().decode(session, buf, offset, length);
+                session.setManager(this);
+                add(session);
+            }
+            if (debug > 0)
+                log("Loading replicated session: " + id + " version " + number);
+        }
+    }
+
+    /**
+     * 返回指定会话的<code>Version</code>, 如果没有, 创建它.
+     */
+    private Version version(String id) {
+        Version version = (Version) versions.get(id);
+        if (version == null) {
+            version = new Version();
+            Version existing = (Version) versions.putIfAbsent(id, version);
+            if (existing != null)
+                version = existing;
         }
+        return (version);
     }
 
+    // --------------------------------------------------------- Inner Classes
+
     /**
-     * 后台线程会话超时和关闭检查
+     * 一个会话最后一次发送或应用的版本号. 访问时在这个对象上同步.
      */
-    public void run() {
-        // 循环直到终止信号量被设置
-        while (!threadDone) {
-            threadSleep();
-            processClusterReceiver();
-            processExpires();
-            processPersistenceChecks();
+    private static final class Version {
+
+        /**
+         * 版本号
+         */
+        long number = 0;
+
+        /**
+         * 这个版本是否由这个节点发送?
+         */
+        boolean local = false;
+
+        /**
+         * 这个节点最后一次发送这个会话的备份节点, <code>null</code>表示所有的成员.
+         */
+        ClusterMemberInfo backups[] = null;
+
+        /**
+         * 已经编号但还没有发送的消息, 按版本顺序
+         */
+        final LinkedList outbox = new LinkedList();
+
+        /**
+         * 是否有一个线程正在发送<code>outbox</code>中的消息?
+         */
+        boolean sending = false;
+
+    }
+
+    /**
+     * 一条已经编码和编号, 等待发送的消息.
+     */
+    private static final class Message {
+
+        Message(int type, String id, long number, byte data[],
+                ClusterMemberInfo targets[]) {
+            this.type = type;
+            this.id = id;
+            this.number = number;
+            this.data = data;
+            this.targets = targets;
         }
+
+        final int type;
+
+        final String id;
+
+        final long number;
+
+        final byte data[];
+
+        final ClusterMemberInfo targets[];
+
     }
 }
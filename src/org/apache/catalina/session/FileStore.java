@@ -1,40 +1,80 @@
 package org.apache.catalina.session;
 
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
 
 import javax.servlet.ServletContext;
 
 import org.apache.catalina.Container;
 import org.apache.catalina.Context;
+import org.apache.catalina.DeltaStore;
 import org.apache.catalina.Globals;
-import org.apache.catalina.Loader;
+import org.apache.catalina.LifecycleException;
 import org.apache.catalina.Session;
-import org.apache.catalina.Store;
-import org.apache.catalina.util.CustomObjectInputStream;
 
 
 /**
- * <b>Store</b>接口实现类，在已配置的目录中使用每个保存会话的文件. 
+ * <b>Store</b>接口实现类，在已配置的目录中以日志结构保存会话.
  * 保存的静止的会话仍将过期.
+ * <p>
+ * 会话被追加到段文件(<code>&lt;n&gt;.log</code>)的末尾, 而不是每个会话一个文件;
+ * 内存中的索引记录每个会话在哪个段的哪个位置, 所以<code>keys()</code>和<code>getSize()</code>不需要访问磁盘,
+ * 加载会话只需要按位置读取它的记录. 删除会话时追加一个删除记录.
+ * 当前段超过<code>segmentSize</code>字节时开始一个新的段.
+ * 后台线程把有效数据不到一半的旧段中仍然有效的记录复制到当前段, 然后删除旧段(压缩).
+ * 启动时依次扫描所有的段重建索引; 写入时被中断留下的不完整记录被截掉.
+ * <p>
+ * 作为<code>DeltaStore</code>, 会话的修改记录也被追加到段中,
+ * 加载时在完整的会话之后依次应用; 修改记录达到<code>maxDeltas</code>个时重新写入整个会话.
+ * <p>
+ * 每个记录的格式为: 记录体长度(<code>int</code>), 记录体的CRC32(<code>int</code>),
+ * 然后是记录体: 类型(<code>byte</code>), 会话标识符(UTF), 最后访问时间(<code>long</code>),
+ * 最大非活动间隔(<code>int</code>), 序列化的数据.
  */
-public final class FileStore extends StoreBase implements Store {
+public final class FileStore extends StoreBase implements DeltaStore {
 
     // ----------------------------------------------------- Constants
 
     /**
-     * 序列化会话文件的扩展名.
+     * 段文件的扩展名.
      */
-    private static final String FILE_EXT = ".session";
+    private static final String SEGMENT_EXT = ".log";
+
+    /**
+     * 完整会话记录.
+     */
+    private static final byte FULL = 1;
+
+    /**
+     * 会话修改记录.
+     */
+    private static final byte DELTA = 2;
+
+    /**
+     * 会话删除记录. 它的访问时间字段保存写入它时的当前段的编号,
+     * 这个会话的记录只可能在编号不大于它的段中.
+     */
+    private static final byte REMOVE = 3;
+
+    /**
+     * 记录头的长度: 记录体长度和CRC32.
+     */
+    private static final int HEADER_LENGTH = 8;
 
     // ----------------------------------------------------- Instance Variables
 
@@ -51,10 +91,42 @@ public final class FileStore extends StoreBase implements Store {
     private File directoryFile = null;
 
 
+    /**
+     * 会话标识符 -> 它的记录的位置(<code>Entry</code>).
+     * 只在持有<code>lock</code>时修改.
+     */
+    private ConcurrentHashMap index = new ConcurrentHashMap();
+
+
+    /**
+     * 保护追加写入, 索引的修改和段的列表.
+     */
+    private final Object lock = new Object();
+
+
+    /**
+     * 是否已经扫描了段并重建了索引?
+     */
+    private volatile boolean opened = false;
+
+
+    /**
+     * 所有的段, 按编号排序. 最后一个是当前追加写入的段.
+     * 只在持有<code>lock</code>时访问.
+     */
+    private ArrayList segments = new ArrayList();
+
+
+    /**
+     * 开始一个新段之前, 当前段的最大字节数.
+     */
+    private int segmentSize = 16 * 1024 * 1024;
+
+
     /**
      * 实现类的描述信息.
      */
-    private static final String info = "FileStore/1.0";
+    private static final String info = "FileStore/2.0";
 
     /**
      * 注册此存储的名称，用于日志记录.
@@ -93,6 +165,29 @@ public final class FileStore extends StoreBase implements Store {
     }
 
 
+    /**
+     * 返回开始一个新段之前, 当前段的最大字节数.
+     */
+    public int getSegmentSize() {
+        return (segmentSize);
+    }
+
+
+    /**
+     * 设置开始一个新段之前, 当前段的最大字节数.
+     *
+     * @param segmentSize The new segment size
+     */
+    public void setSegmentSize(int segmentSize) {
+
+        int oldSegmentSize = this.segmentSize;
+        this.segmentSize = segmentSize;
+        support.firePropertyChange("segmentSize",
+                                   new Integer(oldSegmentSize),
+                                   new Integer(this.segmentSize));
+    }
+
+
     /**
      * 返回描述信息和版本号, 格式为
      * <code>&lt;description&gt;/&lt;version&gt;</code>.
@@ -123,21 +218,10 @@ public final class FileStore extends StoreBase implements Store {
      */
     public int getSize() throws IOException {
 
-        // 获取存储目录中的文件列表
-        File file = directory();
-        if (file == null) {
+        if (!open()) {
             return (0);
         }
-        String files[] = file.list();
-
-        // 计算哪些文件是会话
-        int keycount = 0;
-        for (int i = 0; i < files.length; i++) {
-            if (files[i].endsWith(FILE_EXT)) {
-                keycount++;
-            }
-        }
-        return (keycount);
+        return (index.size());
     }
 
 
@@ -151,42 +235,38 @@ public final class FileStore extends StoreBase implements Store {
      */
     public void clear() throws IOException {
 
-        String[] keys = keys();
-        for (int i = 0; i < keys.length; i++) {
-            remove(keys[i]);
+        if (!open()) {
+            return;
+        }
+        synchronized (lock) {
+            for (int i = 0; i < segments.size(); i++) {
+                ((Segment) segments.get(i)).delete();
+            }
+            segments.clear();
+            index.clear();
+            segments.add(new Segment(directory(), 1));
         }
     }
 
 
     /**
-     * 返回一个数组包含当前保存的所有会话的会话标识符. 
+     * 返回一个数组包含当前保存的所有会话的会话标识符.
      * 如果没有, 返回一个零长度数组.
      *
      * @exception IOException if an input/output error occurred
      */
     public String[] keys() throws IOException {
 
-        // 获取存储目录中的文件列表
-        File file = directory();
-        if (file == null) {
+        if (!open()) {
             return (new String[0]);
         }
-        String files[] = file.list();
-
-        // Build and return the list of session identifiers
-        ArrayList list = new ArrayList();
-        int n = FILE_EXT.length();
-        for (int i = 0; i < files.length; i++) {
-            if (files[i].endsWith(FILE_EXT)) {
-                list.add(files[i].substring(0, files[i].length() - n));
-            }
-        }
+        ArrayList list = new ArrayList(index.keySet());
         return ((String[]) list.toArray(new String[list.size()]));
     }
 
 
     /**
-     * 加载并返回与指定会话标识符关联的会话, 不删除它. 
+     * 加载并返回与指定会话标识符关联的会话, 不删除它.
      * 如果没有, 返回<code>null</code>.
      *
      * @param id Session identifier of the session to load
@@ -197,73 +277,47 @@ public final class FileStore extends StoreBase implements Store {
     public Session load(String id)
         throws ClassNotFoundException, IOException {
 
-        // 打开一个输入流到指定的路径
-        File file = file(id);
-        if (file == null) {
+        if (!open()) {
             return (null);
         }
 
-        if (! file.exists()) {
-            return (null);
+        // A concurrent compaction may delete the segment we are reading
+        Entry entry = null;
+        Record records[] = null;
+        for (int tries = 0; records == null; tries++) {
+            entry = (Entry) index.get(id);
+            if (entry == null) {
+                return (null);
+            }
+            try {
+                records = read(entry);
+            } catch (ClosedChannelException e) {
+                if (tries >= 2)
+                    throw e;
+            }
         }
         if (debug >= 1) {
             log(sm.getString(getStoreName()+".loading",
-                             id, file.getAbsolutePath()));
+                             id, entry.full.segment.file.getAbsolutePath()));
         }
 
-        FileInputStream fis = null;
-        ObjectInputStream ois = null;
-        Loader loader = null;
-        ClassLoader classLoader = null;
-        try {
-            fis = new FileInputStream(file.getAbsolutePath());
-            BufferedInputStream bis = new BufferedInputStream(fis);
-            Container container = manager.getContainer();
-            if (container != null)
-                loader = container.getLoader();
-            if (loader != null)
-                classLoader = loader.getClassLoader();
-            if (classLoader != null)
-                ois = new CustomObjectInputStream(bis, classLoader);
-            else
-                ois = new ObjectInputStream(bis);
-        } catch (FileNotFoundException e) {
-            if (debug >= 1)
-                log("No persisted data file found");
-            return (null);
-        } catch (IOException e) {
-            if (ois != null) {
-                try {
-                    ois.close();
-                } catch (IOException f) {
-                    ;
-                }
-                ois = null;
-            }
-            throw e;
-        }
+        StandardSession session =
+            (StandardSession) manager.createEmptySession();
+        SessionCodec codec = getCodec();
+        codec.decode(session, records[0].raw, records[0].dataOffset,
+                     records[0].dataLength());
+        session.setManager(manager);
 
-        try {
-            StandardSession session =
-                (StandardSession) manager.createEmptySession();
-            session.readObjectData(ois);
-            session.setManager(manager);
-            return (session);
-        } finally {
-            // Close the input stream
-            if (ois != null) {
-                try {
-                    ois.close();
-                } catch (IOException f) {
-                    ;
-                }
-            }
-        }
+        // 应用此后追加的修改记录
+        for (int i = 1; i < records.length; i++)
+            codec.decodeDelta(session, records[i].raw, records[i].dataOffset,
+                              records[i].dataLength());
+        return (session);
     }
 
 
     /**
-     * 删除指定的会话标识符的会话 . 
+     * 删除指定的会话标识符的会话 .
      * 如果没有, 什么都不做.
      *
      * @param id Session identifier of the Session to be removed
@@ -272,15 +326,22 @@ public final class FileStore extends StoreBase implements Store {
      */
     public void remove(String id) throws IOException {
 
-        File file = file(id);
-        if (file == null) {
+        if (!open() || !index.containsKey(id)) {
             return;
         }
-        if (debug >= 1) {
-            log(sm.getString(getStoreName()+".removing",
-                             id, file.getAbsolutePath()));
+        synchronized (lock) {
+            if (index.containsKey(id)) {
+                Segment active = (Segment) segments.get(segments.size() - 1);
+                byte record[] =
+                    encode(REMOVE, id, active.number, 0, new byte[0]);
+                Location location = append(record);
+                if (debug >= 1) {
+                    log(sm.getString(getStoreName()+".removing",
+                                     id, location.segment.file.getAbsolutePath()));
+                }
+                apply(REMOVE, id, 0L, 0, location);
+            }
         }
-        file.delete();
     }
 
 
@@ -293,43 +354,304 @@ public final class FileStore extends StoreBase implements Store {
      */
     public void save(Session session) throws IOException {
 
-        // 打开输出流到指定的路径
-        System.out.println("save: " + session.getId());
-        File file = file(session.getId());
-        if (file == null) {
+        if (!open()) {
             return;
         }
-        if (debug >= 1) {
-            log(sm.getString(getStoreName()+".saving",
-                             session.getId(), file.getAbsolutePath()));
-        }
-        FileOutputStream fos = null;
-        ObjectOutputStream oos = null;
+        StandardSession standardSession = (StandardSession) session;
+        standardSession.resetDirty();
+        byte record[] = null;
         try {
-            fos = new FileOutputStream(file.getAbsolutePath());
-            oos = new ObjectOutputStream(new BufferedOutputStream(fos));
+            record = encode(FULL, session.getId(),
+                            session.getLastAccessedTime(),
+                            session.getMaxInactiveInterval(),
+                            getCodec().encode(standardSession));
+            write(FULL, session, record);
         } catch (IOException e) {
-            if (oos != null) {
-                try {
-                    oos.close();
-                } catch (IOException f) {
-                    ;
-                }
+            standardSession.setFullSaveRequired();
+            throw e;
+        }
+    }
+
+
+    /**
+     * 将指定会话自上次保存以来修改的部分追加到当前段.
+     * 如果还没有保存过这个会话, 或者修改记录已经达到<code>maxDeltas</code>个,
+     * 重新写入整个会话.
+     *
+     * @param session Session to be saved
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public void saveDelta(Session session) throws IOException {
+
+        if (!open()) {
+            return;
+        }
+        StandardSession standardSession = (StandardSession) session;
+        Entry entry = (Entry) index.get(session.getId());
+        if ((entry != null) && !standardSession.isDirty()) {
+            return;
+        }
+        if ((entry == null) || (entry.deltas.length >= maxDeltas)) {
+            save(session);
+            return;
+        }
+
+        String names[] = standardSession.resetDirty();
+        if (names == null) {
+            standardSession.setFullSaveRequired();
+            save(session);
+            return;
+        }
+        try {
+            byte record[] = encode(DELTA, session.getId(),
+                                   session.getLastAccessedTime(),
+                                   session.getMaxInactiveInterval(),
+                                   serializeDelta(standardSession, names));
+            if (!write(DELTA, session, record)) {
+                // Removed or compacted concurrently
+                standardSession.setFullSaveRequired();
+                save(session);
             }
+        } catch (IOException e) {
+            standardSession.setFullSaveRequired();
             throw e;
         }
 
+    }
+
+
+    /**
+     * 关闭所有的段. 下一次使用时重新扫描它们.
+     */
+    public void stop() throws LifecycleException {
+
+        super.stop();
+        synchronized (lock) {
+            for (int i = 0; i < segments.size(); i++) {
+                ((Segment) segments.get(i)).close();
+            }
+            segments.clear();
+            index.clear();
+            opened = false;
+        }
+
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * 检查超时的会话, 然后压缩旧段.
+     */
+    protected void processExpires() {
+
+        super.processExpires();
+        if (!started) {
+            return;
+        }
         try {
-            ((StandardSession)session).writeObjectData(oos);
-        } finally {
-            oos.close();
+            compact();
+        } catch (IOException e) {
+            log(e.toString());
         }
+
+    }
+
+
+    /**
+     * 只返回索引中记录的访问时间表明已经超时的会话.
+     *
+     * @param timeNow 当前时间
+     */
+    protected String[] expiryCandidates(long timeNow) throws IOException {
+
+        if (!open()) {
+            return (new String[0]);
+        }
+        ArrayList list = new ArrayList();
+        Iterator entries = index.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry mapEntry = (Map.Entry) entries.next();
+            Entry entry = (Entry) mapEntry.getValue();
+            if (entry.maxInactiveInterval < 0)
+                continue;
+            int timeIdle = // Truncate, do not round up
+                (int) ((timeNow - entry.lastAccessedTime) / 1000L);
+            if (timeIdle >= entry.maxInactiveInterval)
+                list.add(mapEntry.getKey());
+        }
+        return ((String[]) list.toArray(new String[list.size()]));
+
     }
 
 
     // -------------------------------------------------------- Private Methods
 
 
+    /**
+     * 追加一个已编码的记录到当前段, 如有必要开始一个新段. 调用者必须持有<code>lock</code>.
+     *
+     * @param record 已编码的记录
+     */
+    private Location append(byte record[]) throws IOException {
+
+        Segment active = (Segment) segments.get(segments.size() - 1);
+        if ((active.size > 0) && (active.size + record.length > segmentSize)) {
+            active.force();
+            active = new Segment(directory(), active.number + 1);
+            segments.add(active);
+        }
+        long offset = active.size;
+        active.write(ByteBuffer.wrap(record), offset);
+        active.size += record.length;
+        return (new Location(active, offset, record.length));
+
+    }
+
+
+    /**
+     * 根据一个已经写入的记录更新索引和各个段的有效字节数. 调用者必须持有<code>lock</code>.
+     *
+     * @return 是否应用了这个记录? 没有对应的完整会话的修改记录被忽略
+     */
+    private boolean apply(byte type, String id, long lastAccessedTime,
+                          int maxInactiveInterval, Location location) {
+
+        Entry old = (Entry) index.get(id);
+        Entry entry = null;
+        if (type == FULL) {
+            entry = new Entry(location, new Location[0],
+                              lastAccessedTime, maxInactiveInterval);
+        } else if (type == DELTA) {
+            if (old == null)
+                return (false);
+            Location deltas[] = new Location[old.deltas.length + 1];
+            System.arraycopy(old.deltas, 0, deltas, 0, old.deltas.length);
+            deltas[old.deltas.length] = location;
+            location.segment.live += location.length;
+            index.put(id, new Entry(old.full, deltas,
+                                    lastAccessedTime, maxInactiveInterval));
+            return (true);
+        }
+
+        if (old != null) {
+            old.full.segment.live -= old.full.length;
+            for (int i = 0; i < old.deltas.length; i++)
+                old.deltas[i].segment.live -= old.deltas[i].length;
+        }
+        // A removal stays live while it may hide older records
+        location.segment.live += location.length;
+        if (entry != null) {
+            index.put(id, entry);
+        } else {
+            index.remove(id);
+        }
+        return (true);
+
+    }
+
+
+    /**
+     * 将有效数据不到一半的旧段中仍然有效的记录复制到当前段, 然后删除旧段.
+     * 只由后台线程调用.
+     */
+    private void compact() throws IOException {
+
+        if (!open()) {
+            return;
+        }
+        Segment candidates[] = null;
+        synchronized (lock) {
+            ArrayList list = new ArrayList();
+            for (int i = 0; i < segments.size() - 1; i++) {
+                Segment segment = (Segment) segments.get(i);
+                if (segment.live * 2 < segment.size)
+                    list.add(segment);
+            }
+            candidates = (Segment[]) list.toArray(new Segment[list.size()]);
+        }
+
+        for (int i = 0; i < candidates.length; i++) {
+            Segment segment = candidates[i];
+            long offset = 0L;
+            while (offset < segment.size) {
+                Record record = segment.readRecord(offset, segment.size);
+                if (record == null)
+                    break;
+                synchronized (lock) {
+                    copy(segment, record, offset);
+                }
+                offset += record.raw.length;
+            }
+            synchronized (lock) {
+                ((Segment) segments.get(segments.size() - 1)).force();
+                segments.remove(segment);
+                segment.delete();
+            }
+        }
+
+    }
+
+
+    /**
+     * 在压缩指定的段时, 如果需要, 将它的一个记录复制到当前段. 调用者必须持有<code>lock</code>.
+     * 一个会话的完整记录或修改记录在这个段中时, 它的所有记录都被按顺序复制,
+     * 以保证重建索引时修改记录总是在完整记录之后.
+     * 删除记录只在其它段中可能还有这个会话的记录时才被复制, 复制的删除记录仍然计为有效数据.
+     */
+    private void copy(Segment segment, Record record, long offset)
+        throws IOException {
+
+        if (record.type == REMOVE) {
+            if (!index.containsKey(record.id) && hides(segment, record)) {
+                Location location = append(record.raw);
+                location.segment.live += location.length;
+            }
+            return;
+        }
+
+        Entry entry = (Entry) index.get(record.id);
+        if ((entry == null) || !entry.references(segment))
+            return;
+        Location location = append(read(entry.full).raw);
+        apply(FULL, record.id, entry.lastAccessedTime,
+              entry.maxInactiveInterval, location);
+        for (int i = 0; i < entry.deltas.length; i++) {
+            location = append(read(entry.deltas[i]).raw);
+            apply(DELTA, record.id, entry.lastAccessedTime,
+                  entry.maxInactiveInterval, location);
+        }
+
+    }
+
+
+    /**
+     * 除了正在被压缩的段, 是否还有段可能包含一个删除记录所删除的会话的记录?
+     * 调用者必须持有<code>lock</code>.
+     *
+     * @param segment 正在被压缩的段
+     * @param record 这个段中的删除记录
+     */
+    private boolean hides(Segment segment, Record record) {
+
+        // Records written before the segment number was kept
+        long newest = record.lastAccessedTime;
+        if (newest <= 0L)
+            newest = segment.number;
+        for (int i = 0; i < segments.size(); i++) {
+            Segment older = (Segment) segments.get(i);
+            if (older.number > newest)
+                break;
+            if (older != segment)
+                return (true);
+        }
+        return (false);
+
+    }
+
+
     /**
      * 会话持久化目录的路径信息. 如果目录不存在，则将创建该目录.
      */
@@ -366,17 +688,388 @@ public final class FileStore extends StoreBase implements Store {
 
 
     /**
-     * 会话持久化文件的路径信息.
+     * 编码一个记录.
+     */
+    private static byte[] encode(byte type, String id, long lastAccessedTime,
+                                 int maxInactiveInterval, byte data[])
+        throws IOException {
+
+        ByteArrayOutputStream bos =
+            new ByteArrayOutputStream(data.length + id.length() + 32);
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeInt(0);
+        dos.writeInt(0);
+        dos.writeByte(type);
+        dos.writeUTF(id);
+        dos.writeLong(lastAccessedTime);
+        dos.writeInt(maxInactiveInterval);
+        dos.write(data);
+        dos.flush();
+        byte record[] = bos.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(record, HEADER_LENGTH, record.length - HEADER_LENGTH);
+        putInt(record, 0, record.length - HEADER_LENGTH);
+        putInt(record, 4, (int) crc.getValue());
+        return (record);
+
+    }
+
+
+    /**
+     * 如果需要, 扫描目录中所有的段, 重建索引.
      *
-     * @param id 要检索的会话的id. 这在文件命名中使用.
+     * @return 是否配置了目录?
      */
-    private File file(String id) {
+    private boolean open() throws IOException {
 
-        if (this.directory == null) {
-            return (null);
+        if (opened) {
+            return (true);
         }
-        String filename = id + FILE_EXT;
-        File file = new File(directory(), filename);
-        return (file);
+        File dir = directory();
+        if (dir == null) {
+            return (false);
+        }
+
+        synchronized (lock) {
+            if (opened) {
+                return (true);
+            }
+
+            // List the segments in order
+            String files[] = dir.list();
+            ArrayList numbers = new ArrayList();
+            for (int i = 0; (files != null) && (i < files.length); i++) {
+                if (!files[i].endsWith(SEGMENT_EXT))
+                    continue;
+                try {
+                    numbers.add(Long.valueOf(files[i].substring
+                        (0, files[i].length() - SEGMENT_EXT.length())));
+                } catch (NumberFormatException e) {
+                    ;
+                }
+            }
+            Long sorted[] = (Long[]) numbers.toArray(new Long[numbers.size()]);
+            Arrays.sort(sorted);
+
+            // Replay every record
+            for (int i = 0; i < sorted.length; i++) {
+                Segment segment = new Segment(dir, sorted[i].longValue());
+                segments.add(segment);
+                long length = segment.length();
+                long offset = 0L;
+                while (offset < length) {
+                    Record record = segment.readRecord(offset, length);
+                    if (record == null) {
+                        log(sm.getString(getStoreName()+".truncated",
+                                         segment.file.getAbsolutePath(),
+                                         String.valueOf(offset)));
+                        segment.truncate(offset);
+                        break;
+                    }
+                    Location location = new Location
+                        (segment, offset, record.raw.length);
+                    apply(record.type, record.id, record.lastAccessedTime,
+                          record.maxInactiveInterval, location);
+                    offset += record.raw.length;
+                }
+                segment.size = offset;
+            }
+            if (segments.isEmpty()) {
+                segments.add(new Segment(dir, 1));
+            }
+            opened = true;
+        }
+        return (true);
+
+    }
+
+
+    /**
+     * 把一个<code>int</code>按高位在前写入字节数组.
+     */
+    private static void putInt(byte buffer[], int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+
+    /**
+     * 读取指定位置的一个记录.
+     */
+    private static Record read(Location location) throws IOException {
+
+        Record record = location.segment.readRecord
+            (location.offset, location.offset + location.length);
+        if (record == null)
+            throw new IOException("Corrupt record at " + location.offset +
+                                  " in " + location.segment.file);
+        return (record);
+
+    }
+
+
+    /**
+     * 读取一个会话的所有记录, 完整记录在前.
+     */
+    private static Record[] read(Entry entry) throws IOException {
+
+        Record records[] = new Record[entry.deltas.length + 1];
+        records[0] = read(entry.full);
+        for (int i = 0; i < entry.deltas.length; i++)
+            records[i + 1] = read(entry.deltas[i]);
+        return (records);
+
+    }
+
+
+    /**
+     * 追加一个会话的完整记录或修改记录, 并更新索引.
+     *
+     * @return 是否应用了这个记录?
+     */
+    private boolean write(byte type, Session session, byte record[])
+        throws IOException {
+
+        synchronized (lock) {
+            if ((type == DELTA) && !index.containsKey(session.getId()))
+                return (false);
+            Location location = append(record);
+            if (debug >= 1) {
+                log(sm.getString(getStoreName()+".saving", session.getId(),
+                                 location.segment.file.getAbsolutePath()));
+            }
+            return (apply(type, session.getId(),
+                          session.getLastAccessedTime(),
+                          session.getMaxInactiveInterval(), location));
+        }
+
+    }
+
+
+    // --------------------------------------------------------- Inner Classes
+
+
+    /**
+     * 一个会话在索引中的信息: 完整记录和此后的修改记录的位置, 以及最新的访问时间.
+     * 实例是不可变的, 每次修改都替换整个实例.
+     */
+    private static final class Entry {
+
+        Entry(Location full, Location deltas[],
+              long lastAccessedTime, int maxInactiveInterval) {
+            this.full = full;
+            this.deltas = deltas;
+            this.lastAccessedTime = lastAccessedTime;
+            this.maxInactiveInterval = maxInactiveInterval;
+        }
+
+        final Location full;
+
+        final Location deltas[];
+
+        final long lastAccessedTime;
+
+        final int maxInactiveInterval;
+
+        /**
+         * 这个会话是否有记录在指定的段中?
+         */
+        boolean references(Segment segment) {
+            if (full.segment == segment)
+                return (true);
+            for (int i = 0; i < deltas.length; i++) {
+                if (deltas[i].segment == segment)
+                    return (true);
+            }
+            return (false);
+        }
+
     }
+
+
+    /**
+     * 一个记录的位置.
+     */
+    private static final class Location {
+
+        Location(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        final Segment segment;
+
+        final long offset;
+
+        final int length;
+
+    }
+
+
+    /**
+     * 一个已解码的记录.
+     */
+    private static final class Record {
+
+        byte raw[];
+
+        byte type;
+
+        String id;
+
+        long lastAccessedTime;
+
+        int maxInactiveInterval;
+
+        /**
+         * 序列化数据的起始位置.
+         */
+        int dataOffset;
+
+        int dataLength() {
+            return (raw.length - dataOffset);
+        }
+
+    }
+
+
+    /**
+     * 一个段文件. 按位置读写, 所以读取不需要同步;
+     * 被中断的线程关闭的通道在下一次使用时重新打开, 除非这个段已经被删除.
+     */
+    private static final class Segment {
+
+        Segment(File directory, long number) throws IOException {
+            this.number = number;
+            this.file = new File(directory, number + SEGMENT_EXT);
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+        }
+
+        final long number;
+
+        final File file;
+
+        private volatile FileChannel channel;
+
+        private volatile boolean deleted = false;
+
+        /**
+         * 已写入的字节数. 只在持有<code>lock</code>时修改.
+         */
+        long size = 0L;
+
+        /**
+         * 仍然被索引引用的记录, 以及删除记录的字节数. 只在持有<code>lock</code>时访问.
+         */
+        long live = 0L;
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                ;
+            }
+        }
+
+        void delete() {
+            deleted = true;
+            close();
+            file.delete();
+        }
+
+        void force() throws IOException {
+            channel().force(false);
+        }
+
+        long length() throws IOException {
+            return (channel().size());
+        }
+
+        /**
+         * 读取并解码指定位置的记录. 如果记录不完整或者校验失败, 返回<code>null</code>.
+         *
+         * @param offset 记录的位置
+         * @param limit 不能超过的位置
+         */
+        Record readRecord(long offset, long limit) throws IOException {
+
+            if (offset + HEADER_LENGTH > limit)
+                return (null);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            read(header, offset);
+            int length = header.getInt(0);
+            if ((length <= 0) || (offset + HEADER_LENGTH + length > limit))
+                return (null);
+
+            byte raw[] = new byte[HEADER_LENGTH + length];
+            read(ByteBuffer.wrap(raw), offset);
+            CRC32 crc = new CRC32();
+            crc.update(raw, HEADER_LENGTH, length);
+            if ((int) crc.getValue() != header.getInt(4))
+                return (null);
+
+            Record record = new Record();
+            record.raw = raw;
+            DataInputStream dis = new DataInputStream
+                (new ByteArrayInputStream(raw, HEADER_LENGTH, length));
+            record.type = dis.readByte();
+            record.id = dis.readUTF();
+            record.lastAccessedTime = dis.readLong();
+            record.maxInactiveInterval = dis.readInt();
+            record.dataOffset = raw.length - dis.available();
+            return (record);
+
+        }
+
+        void truncate(long size) throws IOException {
+            channel().truncate(size);
+        }
+
+        void write(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                try {
+                    position += channel().write(buffer, position);
+                } catch (ClosedChannelException e) {
+                    // Closed by another thread's interrupt, retry on a reopened channel
+                    if (deleted || Thread.currentThread().isInterrupted())
+                        throw e;
+                }
+            }
+        }
+
+        private FileChannel channel() throws IOException {
+            FileChannel current = channel;
+            if (current.isOpen() || deleted)
+                return (current);
+            synchronized (this) {
+                if (!channel.isOpen() && !deleted)
+                    channel = new RandomAccessFile(file, "rw").getChannel();
+                return (channel);
+            }
+        }
+
+        private void read(ByteBuffer buffer, long position)
+            throws IOException {
+            while (buffer.hasRemaining()) {
+                int n = 0;
+                try {
+                    n = channel().read(buffer, position);
+                } catch (ClosedChannelException e) {
+                    if (deleted || Thread.currentThread().isInterrupted())
+                        throw e;
+                    continue;
+                }
+                if (n < 0)
+                    throw new IOException("Unexpected end of " + file);
+                position += n;
+            }
+        }
+
+    }
+
+
 }
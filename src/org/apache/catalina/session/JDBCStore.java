@@ -1,32 +1,41 @@
 package org.apache.catalina.session;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+import javax.sql.DataSource;
 
 import org.apache.catalina.Container;
+import org.apache.catalina.DeltaStore;
 import org.apache.catalina.LifecycleException;
-import org.apache.catalina.Loader;
+import org.apache.catalina.ServerFactory;
 import org.apache.catalina.Session;
-import org.apache.catalina.Store;
-import org.apache.catalina.util.CustomObjectInputStream;
+import org.apache.catalina.core.StandardServer;
 
 /**
  * <code>Store</code>接口实现类，在数据库中存储序列化的会话对象.
  * 保存的会话仍将过期.
+ * <p>
+ * 如果配置了<code>sessionDeltaCol</code>(一个可以为空的二进制列), 会话的修改记录被追加到这一列中,
+ * 而不是重新写入整个会话; 修改记录达到<code>maxDeltas</code>个时重新写入整个会话.
+ * 否则只有被修改过的会话才被重新写入.
  */
-public class JDBCStore extends StoreBase implements Store {
+public class JDBCStore extends StoreBase implements DeltaStore {
 
     /**
      * 实现类描述信息.
@@ -53,84 +62,89 @@ public class JDBCStore extends StoreBase implements Store {
      */
     protected String connString = null;
 
-    /**
-     * 数据库连接
-     */
-    private Connection conn = null;
-
     /**
      * 使用的驱动类.
      */
     protected String driverName = null;
 
-    // ------------------------------------------------------------- Table & cols
+    /**
+     * 全局JNDI命名上下文中的<code>DataSource</code>的名称.
+     * 如果没有指定, 使用<code>driverName</code>和<code>connString</code>打开的连接组成的内部连接池.
+     */
+    protected String dataSourceName = null;
 
     /**
-     * 使用的表.
+     * 启动时查找到的<code>DataSource</code>, 或者<code>null</code>.
      */
-    protected String sessionTable = "tomcat$sessions";
+    protected DataSource dataSource = null;
 
     /**
-     * Column to use for /Engine/Host/Context name
+     * 内部连接池中连接的最大数目.
      */
-    protected String sessionAppCol = "app";
+    protected int maxConnections = 4;
 
     /**
-     * Id column to use.
+     * 批量保存会话时, 每个JDBC批处理包含的最大会话数.
      */
-    protected String sessionIdCol = "id";
+    protected int batchSize = 100;
 
     /**
-     * Data column to use.
+     * 内部连接池中的空闲连接.
      */
-    protected String sessionDataCol = "data";
+    private ConcurrentLinkedQueue idleConnections = new ConcurrentLinkedQueue();
 
     /**
-     * Is Valid column to use.
+     * 内部连接池中每个已分配的连接占用一个许可.
      */
-    protected String sessionValidCol = "valid";
+    private Semaphore connectionPermits = null;
 
     /**
-     * Max Inactive column to use.
+     * 内部连接池的连接 -> 这个连接的预编译语句缓存(SQL -> <code>PreparedStatement</code>).
+     * 一个连接同一时刻只被一个线程使用, 所以每个缓存本身不需要同步.
      */
-    protected String sessionMaxInactiveCol = "maxinactive";
+    private ConcurrentHashMap statementCaches = new ConcurrentHashMap();
+
+    // ------------------------------------------------------------- Table & cols
 
     /**
-     * Last Accessed column to use.
+     * 使用的表.
      */
-    protected String sessionLastAccessedCol = "lastaccess";
+    protected String sessionTable = "tomcat$sessions";
 
-    // ------------------------------------------------------------- SQL Variables
+    /**
+     * Column to use for /Engine/Host/Context name
+     */
+    protected String sessionAppCol = "app";
 
     /**
-     * Variable to hold the <code>getSize()</code> prepared statement.
+     * Id column to use.
      */
-    protected PreparedStatement preparedSizeSql = null;
+    protected String sessionIdCol = "id";
 
     /**
-     * Variable to hold the <code>keys()</code> prepared statement.
+     * Data column to use.
      */
-    protected PreparedStatement preparedKeysSql = null;
+    protected String sessionDataCol = "data";
 
     /**
-     * Variable to hold the <code>save()</code> prepared statement.
+     * Is Valid column to use.
      */
-    protected PreparedStatement preparedSaveSql = null;
+    protected String sessionValidCol = "valid";
 
     /**
-     * Variable to hold the <code>clear()</code> prepared statement.
+     * Max Inactive column to use.
      */
-    protected PreparedStatement preparedClearSql = null;
+    protected String sessionMaxInactiveCol = "maxinactive";
 
     /**
-     * Variable to hold the <code>remove()</code> prepared statement.
+     * Last Accessed column to use.
      */
-    protected PreparedStatement preparedRemoveSql = null;
+    protected String sessionLastAccessedCol = "lastaccess";
 
     /**
-     * Variable to hold the <code>load()</code> prepared statement.
+     * Delta column to use, or <code>null</code> to always write whole sessions.
      */
-    protected PreparedStatement preparedLoadSql = null;
+    protected String sessionDeltaCol = null;
 
     // ------------------------------------------------------------- Properties
 
@@ -198,6 +212,66 @@ public class JDBCStore extends StoreBase implements Store {
         return(this.driverName);
     }
 
+    /**
+     * 返回<code>DataSource</code>的JNDI名称.
+     */
+    public String getDataSourceName() {
+        return(this.dataSourceName);
+    }
+
+    /**
+     * 设置<code>DataSource</code>在全局JNDI命名上下文中的名称.
+     *
+     * @param dataSourceName The JNDI name, or <code>null</code>
+     */
+    public void setDataSourceName(String dataSourceName) {
+        String oldDataSourceName = this.dataSourceName;
+        this.dataSourceName = dataSourceName;
+        support.firePropertyChange("dataSourceName",
+                                   oldDataSourceName,
+                                   this.dataSourceName);
+    }
+
+    /**
+     * 返回内部连接池中连接的最大数目.
+     */
+    public int getMaxConnections() {
+        return(this.maxConnections);
+    }
+
+    /**
+     * 设置内部连接池中连接的最大数目. 在Store启动之后修改没有效果.
+     *
+     * @param maxConnections The new maximum number of connections
+     */
+    public void setMaxConnections(int maxConnections) {
+        int oldMaxConnections = this.maxConnections;
+        this.maxConnections = maxConnections;
+        support.firePropertyChange("maxConnections",
+                                   new Integer(oldMaxConnections),
+                                   new Integer(this.maxConnections));
+    }
+
+    /**
+     * 返回每个JDBC批处理包含的最大会话数.
+     */
+    public int getBatchSize() {
+        return(this.batchSize);
+    }
+
+    /**
+     * 设置每个JDBC批处理包含的最大会话数.
+     *
+     * @param batchSize The new batch size
+     */
+    public void setBatchSize(int batchSize) {
+        int oldBatchSize = this.batchSize;
+        this.batchSize = batchSize;
+        support.firePropertyChange("batchSize",
+                                   new Integer(oldBatchSize),
+                                   new Integer(this.batchSize));
+    }
+
     /**
      * Set the Connection URL for this Store.
      *
@@ -358,6 +432,26 @@ public class JDBCStore extends StoreBase implements Store {
         return(this.sessionLastAccessedCol);
     }
 
+    /**
+     * Set the Delta column for the table
+     *
+     * @param sessionDeltaCol The column name, or <code>null</code>
+     */
+    public void setSessionDeltaCol(String sessionDeltaCol) {
+        String oldSessionDeltaCol = this.sessionDeltaCol;
+        this.sessionDeltaCol = sessionDeltaCol;
+        support.firePropertyChange("sessionDeltaCol",
+                                   oldSessionDeltaCol,
+                                   this.sessionDeltaCol);
+    }
+
+    /**
+     * Return the Delta column
+     */
+    public String getSessionDeltaCol() {
+        return(this.sessionDeltaCol);
+    }
+
     // --------------------------------------------------------- Public Methods
 
     /**
@@ -371,43 +465,31 @@ public class JDBCStore extends StoreBase implements Store {
             "SELECT " + sessionIdCol + " FROM " + sessionTable +
             " WHERE " + sessionAppCol + " = ?";
         ResultSet rst = null;
-        String keys[] = null;
-        int i;
+        PreparedStatement stmt = null;
+        String keys[] = new String[0];
 
-        synchronized(this) {
-            Connection _conn = getConnection();
-
-            if(_conn == null) {
-                return(new String[0]);
-            }
-
-            try {
-                if(preparedKeysSql == null) {
-                    preparedKeysSql = _conn.prepareStatement(keysSql);
-                }
+        Connection _conn = getConnection();
+        if(_conn == null) {
+            return(keys);
+        }
 
-                preparedKeysSql.setString(1, getName());
-                rst = preparedKeysSql.executeQuery();
-                ArrayList tmpkeys = new ArrayList();
-                if (rst != null) {
-                    while(rst.next()) {
-                        tmpkeys.add(rst.getString(1));
-                    }
-                }
-                keys = (String[]) tmpkeys.toArray(new String[tmpkeys.size()]);
-            } catch(SQLException e) {
-                log(sm.getString(getStoreName()+".SQLException", e));
-            } finally {
-                try {
-                    if(rst != null) {
-                        rst.close();
-                    }
-                } catch(SQLException e) {
-                    ;
+        try {
+            stmt = prepareStatement(_conn, keysSql);
+            stmt.setString(1, getName());
+            rst = stmt.executeQuery();
+            ArrayList tmpkeys = new ArrayList();
+            if (rst != null) {
+                while(rst.next()) {
+                    tmpkeys.add(rst.getString(1));
                 }
-
-                release(_conn);
             }
+            keys = (String[]) tmpkeys.toArray(new String[tmpkeys.size()]);
+        } catch(SQLException e) {
+            log(sm.getString(getStoreName()+".SQLException", e));
+        } finally {
+            close(rst);
+            closeStatement(_conn, stmt);
+            release(_conn);
         }
         return(keys);
     }
@@ -424,36 +506,26 @@ public class JDBCStore extends StoreBase implements Store {
             "SELECT COUNT(" + sessionIdCol + ") FROM " + sessionTable +
             " WHERE " + sessionAppCol + " = ?";
         ResultSet rst = null;
+        PreparedStatement stmt = null;
 
-        synchronized(this) {
-            Connection _conn = getConnection();
-
-            if(_conn == null) {
-                return(size);
-            }
-
-            try {
-                if(preparedSizeSql == null) {
-                    preparedSizeSql = _conn.prepareStatement(sizeSql);
-                }
-
-                preparedSizeSql.setString(1, getName());
-                rst = preparedSizeSql.executeQuery();
-                if (rst.next()) {
-                    size = rst.getInt(1);
-                }
-            } catch(SQLException e) {
-                log(sm.getString(getStoreName()+".SQLException", e));
-            } finally {
-                try {
-                    if(rst != null)
-                        rst.close();
-                } catch(SQLException e) {
-                    ;
-                }
+        Connection _conn = getConnection();
+        if(_conn == null) {
+            return(size);
+        }
 
-                release(_conn);
+        try {
+            stmt = prepareStatement(_conn, sizeSql);
+            stmt.setString(1, getName());
+            rst = stmt.executeQuery();
+            if (rst.next()) {
+                size = rst.getInt(1);
             }
+        } catch(SQLException e) {
+            log(sm.getString(getStoreName()+".SQLException", e));
+        } finally {
+            close(rst);
+            closeStatement(_conn, stmt);
+            release(_conn);
         }
         return(size);
     }
@@ -470,78 +542,54 @@ public class JDBCStore extends StoreBase implements Store {
     public Session load(String id)
         throws ClassNotFoundException, IOException {
         ResultSet rst = null;
+        PreparedStatement stmt = null;
         StandardSession _session = null;
-        Loader loader = null;
-        ClassLoader classLoader = null;
-        ObjectInputStream ois = null;
-        BufferedInputStream bis = null;
-        Container container = manager.getContainer();
         String loadSql =
-            "SELECT " + sessionIdCol + ", " + sessionDataCol + " FROM " +
+            "SELECT " + sessionIdCol + ", " + sessionDataCol +
+            ((sessionDeltaCol != null) ? ", " + sessionDeltaCol : "") +
+            " FROM " +
             sessionTable + " WHERE " + sessionIdCol + " = ? AND " +
             sessionAppCol + " = ?";
 
-        synchronized(this) {
-            Connection _conn = getConnection();
-            if(_conn == null) {
-                return(null);
-            }
+        Connection _conn = getConnection();
+        if(_conn == null) {
+            return(null);
+        }
 
-            try {
-                if(preparedLoadSql == null) {
-                    preparedLoadSql = _conn.prepareStatement(loadSql);
+        try {
+            stmt = prepareStatement(_conn, loadSql);
+            stmt.setString(1, id);
+            stmt.setString(2, getName());
+            rst = stmt.executeQuery();
+            if (rst.next()) {
+                ByteArrayOutputStream data = read(rst.getBinaryStream(2));
+
+                if (debug > 0) {
+                    log(sm.getString(getStoreName()+".loading",
+                                     id, sessionTable));
                 }
 
-                preparedLoadSql.setString(1, id);
-                preparedLoadSql.setString(2, getName());
-                rst = preparedLoadSql.executeQuery();
-                if (rst.next()) {
-                    bis = new BufferedInputStream(rst.getBinaryStream(2));
-
-                    if (container != null) {
-                        loader = container.getLoader();
-                    }
-                    if (loader != null) {
-                        classLoader = loader.getClassLoader();
-                    }
-                    if (classLoader != null) {
-                        ois = new CustomObjectInputStream(bis,
-                                                          classLoader);
-                    } else {
-                        ois = new ObjectInputStream(bis);
-                    }
-
-                    if (debug > 0) {
-                        log(sm.getString(getStoreName()+".loading",
-                                         id, sessionTable));
-                    }
-
-                    _session = (StandardSession) manager.createEmptySession();
-                    _session.readObjectData(ois);
-                    _session.setManager(manager);
+                _session = (StandardSession) manager.createEmptySession();
+                getCodec().decode(_session, data.toByteArray(), 0,
+                                  data.size());
+                _session.setManager(manager);
 
-                } else if (debug > 0) {
-                    log(getStoreName()+": No persisted data object found");
-                }
-            } catch(SQLException e) {
-                log(sm.getString(getStoreName()+".SQLException", e));
-            } finally {
-                try {
-                    if(rst != null) {
-                        rst.close();
-                    }
-                } catch(SQLException e) {
-                    ;
-                }
-                if (ois != null) {
-                    try {
-                        ois.close();
-                    } catch (IOException e) {
-                        ;
-                    }
+                // 应用此后追加的修改记录
+                if (sessionDeltaCol != null) {
+                    InputStream deltas = rst.getBinaryStream(3);
+                    if (deltas != null)
+                        readDeltas(_session, deltas);
                 }
-                release(_conn);
+
+            } else if (debug > 0) {
+                log(getStoreName()+": No persisted data object found");
             }
+        } catch(SQLException e) {
+            log(sm.getString(getStoreName()+".SQLException", e));
+        } finally {
+            close(rst);
+            closeStatement(_conn, stmt);
+            release(_conn);
         }
         return(_session);
     }
@@ -558,27 +606,23 @@ public class JDBCStore extends StoreBase implements Store {
         String removeSql =
             "DELETE FROM " + sessionTable + " WHERE " + sessionIdCol +
             " = ?  AND " + sessionAppCol + " = ?";
+        PreparedStatement stmt = null;
 
-        synchronized(this) {
-            Connection _conn = getConnection();
-
-            if(_conn == null) {
-                return;
-            }
-
-            try {
-                if(preparedRemoveSql == null) {
-                    preparedRemoveSql = _conn.prepareStatement(removeSql);
-                }
+        Connection _conn = getConnection();
+        if(_conn == null) {
+            return;
+        }
 
-                preparedRemoveSql.setString(1, id);
-                preparedRemoveSql.setString(2, getName());
-                preparedRemoveSql.execute();
-            } catch(SQLException e) {
-                log(sm.getString(getStoreName()+".SQLException", e));
-            } finally {
-                release(_conn);
-            }
+        try {
+            stmt = prepareStatement(_conn, removeSql);
+            stmt.setString(1, id);
+            stmt.setString(2, getName());
+            stmt.execute();
+        } catch(SQLException e) {
+            log(sm.getString(getStoreName()+".SQLException", e));
+        } finally {
+            closeStatement(_conn, stmt);
+            release(_conn);
         }
 
         if (debug > 0) {
@@ -594,95 +638,146 @@ public class JDBCStore extends StoreBase implements Store {
     public void clear() throws IOException {
         String clearSql =
             "DELETE FROM " + sessionTable + " WHERE " + sessionAppCol + " = ?";
+        PreparedStatement stmt = null;
 
-        synchronized(this) {
-            Connection _conn = getConnection();
-            if(_conn == null) {
-                return;
-            }
-
-            try {
-                if(preparedClearSql == null) {
-                    preparedClearSql = _conn.prepareStatement(clearSql);
-                }
+        Connection _conn = getConnection();
+        if(_conn == null) {
+            return;
+        }
 
-                preparedClearSql.setString(1, getName());
-                preparedClearSql.execute();
-            } catch(SQLException e) {
-                log(sm.getString(getStoreName()+".SQLException", e));
-            } finally {
-                release(_conn);
-            }
+        try {
+            stmt = prepareStatement(_conn, clearSql);
+            stmt.setString(1, getName());
+            stmt.execute();
+        } catch(SQLException e) {
+            log(sm.getString(getStoreName()+".SQLException", e));
+        } finally {
+            closeStatement(_conn, stmt);
+            release(_conn);
         }
     }
 
     /**
-     * 保存一个session.
+     * 保存一个session. 如果数据库中已经有这个会话, 更新它; 否则插入它.
      *
      * @param session the session to be stored
      * @exception IOException if an input/output error occurs
      */
     public void save(Session session) throws IOException {
-        String saveSql =
-            "INSERT INTO " + sessionTable + " (" + sessionIdCol + ", " +
-            sessionAppCol + ", " +
-            sessionDataCol + ", " +
-            sessionValidCol + ", " +
-            sessionMaxInactiveCol + ", " +
-            sessionLastAccessedCol + ") VALUES (?, ?, ?, ?, ?, ?)";
-        ObjectOutputStream oos = null;
-        ByteArrayOutputStream bos = null;
-        ByteArrayInputStream bis = null;
-        InputStream in = null;
-
-        synchronized(this) {
-            Connection _conn = getConnection();
-            if(_conn == null) {
-                return;
-            }
-
-            // If sessions already exist in DB, remove and insert again.
-            // TODO:
-            // * Check if ID exists in database and if so use UPDATE.
-            remove(session.getId());
+        save(new Session[] { session }, false);
+    }
 
-            try {
-                bos = new ByteArrayOutputStream();
-                oos = new ObjectOutputStream(new BufferedOutputStream(bos));
+    /**
+     * 批量保存多个session, 每个JDBC批处理最多包含<code>batchSize</code>个会话.
+     * 没有被修改过的会话被跳过.
+     * 如果配置了<code>sessionDeltaCol</code>, 每个会话使用<code>saveDelta()</code>单独保存.
+     *
+     * @param sessions the sessions to be stored
+     * @exception IOException if an input/output error occurs
+     */
+    public void save(Session sessions[]) throws IOException {
+        if (sessionDeltaCol != null) {
+            for (int i = 0; i < sessions.length; i++) {
+                saveDelta(sessions[i]);
+            }
+            return;
+        }
+        save(sessions, true);
+    }
 
-                ((StandardSession)session).writeObjectData(oos);
-                oos.close();
+    /**
+     * 保存一个session自上次保存以来修改的部分.
+     * 如果没有配置<code>sessionDeltaCol</code>, 数据库中还没有这个会话,
+     * 或者修改记录已经达到<code>maxDeltas</code>个, 重新写入整个会话.
+     * 读取和写回修改记录在一个事务中执行, 使用<code>SELECT ... FOR UPDATE</code>锁定这一行.
+     *
+     * @param session the session to be stored
+     * @exception IOException if an input/output error occurs
+     */
+    public void saveDelta(Session session) throws IOException {
+        StandardSession _session = (StandardSession) session;
+        if (!_session.isDirty()) {
+            return;
+        }
+        if (sessionDeltaCol == null) {
+            save(session);
+            return;
+        }
 
-                byte[] obs = bos.toByteArray();
-                int size = obs.length;
-                bis = new ByteArrayInputStream(obs, 0, size);
-                in = new BufferedInputStream(bis, size);
+        String deltaLoadSql =
+            "SELECT " + sessionDeltaCol + " FROM " + sessionTable +
+            " WHERE " + sessionIdCol + " = ? AND " + sessionAppCol + " = ?" +
+            " FOR UPDATE";
+        String deltaSaveSql =
+            "UPDATE " + sessionTable + " SET " +
+            sessionDeltaCol + " = ?, " +
+            sessionValidCol + " = ?, " +
+            sessionMaxInactiveCol + " = ?, " +
+            sessionLastAccessedCol + " = ? WHERE " +
+            sessionIdCol + " = ? AND " + sessionAppCol + " = ?";
+        ResultSet rst = null;
+        PreparedStatement stmt = null;
+        boolean compact = true;
 
-                if(preparedSaveSql == null) {
-                    preparedSaveSql = _conn.prepareStatement(saveSql);
-                }
+        Connection _conn = getConnection();
+        if(_conn == null) {
+            return;
+        }
 
-                preparedSaveSql.setString(1, session.getId());
-                preparedSaveSql.setString(2, getName());
-                preparedSaveSql.setBinaryStream(3, in, size);
-                preparedSaveSql.setString(4, session.isValid()?"1":"0");
-                preparedSaveSql.setInt(5, session.getMaxInactiveInterval());
-                preparedSaveSql.setLong(6, session.getLastAccessedTime());
-                preparedSaveSql.execute();
-            } catch(SQLException e) {
-                log(sm.getString(getStoreName()+".SQLException", e));
-            } catch (IOException e) {
-                ;
-            } finally {
-                if(bis != null) {
-                    bis.close();
-                }
-                if(in != null) {
-                    in.close();
+        // Reading and rewriting the records is one transaction, and the
+        // row stays locked in between, so that no concurrent save of the
+        // same session is lost
+        String names[] = _session.resetDirty();
+        boolean committed = false;
+        try {
+            _conn.setAutoCommit(false);
+            stmt = prepareStatement(_conn, deltaLoadSql);
+            stmt.setString(1, session.getId());
+            stmt.setString(2, getName());
+            rst = stmt.executeQuery();
+            if ((names != null) && rst.next()) {
+                // Append the new record to the existing ones
+                ByteArrayOutputStream bos = read(rst.getBinaryStream(1));
+                close(rst);
+                rst = null;
+                closeStatement(_conn, stmt);
+                stmt = null;
+                if (countDeltas(bos.toByteArray()) < maxDeltas) {
+                    byte record[] = serializeDelta(_session, names);
+                    DataOutputStream dos = new DataOutputStream(bos);
+                    dos.writeInt(record.length);
+                    dos.write(record);
+                    dos.flush();
+                    byte deltas[] = bos.toByteArray();
+
+                    stmt = prepareStatement(_conn, deltaSaveSql);
+                    stmt.setBinaryStream
+                        (1, new ByteArrayInputStream(deltas), deltas.length);
+                    stmt.setString(2, session.isValid()?"1":"0");
+                    stmt.setInt(3, session.getMaxInactiveInterval());
+                    stmt.setLong(4, session.getLastAccessedTime());
+                    stmt.setString(5, session.getId());
+                    stmt.setString(6, getName());
+                    compact = (stmt.executeUpdate() == 0);
                 }
-
-                release(_conn);
             }
+            _conn.commit();
+            committed = true;
+        } catch(SQLException e) {
+            log(sm.getString(getStoreName()+".SQLException", e));
+        } catch (IOException e) {
+            _session.setFullSaveRequired();
+            throw e;
+        } finally {
+            close(rst);
+            closeStatement(_conn, stmt);
+            endTransaction(_conn, committed);
+            release(_conn);
+        }
+
+        if (compact) {
+            save(session);
+            return;
         }
 
         if (debug > 0) {
@@ -694,40 +789,149 @@ public class JDBCStore extends StoreBase implements Store {
     // --------------------------------------------------------- Protected Methods
 
     /**
-     * 检查连接, 如果是<code>null</code>或已经关闭，重新打开它.
+     * 返回指定字节数组中的修改记录数. 每个记录以它的长度开始.
+     *
+     * @param deltas 保存的修改记录
+     */
+    protected int countDeltas(byte deltas[]) {
+        int count = 0;
+        int pos = 0;
+        while (pos + 4 <= deltas.length) {
+            int length = ((deltas[pos] & 0xff) << 24) |
+                ((deltas[pos + 1] & 0xff) << 16) |
+                ((deltas[pos + 2] & 0xff) << 8) |
+                (deltas[pos + 3] & 0xff);
+            if (length < 0)
+                break;
+            pos += 4 + length;
+            count++;
+        }
+        return (count);
+    }
+
+    /**
+     * 从连接池中获取一个连接. 如果配置了<code>DataSource</code>, 从它获取;
+     * 否则从内部连接池获取, 如有必要打开一个新连接, 在所有连接都在使用时等待.
      * 返回<code>null</code>，如果无法建立连接.
+     * 获取的连接必须使用<code>release()</code>归还.
      *
      * @return <code>Connection</code> if the connection suceeded
      */
     protected Connection getConnection(){
+        if (dataSource != null) {
+            try {
+                return (dataSource.getConnection());
+            } catch (SQLException ex) {
+                log(sm.getString(getStoreName()+".checkConnectionSQLException",
+                                 ex.toString()));
+                return (null);
+            }
+        }
+
+        Semaphore permits = connectionPermits();
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return (null);
+        }
+
+        Connection conn = (Connection) idleConnections.poll();
         try {
-            if(conn == null || conn.isClosed()) {
+            if (conn != null && conn.isClosed()) {
+                discard(conn);
+                conn = null;
+            }
+            if (conn == null) {
                 Class.forName(driverName);
                 log(sm.getString(getStoreName()+".checkConnectionDBClosed"));
                 conn = DriverManager.getConnection(connString);
                 conn.setAutoCommit(true);
-
-                if(conn == null || conn.isClosed()) {
-                    log(sm.getString(getStoreName()+".checkConnectionDBReOpenFail"));
-                }
+                statementCaches.put(conn, new HashMap());
             }
+            return (conn);
         } catch (SQLException ex){
             log(sm.getString(getStoreName()+".checkConnectionSQLException",
                              ex.toString()));
+            log(sm.getString(getStoreName()+".checkConnectionDBReOpenFail"));
         } catch (ClassNotFoundException ex) {
             log(sm.getString(getStoreName()+".checkConnectionClassNotFoundException",
                              ex.toString()));
         }
-
-        return conn;
+        permits.release();
+        return (null);
     }
 
     /**
-     * 释放连接, 这里不需要，因为连接与连接池没有关联.
+     * 将<code>getConnection()</code>获取的连接归还到连接池.
+     * 来自<code>DataSource</code>的连接被关闭, 由它归还到它自己的连接池.
      *
      * @param conn The connection to be released
      */
     protected void release(Connection conn) {
+        if (conn == null) {
+            return;
+        }
+        if (!statementCaches.containsKey(conn)) {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                ;
+            }
+            return;
+        }
+        // A connection that was in use when the store stopped is closed
+        // when it comes back
+        if (!started) {
+            discard(conn);
+        } else {
+            idleConnections.offer(conn);
+            if (!started && idleConnections.remove(conn))
+                discard(conn);
+        }
+        connectionPermits().release();
+    }
+
+    /**
+     * 返回指定连接上执行指定SQL的预编译语句.
+     * 内部连接池的连接缓存它们的预编译语句, 语句在连接关闭之前一直被重用;
+     * 来自<code>DataSource</code>的连接每次创建新的语句, 由<code>DataSource</code>决定是否缓存.
+     *
+     * @param conn 已获取的连接
+     * @param sql 要执行的SQL
+     *
+     * @exception SQLException if a database error occurs
+     */
+    protected PreparedStatement prepareStatement(Connection conn, String sql)
+        throws SQLException {
+        HashMap cache = (HashMap) statementCaches.get(conn);
+        if (cache == null) {
+            return (conn.prepareStatement(sql));
+        }
+        PreparedStatement stmt = (PreparedStatement) cache.get(sql);
+        if (stmt == null) {
+            stmt = conn.prepareStatement(sql);
+            cache.put(sql, stmt);
+        }
+        return (stmt);
+    }
+
+    /**
+     * 使用完<code>prepareStatement()</code>返回的语句.
+     * 只有不被缓存的语句才被关闭.
+     *
+     * @param conn 已获取的连接
+     * @param stmt 语句, 或者<code>null</code>
+     */
+    protected void closeStatement(Connection conn, PreparedStatement stmt) {
+        if (stmt == null || statementCaches.containsKey(conn)) {
+            return;
+        }
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            ;
+        }
     }
 
     /**
@@ -735,8 +939,20 @@ public class JDBCStore extends StoreBase implements Store {
      */
     public void start() throws LifecycleException {
         super.start();
-        // Open connection to the database
-        this.conn = getConnection();
+        if (dataSourceName != null) {
+            // Look up the DataSource in the global naming context
+            try {
+                StandardServer server =
+                    (StandardServer) ServerFactory.getServer();
+                javax.naming.Context context = server.getGlobalNamingContext();
+                this.dataSource = (DataSource) context.lookup(dataSourceName);
+            } catch (Exception e) {
+                log(sm.getString(getStoreName()+".checkConnectionSQLException",
+                                 e.toString()));
+            }
+        }
+        // Open the first connection to the database
+        release(getConnection());
     }
 
     /**
@@ -747,74 +963,295 @@ public class JDBCStore extends StoreBase implements Store {
         super.stop();
 
         // Close and release everything associated with our db.
-        if(conn != null) {
+        Connection conn = null;
+        while ((conn = (Connection) idleConnections.poll()) != null) {
             try {
-                conn.commit();
+                if (!conn.getAutoCommit()) {
+                    conn.commit();
+                }
             } catch (SQLException e) {
                 ;
             }
+            discard(conn);
+        }
+        this.dataSource = null;
+    }
 
-            if( preparedSizeSql != null ) {
-                try {
-                    preparedSizeSql.close();
-                } catch (SQLException e) {
-                    ;
-                }
+    // --------------------------------------------------------- Private Methods
+
+    /**
+     * 关闭一个结果集, 忽略所有的错误.
+     */
+    private void close(ResultSet rst) {
+        if (rst == null) {
+            return;
+        }
+        try {
+            rst.close();
+        } catch (SQLException e) {
+            ;
+        }
+    }
+
+    /**
+     * 返回内部连接池的许可, 如有必要创建它们.
+     */
+    private synchronized Semaphore connectionPermits() {
+        if (connectionPermits == null) {
+            connectionPermits = new Semaphore(maxConnections, true);
+        }
+        return (connectionPermits);
+    }
+
+    /**
+     * 结束<code>saveDelta()</code>的事务: 如果没有提交, 回滚它, 然后恢复自动提交.
+     */
+    private void endTransaction(Connection conn, boolean committed) {
+        try {
+            if (!committed) {
+                conn.rollback();
             }
+        } catch (SQLException e) {
+            ;
+        }
+        try {
+            conn.setAutoCommit(true);
+        } catch (SQLException e) {
+            ;
+        }
+    }
 
-            if( preparedKeysSql != null ) { 
+    /**
+     * 关闭内部连接池中的一个连接, 以及它缓存的所有预编译语句.
+     */
+    private void discard(Connection conn) {
+        HashMap cache = (HashMap) statementCaches.remove(conn);
+        if (cache != null) {
+            Iterator stmts = cache.values().iterator();
+            while (stmts.hasNext()) {
                 try {
-                    preparedKeysSql.close();
+                    ((PreparedStatement) stmts.next()).close();
                 } catch (SQLException e) {
                     ;
                 }
             }
+        }
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            ;
+        }
+    }
 
-            if( preparedSaveSql != null ) { 
-                try {
-                    preparedSaveSql.close();
-                } catch (SQLException e) {
-                    ;
-                }
+    /**
+     * 读取指定输入流的全部内容, 然后关闭它. 如果输入流是<code>null</code>, 返回空的内容.
+     *
+     * @param in 要读取的输入流, 可以是<code>null</code>
+     */
+    private ByteArrayOutputStream read(InputStream in) throws IOException {
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        if (in == null)
+            return (bos);
+        try {
+            byte buffer[] = new byte[4096];
+            int n = 0;
+            while ((n = in.read(buffer)) >= 0)
+                bos.write(buffer, 0, n);
+        } finally {
+            in.close();
+        }
+        return (bos);
+
+    }
+
+
+    /**
+     * 设置更新一个会话的行的语句的参数.
+     *
+     * @param stmt the UPDATE statement
+     * @param session the session to be stored
+     * @param data 会话序列化的数据
+     * @exception SQLException if a database error occurs
+     */
+    private void setUpdateParameters(PreparedStatement stmt, Session session,
+                                     byte data[])
+        throws SQLException {
+        stmt.setBinaryStream
+            (1, new ByteArrayInputStream(data), data.length);
+        stmt.setString(2, session.isValid()?"1":"0");
+        stmt.setInt(3, session.getMaxInactiveInterval());
+        stmt.setLong(4, session.getLastAccessedTime());
+        stmt.setString(5, session.getId());
+        stmt.setString(6, getName());
+    }
+
+
+    /**
+     * 保存指定的会话. 首先批量更新已经存在的行, 然后批量插入更新不到的会话.
+     * 批量更新没有报告更新的行数的会话(<code>SUCCESS_NO_INFO</code>, <code>EXECUTE_FAILED</code>)
+     * 被单独更新一次, 以确定是否需要插入. 没有确认被写入的会话保持为已修改的, 不会被当作已经保存.
+     *
+     * @param sessions the sessions to be stored
+     * @param dirtyOnly 是否跳过没有被修改过的会话?
+     * @exception IOException if an input/output error occurs
+     */
+    private void save(Session sessions[], boolean dirtyOnly)
+        throws IOException {
+        String updateSql =
+            "UPDATE " + sessionTable + " SET " +
+            sessionDataCol + " = ?, " +
+            sessionValidCol + " = ?, " +
+            sessionMaxInactiveCol + " = ?, " +
+            sessionLastAccessedCol + " = ?" +
+            ((sessionDeltaCol != null) ? ", " + sessionDeltaCol + " = NULL" : "") +
+            " WHERE " + sessionIdCol + " = ? AND " + sessionAppCol + " = ?";
+        String insertSql =
+            "INSERT INTO " + sessionTable + " (" + sessionIdCol + ", " +
+            sessionAppCol + ", " +
+            sessionDataCol + ", " +
+            sessionValidCol + ", " +
+            sessionMaxInactiveCol + ", " +
+            sessionLastAccessedCol + ") VALUES (?, ?, ?, ?, ?, ?)";
+
+        // Serialize first, so no connection is held meanwhile
+        ArrayList saved = new ArrayList();
+        ArrayList datas = new ArrayList();
+        for (int i = 0; i < sessions.length; i++) {
+            StandardSession session = (StandardSession) sessions[i];
+            if (dirtyOnly && !session.isDirty()) {
+                continue;
+            }
+            session.resetDirty();
+            try {
+                datas.add(getCodec().encode(session));
+                saved.add(session);
+            } catch (IOException e) {
+                session.setFullSaveRequired();
+                log(sm.getString(getStoreName()+".SQLException", e));
             }
+        }
+        if (saved.isEmpty()) {
+            return;
+        }
 
-            if( preparedClearSql != null ) { 
-                try {
-                    preparedClearSql.close();
-                } catch (SQLException e) {
-                    ;
-                }
+        Connection _conn = getConnection();
+        if(_conn == null) {
+            for (int i = 0; i < saved.size(); i++) {
+                ((StandardSession) saved.get(i)).setFullSaveRequired();
             }
+            return;
+        }
 
-            if( preparedRemoveSql != null ) { 
-                try {
-                    preparedRemoveSql.close();
-                } catch (SQLException e) {
-                    ;
+        PreparedStatement stmt = null;
+        boolean autoCommit = true;
+        try {
+            autoCommit = _conn.getAutoCommit();
+            if (autoCommit && saved.size() > 1) {
+                _conn.setAutoCommit(false);
+            }
+
+            // Update the rows that already exist
+            ArrayList missing = new ArrayList();
+            ArrayList unknown = new ArrayList();
+            stmt = prepareStatement(_conn, updateSql);
+            int start = 0;
+            for (int i = 0; i < saved.size(); i++) {
+                setUpdateParameters(stmt, (Session) saved.get(i),
+                                    (byte[]) datas.get(i));
+                stmt.addBatch();
+                if ((i + 1 - start >= batchSize) || (i + 1 == saved.size())) {
+                    int counts[] = stmt.executeBatch();
+                    for (int j = start; j <= i; j++) {
+                        int count = (j - start < counts.length) ?
+                            counts[j - start] : Statement.EXECUTE_FAILED;
+                        if (count == 0) {
+                            missing.add(new Integer(j));
+                        } else if (count < 0) {
+                            unknown.add(new Integer(j));
+                        }
+                    }
+                    start = i + 1;
                 }
             }
 
-            if( preparedLoadSql != null ) { 
-                try {
-                    preparedLoadSql.close();
-                } catch (SQLException e) {
-                    ;
+            // The driver did not tell whether these rows exist
+            for (int i = 0; i < unknown.size(); i++) {
+                int index = ((Integer) unknown.get(i)).intValue();
+                setUpdateParameters(stmt, (Session) saved.get(index),
+                                    (byte[]) datas.get(index));
+                if (stmt.executeUpdate() < 1) {
+                    missing.add(new Integer(index));
+                }
+            }
+            closeStatement(_conn, stmt);
+            stmt = null;
+
+            // Insert the remaining ones
+            if (!missing.isEmpty()) {
+                stmt = prepareStatement(_conn, insertSql);
+                start = 0;
+                for (int i = 0; i < missing.size(); i++) {
+                    int index = ((Integer) missing.get(i)).intValue();
+                    Session session = (Session) saved.get(index);
+                    byte data[] = (byte[]) datas.get(index);
+                    stmt.setString(1, session.getId());
+                    stmt.setString(2, getName());
+                    stmt.setBinaryStream
+                        (3, new ByteArrayInputStream(data), data.length);
+                    stmt.setString(4, session.isValid()?"1":"0");
+                    stmt.setInt(5, session.getMaxInactiveInterval());
+                    stmt.setLong(6, session.getLastAccessedTime());
+                    stmt.addBatch();
+                    if (((i + 1) % batchSize == 0) || (i + 1 == missing.size())) {
+                        int counts[] = stmt.executeBatch();
+                        for (int j = start; j <= i; j++) {
+                            if ((j - start >= counts.length) ||
+                                (counts[j - start] == Statement.EXECUTE_FAILED)) {
+                                // Not written: keep it dirty
+                                int failed = ((Integer) missing.get(j)).intValue();
+                                ((StandardSession) saved.get(failed))
+                                    .setFullSaveRequired();
+                            }
+                        }
+                        start = i + 1;
+                    }
                 }
             }
 
+            if (!_conn.getAutoCommit()) {
+                _conn.commit();
+            }
+        } catch(SQLException e) {
+            for (int i = 0; i < saved.size(); i++) {
+                ((StandardSession) saved.get(i)).setFullSaveRequired();
+            }
             try {
-                conn.close();
+                if (!_conn.getAutoCommit()) {
+                    _conn.rollback();
+                }
+            } catch (SQLException f) {
+                ;
+            }
+            log(sm.getString(getStoreName()+".SQLException", e));
+        } finally {
+            try {
+                if (_conn.getAutoCommit() != autoCommit) {
+                    _conn.setAutoCommit(autoCommit);
+                }
             } catch (SQLException e) {
                 ;
             }
+            closeStatement(_conn, stmt);
+            release(_conn);
+        }
 
-            this.preparedSizeSql = null;
-            this.preparedKeysSql = null;
-            this.preparedSaveSql = null;
-            this.preparedClearSql = null;
-            this.preparedRemoveSql = null;
-            this.preparedLoadSql = null;
-            this.conn = null;
+        if (debug > 0) {
+            for (int i = 0; i < saved.size(); i++) {
+                log(sm.getString(getStoreName()+".saving",
+                                 ((Session) saved.get(i)).getId(),
+                                 sessionTable));
+            }
         }
     }
 }
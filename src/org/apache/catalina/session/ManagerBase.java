@@ -8,9 +8,10 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.catalina.Container;
 import org.apache.catalina.DefaultContext;
@@ -18,6 +19,7 @@ import org.apache.catalina.Engine;
 import org.apache.catalina.Logger;
 import org.apache.catalina.Manager;
 import org.apache.catalina.Session;
+import org.apache.catalina.util.SessionIdGenerator;
 import org.apache.catalina.util.StringManager;
 
 
@@ -41,12 +43,26 @@ public abstract class ManagerBase implements Manager {
 
 
     /**
-     * 生成会话标识符时要使用的消息摘要算法. 
+     * 消息摘要算法. 
      * 这一定是一个<code>java.security.MessageDigest</code>支持的算法.
+     * 会话标识符直接由随机字节生成, 不再使用这个算法.
      */
     protected String algorithm = DEFAULT_ALGORITHM;
 
 
+    /**
+     * 序列化会话时使用的编解码器, 在第一次使用时根据<code>codecClass</code>创建.
+     */
+    protected volatile SessionCodec codec = null;
+
+
+    /**
+     * 会话编解码器的java类的名称.
+     */
+    protected String codecClass =
+        "org.apache.catalina.session.CompactSessionCodec";
+
+
     /**
      * 关联的Container.
      */
@@ -114,6 +130,24 @@ public abstract class ManagerBase implements Manager {
     protected String randomClass = "java.security.SecureRandom";
 
 
+    /**
+     * 生成会话标识符时使用的生成器, 在第一次使用时根据当前的属性创建.
+     */
+    protected volatile SessionIdGenerator sessionIdGenerator = null;
+
+
+    /**
+     * 生成会话标识符时要包含的随机字节数.
+     */
+    protected int sessionIdLength = SESSION_ID_BYTES;
+
+
+    /**
+     * 重新启动时并行保存和加载会话的线程数.
+     */
+    protected int snapshotThreads = Runtime.getRuntime().availableProcessors();
+
+
     /**
      * 以前回收的会话集合.
      */
@@ -122,13 +156,19 @@ public abstract class ManagerBase implements Manager {
 
     /**
      * 当前活动会话集合, 会话标识符作为key.
+     * 这是一个并发的集合, 查找、添加和删除会话都不需要获取锁.
      */
-    protected HashMap sessions = new HashMap();
+    protected Map sessions = new ConcurrentHashMap();
 
     // 会话总数
     protected int sessionCounter=0;
 
-    protected int maxActive=0;
+    protected volatile int maxActive=0;
+
+    /**
+     * 更新<code>maxActive</code>时使用的锁.
+     */
+    private final Object maxActiveUpdateLock = new Object();
 
     // 重复会话ID - anything >0 means we have problems
     protected int duplicates=0;
@@ -170,6 +210,55 @@ public abstract class ManagerBase implements Manager {
     }
 
 
+    /**
+     * 返回序列化会话时使用的编解码器, 如果还没有创建, 根据<code>codecClass</code>创建一个.
+     * 如果不能创建指定的类, 使用<code>CompactSessionCodec</code>.
+     */
+    public SessionCodec getCodec() {
+
+        SessionCodec result = codec;
+        if (result == null) {
+            synchronized (this) {
+                result = codec;
+                if (result == null) {
+                    try {
+                        Class clazz = Class.forName(codecClass);
+                        result = (SessionCodec) clazz.newInstance();
+                    } catch (Exception e) {
+                        log(sm.getString("managerBase.codec", codecClass), e);
+                        result = new CompactSessionCodec();
+                    }
+                    codec = result;
+                }
+            }
+        }
+        return (result);
+
+    }
+
+
+    /**
+     * 返回会话编解码器类的名称.
+     */
+    public String getCodecClass() {
+        return (this.codecClass);
+    }
+
+
+    /**
+     * 设置会话编解码器类的名称.
+     *
+     * @param codecClass The new codec class name
+     */
+    public void setCodecClass(String codecClass) {
+        String oldCodecClass = this.codecClass;
+        this.codecClass = codecClass;
+        this.codec = null;
+        support.firePropertyChange("codecClass", oldCodecClass,
+                                   this.codecClass);
+    }
+
+
     /**
      * 返回关联的Container.
      */
@@ -300,6 +389,7 @@ public abstract class ManagerBase implements Manager {
     public void setEntropy(String entropy) {
         String oldEntropy = entropy;
         this.entropy = entropy;
+        this.sessionIdGenerator = null;
         support.firePropertyChange("entropy", oldEntropy, this.entropy);
     }
 
@@ -398,11 +488,85 @@ public abstract class ManagerBase implements Manager {
     public void setRandomClass(String randomClass) {
         String oldRandomClass = this.randomClass;
         this.randomClass = randomClass;
+        this.sessionIdGenerator = null;
         support.firePropertyChange("randomClass", oldRandomClass,
                                    this.randomClass);
     }
 
 
+    /**
+     * 返回重新启动时并行保存和加载会话的线程数.
+     */
+    public int getSnapshotThreads() {
+        return (this.snapshotThreads);
+    }
+
+
+    /**
+     * 设置重新启动时并行保存和加载会话的线程数.
+     *
+     * @param snapshotThreads The new number of threads
+     */
+    public void setSnapshotThreads(int snapshotThreads) {
+        int oldSnapshotThreads = this.snapshotThreads;
+        this.snapshotThreads = snapshotThreads;
+        support.firePropertyChange("snapshotThreads",
+                                   new Integer(oldSnapshotThreads),
+                                   new Integer(this.snapshotThreads));
+    }
+
+
+    /**
+     * 返回生成会话标识符时要包含的随机字节数.
+     */
+    public int getSessionIdLength() {
+        return (this.sessionIdLength);
+    }
+
+
+    /**
+     * 设置生成会话标识符时要包含的随机字节数.
+     *
+     * @param sessionIdLength The new session identifier length
+     */
+    public void setSessionIdLength(int sessionIdLength) {
+        int oldSessionIdLength = this.sessionIdLength;
+        this.sessionIdLength = sessionIdLength;
+        this.sessionIdGenerator = null;
+        support.firePropertyChange("sessionIdLength",
+                                   new Integer(oldSessionIdLength),
+                                   new Integer(this.sessionIdLength));
+    }
+
+
+    /**
+     * 返回生成会话标识符时使用的生成器. 如果还没有创建, 根据当前的属性创建一个.
+     */
+    public SessionIdGenerator getSessionIdGenerator() {
+
+        SessionIdGenerator generator = this.sessionIdGenerator;
+        if (generator != null)
+            return (generator);
+        synchronized (this) {
+            if (this.sessionIdGenerator == null) {
+                log(sm.getString("managerBase.seeding", randomClass));
+                try {
+                    this.sessionIdGenerator = new SessionIdGenerator
+                        (randomClass, getEntropy(), sessionIdLength);
+                } catch (IllegalArgumentException e) {
+                    log(sm.getString("managerBase.random", randomClass), e);
+                    this.sessionIdGenerator = new SessionIdGenerator
+                        (SessionIdGenerator.DEFAULT_RANDOM_CLASS,
+                         getEntropy(), SESSION_ID_BYTES);
+                }
+                log(sm.getString("managerBase.complete", randomClass));
+            }
+            return (this.sessionIdGenerator);
+        }
+
+    }
+
+
     // --------------------------------------------------------- Public Methods
 
 
@@ -412,10 +576,13 @@ public abstract class ManagerBase implements Manager {
      * @param session Session to be added
      */
     public void add(Session session) {
-        synchronized (sessions) {
-            sessions.put(session.getId(), session);
-            if( sessions.size() > maxActive ) {
-                maxActive=sessions.size();
+        sessions.put(session.getId(), session);
+        int size = sessions.size();
+        if( size > maxActive ) {
+            synchronized (maxActiveUpdateLock) {
+                if( size > maxActive ) {
+                    maxActive = size;
+                }
             }
         }
     }
@@ -449,22 +616,12 @@ public abstract class ManagerBase implements Manager {
         session.setValid(true);
         session.setCreationTime(System.currentTimeMillis());
         session.setMaxInactiveInterval(this.maxInactiveInterval);
-        String sessionId = generateSessionId();
-
+        SessionIdGenerator generator = getSessionIdGenerator();
         String jvmRoute = getJvmRoute();
-        // @todo Move appending of jvmRoute generateSessionId()???
-        if (jvmRoute != null) {
-            sessionId += '.' + jvmRoute;
-        }
-        synchronized (sessions) {
-            while (sessions.get(sessionId) != null){ // Guarantee uniqueness
-                sessionId = generateSessionId();
-                duplicates++;
-                // @todo Move appending of jvmRoute generateSessionId()???
-                if (jvmRoute != null) {
-                    sessionId += '.' + jvmRoute;
-                }
-            }
+        String sessionId = generator.generateSessionId(jvmRoute);
+        while (sessions.get(sessionId) != null){ // Guarantee uniqueness
+            sessionId = generator.generateSessionId(jvmRoute);
+            duplicates++;
         }
 
         session.setId(sessionId);
@@ -506,10 +663,7 @@ public abstract class ManagerBase implements Manager {
     public Session findSession(String id) throws IOException {
         if (id == null)
             return (null);
-        synchronized (sessions) {
-            Session session = (Session) sessions.get(id);
-            return (session);
-        }
+        return ((Session) sessions.get(id));
     }
 
 
@@ -518,12 +672,7 @@ public abstract class ManagerBase implements Manager {
      * 如果这个Manager没有活动的Sessions, 返回零长度数组.
      */
     public Session[] findSessions() {
-        Session results[] = null;
-        synchronized (sessions) {
-            results = new Session[sessions.size()];
-            results = (Session[]) sessions.values().toArray(results);
-        }
-        return (results);
+        return ((Session[]) sessions.values().toArray(new Session[0]));
     }
 
 
@@ -533,9 +682,9 @@ public abstract class ManagerBase implements Manager {
      * @param session Session to be removed
      */
     public void remove(Session session) {
-        synchronized (sessions) {
-            sessions.remove(session.getId());
-        }
+        String id = session.getId();
+        if (id != null)
+            sessions.remove(id);
     }
 
 
@@ -553,31 +702,10 @@ public abstract class ManagerBase implements Manager {
 
 
     /**
-     * 生成并返回一个新会话标识符.
+     * 生成并返回一个新会话标识符, 不带<code>jvmRoute</code>.
      */
-    protected synchronized String generateSessionId() {
-
-        // 生成包含会话标识符的字节数组
-        Random random = getRandom();
-        byte bytes[] = new byte[SESSION_ID_BYTES];
-        getRandom().nextBytes(bytes);
-        bytes = getDigest().digest(bytes);
-
-        // 将结果呈现为十六进制数字的字符串
-        StringBuffer result = new StringBuffer();
-        for (int i = 0; i < bytes.length; i++) {
-            byte b1 = (byte) ((bytes[i] & 0xf0) >> 4);
-            byte b2 = (byte) (bytes[i] & 0x0f);
-            if (b1 < 10)
-                result.append((char) ('0' + b1));
-            else
-                result.append((char) ('A' + (b1 - 10)));
-            if (b2 < 10)
-                result.append((char) ('0' + b2));
-            else
-                result.append((char) ('A' + (b2 - 10)));
-        }
-        return (result.toString());
+    protected String generateSessionId() {
+        return (getSessionIdGenerator().generateSessionId());
     }
 
 
@@ -660,6 +788,17 @@ public abstract class ManagerBase implements Manager {
     }
 
 
+    /**
+     * 指定会话的非活动间隔已经改变. 按过期时间跟踪会话的子类可以重写这个方法, 重新安排它的检查时间.
+     * 这个实现类什么也不做.
+     *
+     * @param session 非活动间隔改变了的会话
+     */
+    void reschedule(Session session) {
+        ;
+    }
+
+
     /**
      * 将此会话添加到回收集合.
      *
@@ -0,0 +1,337 @@
+package org.apache.catalina.session;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+
+/**
+ * 被交换出内存的会话的堆外存储区, 位于<code>PersistentManagerBase</code>的内存和<code>Store</code>之间.
+ * <p>
+ * 存储区是映射到内存的一个临时文件, 被分成固定大小的块; 空闲的块保存在一个栈中.
+ * 每个会话的序列化数据占用若干个块, 不需要连续, 所以没有碎片.
+ * 会话按放入的顺序保存, 最早放入的(最冷的)会话最先被<code>evict()</code>取出,
+ * 以便在存储区满时写入<code>Store</code>.
+ * 会话的数据不在Java堆中, 所以不增加垃圾收集的负担.
+ * <p>
+ * <b>IMPLEMENTATION NOTE</b>: 所有方法都在这个对象上同步; 每个操作只复制一个会话的数据.
+ */
+
+final class OffHeapSessionArena {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * @param directory 创建临时文件的目录
+     * @param capacity 存储区的字节数
+     * @param blockSize 每个块的字节数
+     *
+     * @exception IOException 如果不能创建或映射临时文件
+     */
+    OffHeapSessionArena(File directory, long capacity, int blockSize)
+        throws IOException {
+
+        if (blockSize <= 0)
+            throw new IllegalArgumentException
+                ("Invalid block size " + blockSize);
+        this.blockSize = blockSize;
+        this.blocksPerChunk = Math.max(1, MAX_CHUNK / blockSize);
+        long blocks = capacity / blockSize;
+        if ((blocks <= 0) || (blocks > Integer.MAX_VALUE))
+            throw new IllegalArgumentException
+                ("Invalid capacity " + capacity);
+        this.blockCount = (int) blocks;
+
+        this.file = File.createTempFile("sessions", ".arena", directory);
+        file.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength((long) blockCount * blockSize);
+            FileChannel channel = raf.getChannel();
+            int n = (blockCount + blocksPerChunk - 1) / blocksPerChunk;
+            chunks = new ByteBuffer[n];
+            for (int i = 0; i < n; i++) {
+                long start = (long) i * blocksPerChunk * blockSize;
+                int blocksInChunk =
+                    Math.min(blocksPerChunk, blockCount - i * blocksPerChunk);
+                chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, start,
+                                        (long) blocksInChunk * blockSize);
+            }
+        } finally {
+            // The mappings stay valid after the file is closed
+            raf.close();
+        }
+
+        free = new int[blockCount];
+        for (int i = 0; i < blockCount; i++)
+            free[i] = blockCount - 1 - i;
+        freeCount = blockCount;
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * 每个映射区的最大字节数.
+     */
+    private static final int MAX_CHUNK = 1 << 30;
+
+
+    /**
+     * 块的总数.
+     */
+    private final int blockCount;
+
+
+    /**
+     * 每个映射区包含的块数.
+     */
+    private final int blocksPerChunk;
+
+
+    /**
+     * 每个块的字节数.
+     */
+    private final int blockSize;
+
+
+    /**
+     * 映射到内存的各个区域.
+     */
+    private ByteBuffer chunks[];
+
+
+    /**
+     * 会话标识符 -> <code>Entry</code>, 按放入的顺序.
+     */
+    private final LinkedHashMap entries = new LinkedHashMap();
+
+
+    /**
+     * 临时文件.
+     */
+    private final File file;
+
+
+    /**
+     * 空闲块的栈, 前<code>freeCount</code>个元素有效.
+     */
+    private final int free[];
+
+
+    /**
+     * 空闲块的数目.
+     */
+    private int freeCount;
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 释放存储区并删除临时文件. 存储区中的会话被丢弃.
+     */
+    synchronized void close() {
+
+        entries.clear();
+        freeCount = 0;
+        chunks = new ByteBuffer[0];
+        file.delete();
+
+    }
+
+
+    /**
+     * 这个存储区中是否有指定的会话?
+     *
+     * @param id 会话标识符
+     */
+    synchronized boolean contains(String id) {
+        return (entries.containsKey(id));
+    }
+
+
+    /**
+     * 取出最早放入的会话, 如果存储区为空, 返回<code>null</code>.
+     */
+    synchronized Evicted evict() {
+
+        Iterator ids = entries.keySet().iterator();
+        if (!ids.hasNext())
+            return (null);
+        String id = (String) ids.next();
+        return (new Evicted(id, remove(id)));
+
+    }
+
+
+    /**
+     * 返回按照放入时记录的访问时间已经超时的会话的标识符.
+     *
+     * @param timeNow 当前时间
+     */
+    synchronized String[] expired(long timeNow) {
+
+        ArrayList results = new ArrayList();
+        Iterator values = entries.values().iterator();
+        while (values.hasNext()) {
+            Entry entry = (Entry) values.next();
+            if (entry.maxInactiveInterval < 0)
+                continue;
+            int timeIdle = // Truncate, do not round up
+                (int) ((timeNow - entry.lastAccessedTime) / 1000L);
+            if (timeIdle >= entry.maxInactiveInterval)
+                results.add(entry.id);
+        }
+        return ((String[]) results.toArray(new String[results.size()]));
+
+    }
+
+
+    /**
+     * 返回存储区中所有会话的标识符, 最早放入的在前.
+     */
+    synchronized String[] keys() {
+        return ((String[]) entries.keySet().toArray(new String[entries.size()]));
+    }
+
+
+    /**
+     * 放入一个会话的序列化数据, 替换这个标识符原来的数据.
+     * 如果空闲的块不够, 什么也不做, 返回<code>false</code>; 调用者可以先用<code>evict()</code>腾出空间.
+     *
+     * @param id 会话标识符
+     * @param data 序列化的会话
+     * @param lastAccessedTime 会话的最后访问时间
+     * @param maxInactiveInterval 会话的最大非活动间隔(秒)
+     */
+    synchronized boolean put(String id, byte data[], long lastAccessedTime,
+                             int maxInactiveInterval) {
+
+        int n = Math.max(1, (data.length + blockSize - 1) / blockSize);
+        Entry old = (Entry) entries.get(id);
+        int available = freeCount + ((old == null) ? 0 : old.blocks.length);
+        if (n > available)
+            return (false);
+        if (old != null)
+            remove(id);
+
+        int blocks[] = new int[n];
+        for (int i = 0; i < n; i++) {
+            blocks[i] = free[--freeCount];
+            int offset = i * blockSize;
+            int length = Math.min(blockSize, data.length - offset);
+            if (length > 0)
+                buffer(blocks[i]).put(data, offset, length);
+        }
+        entries.put(id, new Entry(id, blocks, data.length,
+                                  lastAccessedTime, maxInactiveInterval));
+        return (true);
+
+    }
+
+
+    /**
+     * 取出指定会话的序列化数据, 如果没有, 返回<code>null</code>.
+     *
+     * @param id 会话标识符
+     */
+    synchronized byte[] remove(String id) {
+
+        Entry entry = (Entry) entries.remove(id);
+        if (entry == null)
+            return (null);
+        byte data[] = new byte[entry.length];
+        for (int i = 0; i < entry.blocks.length; i++) {
+            int offset = i * blockSize;
+            int length = Math.min(blockSize, entry.length - offset);
+            if (length > 0)
+                buffer(entry.blocks[i]).get(data, offset, length);
+            free[freeCount++] = entry.blocks[i];
+        }
+        return (data);
+
+    }
+
+
+    /**
+     * 返回存储区中的会话数.
+     */
+    synchronized int size() {
+        return (entries.size());
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * 返回位于指定块开始处的缓冲区.
+     */
+    private ByteBuffer buffer(int block) {
+
+        ByteBuffer buffer = chunks[block / blocksPerChunk].duplicate();
+        buffer.position((block % blocksPerChunk) * blockSize);
+        return (buffer);
+
+    }
+
+
+    // --------------------------------------------------------- Inner Classes
+
+
+    /**
+     * 一个被取出的会话.
+     */
+    static final class Evicted {
+
+        Evicted(String id, byte data[]) {
+            this.id = id;
+            this.data = data;
+        }
+
+        final String id;
+
+        final byte data[];
+
+    }
+
+
+    /**
+     * 一个会话占用的块, 以及放入时的访问时间.
+     */
+    private static final class Entry {
+
+        Entry(String id, int blocks[], int length,
+              long lastAccessedTime, int maxInactiveInterval) {
+            this.id = id;
+            this.blocks = blocks;
+            this.length = length;
+            this.lastAccessedTime = lastAccessedTime;
+            this.maxInactiveInterval = maxInactiveInterval;
+        }
+
+        final String id;
+
+        final int blocks[];
+
+        final int length;
+
+        final long lastAccessedTime;
+
+        final int maxInactiveInterval;
+
+    }
+
+
+}
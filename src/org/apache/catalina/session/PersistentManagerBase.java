@@ -2,10 +2,18 @@ package org.apache.catalina.session;
 
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.servlet.ServletContext;
 
 import org.apache.catalina.Container;
 import org.apache.catalina.Context;
+import org.apache.catalina.DeltaStore;
+import org.apache.catalina.Globals;
 import org.apache.catalina.Lifecycle;
 import org.apache.catalina.LifecycleException;
 import org.apache.catalina.LifecycleListener;
@@ -109,6 +117,52 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
     private int maxIdleSwap = -1;
 
 
+    /**
+     * 堆外存储区的字节数, 或者0表示不使用堆外存储区.
+     */
+    private long offHeapSize = 0L;
+
+
+    /**
+     * 堆外存储区中每个块的字节数.
+     */
+    private int offHeapBlockSize = 1024;
+
+
+    /**
+     * 被交换出内存的会话在写入Store之前所在的堆外存储区, 或者<code>null</code>.
+     */
+    private volatile OffHeapSessionArena arena = null;
+
+
+    /**
+     * 按会话标识符分段的锁, 使同一个会话不会被同时交换到内存中.
+     */
+    private final Object swapLocks[] = new Object[64];
+    {
+        for (int i = 0; i < swapLocks.length; i++)
+            swapLocks[i] = new Object();
+    }
+
+
+    /**
+     * 异步写入会话的线程数, 或者0表示在后台线程中同步写入.
+     */
+    private int writeBehindThreads = 0;
+
+
+    /**
+     * 异步写入队列中等待写入的会话的最大数目.
+     */
+    private int writeBehindQueueSize = 1000;
+
+
+    /**
+     * 异步写入队列, 或者<code>null</code>.
+     */
+    private volatile WriteBehindQueue writeBehind = null;
+
+
     // ------------------------------------------------------------- Properties
 
 
@@ -214,6 +268,141 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
     }
 
 
+    /**
+     * 返回堆外存储区的字节数, 或者0表示不使用堆外存储区.
+     */
+    public long getOffHeapSize() {
+        return (this.offHeapSize);
+    }
+
+
+    /**
+     * 设置堆外存储区的字节数, 或者0表示不使用堆外存储区.
+     * 被交换出内存的会话先保存在这个存储区中, 存储区满时最早放入的会话被写入Store.
+     * 在下一次启动时生效.
+     *
+     * @param offHeapSize The new off-heap arena size
+     */
+    public void setOffHeapSize(long offHeapSize) {
+
+        long oldOffHeapSize = this.offHeapSize;
+        this.offHeapSize = offHeapSize;
+        support.firePropertyChange("offHeapSize",
+                                   new Long(oldOffHeapSize),
+                                   new Long(this.offHeapSize));
+    }
+
+
+    /**
+     * 返回堆外存储区中每个块的字节数.
+     */
+    public int getOffHeapBlockSize() {
+        return (this.offHeapBlockSize);
+    }
+
+
+    /**
+     * 设置堆外存储区中每个块的字节数. 在下一次启动时生效.
+     *
+     * @param offHeapBlockSize The new block size
+     */
+    public void setOffHeapBlockSize(int offHeapBlockSize) {
+
+        int oldOffHeapBlockSize = this.offHeapBlockSize;
+        this.offHeapBlockSize = offHeapBlockSize;
+        support.firePropertyChange("offHeapBlockSize",
+                                   new Integer(oldOffHeapBlockSize),
+                                   new Integer(this.offHeapBlockSize));
+    }
+
+
+    /**
+     * 返回堆外存储区中当前的会话数.
+     */
+    public int getOffHeapSessions() {
+        OffHeapSessionArena arena = this.arena;
+        return ((arena == null) ? 0 : arena.size());
+    }
+
+
+    /**
+     * 返回异步写入会话的线程数, 或者0表示同步写入.
+     */
+    public int getWriteBehindThreads() {
+        return (this.writeBehindThreads);
+    }
+
+
+    /**
+     * 设置异步写入会话的线程数, 或者0表示在后台线程中同步写入.
+     * 异步写入时, 要备份或交换出去的会话被放入一个队列, 由这些线程批量写入Store.
+     * 在下一次启动时生效.
+     *
+     * @param writeBehindThreads The new number of writer threads
+     */
+    public void setWriteBehindThreads(int writeBehindThreads) {
+
+        int oldWriteBehindThreads = this.writeBehindThreads;
+        this.writeBehindThreads = writeBehindThreads;
+        support.firePropertyChange("writeBehindThreads",
+                                   new Integer(oldWriteBehindThreads),
+                                   new Integer(this.writeBehindThreads));
+    }
+
+
+    /**
+     * 返回异步写入队列中等待写入的会话的最大数目.
+     */
+    public int getWriteBehindQueueSize() {
+        return (this.writeBehindQueueSize);
+    }
+
+
+    /**
+     * 设置异步写入队列中等待写入的会话的最大数目. 队列满时, 后台线程等待写入线程腾出空间.
+     * 在下一次启动时生效.
+     *
+     * @param writeBehindQueueSize The new queue size
+     */
+    public void setWriteBehindQueueSize(int writeBehindQueueSize) {
+
+        int oldWriteBehindQueueSize = this.writeBehindQueueSize;
+        this.writeBehindQueueSize = writeBehindQueueSize;
+        support.firePropertyChange("writeBehindQueueSize",
+                                   new Integer(oldWriteBehindQueueSize),
+                                   new Integer(this.writeBehindQueueSize));
+    }
+
+
+    /**
+     * 返回异步写入队列中等待写入和正在被写入的会话数.
+     */
+    public int getWriteBehindQueueDepth() {
+        WriteBehindQueue writeBehind = this.writeBehind;
+        return ((writeBehind == null) ? 0 : writeBehind.size());
+    }
+
+
+    /**
+     * 返回会话从进入异步写入队列到写入完成的时间的近似中位数(毫秒).
+     */
+    public long getWriteBehindLatencyP50() {
+        WriteBehindQueue writeBehind = this.writeBehind;
+        return ((writeBehind == null) ?
+                0L : writeBehind.getLatency().getPercentile(50.0));
+    }
+
+
+    /**
+     * 返回会话从进入异步写入队列到写入完成的时间的近似第99百分位数(毫秒).
+     */
+    public long getWriteBehindLatencyP99() {
+        WriteBehindQueue writeBehind = this.writeBehind;
+        return ((writeBehind == null) ?
+                0L : writeBehind.getLatency().getPercentile(99.0));
+    }
+
+
     /**
      * 设置关联的Container.
      * 如果是一个Context (通常情况下), 监听会话超时属性的更改.
@@ -386,7 +575,7 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
 
 
     /**
-     * 返回 true, 如果会话ID加载在内存中, 否则返回false
+     * 返回 true, 如果会话ID加载在内存中或者在堆外存储区中, 否则返回false
      *
      * @param id The session id for the session to be searched for
      *
@@ -394,6 +583,9 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
      *  processing this request
      */
     public boolean isLoaded( String id ){
+        OffHeapSessionArena arena = this.arena;
+        if ((arena != null) && arena.contains(id))
+            return true;
         try {
             if ( super.findSession(id) != null )
                 return true;
@@ -427,6 +619,8 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
     /**
      * 加载持久性机制中发现的所有会话, 假设它们被标记为有效且没有过期限制.
      * 如果不支持持久性, 这个方法不做任何事情就返回.
+     * 会话由<code>snapshotThreads</code>个线程在后台并行加载, 这个方法立即返回;
+     * 在此期间请求的会话由<code>findSession()</code>直接从Store中加载.
      * <p>
      * 注意，默认情况下, 此方法不会被MiddleManager类调用. 为了使用它, 子类必须专门调用它,
      * 例如 start() 或 processPersistenceChecks() 方法.
@@ -455,12 +649,23 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
         if (debug >= 1)
             log(sm.getString("persistentManager.loading", String.valueOf(n)));
 
-        for (int i = 0; i < n; i++)
-            try {
-                swapIn(ids[i]);
-            } catch (IOException e) {
-                log("Failed load session from store, " + e.getMessage(), e);
-            }
+        int chunks = Math.max(1, Math.min(snapshotThreads, n / 64));
+        ForkJoinPool pool = new ForkJoinPool(chunks);
+        for (int i = 0; i < chunks; i++) {
+            final Object part[] = SessionSnapshot.part(ids, i, chunks);
+            pool.submit(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < part.length; j++)
+                        try {
+                            swapIn((String) part[j]);
+                        } catch (IOException e) {
+                            log("Failed load session from store, " + e.getMessage(), e);
+                        }
+                }
+            });
+        }
+        // Already submitted tasks still run
+        pool.shutdown();
     }
 
 
@@ -473,6 +678,15 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
 
         super.remove (session);
 
+        OffHeapSessionArena arena = this.arena;
+        if (arena != null)
+            arena.remove(session.getId());
+
+        // A queued write must not bring the session back
+        WriteBehindQueue writeBehind = this.writeBehind;
+        if (writeBehind != null)
+            writeBehind.cancel(session.getId());
+
         if (store != null)
             try {
                 store.remove(session.getId());
@@ -504,12 +718,30 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
             log(sm.getString("persistentManager.unloading",
                              String.valueOf(n)));
 
-        for (int i = 0; i < n; i++)
-            try {
-                swapOut(sessions[i]);
-            } catch (IOException e) {
-                ;   // This is logged in writeSession()
-            }
+        // Write out a part of the sessions in each thread
+        int chunks = Math.max(1, Math.min(snapshotThreads, n / 64));
+        ArrayList tasks = new ArrayList();
+        for (int i = 0; i < chunks; i++) {
+            final Object part[] = SessionSnapshot.part(sessions, i, chunks);
+            tasks.add(new Callable() {
+                public Object call() {
+                    Session swapped[] = new Session[part.length];
+                    System.arraycopy(part, 0, swapped, 0, part.length);
+                    try {
+                        swapOut(swapped);
+                    } catch (IOException e) {
+                        ;   // This is logged in writeSessions()
+                    }
+                    return (null);
+                }
+            });
+        }
+        ForkJoinPool pool = new ForkJoinPool(chunks);
+        try {
+            pool.invokeAll(tasks);
+        } finally {
+            pool.shutdown();
+        }
     }
 
 
@@ -517,44 +749,65 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
 
 
     /**
-     * 从Store中查找会话, 如果有合适的话，在Manager的活动列表中恢复它.
-     * 会话将从Store中移除，在交换之后, 但如果活动会话列表无效或过期，则不会将其添加到活动会话列表中.
+     * 从堆外存储区或者Store中查找会话, 如果有合适的话，在Manager的活动列表中恢复它.
+     * 会话将从堆外存储区中移除, 但不从Store中移除; 如果它无效或过期，则不会将其添加到活动会话列表中.
      */
     protected Session swapIn(String id) throws IOException {
 
-        if (store == null)
+        OffHeapSessionArena arena = this.arena;
+        if (store == null && arena == null)
             return null;
 
-        Session session = null;
-        try {
-            session = store.load(id);
-        } catch (ClassNotFoundException e) {
-            log(sm.getString("persistentManager.deserializeError", id, e));
-            throw new IllegalStateException
-                (sm.getString("persistentManager.deserializeError", id, e));
-        }
+        synchronized (swapLocks[(id.hashCode() & 0x7fffffff) % swapLocks.length]) {
 
-        if (session == null)
-            return (null);
+            // Another thread may have swapped it in meanwhile
+            Session session = super.findSession(id);
+            if (session != null)
+                return (session);
 
-        if (!session.isValid()
-                || isSessionStale(session, System.currentTimeMillis())) {
-            log("session swapped in is invalid or expired");
-            session.expire();
-            store.remove(id);
-            return (null);
-        }
+            boolean stored = false;
+            byte data[] = null;
+            if (arena != null)
+                data = arena.remove(id);
+            try {
+                if (data != null) {
+                    session = deserialize(data);
+                } else if (store != null) {
+                    session = store.load(id);
+                    stored = true;
+                }
+            } catch (ClassNotFoundException e) {
+                log(sm.getString("persistentManager.deserializeError", id, e));
+                throw new IllegalStateException
+                    (sm.getString("persistentManager.deserializeError", id, e));
+            }
 
-        if(debug > 2)
-            log(sm.getString("persistentManager.swapIn", id));
+            if (session == null)
+                return (null);
 
-        session.setManager(this);
-        // To make sure the listener knows about it.
-        ((StandardSession)session).tellNew();
-        add(session);
-        ((StandardSession)session).activate();
+            if (!session.isValid()
+                    || isSessionStale(session, System.currentTimeMillis())) {
+                log("session swapped in is invalid or expired");
+                session.expire();
+                if (store != null)
+                    store.remove(id);
+                return (null);
+            }
 
-        return (session);
+            if(debug > 2)
+                log(sm.getString("persistentManager.swapIn", id));
+
+            // The copy in the Store is now identical to this one
+            if (stored)
+                ((StandardSession)session).resetDirty();
+            session.setManager(this);
+            // To make sure the listener knows about it.
+            ((StandardSession)session).tellNew();
+            add(session);
+            ((StandardSession)session).activate();
+
+            return (session);
+        }
     }
 
 
@@ -566,21 +819,74 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
      */
     protected void swapOut(Session session) throws IOException {
 
-        if (store == null ||
-                !session.isValid() ||
-                isSessionStale(session, System.currentTimeMillis()))
+        swapOut(new Session[] { session });
+    }
+
+
+    /**
+     * 从活动会话列表中移除多个会话，把它们放入堆外存储区, 或者在一次操作中将它们写入 Store.
+     * 过期或无效的会话被跳过; 没有成功写入的会话保留在活动会话列表中.
+     *
+     * @param sessions The Sessions to write out.
+     */
+    protected void swapOut(Session sessions[]) throws IOException {
+
+        if (store == null && arena == null)
+            return;
+
+        Session swapped[] = live(sessions);
+        ArrayList unparked = new ArrayList();
+        for (int i = 0; i < swapped.length; i++) {
+            if (arena == null) {
+                unparked.add(swapped[i]);
+                continue;
+            }
+            ((StandardSession)swapped[i]).passivate();
+            if (park(swapped[i])) {
+                super.remove(swapped[i]);
+                swapped[i].recycle();
+            } else {
+                ((StandardSession)swapped[i]).activate();
+                if (store != null)
+                    unparked.add(swapped[i]);
+            }
+        }
+        if (unparked.isEmpty())
             return;
 
-        ((StandardSession)session).passivate();
-        writeSession(session);
-        super.remove(session);
-        session.recycle();
+        // Queued sessions stay active until the writer threads swap them out
+        Session written[] = writeBehind
+            ((Session[]) unparked.toArray(new Session[unparked.size()]), true);
+        if (written.length == 0)
+            return;
+        IOException failure = null;
+        try {
+            writeSessions(written);
+        } catch (IOException e) {
+            failure = e;
+        }
+        for (int i = 0; i < written.length; i++) {
+            // A session still dirty here was not saved (or changed meanwhile)
+            if (written[i] instanceof StandardSession) {
+                if (((StandardSession) written[i]).isDirty())
+                    continue;
+            } else if (failure != null) {
+                continue;
+            }
+            // Passivate only once the session has left the active map
+            super.remove(written[i]);
+            ((StandardSession)written[i]).passivate();
+            written[i].recycle();
+        }
+        if (failure != null)
+            throw failure;
     }
 
 
     /**
      * 将所提供的会话写入Store，而不修改内存中的副本或触发钝化事件.
      * 如果会话无效或过期，则不执行任何操作.
+     * 如果Store是一个<code>DeltaStore</code>, 只写入会话被修改的部分.
      */
     protected void writeSession(Session session) throws IOException {
 
@@ -590,7 +896,20 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
             return;
 
         try {
-            store.save(session);
+            if (store instanceof DeltaStore) {
+                ((DeltaStore) store).saveDelta(session);
+            } else if (session instanceof StandardSession) {
+                // Clear the marks first, concurrent changes count as unsaved
+                ((StandardSession) session).resetDirty();
+                try {
+                    store.save(session);
+                } catch (IOException e) {
+                    ((StandardSession) session).setFullSaveRequired();
+                    throw e;
+                }
+            } else {
+                store.save(session);
+            }
         } catch (IOException e) {
             log(sm.getString
                 ("persistentManager.serializeError", session.getId(), e));
@@ -599,6 +918,110 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
     }
 
 
+    /**
+     * 在一次操作中将多个会话写入Store，而不修改内存中的副本或触发钝化事件.
+     * 过期或无效的会话被跳过.
+     * 如果Store是一个<code>StoreBase</code>, 由它批量保存这些会话; 否则逐个写入它们.
+     */
+    protected void writeSessions(Session sessions[]) throws IOException {
+
+        if (store == null)
+            return;
+
+        Session written[] = live(sessions);
+        if (written.length == 0)
+            return;
+        if (!(store instanceof StoreBase)) {
+            IOException failure = null;
+            for (int i = 0; i < written.length; i++) {
+                try {
+                    writeSession(written[i]);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null)
+                throw failure;
+            return;
+        }
+
+        try {
+            ((StoreBase) store).save(written);
+        } catch (IOException e) {
+            log(sm.getString
+                ("persistentManager.batchSerializeError",
+                 String.valueOf(written.length), e));
+            throw e;
+        }
+    }
+
+
+    /**
+     * 返回指定会话中有效并且没有过期的那些.
+     */
+    private Session[] live(Session sessions[]) {
+
+        long timeNow = System.currentTimeMillis();
+        ArrayList results = new ArrayList(sessions.length);
+        for (int i = 0; i < sessions.length; i++) {
+            if (sessions[i].isValid() &&
+                    !isSessionStale(sessions[i], timeNow))
+                results.add(sessions[i]);
+        }
+        return ((Session[]) results.toArray(new Session[results.size()]));
+    }
+
+
+    /**
+     * 把指定的会话放入异步写入队列, 返回没有放入队列的那些, 调用者应该同步写入它们.
+     * 如果没有异步写入队列, 返回所有的会话.
+     *
+     * @param sessions 要写入的会话
+     * @param swap 写入之后是否把会话从活动会话列表中移除
+     */
+    private Session[] writeBehind(Session sessions[], boolean swap) {
+
+        WriteBehindQueue writeBehind = this.writeBehind;
+        if (writeBehind == null)
+            return (sessions);
+        ArrayList results = new ArrayList();
+        for (int i = 0; i < sessions.length; i++) {
+            if (!writeBehind.add(sessions[i], swap))
+                results.add(sessions[i]);
+        }
+        return ((Session[]) results.toArray(new Session[results.size()]));
+    }
+
+
+    // -------------------------------------------------------- Package Methods
+
+
+    /**
+     * 异步写入队列写入一个被交换出去的会话之后调用.
+     * 如果会话被成功写入, 并且排队之后没有被访问过, 把它从活动会话列表中移除, 然后钝化它;
+     * 否则它仍然是活动的. 在写入期间会话可能正在被请求使用, 所以写入之前不钝化它.
+     *
+     * @param session 被写入的会话
+     * @param accessed 排队时会话的访问时间
+     * @param saved 会话是否被成功写入?
+     */
+    void swappedOut(Session session, long accessed, boolean saved) {
+
+        String id = session.getId();
+        if (id == null || !session.isValid())
+            return;
+        synchronized (swapLocks[(id.hashCode() & 0x7fffffff) % swapLocks.length]) {
+            if (saved &&
+                (WriteBehindQueue.accessed(session) == accessed) &&
+                (sessions.get(id) == session)) {
+                super.remove(session);
+                ((StandardSession)session).passivate();
+                session.recycle();
+            }
+        }
+    }
+
+
     // ------------------------------------------------------ Lifecycle Methods
 
 
@@ -660,6 +1083,22 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
         else if (store instanceof Lifecycle)
             ((Lifecycle)store).start();
 
+        if (offHeapSize > 0) {
+            try {
+                arena = new OffHeapSessionArena
+                    (workDirectory(), offHeapSize, offHeapBlockSize);
+            } catch (Exception e) {
+                log(sm.getString("persistentManager.offHeapError", e));
+            }
+        }
+
+        if ((store != null) && (writeBehindThreads > 0)) {
+            WriteBehindQueue writeBehind = new WriteBehindQueue
+                (this, writeBehindQueueSize, writeBehindThreads);
+            writeBehind.start("PersistentManagerBase[" + container.getName() + "]");
+            this.writeBehind = writeBehind;
+        }
+
         // Start the background reaper thread
         threadStart();
     }
@@ -699,11 +1138,40 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
             }
         }
 
+        // Finish the queued writes
+        WriteBehindQueue writeBehind = this.writeBehind;
+        if (writeBehind != null) {
+            writeBehind.stop();
+            this.writeBehind = null;
+        }
+
+        // Write out or expire the sessions left in the off-heap arena
+        OffHeapSessionArena arena = this.arena;
+        if (arena != null) {
+            this.arena = null;
+            boolean save = (getStore() != null && saveOnRestart);
+            OffHeapSessionArena.Evicted evicted = null;
+            while ((evicted = arena.evict()) != null) {
+                try {
+                    Session session = deserialize(evicted.data);
+                    if (save)
+                        writeSession(session);
+                    else if (session.isValid())
+                        session.expire();
+                } catch (Exception e) {
+                    log(sm.getString("persistentManager.deserializeError",
+                                     evicted.id, e));
+                }
+            }
+            arena.close();
+        }
+
         if (getStore() != null && getStore() instanceof Lifecycle)
             ((Lifecycle)getStore()).stop();
 
         // Require a new random number generator if we are restarted
         this.random = null;
+        this.sessionIdGenerator = null;
     }
 
 
@@ -738,6 +1206,80 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
     // -------------------------------------------------------- Private Methods
 
 
+    /**
+     * 反序列化一个放在堆外存储区中的会话.
+     */
+    private Session deserialize(byte data[])
+        throws ClassNotFoundException, IOException {
+
+        StandardSession session = (StandardSession) createEmptySession();
+        getCodec().decode(session, data, 0, data.length);
+        session.setManager(this);
+        return (session);
+    }
+
+
+    /**
+     * 把一个已经钝化的会话放入堆外存储区. 如果存储区已满, 先把最早放入的会话写入Store.
+     *
+     * @return 是否放入了存储区? 如果没有存储区, 序列化失败,
+     *  或者存储区容纳不下这个会话, 返回<code>false</code>
+     */
+    private boolean park(Session session) {
+
+        OffHeapSessionArena arena = this.arena;
+        if (arena == null)
+            return (false);
+
+        byte data[] = null;
+        try {
+            data = getCodec().encode(session);
+        } catch (IOException e) {
+            log(sm.getString
+                ("persistentManager.serializeError", session.getId(), e));
+            return (false);
+        }
+
+        while (!arena.put(session.getId(), data,
+                          session.getLastAccessedTime(),
+                          session.getMaxInactiveInterval())) {
+            if (store == null)
+                return (false);
+            OffHeapSessionArena.Evicted evicted = arena.evict();
+            if (evicted == null)
+                return (false);
+            // Spill the coldest session to the Store
+            try {
+                Session spilled = deserialize(evicted.data);
+                writeSession(spilled);
+                spilled.recycle();
+            } catch (Exception e) {
+                log(sm.getString("persistentManager.serializeError",
+                                 evicted.id, e));
+            }
+        }
+        return (true);
+    }
+
+
+    /**
+     * 返回创建堆外存储区的临时文件的目录.
+     */
+    private File workDirectory() {
+
+        if (container instanceof Context) {
+            ServletContext servletContext =
+                ((Context) container).getServletContext();
+            File work = (File)
+                servletContext.getAttribute(Globals.WORK_DIR_ATTR);
+            if (work != null)
+                return (work);
+        }
+        return (new File(System.getProperty("java.io.tmpdir")));
+    }
+
+
+
     /**
      * 指示会话是否空闲时间超过其到期日期，与所提供的时间无关.
      *
@@ -775,6 +1317,25 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
             if (isSessionStale(session, timeNow))
                 session.expire();
         }
+
+        // Sessions waiting in the off-heap arena expire as well
+        OffHeapSessionArena arena = this.arena;
+        if (arena == null)
+            return;
+        String ids[] = arena.expired(timeNow);
+        for (int i = 0; i < ids.length; i++) {
+            byte data[] = arena.remove(ids[i]);
+            if (data == null)
+                continue;
+            try {
+                Session session = deserialize(data);
+                if (session.isValid())
+                    session.expire();
+            } catch (Exception e) {
+                log(sm.getString("persistentManager.deserializeError",
+                                 ids[i], e));
+            }
+        }
     }
 
 
@@ -793,6 +1354,7 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
         // FIXME: What's preventing us from mangling a session during
         // a request?
         if (maxIdleSwap >= 0) {
+            ArrayList toswap = new ArrayList();
             for (int i = 0; i < sessions.length; i++) {
                 StandardSession session = (StandardSession) sessions[i];
                 if (!session.isValid())
@@ -804,13 +1366,14 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
                         log(sm.getString
                             ("persistentManager.swapMaxIdle",
                              session.getId(), new Integer(timeIdle)));
-                    try {
-                        swapOut(session);
-                    } catch (IOException e) {
-                        ;   // This is logged in writeSession()
-                    }
+                    toswap.add(session);
                 }
             }
+            try {
+                swapOut((Session[]) toswap.toArray(new Session[toswap.size()]));
+            } catch (IOException e) {
+                ;   // This is logged in writeSessions()
+            }
         }
     }
 
@@ -836,6 +1399,7 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
 
         int toswap = sessions.length - getMaxActiveSessions();
         long timeNow = System.currentTimeMillis();
+        ArrayList swapped = new ArrayList();
 
         for (int i = 0; i < sessions.length && toswap > 0; i++) {
             int timeIdle = // Truncate, do not round up
@@ -845,14 +1409,15 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
                     log(sm.getString
                         ("persistentManager.swapTooManyActive",
                          sessions[i].getId(), new Integer(timeIdle)));
-                try {
-                    swapOut(sessions[i]);
-                } catch (IOException e) {
-                    ;   // This is logged in writeSession()
-                }
+                swapped.add(sessions[i]);
                 toswap--;
             }
         }
+        try {
+            swapOut((Session[]) swapped.toArray(new Session[swapped.size()]));
+        } catch (IOException e) {
+            ;   // This is logged in writeSessions()
+        }
     }
 
 
@@ -868,10 +1433,14 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
         long timeNow = System.currentTimeMillis();
 
         // Back up all sessions idle longer than maxIdleBackup
+        // that changed since they were last written.  Any access, and
+        // any mutable attribute handed out by getAttribute(), counts as
+        // a change, so only sessions already stored as they are skipped
         if (maxIdleBackup >= 0) {
+            ArrayList backups = new ArrayList();
             for (int i = 0; i < sessions.length; i++) {
                 StandardSession session = (StandardSession) sessions[i];
-                if (!session.isValid())
+                if (!session.isValid() || !session.isDirty())
                     continue;
                 int timeIdle = // Truncate, do not round up
                     (int) ((timeNow - session.getLastAccessedTime()) / 1000L);
@@ -880,14 +1449,16 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
                         log(sm.getString
                             ("persistentManager.backupMaxIdle",
                             session.getId(), new Integer(timeIdle)));
-
-                    try {
-                        writeSession(session);
-                    } catch (IOException e) {
-                        ;   // This is logged in writeSession()
-                    }
+                    backups.add(session);
                 }
             }
+            try {
+                writeSessions(writeBehind
+                    ((Session[]) backups.toArray(new Session[backups.size()]),
+                     false));
+            } catch (IOException e) {
+                ;   // This is logged in writeSessions()
+            }
         }
 
     }
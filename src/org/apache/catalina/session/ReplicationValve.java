@@ -0,0 +1,95 @@
+package org.apache.catalina.session;
+
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.apache.catalina.HttpRequest;
+import org.apache.catalina.Request;
+import org.apache.catalina.Response;
+import org.apache.catalina.ValveContext;
+import org.apache.catalina.valves.ValveBase;
+
+
+/**
+ * 在每个请求结束时复制它使用的会话的Valve. <code>DistributedManager</code>启动时把它加入Context的管道,
+ * 停止时把它移除. 一个请求中对会话的所有修改被合并为一条消息发送.
+ */
+
+final class ReplicationValve extends ValveBase {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * @param manager 复制会话的Manager
+     */
+    ReplicationValve(DistributedManager manager) {
+        this.manager = manager;
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * 描述信息
+     */
+    private static final String info =
+        "org.apache.catalina.session.ReplicationValve/1.0";
+
+
+    /**
+     * 复制会话的Manager.
+     */
+    private final DistributedManager manager;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * 返回描述信息
+     */
+    public String getInfo() {
+        return (info);
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 调用下一个Valve, 然后复制这个请求使用的会话.
+     *
+     * @param request The servlet request to be processed
+     * @param response The servlet response to be created
+     * @param context The valve context used to invoke the next valve
+     *  in the current processing pipeline
+     *
+     * @exception IOException if an input/output error occurs
+     * @exception ServletException if a servlet error occurs
+     */
+    public void invoke(Request request, Response response,
+                       ValveContext context)
+        throws IOException, ServletException {
+
+        try {
+            context.invokeNext(request, response);
+        } finally {
+            if (request instanceof HttpRequest) {
+                HttpSession session = ((HttpServletRequest)
+                    ((HttpRequest) request).getRequest()).getSession(false);
+                if (session != null)
+                    manager.requestCompleted(session.getId());
+            }
+        }
+
+    }
+
+
+}
@@ -0,0 +1,77 @@
+package org.apache.catalina.session;
+
+
+import java.io.IOException;
+
+import org.apache.catalina.Session;
+
+
+/**
+ * 把会话转换为字节数组, 以及从字节数组恢复会话的编解码器.
+ * Store, 集群复制和重新启动时的持久化文件都通过所属Manager的编解码器序列化会话.
+ * <p>
+ * 每个Manager使用一个编解码器实例, 所以实现类可以在多次调用之间保存状态(例如已经解析过的类),
+ * 但是必须是线程安全的. 实现类必须有一个public的无参构造方法.
+ * 解码方法不设置会话的Manager, 也不触发任何事件.
+ */
+public interface SessionCodec {
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 从指定的数据中读取<code>encode()</code>写入的会话内容.
+     *
+     * @param session 要填充的空会话, 它的Manager已经设置
+     * @param data 包含数据的数组
+     * @param offset 数据在数组中的开始位置
+     * @param length 数据的字节数
+     *
+     * @exception ClassNotFoundException if an unknown class is specified
+     * @exception IOException if an input/output error occurs
+     */
+    public void decode(Session session, byte data[], int offset, int length)
+        throws ClassNotFoundException, IOException;
+
+
+    /**
+     * 从指定的数据中读取<code>encodeDelta()</code>写入的修改, 并应用到指定的会话.
+     *
+     * @param session 要更新的会话
+     * @param data 包含数据的数组
+     * @param offset 数据在数组中的开始位置
+     * @param length 数据的字节数
+     *
+     * @exception ClassNotFoundException if an unknown class is specified
+     * @exception IOException if an input/output error occurs
+     */
+    public void decodeDelta(Session session, byte data[], int offset,
+                            int length)
+        throws ClassNotFoundException, IOException;
+
+
+    /**
+     * 返回指定会话的元数据和所有可序列化属性的编码. 不可序列化的属性被忽略.
+     *
+     * @param session 要编码的会话
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public byte[] encode(Session session) throws IOException;
+
+
+    /**
+     * 返回指定会话的元数据以及指定属性的当前值的编码.
+     * 已被删除的属性, 以及值不可序列化的属性, 被记录为已删除.
+     *
+     * @param session 要编码的会话
+     * @param names 要写入的属性名称
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public byte[] encodeDelta(Session session, String names[])
+        throws IOException;
+
+
+}
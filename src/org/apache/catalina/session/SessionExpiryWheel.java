@@ -0,0 +1,230 @@
+package org.apache.catalina.session;
+
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.catalina.Session;
+
+
+/**
+ * 按过期时间(<code>lastAccessedTime + maxInactiveInterval</code>)组织活动会话的哈希时间轮,
+ * 使后台线程每次检查时只需处理真正到期的会话, 而不必复制并遍历全部会话.
+ * <p>
+ * 每个槽对应一个时间刻度, 按过期刻度对槽数取模放置会话; 超过一圈的会话在经过它的槽时被重新放置.
+ * 会话被访问时不更新时间轮: 到期的槽被处理时重新计算每个会话的过期时间,
+ * 还没有到期的会话被移到新的槽中. 所以每个会话在每个非活动间隔内最多被检查一次左右.
+ * 不会超时的会话(负的非活动间隔)每转一圈检查一次, 以便发现间隔的修改.
+ * <p>
+ * <b>IMPLEMENTATION NOTE</b>: 所有方法都可以被并发调用, 但<code>expire()</code>
+ * 只应该由一个后台线程调用. 每个会话的当前槽记录在一个单独的表中,
+ * 因此在槽中残留的旧位置是无害的, 处理时被直接丢弃.
+ */
+
+final class SessionExpiryWheel {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * @param slots 槽的数目
+     * @param tick 每个槽的时间刻度(毫秒)
+     */
+    SessionExpiryWheel(int slots, long tick) {
+
+        this.tick = tick;
+        this.wheel = new Set[slots];
+        for (int i = 0; i < slots; i++)
+            wheel[i] = ConcurrentHashMap.newKeySet();
+        this.next = System.currentTimeMillis() / tick;
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * 下一次检查时要处理的第一个刻度. 当前刻度的槽在下一次检查时被再次处理,
+     * 因为其中可能有同一刻度内稍后到期的会话.
+     */
+    private volatile long next;
+
+
+    /**
+     * 会话 -> 它当前所在的槽(<code>Integer</code>).
+     */
+    private final ConcurrentHashMap positions = new ConcurrentHashMap();
+
+
+    /**
+     * 每个槽的时间刻度(毫秒).
+     */
+    private final long tick;
+
+
+    /**
+     * 槽, 每个槽是一个并发的会话集合.
+     */
+    private final Set wheel[];
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 放弃对指定会话的跟踪, 例如当它从Manager中删除时.
+     *
+     * @param session 要删除的会话
+     */
+    void cancel(Session session) {
+
+        Integer slot = (Integer) positions.remove(session);
+        if (slot != null)
+            wheel[slot.intValue()].remove(session);
+
+    }
+
+
+    /**
+     * 放弃对所有会话的跟踪.
+     */
+    void clear() {
+
+        positions.clear();
+        for (int i = 0; i < wheel.length; i++)
+            wheel[i].clear();
+
+    }
+
+
+    /**
+     * 处理从上一次检查到现在为止到期的所有槽, 返回已经超时的有效会话.
+     * 返回的会话已不再被跟踪, 由调用者使其过期.
+     *
+     * @param timeNow 当前时间
+     */
+    Session[] expire(long timeNow) {
+
+        ArrayList results = new ArrayList();
+        long now = timeNow / tick;
+        long first = next;
+        if (now - first >= wheel.length)
+            first = now - wheel.length + 1;
+        next = now;
+
+        for (long t = first; t <= now; t++) {
+            int index = (int) (t % wheel.length);
+            Iterator sessions = wheel[index].iterator();
+            while (sessions.hasNext()) {
+                Session session = (Session) sessions.next();
+                Integer slot = (Integer) positions.get(session);
+                if ((slot == null) || (slot.intValue() != index)) {
+                    // Stale entry left behind by a concurrent reschedule
+                    sessions.remove();
+                    continue;
+                }
+                if (!session.isValid()) {
+                    sessions.remove();
+                    positions.remove(session, slot);
+                    continue;
+                }
+                long deadline = deadline(session, timeNow);
+                if (deadline <= timeNow) {
+                    sessions.remove();
+                    if (positions.remove(session, slot))
+                        results.add(session);
+                } else {
+                    int target = slot(deadline / tick);
+                    if (target != index) {
+                        sessions.remove();
+                        move(session, slot, target);
+                    }
+                }
+            }
+        }
+
+        return ((Session[]) results.toArray(new Session[results.size()]));
+
+    }
+
+
+    /**
+     * 开始跟踪指定的会话, 或者在它的非活动间隔改变后重新放置它.
+     *
+     * @param session 要跟踪的会话
+     */
+    void schedule(Session session) {
+
+        long deadline = deadline(session, System.currentTimeMillis());
+        int target = slot(Math.max(deadline / tick, next));
+        Integer slot = (Integer) positions.get(session);
+        if (slot == null) {
+            Integer position = new Integer(target);
+            if (positions.putIfAbsent(session, position) == null) {
+                wheel[target].add(session);
+                return;
+            }
+            slot = (Integer) positions.get(session);
+            if (slot == null)
+                return;         // Cancelled concurrently
+        }
+        if (slot.intValue() != target)
+            move(session, slot, target);
+
+    }
+
+
+    /**
+     * 返回被跟踪的会话数.
+     */
+    int size() {
+        return (positions.size());
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * 返回指定会话的过期时间. 不会超时的会话在一圈之后被再次检查.
+     *
+     * @param session 要检查的会话
+     * @param timeNow 当前时间
+     */
+    private long deadline(Session session, long timeNow) {
+
+        int maxInactiveInterval = session.getMaxInactiveInterval();
+        if (maxInactiveInterval < 0)
+            return (timeNow + (wheel.length - 1) * tick);
+        return (session.getLastAccessedTime() +
+                (maxInactiveInterval * 1000L));
+
+    }
+
+
+    /**
+     * 将会话从一个槽移到另一个槽, 除非它已被并发地删除或移动.
+     */
+    private void move(Session session, Integer from, int to) {
+
+        if (positions.replace(session, from, new Integer(to))) {
+            wheel[to].add(session);
+            wheel[from.intValue()].remove(session);
+        }
+
+    }
+
+
+    /**
+     * 返回指定刻度对应的槽.
+     */
+    private int slot(long tick) {
+        return ((int) (tick % wheel.length));
+    }
+
+
+}
@@ -0,0 +1,464 @@
+package org.apache.catalina.session;
+
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.catalina.Session;
+
+
+/**
+ * 重新启动时保存活动会话的分块快照.
+ * <p>
+ * 快照由若干个块文件组成, 文件名是持久化文件名加上<code>.0</code>, <code>.1</code>, ...
+ * 每个块由fork-join池中的一个线程独立写入和读取. 块的格式为: 魔数(<code>int</code>),
+ * 会话数(<code>int</code>), 每个会话的标识符(UTF), 长度(<code>int</code>)和Manager的编解码器写入的数据,
+ * 最后是魔数和之前所有字节的CRC32(<code>long</code>). 校验失败的块被丢弃.
+ * <p>
+ * 加载分两步: <code>open()</code>并行读取并校验所有的块, 只记录每个会话的位置;
+ * <code>start()</code>在后台并行反序列化这些会话, 并把它们加入Manager.
+ * 在此期间, 请求的会话可以通过<code>load()</code>立即反序列化; 每个会话只被反序列化一次.
+ */
+
+final class SessionSnapshot {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * @param manager 拥有会话的Manager
+     * @param file 持久化文件, 块文件名以它为前缀
+     * @param threads 并行读写块的线程数
+     */
+    SessionSnapshot(ManagerBase manager, File file, int threads) {
+        this.manager = manager;
+        this.file = file;
+        this.threads = Math.max(1, threads);
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * 块文件的魔数.
+     */
+    private static final int MAGIC = 0x53455353;
+
+
+    /**
+     * 块末尾的魔数和CRC32的长度.
+     */
+    private static final int TRAILER_LENGTH = 12;
+
+
+    /**
+     * 每个块至少包含的会话数, 避免为很少的会话创建很多文件.
+     */
+    private static final int MIN_CHUNK = 64;
+
+
+    /**
+     * 持久化文件.
+     */
+    private final File file;
+
+
+    /**
+     * 拥有会话的Manager.
+     */
+    private final ManagerBase manager;
+
+
+    /**
+     * 会话标识符 -> 还没有加入Manager的会话(<code>Pending</code>).
+     */
+    private final ConcurrentHashMap pending = new ConcurrentHashMap();
+
+
+    /**
+     * 并行读写块的线程数.
+     */
+    private final int threads;
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 在当前线程中加载所有剩余的会话.
+     */
+    void finish() {
+
+        Iterator entries = pending.values().iterator();
+        while (entries.hasNext())
+            restore((Pending) entries.next());
+
+    }
+
+
+    /**
+     * 加载指定的会话, 如果它还在等待加载. 否则返回<code>null</code>.
+     *
+     * @param id 会话标识符
+     */
+    Session load(String id) {
+
+        Pending entry = (Pending) pending.get(id);
+        if (entry == null)
+            return (null);
+        return (restore(entry));
+
+    }
+
+
+    /**
+     * 并行读取并校验所有的块, 然后删除块文件. 会话还没有被反序列化.
+     *
+     * @return 等待加载的会话数
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    int open() throws IOException {
+
+        ArrayList tasks = new ArrayList();
+        for (int i = 0; ; i++) {
+            final File chunk = chunk(i);
+            if (!chunk.exists())
+                break;
+            tasks.add(new Callable() {
+                public Object call() throws IOException {
+                    read(chunk);
+                    return (null);
+                }
+            });
+        }
+        if (tasks.isEmpty())
+            return (0);
+
+        try {
+            invokeAll(tasks);
+        } finally {
+            deleteChunks();
+        }
+        return (pending.size());
+
+    }
+
+
+    /**
+     * 在后台并行反序列化所有等待加载的会话, 每个线程处理一部分.
+     */
+    void start() {
+
+        Object entries[] = pending.values().toArray();
+        if (entries.length == 0)
+            return;
+        int n = chunks(entries.length);
+        ForkJoinPool pool = new ForkJoinPool(n);
+        for (int i = 0; i < n; i++) {
+            final Object part[] = part(entries, i, n);
+            pool.submit(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < part.length; j++)
+                        restore((Pending) part[j]);
+                }
+            });
+        }
+        // Already submitted tasks still run
+        pool.shutdown();
+
+    }
+
+
+    /**
+     * 返回是否还有会话等待加载.
+     */
+    boolean isLoading() {
+        return (!pending.isEmpty());
+    }
+
+
+    /**
+     * 钝化指定的会话, 并把它们并行写入新的块文件, 替换原有的块文件.
+     *
+     * @param sessions 要保存的会话
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    void write(Session sessions[]) throws IOException {
+
+        deleteChunks();
+        if (sessions.length == 0)
+            return;
+        int n = chunks(sessions.length);
+        ArrayList tasks = new ArrayList();
+        for (int i = 0; i < n; i++) {
+            final File chunk = chunk(i);
+            final Object part[] = part(sessions, i, n);
+            tasks.add(new Callable() {
+                public Object call() throws IOException {
+                    write(chunk, part);
+                    return (null);
+                }
+            });
+        }
+        try {
+            invokeAll(tasks);
+        } catch (IOException e) {
+            deleteChunks();
+            throw e;
+        }
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * 返回第<code>i</code>个块文件.
+     */
+    private File chunk(int i) {
+        return (new File(file.getPath() + "." + i));
+    }
+
+
+    /**
+     * 返回指定数目的会话分成的块数.
+     */
+    private int chunks(int count) {
+        return (Math.max(1, Math.min(threads, count / MIN_CHUNK)));
+    }
+
+
+    /**
+     * 删除所有的块文件.
+     */
+    private void deleteChunks() {
+
+        for (int i = 0; ; i++) {
+            File chunk = chunk(i);
+            if (!chunk.exists())
+                break;
+            chunk.delete();
+        }
+
+    }
+
+
+    /**
+     * 在一个fork-join池中并行执行指定的任务, 等待它们全部完成.
+     * 如果有任务失败, 抛出第一个失败的任务的异常.
+     */
+    private void invokeAll(ArrayList tasks) throws IOException {
+
+        ForkJoinPool pool = new ForkJoinPool(Math.min(threads, tasks.size()));
+        try {
+            Iterator futures = pool.invokeAll(tasks).iterator();
+            IOException failure = null;
+            while (futures.hasNext()) {
+                try {
+                    ((Future) futures.next()).get();
+                } catch (ExecutionException e) {
+                    if (failure != null)
+                        continue;
+                    if (e.getCause() instanceof IOException)
+                        failure = (IOException) e.getCause();
+                    else
+                        failure = new IOException(e.getCause().toString());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e.toString());
+                }
+            }
+            if (failure != null)
+                throw failure;
+        } finally {
+            pool.shutdown();
+        }
+
+    }
+
+
+    /**
+     * 返回把数组分成<code>n</code>份后的第<code>i</code>份.
+     */
+    static Object[] part(Object array[], int i, int n) {
+
+        int from = (int) ((long) array.length * i / n);
+        int to = (int) ((long) array.length * (i + 1) / n);
+        Object result[] = new Object[to - from];
+        System.arraycopy(array, from, result, 0, result.length);
+        return (result);
+
+    }
+
+
+    /**
+     * 读取并校验一个块文件, 记录其中的会话.
+     * 校验失败的块被记录到日志并丢弃.
+     */
+    private void read(File chunk) throws IOException {
+
+        byte data[] = new byte[(int) chunk.length()];
+        DataInputStream dis = new DataInputStream(new FileInputStream(chunk));
+        try {
+            dis.readFully(data);
+        } finally {
+            dis.close();
+        }
+
+        // Header and trailer
+        boolean valid = (data.length >= 8 + TRAILER_LENGTH);
+        if (valid) {
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length - TRAILER_LENGTH);
+            dis = new DataInputStream(new ByteArrayInputStream
+                (data, data.length - TRAILER_LENGTH, TRAILER_LENGTH));
+            valid = (dis.readInt() == MAGIC) &&
+                (dis.readLong() == crc.getValue());
+        }
+        dis = new DataInputStream(new ByteArrayInputStream
+            (data, 0, data.length - TRAILER_LENGTH));
+        if (!valid || (dis.readInt() != MAGIC)) {
+            manager.log(ManagerBase.sm.getString
+                        ("standardManager.loading.checksum",
+                         chunk.getAbsolutePath()));
+            return;
+        }
+
+        int count = dis.readInt();
+        for (int i = 0; i < count; i++) {
+            String id = dis.readUTF();
+            int length = dis.readInt();
+            int offset = data.length - TRAILER_LENGTH - dis.available();
+            pending.put(id, new Pending(id, data, offset, length));
+            dis.skipBytes(length);
+        }
+
+    }
+
+
+    /**
+     * 反序列化一个等待加载的会话, 并把它加入Manager. 每个会话只被反序列化一次;
+     * 并发的调用者等待第一个调用者完成.
+     *
+     * @return 加载的会话, 或者<code>null</code>如果它不能被反序列化
+     */
+    private Session restore(Pending entry) {
+
+        synchronized (entry) {
+            if (!entry.done) {
+                try {
+                    entry.session = deserialize(entry);
+                    manager.add(entry.session);
+                    entry.session.activate();
+                } catch (Exception e) {
+                    manager.log(ManagerBase.sm.getString
+                                ("standardManager.loading.ioe", e), e);
+                }
+                entry.done = true;
+                entry.data = null;
+                pending.remove(entry.id, entry);
+            }
+            return (entry.session);
+        }
+
+    }
+
+
+    /**
+     * 反序列化一个会话.
+     */
+    private StandardSession deserialize(Pending entry)
+        throws ClassNotFoundException, IOException {
+
+        StandardSession session = new StandardSession(manager);
+        manager.getCodec().decode(session, entry.data, entry.offset,
+                                  entry.length);
+        session.setManager(manager);
+        return (session);
+
+    }
+
+
+    /**
+     * 钝化并写入一个块文件.
+     */
+    private void write(File chunk, Object sessions[]) throws IOException {
+
+        CheckedOutputStream cos = new CheckedOutputStream
+            (new BufferedOutputStream(new FileOutputStream(chunk)),
+             new CRC32());
+        DataOutputStream dos = new DataOutputStream(cos);
+        try {
+            dos.writeInt(MAGIC);
+            dos.writeInt(sessions.length);
+            SessionCodec codec = manager.getCodec();
+            for (int i = 0; i < sessions.length; i++) {
+                StandardSession session = (StandardSession) sessions[i];
+                session.passivate();
+                byte data[] = codec.encode(session);
+                dos.writeUTF(session.getId());
+                dos.writeInt(data.length);
+                dos.write(data);
+            }
+            dos.flush();
+            long checksum = cos.getChecksum().getValue();
+            dos.writeInt(MAGIC);
+            dos.writeLong(checksum);
+        } finally {
+            dos.close();
+        }
+
+    }
+
+
+    // --------------------------------------------------------- Inner Classes
+
+
+    /**
+     * 一个等待加载的会话: 它在块数据中的位置, 加载后是会话本身.
+     */
+    private static final class Pending {
+
+        Pending(String id, byte data[], int offset, int length) {
+            this.id = id;
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        final String id;
+
+        byte data[];
+
+        final int offset;
+
+        final int length;
+
+        boolean done = false;
+
+        StandardSession session = null;
+
+    }
+
+
+}
@@ -3,16 +3,11 @@ package org.apache.catalina.session;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.ArrayList;
-import java.util.Iterator;
 
 import javax.servlet.ServletContext;
 
@@ -102,6 +97,19 @@ public class StandardManager extends ManagerBase implements Lifecycle, PropertyC
     private int rejectedSessions=0;
     private int expiredSessions=0;
 
+
+    /**
+     * 按过期时间组织的活动会话, 每个槽为一秒, 一圈大约一小时.
+     */
+    private final SessionExpiryWheel expiryWheel =
+        new SessionExpiryWheel(4096, 1000L);
+
+
+    /**
+     * 正在后台加载的会话快照, 或者<code>null</code>.
+     */
+    private volatile SessionSnapshot snapshot = null;
+
     // ------------------------------------------------------------- Properties
 
 
@@ -242,6 +250,55 @@ public class StandardManager extends ManagerBase implements Lifecycle, PropertyC
     // --------------------------------------------------------- Public Methods
 
 
+    /**
+     * 添加这个Session到活动的Session集合, 并按它的过期时间开始跟踪它.
+     *
+     * @param session Session to be added
+     */
+    public void add(Session session) {
+        super.add(session);
+        expiryWheel.schedule(session);
+    }
+
+
+    /**
+     * 返回指定ID的活动会话; 或者<code>null</code>.
+     * 重新启动后会话还在后台加载时, 如果请求的会话还没有加载, 立即加载它.
+     *
+     * @param id The session id for the session to be returned
+     *
+     * @exception IOException if an input/output error occurs while
+     *  processing this request
+     */
+    public Session findSession(String id) throws IOException {
+        Session session = super.findSession(id);
+        if (session != null)
+            return (session);
+        SessionSnapshot snapshot = this.snapshot;
+        if ((id == null) || (snapshot == null))
+            return (null);
+        session = snapshot.load(id);
+        if (!snapshot.isLoading())
+            this.snapshot = null;
+        // The background restore adds a session before dropping it from
+        // the pending set, so it may have been added after the first lookup
+        if (session == null)
+            session = super.findSession(id);
+        return (session);
+    }
+
+
+    /**
+     * 从活动会话集合中移除这个Session.
+     *
+     * @param session Session to be removed
+     */
+    public void remove(Session session) {
+        super.remove(session);
+        expiryWheel.cancel(session);
+    }
+
+
     /**
      * 创建一个新的会话对象, 基于此Manager属性指定的默认设置.
      * 此方法将分配会话id, 可以通过会话的getId()方法获取. 如果不能创建一个新的会话对象, 返回<code>null</code>.
@@ -277,100 +334,34 @@ public class StandardManager extends ManagerBase implements Lifecycle, PropertyC
         // 初始化内部数据结构
         recycled.clear();
         sessions.clear();
+        expiryWheel.clear();
+        snapshot = null;
 
-        // 打开一个输入流到指定的路径
         File file = file();
         if (file == null)
             return;
         if (debug >= 1)
             log(sm.getString("standardManager.loading", pathname));
-        FileInputStream fis = null;
-        ObjectInputStream ois = null;
-        Loader loader = null;
-        ClassLoader classLoader = null;
+
+        // 以前的版本写入的单个文件
+        if (file.exists())
+            loadFile(file);
+
+        // 读取并校验所有的块, 然后在后台加载其中的会话
+        SessionSnapshot snapshot =
+            new SessionSnapshot(this, file, snapshotThreads);
+        int n = 0;
         try {
-            fis = new FileInputStream(file.getAbsolutePath());
-            BufferedInputStream bis = new BufferedInputStream(fis);
-            if (container != null)
-                loader = container.getLoader();
-            if (loader != null)
-                classLoader = loader.getClassLoader();
-            if (classLoader != null) {
-                if (debug >= 1)
-                    log("Creating custom object input stream for class loader "
-                        + classLoader);
-                ois = new CustomObjectInputStream(bis, classLoader);
-            } else {
-                if (debug >= 1)
-                    log("Creating standard object input stream");
-                ois = new ObjectInputStream(bis);
-            }
-        } catch (FileNotFoundException e) {
-            if (debug >= 1)
-                log("No persisted data file found");
-            return;
+            n = snapshot.open();
         } catch (IOException e) {
             log(sm.getString("standardManager.loading.ioe", e), e);
-            if (ois != null) {
-                try {
-                    ois.close();
-                } catch (IOException f) {
-                    ;
-                }
-                ois = null;
-            }
             throw e;
         }
-
-        // 加载以前卸载的活动会话
-        synchronized (sessions) {
-            try {
-                Integer count = (Integer) ois.readObject();
-                int n = count.intValue();
-                if (debug >= 1)
-                    log("Loading " + n + " persisted sessions");
-                for (int i = 0; i < n; i++) {
-                    StandardSession session = new StandardSession(this);
-                    session.readObjectData(ois);
-                    session.setManager(this);
-                    sessions.put(session.getId(), session);
-                    ((StandardSession) session).activate();
-                }
-            } catch (ClassNotFoundException e) {
-              log(sm.getString("standardManager.loading.cnfe", e), e);
-                if (ois != null) {
-                    try {
-                        ois.close();
-                    } catch (IOException f) {
-                        ;
-                    }
-                    ois = null;
-                }
-                throw e;
-            } catch (IOException e) {
-              log(sm.getString("standardManager.loading.ioe", e), e);
-                if (ois != null) {
-                    try {
-                        ois.close();
-                    } catch (IOException f) {
-                        ;
-                    }
-                    ois = null;
-                }
-                throw e;
-            } finally {
-                // Close the input stream
-                try {
-                    if (ois != null)
-                        ois.close();
-                } catch (IOException f) {
-                    // ignored
-                }
-
-                // 删除持久存储文件
-                if (file != null && file.exists() )
-                    file.delete();
-            }
+        if (n > 0) {
+            if (debug >= 1)
+                log("Loading " + n + " persisted sessions in the background");
+            this.snapshot = snapshot;
+            snapshot.start();
         }
 
         if (debug >= 1)
@@ -389,82 +380,37 @@ public class StandardManager extends ManagerBase implements Lifecycle, PropertyC
         if (debug >= 1)
             log("Unloading persisted sessions");
 
-        // 打开输出流到指定的路径
         File file = file();
         if (file == null)
             return;
         if (debug >= 1)
             log(sm.getString("standardManager.unloading", pathname));
-        FileOutputStream fos = null;
-        ObjectOutputStream oos = null;
-        try {
-            fos = new FileOutputStream(file.getAbsolutePath());
-            oos = new ObjectOutputStream(new BufferedOutputStream(fos));
-        } catch (IOException e) {
-            log(sm.getString("standardManager.unloading.ioe", e), e);
-            if (oos != null) {
-                try {
-                    oos.close();
-                } catch (IOException f) {
-                    ;
-                }
-                oos = null;
-            }
-            throw e;
-        }
 
-        // 写出活动会话的数量, 详情后面
-        ArrayList list = new ArrayList();
-        synchronized (sessions) {
-            if (debug >= 1)
-                log("Unloading " + sessions.size() + " sessions");
-            try {
-                oos.writeObject(new Integer(sessions.size()));
-                Iterator elements = sessions.values().iterator();
-                while (elements.hasNext()) {
-                    StandardSession session =
-                        (StandardSession) elements.next();
-                    list.add(session);
-                    ((StandardSession) session).passivate();
-                    session.writeObjectData(oos);
-                }
-            } catch (IOException e) {
-                log(sm.getString("standardManager.unloading.ioe", e), e);
-                if (oos != null) {
-                    try {
-                        oos.close();
-                    } catch (IOException f) {
-                        ;
-                    }
-                    oos = null;
-                }
-                throw e;
-            }
+        // 还没有加载的会话也要写入
+        SessionSnapshot snapshot = this.snapshot;
+        if (snapshot != null) {
+            snapshot.finish();
+            this.snapshot = null;
         }
 
-        // Flush and close the output stream
+        // Work from a snapshot of the active sessions
+        Session sessions[] = findSessions();
+        if (debug >= 1)
+            log("Unloading " + sessions.length + " sessions");
         try {
-            oos.flush();
-            oos.close();
-            oos = null;
+            new SessionSnapshot(this, file, snapshotThreads).write(sessions);
         } catch (IOException e) {
-            if (oos != null) {
-                try {
-                    oos.close();
-                } catch (IOException f) {
-                    ;
-                }
-                oos = null;
-            }
+            log(sm.getString("standardManager.unloading.ioe", e), e);
             throw e;
         }
+        if (file.exists())
+            file.delete();
 
         // 终止刚才写入的所有会话
         if (debug >= 1)
-            log("Expiring " + list.size() + " persisted sessions");
-        Iterator expires = list.iterator();
-        while (expires.hasNext()) {
-            StandardSession session = (StandardSession) expires.next();
+            log("Expiring " + sessions.length + " persisted sessions");
+        for (int i = 0; i < sessions.length; i++) {
+            StandardSession session = (StandardSession) sessions[i];
             try {
                 session.expire(false);
             } catch (Throwable t) {
@@ -588,6 +534,7 @@ public class StandardManager extends ManagerBase implements Lifecycle, PropertyC
 
         // Require a new random number generator if we are restarted
         this.random = null;
+        this.sessionIdGenerator = null;
     }
 
 
@@ -622,6 +569,108 @@ public class StandardManager extends ManagerBase implements Lifecycle, PropertyC
     // -------------------------------------------------------- Private Methods
 
 
+    /**
+     * 从以前的版本写入的单个持久化文件中加载会话, 然后删除这个文件.
+     *
+     * @param file 持久化文件
+     *
+     * @exception ClassNotFoundException 如果在重新加载期间找不到序列化类
+     * @exception IOException if an input/output error occurs
+     */
+    private void loadFile(File file)
+        throws ClassNotFoundException, IOException {
+
+        // 打开一个输入流到指定的路径
+        FileInputStream fis = null;
+        ObjectInputStream ois = null;
+        Loader loader = null;
+        ClassLoader classLoader = null;
+        try {
+            fis = new FileInputStream(file.getAbsolutePath());
+            BufferedInputStream bis = new BufferedInputStream(fis);
+            if (container != null)
+                loader = container.getLoader();
+            if (loader != null)
+                classLoader = loader.getClassLoader();
+            if (classLoader != null) {
+                if (debug >= 1)
+                    log("Creating custom object input stream for class loader "
+                        + classLoader);
+                ois = new CustomObjectInputStream(bis, classLoader);
+            } else {
+                if (debug >= 1)
+                    log("Creating standard object input stream");
+                ois = new ObjectInputStream(bis);
+            }
+        } catch (FileNotFoundException e) {
+            if (debug >= 1)
+                log("No persisted data file found");
+            return;
+        } catch (IOException e) {
+            log(sm.getString("standardManager.loading.ioe", e), e);
+            if (ois != null) {
+                try {
+                    ois.close();
+                } catch (IOException f) {
+                    ;
+                }
+                ois = null;
+            }
+            throw e;
+        }
+
+        // 加载以前卸载的活动会话
+        try {
+            Integer count = (Integer) ois.readObject();
+            int n = count.intValue();
+            if (debug >= 1)
+                log("Loading " + n + " persisted sessions");
+            for (int i = 0; i < n; i++) {
+                StandardSession session = new StandardSession(this);
+                session.readObjectData(ois);
+                session.setManager(this);
+                sessions.put(session.getId(), session);
+                expiryWheel.schedule(session);
+                ((StandardSession) session).activate();
+            }
+        } catch (ClassNotFoundException e) {
+          log(sm.getString("standardManager.loading.cnfe", e), e);
+            if (ois != null) {
+                try {
+                    ois.close();
+                } catch (IOException f) {
+                    ;
+                }
+                ois = null;
+            }
+            throw e;
+        } catch (IOException e) {
+          log(sm.getString("standardManager.loading.ioe", e), e);
+            if (ois != null) {
+                try {
+                    ois.close();
+                } catch (IOException f) {
+                    ;
+                }
+                ois = null;
+            }
+            throw e;
+        } finally {
+            // Close the input stream
+            try {
+                if (ois != null)
+                    ois.close();
+            } catch (IOException f) {
+                // ignored
+            }
+
+            // 删除持久存储文件
+            if (file != null && file.exists() )
+                file.delete();
+        }
+    }
+
+
     /**
      * 返回持久化文件路径.
      */
@@ -648,33 +697,36 @@ public class StandardManager extends ManagerBase implements Lifecycle, PropertyC
 
     /**
      * 使已过期的所有会话无效.
+     * 只检查时间轮中从上一次检查到现在为止到期的槽, 而不是全部活动会话.
      */
     private void processExpires() {
 
         long timeNow = System.currentTimeMillis();
-        Session sessions[] = findSessions();
+        Session sessions[] = expiryWheel.expire(timeNow);
 
         for (int i = 0; i < sessions.length; i++) {
             StandardSession session = (StandardSession) sessions[i];
-            if (!session.isValid())
-                continue;
-            int maxInactiveInterval = session.getMaxInactiveInterval();
-            if (maxInactiveInterval < 0)
-                continue;
-            int timeIdle = // Truncate, do not round up
-                (int) ((timeNow - session.getLastAccessedTime()) / 1000L);
-            if (timeIdle >= maxInactiveInterval) {
-                try {
-                    expiredSessions++;
-                    session.expire();
-                } catch (Throwable t) {
-                    log(sm.getString("standardManager.expireException"), t);
-                }
+            try {
+                expiredSessions++;
+                session.expire();
+            } catch (Throwable t) {
+                log(sm.getString("standardManager.expireException"), t);
             }
         }
     }
 
 
+    /**
+     * 指定会话的非活动间隔已经改变, 重新安排它在时间轮中的位置.
+     *
+     * @param session 非活动间隔改变了的会话
+     */
+    void reschedule(Session session) {
+        if (sessions.get(session.getId()) == session)
+            expiryWheel.schedule(session);
+    }
+
+
     /**
      * 睡眠时间，使用<code>checkInterval</code>属性指定.
      */
@@ -8,10 +8,13 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.security.Principal;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 
 import javax.servlet.ServletContext;
@@ -64,10 +67,16 @@ class StandardSession implements HttpSession, Session, Serializable {
     private static final String NOT_SERIALIZED = "___NOT_SERIALIZABLE_EXCEPTION___";
 
 
+    /**
+     * 在修改记录中表示属性已被删除的特殊值.
+     */
+    private static final String REMOVED = "___REMOVED_ATTRIBUTE___";
+
+
     /**
      * 用户数据属性集合.
      */
-    private HashMap attributes = new HashMap();
+    protected HashMap attributes = new HashMap();
 
 
     /**
@@ -95,7 +104,7 @@ class StandardSession implements HttpSession, Session, Serializable {
      * 创建会话的时间, 午夜以来的毫秒,
      * January 1, 1970 GMT.
      */
-    private long creationTime = 0L;
+    protected long creationTime = 0L;
 
 
     /**
@@ -122,7 +131,7 @@ class StandardSession implements HttpSession, Session, Serializable {
     /**
      * 这个Session的会话标识符.
      */
-    private String id = null;
+    protected String id = null;
 
 
     /**
@@ -134,7 +143,7 @@ class StandardSession implements HttpSession, Session, Serializable {
     /**
      * 此会话的最后一次访问时间.
      */
-    private long lastAccessedTime = creationTime;
+    protected long lastAccessedTime = creationTime;
 
 
     /**
@@ -153,19 +162,47 @@ class StandardSession implements HttpSession, Session, Serializable {
      * 最大时间间隔, in seconds, 在servlet容器可能使该会话无效之前，客户端请求之间. 
      * 负值表示会话不应该超时.
      */
-    private int maxInactiveInterval = -1;
+    protected int maxInactiveInterval = -1;
 
 
     /**
      * 这个会话是不是新的.
      */
-    private boolean isNew = false;
+    protected boolean isNew = false;
 
 
     /**
      * 此会话有效与否.
      */
-    private boolean isValid = false;
+    protected boolean isValid = false;
+
+
+    /**
+     * 自上次保存以来被设置或删除的属性的名称.
+     * 应用程序可以直接修改<code>getAttribute()</code>返回的对象, 所以返回一个可变的值也使属性成为已修改的.
+     * <b>IMPLEMENTATION NOTE:</b> 这个对象不是保存和恢复整个会话序列!
+     */
+    private transient HashSet changedAttributes = new HashSet();
+
+
+    /**
+     * 下一次保存时是否必须保存整个会话, 而不只是修改的部分?
+     * 对于新建的或回收的会话, 以及保存失败之后, 为<code>true</code>.
+     */
+    private transient boolean fullSaveRequired = true;
+
+
+    /**
+     * 自上次保存以来, 访问时间、最大非活动间隔等元数据是否被修改?
+     */
+    private transient boolean metadataChanged = true;
+
+
+    /**
+     * 自上次复制到集群以来被设置或删除的属性的名称, 与保存到Store的修改标记分开跟踪.
+     * 如果这个会话还没有被复制过, 为<code>null</code>.
+     */
+    private transient HashSet replicatedAttributes = null;
 
 
     /**
@@ -204,7 +241,7 @@ class StandardSession implements HttpSession, Session, Serializable {
     /**
      * 这个会话的当前访问时间.
      */
-    private long thisAccessedTime = creationTime;
+    protected long thisAccessedTime = creationTime;
 
 
     // ----------------------------------------------------- Session Properties
@@ -240,6 +277,7 @@ class StandardSession implements HttpSession, Session, Serializable {
         this.creationTime = time;
         this.lastAccessedTime = time;
         this.thisAccessedTime = time;
+        this.metadataChanged = true;
     }
 
 
@@ -261,6 +299,7 @@ class StandardSession implements HttpSession, Session, Serializable {
             manager.remove(this);
 
         this.id = id;
+        setFullSaveRequired();
 
         if (manager != null)
             manager.add(this);
@@ -363,6 +402,9 @@ class StandardSession implements HttpSession, Session, Serializable {
      */
     public void setMaxInactiveInterval(int interval) {
         this.maxInactiveInterval = interval;
+        this.metadataChanged = true;
+        if ((id != null) && (manager instanceof ManagerBase))
+            ((ManagerBase) manager).reschedule(this);
     }
 
 
@@ -371,6 +413,7 @@ class StandardSession implements HttpSession, Session, Serializable {
      */
     public void setNew(boolean isNew) {
         this.isNew = isNew;
+        this.metadataChanged = true;
     }
 
 
@@ -425,6 +468,7 @@ class StandardSession implements HttpSession, Session, Serializable {
      */
     public void setValid(boolean isValid) {
         this.isValid = isValid;
+        this.metadataChanged = true;
     }
 
 
@@ -438,6 +482,7 @@ class StandardSession implements HttpSession, Session, Serializable {
         this.isNew = false;
         this.lastAccessedTime = this.thisAccessedTime;
         this.thisAccessedTime = System.currentTimeMillis();
+        this.metadataChanged = true;
     }
 
 
@@ -538,7 +583,7 @@ class StandardSession implements HttpSession, Session, Serializable {
         HttpSessionEvent event = null;
         String keys[] = keys();
         for (int i = 0; i < keys.length; i++) {
-            Object attribute = getAttribute(keys[i]);
+            Object attribute = attribute(keys[i]);
             if (attribute instanceof HttpSessionActivationListener) {
                 if (event == null)
                     event = new HttpSessionEvent(this);
@@ -559,7 +604,7 @@ class StandardSession implements HttpSession, Session, Serializable {
         HttpSessionEvent event = null;
         String keys[] = keys();
         for (int i = 0; i < keys.length; i++) {
-            Object attribute = getAttribute(keys[i]);
+            Object attribute = attribute(keys[i]);
             if (attribute instanceof HttpSessionActivationListener) {
                 if (event == null)
                     event = new HttpSessionEvent(this);
@@ -598,7 +643,12 @@ class StandardSession implements HttpSession, Session, Serializable {
     public void recycle() {
 
         // 重置关联的实际变量
-        attributes.clear();
+        synchronized (attributes) {
+            attributes.clear();
+            changedAttributes.clear();
+            fullSaveRequired = true;
+            replicatedAttributes = null;
+        }
         setAuthType(null);
         creationTime = 0L;
         expiring = false;
@@ -696,6 +746,121 @@ class StandardSession implements HttpSession, Session, Serializable {
     }
 
 
+    /**
+     * 自上次调用<code>resetDirty()</code>以来, 这个会话是否被修改过?
+     */
+    boolean isDirty() {
+        synchronized (attributes) {
+            return (fullSaveRequired || metadataChanged ||
+                    !changedAttributes.isEmpty());
+        }
+    }
+
+
+    /**
+     * 开始保存这个会话: 返回自上次保存以来被设置或删除的属性的名称, 并清除所有的修改标记.
+     * 如果必须保存整个会话, 返回<code>null</code>.
+     * 调用者必须在这之后再读取会话的内容, 这样并发的修改会被标记给下一次保存.
+     */
+    String[] resetDirty() {
+        synchronized (attributes) {
+            String names[] = null;
+            if (!fullSaveRequired)
+                names = (String[]) changedAttributes.toArray
+                    (new String[changedAttributes.size()]);
+            changedAttributes.clear();
+            fullSaveRequired = false;
+            metadataChanged = false;
+            return (names);
+        }
+    }
+
+
+    /**
+     * 开始复制这个会话: 返回自上次复制以来被设置或删除的属性的名称, 并清除它们.
+     * 如果这个会话还没有被复制过, 返回<code>null</code>, 调用者必须复制整个会话.
+     */
+    String[] resetReplication() {
+        synchronized (attributes) {
+            if (replicatedAttributes == null) {
+                replicatedAttributes = new HashSet();
+                return (null);
+            }
+            String names[] = (String[]) replicatedAttributes.toArray
+                (new String[replicatedAttributes.size()]);
+            replicatedAttributes.clear();
+            return (names);
+        }
+    }
+
+
+    /**
+     * 要求下一次复制时复制整个会话, 例如在发送失败之后.
+     */
+    void setFullReplicationRequired() {
+        synchronized (attributes) {
+            replicatedAttributes = null;
+        }
+    }
+
+
+    /**
+     * 把元数据和指定的属性标记为自上次保存以来已修改, 例如在应用了复制的修改之后.
+     *
+     * @param name 被设置或删除的属性的名称, 或者<code>null</code>只标记元数据
+     */
+    void setChanged(String name) {
+        synchronized (attributes) {
+            metadataChanged = true;
+            if (name != null)
+                changedAttributes.add(name);
+        }
+    }
+
+
+    /**
+     * 要求下一次保存时保存整个会话, 例如在保存失败之后.
+     */
+    void setFullSaveRequired() {
+        synchronized (attributes) {
+            fullSaveRequired = true;
+        }
+    }
+
+
+    /**
+     * 从指定的对象输入流中读取早期版本以Java序列化写入的修改记录, 并应用到这个会话.
+     * 不触发任何事件. 新的修改记录由<code>CompactSessionCodec</code>编码.
+     *
+     * @param stream The object input stream to read from
+     *
+     * @exception ClassNotFoundException if an unknown class is specified
+     * @exception IOException if an input/output error occurs
+     */
+    void readDeltaData(ObjectInputStream stream)
+        throws ClassNotFoundException, IOException {
+
+        lastAccessedTime = ((Long) stream.readObject()).longValue();
+        maxInactiveInterval = ((Integer) stream.readObject()).intValue();
+        isNew = ((Boolean) stream.readObject()).booleanValue();
+        isValid = ((Boolean) stream.readObject()).booleanValue();
+        thisAccessedTime = ((Long) stream.readObject()).longValue();
+        int n = ((Integer) stream.readObject()).intValue();
+        for (int i = 0; i < n; i++) {
+            String name = (String) stream.readObject();
+            Object value = stream.readObject();
+            synchronized (attributes) {
+                if ((value instanceof String) &&
+                    (value.equals(NOT_SERIALIZED) || value.equals(REMOVED)))
+                    attributes.remove(name);
+                else
+                    attributes.put(name, value);
+            }
+        }
+
+    }
+
+
     // ------------------------------------------------- HttpSession Properties
 
 
@@ -761,7 +926,14 @@ class StandardSession implements HttpSession, Session, Serializable {
                 (sm.getString("standardSession.getAttribute.ise"));
 
         synchronized (attributes) {
-            return (attributes.get(name));
+            Object value = attributes.get(name);
+            // The caller may change a mutable value in place
+            if ((value != null) && !isImmutable(value)) {
+                changedAttributes.add(name);
+                if (replicatedAttributes != null)
+                    replicatedAttributes.add(name);
+            }
+            return (value);
         }
     }
 
@@ -918,6 +1090,9 @@ class StandardSession implements HttpSession, Session, Serializable {
             if (found) {
                 value = attributes.get(name);
                 attributes.remove(name);
+                changedAttributes.add(name);
+                if (replicatedAttributes != null)
+                    replicatedAttributes.add(name);
             } else {
                 return;
             }
@@ -1028,6 +1203,9 @@ class StandardSession implements HttpSession, Session, Serializable {
         synchronized (attributes) {
             unbound = attributes.get(name);
             attributes.put(name, value);
+            changedAttributes.add(name);
+            if (replicatedAttributes != null)
+                replicatedAttributes.add(name);
         }
 
         // Call the valueUnbound() method if necessary
@@ -1130,6 +1308,8 @@ class StandardSession implements HttpSession, Session, Serializable {
         // 反序列化属性数量和属性值
         if (attributes == null)
             attributes = new HashMap();
+        if (changedAttributes == null)
+            changedAttributes = new HashSet();
         int n = ((Integer) stream.readObject()).intValue();
         boolean isValidSave = isValid;
         isValid = true;
@@ -1146,6 +1326,8 @@ class StandardSession implements HttpSession, Session, Serializable {
             }
         }
         isValid = isValidSave;
+        fullSaveRequired = true;
+        metadataChanged = true;
     }
 
 
@@ -1217,6 +1399,35 @@ class StandardSession implements HttpSession, Session, Serializable {
     // -------------------------------------------------------- Private Methods
 
 
+    /**
+     * 返回指定名称的属性, 不把它标记为已修改.
+     *
+     * @param name Name of the attribute to be returned
+     */
+    private Object attribute(String name) {
+        synchronized (attributes) {
+            return (attributes.get(name));
+        }
+    }
+
+
+    /**
+     * 指定的属性值是否不能被修改? 只识别常见的不可变类型, 其它的值都被认为可能在原地被修改.
+     *
+     * @param value 属性值
+     */
+    private static boolean isImmutable(Object value) {
+        Class clazz = value.getClass();
+        return ((clazz == String.class) || (clazz == Integer.class) ||
+                (clazz == Long.class) || (clazz == Boolean.class) ||
+                (clazz == Short.class) || (clazz == Byte.class) ||
+                (clazz == Character.class) || (clazz == Double.class) ||
+                (clazz == Float.class) ||
+                (clazz == BigDecimal.class) ||
+                (clazz == BigInteger.class));
+    }
+
+
     /**
      * 触发容器事件，如果Context实现类是
      * <code>org.apache.catalina.core.StandardContext</code>.
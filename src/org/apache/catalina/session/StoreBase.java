@@ -2,14 +2,20 @@ package org.apache.catalina.session;
 
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 
 import org.apache.catalina.Container;
+import org.apache.catalina.DeltaStore;
 import org.apache.catalina.Lifecycle;
 import org.apache.catalina.LifecycleException;
 import org.apache.catalina.LifecycleListener;
 import org.apache.catalina.Logger;
 import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
 import org.apache.catalina.Store;
 import org.apache.catalina.util.LifecycleSupport;
 import org.apache.catalina.util.StringManager;
@@ -56,7 +62,7 @@ public abstract class StoreBase implements Lifecycle, Runnable, Store {
     /**
      * 是否已启动?
      */
-    protected boolean started = false;
+    protected volatile boolean started = false;
 
     /**
      * 生命周期事件支持.
@@ -78,6 +84,16 @@ public abstract class StoreBase implements Lifecycle, Runnable, Store {
      */
     protected Manager manager;
 
+    /**
+     * 支持修改记录的Store在重新写入整个会话之前, 为每个会话积累的修改记录的最大数目.
+     */
+    protected int maxDeltas = 20;
+
+    /**
+     * 所属Manager不是<code>ManagerBase</code>时使用的编解码器.
+     */
+    private SessionCodec codec = null;
+
     // ------------------------------------------------------------- Properties
 
     /**
@@ -138,6 +154,26 @@ public abstract class StoreBase implements Lifecycle, Runnable, Store {
         return(this.checkInterval);
     }
 
+    /**
+     * 返回重新写入整个会话之前积累的修改记录的最大数目.
+     */
+    public int getMaxDeltas() {
+        return(this.maxDeltas);
+    }
+
+    /**
+     * 设置重新写入整个会话之前积累的修改记录的最大数目.
+     *
+     * @param maxDeltas The new maximum number of deltas
+     */
+    public void setMaxDeltas(int maxDeltas) {
+        int oldMaxDeltas = this.maxDeltas;
+        this.maxDeltas = maxDeltas;
+        support.firePropertyChange("maxDeltas",
+                                   new Integer(oldMaxDeltas),
+                                   new Integer(this.maxDeltas));
+    }
+
     /**
      * 设置关联的Manager.
      *
@@ -204,6 +240,41 @@ public abstract class StoreBase implements Lifecycle, Runnable, Store {
         support.removePropertyChangeListener(listener);
     }
 
+    /**
+     * 保存多个会话. 默认实现逐个保存它们; 子类可以覆盖它, 在一次操作中保存所有会话.
+     * 如果这个Store是一个<code>DeltaStore</code>, 只保存会话被修改的部分.
+     * 某个会话保存失败时, 其余的会话仍然被保存, 然后抛出最后一个异常.
+     * 保存失败的<code>StandardSession</code>保持被修改的状态.
+     *
+     * @param sessions the sessions to be stored
+     * @exception IOException if an input/output error occurs
+     */
+    public void save(Session sessions[]) throws IOException {
+        IOException failure = null;
+        for (int i = 0; i < sessions.length; i++) {
+            Session session = sessions[i];
+            try {
+                if (this instanceof DeltaStore) {
+                    ((DeltaStore) this).saveDelta(session);
+                } else if (session instanceof StandardSession) {
+                    ((StandardSession) session).resetDirty();
+                    try {
+                        save(session);
+                    } catch (IOException e) {
+                        ((StandardSession) session).setFullSaveRequired();
+                        throw e;
+                    }
+                } else {
+                    save(session);
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
     // --------------------------------------------------------- Protected Methods
 
     /**
@@ -219,7 +290,7 @@ public abstract class StoreBase implements Lifecycle, Runnable, Store {
         }
 
         try {
-            keys = keys();
+            keys = expiryCandidates(timeNow);
         } catch (IOException e) {
             log (e.toString());
             e.printStackTrace();
@@ -261,6 +332,80 @@ public abstract class StoreBase implements Lifecycle, Runnable, Store {
         }
     }
 
+    /**
+     * 返回<code>processExpires()</code>需要检查的会话标识符.
+     * 默认返回所有的会话标识符; 子类如果知道每个会话的访问时间, 可以只返回可能已经超时的会话.
+     *
+     * @param timeNow 当前时间
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    protected String[] expiryCandidates(long timeNow) throws IOException {
+        return (keys());
+    }
+
+    /**
+     * 将指定会话的修改记录序列化为一个字节数组.
+     *
+     * @param session 要保存的会话
+     * @param names <code>StandardSession.resetDirty()</code>返回的属性名称
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    protected byte[] serializeDelta(StandardSession session, String names[])
+        throws IOException {
+
+        return (getCodec().encodeDelta(session, names));
+
+    }
+
+    /**
+     * 依次读取指定输入流中的修改记录, 并应用到指定的会话.
+     * 每个记录以它的长度(一个<code>int</code>)开始. 不完整的最后一个记录被忽略,
+     * 它是写入时被中断留下的.
+     *
+     * @param session 要更新的会话
+     * @param stream 包含修改记录的输入流
+     * @return 应用的记录数
+     *
+     * @exception ClassNotFoundException if a deserialization error occurs
+     * @exception IOException if an input/output error occurs
+     */
+    protected int readDeltas(StandardSession session, InputStream stream)
+        throws ClassNotFoundException, IOException {
+
+        DataInputStream dis =
+            new DataInputStream(new BufferedInputStream(stream));
+        int count = 0;
+        while (true) {
+            byte record[] = null;
+            try {
+                int length = dis.readInt();
+                if (length < 0)
+                    break;
+                record = new byte[length];
+                dis.readFully(record);
+            } catch (EOFException e) {
+                break;
+            }
+            getCodec().decodeDelta(session, record, 0, record.length);
+            count++;
+        }
+        return (count);
+
+    }
+
+    /**
+     * 返回序列化会话时使用的编解码器: 所属Manager的编解码器, 或者一个默认的编解码器.
+     */
+    protected SessionCodec getCodec() {
+        if (manager instanceof ManagerBase)
+            return (((ManagerBase) manager).getCodec());
+        if (codec == null)
+            codec = new CompactSessionCodec();
+        return (codec);
+    }
+
     /**
      * 记录日志
      *
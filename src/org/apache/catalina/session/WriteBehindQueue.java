@@ -0,0 +1,362 @@
+package org.apache.catalina.session;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.apache.catalina.Session;
+import org.apache.catalina.util.LatencyHistogram;
+
+
+/**
+ * <code>PersistentManagerBase</code>的异步写入队列.
+ * <p>
+ * 要写入Store的会话按会话标识符排队; 同一个会话再次排队时只更新原有的记录,
+ * 所以只有最新的版本被写入. 一个或多个写入线程按排队的顺序每次取出一批会话,
+ * 通过<code>writeSessions()</code>批量写入. 队列满时, <code>add()</code>等待写入线程腾出空间.
+ * 被交换出去的会话在写入之前仍然是活动的, 写入成功之后才从活动会话列表中移除,
+ * 所以在此期间请求仍然可以找到它们.
+ * <p>
+ * <b>IMPLEMENTATION NOTE</b>: 所有的队列操作在这个对象上同步; 写入Store时不持有锁.
+ */
+
+final class WriteBehindQueue {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * @param manager 拥有会话的Manager
+     * @param capacity 等待写入的会话的最大数目
+     * @param threads 写入线程的数目
+     */
+    WriteBehindQueue(PersistentManagerBase manager, int capacity, int threads) {
+        this.manager = manager;
+        this.capacity = Math.max(1, capacity);
+        this.writers = new Thread[Math.max(1, threads)];
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * 每次写入的最大会话数.
+     */
+    private static final int MAX_BATCH = 100;
+
+
+    /**
+     * 等待写入的会话的最大数目.
+     */
+    private final int capacity;
+
+
+    /**
+     * 队列是否已经关闭?
+     */
+    private boolean closed = false;
+
+
+    /**
+     * 从排队到写入完成的时间.
+     */
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+
+    /**
+     * 拥有会话的Manager.
+     */
+    private final PersistentManagerBase manager;
+
+
+    /**
+     * 会话标识符 -> 等待写入的<code>Entry</code>, 按排队的顺序.
+     */
+    private final LinkedHashMap pending = new LinkedHashMap();
+
+
+    /**
+     * 写入线程.
+     */
+    private final Thread writers[];
+
+
+    /**
+     * 会话标识符 -> 正在被写入的<code>Entry</code>.
+     */
+    private final HashMap writing = new HashMap();
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 把一个会话加入队列. 如果它已经在等待写入, 只更新原有的记录.
+     * 队列满时等待写入线程腾出空间.
+     *
+     * @param session 要写入的会话
+     * @param swap 写入之后是否把会话从活动会话列表中移除
+     * @return 会话是否加入了队列? 如果队列已经关闭, 或者等待时被中断, 返回<code>false</code>,
+     *  调用者应该自己写入这个会话
+     */
+    synchronized boolean add(Session session, boolean swap) {
+
+        String id = session.getId();
+        Entry entry = (Entry) pending.get(id);
+        if (entry != null) {
+            entry.session = session;
+            entry.swap |= swap;
+            entry.accessed = accessed(session);
+            return (true);
+        }
+        while (!closed && (pending.size() >= capacity)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return (false);
+            }
+        }
+        if (closed)
+            return (false);
+        pending.put(id, new Entry(id, session, swap));
+        notifyAll();
+        return (true);
+
+    }
+
+
+    /**
+     * 取消指定会话的写入, 如果它正在被写入, 等待写入完成.
+     * 在从Store中删除会话之前调用, 以免删除之后又被写入.
+     *
+     * @param id 会话标识符
+     */
+    synchronized void cancel(String id) {
+
+        if (pending.remove(id) != null)
+            notifyAll();
+        boolean interrupted = false;
+        while (writing.containsKey(id)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+    }
+
+
+    /**
+     * 返回从排队到写入完成的时间的直方图.
+     */
+    LatencyHistogram getLatency() {
+        return (latency);
+    }
+
+
+    /**
+     * 返回等待写入和正在被写入的会话数.
+     */
+    synchronized int size() {
+        return (pending.size() + writing.size());
+    }
+
+
+    /**
+     * 启动写入线程.
+     *
+     * @param name 写入线程的名称前缀
+     */
+    void start(String name) {
+
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new Thread(new Runnable() {
+                public void run() {
+                    Entry batch[] = null;
+                    while ((batch = take()) != null)
+                        write(batch);
+                }
+            }, name + "-writer-" + i);
+            writers[i].setDaemon(true);
+            writers[i].start();
+        }
+
+    }
+
+
+    /**
+     * 写入所有排队的会话, 然后关闭队列并停止写入线程.
+     * 此后<code>add()</code>返回<code>false</code>.
+     */
+    void stop() {
+
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        for (int i = 0; i < writers.length; i++) {
+            if (writers[i] == null)
+                continue;
+            try {
+                writers[i].join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writers[i] = null;
+        }
+
+    }
+
+
+    // -------------------------------------------------------- Package Methods
+
+
+    /**
+     * 返回会话最近一次被访问的时间. <code>StandardSession</code>的最后访问时间
+     * 在下一次访问时才更新, 所以使用它的本次访问时间.
+     */
+    static long accessed(Session session) {
+
+        if (session instanceof StandardSession)
+            return (((StandardSession) session).thisAccessedTime);
+        return (session.getLastAccessedTime());
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * 把一批会话标记为写入完成, 唤醒等待的线程.
+     */
+    private synchronized void done(Entry batch[]) {
+
+        for (int i = 0; i < batch.length; i++)
+            writing.remove(batch[i].id);
+        notifyAll();
+
+    }
+
+
+    /**
+     * 取出下一批可以写入的会话: 按排队的顺序, 跳过正在被其它线程写入的会话.
+     * 如果队列为空, 等待; 如果队列已经关闭并且为空, 返回<code>null</code>.
+     */
+    private synchronized Entry[] take() {
+
+        while (true) {
+            ArrayList results = new ArrayList();
+            Iterator entries = pending.values().iterator();
+            while (entries.hasNext() && (results.size() < MAX_BATCH)) {
+                Entry entry = (Entry) entries.next();
+                if (writing.containsKey(entry.id))
+                    continue;
+                entries.remove();
+                writing.put(entry.id, entry);
+                results.add(entry);
+            }
+            if (!results.isEmpty()) {
+                // Room for more sessions
+                notifyAll();
+                return ((Entry[]) results.toArray(new Entry[results.size()]));
+            }
+            if (closed && pending.isEmpty())
+                return (null);
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                ;
+            }
+        }
+
+    }
+
+
+    /**
+     * 写入一批会话. 会话在写入时不被钝化, 因为请求可能还在使用它们;
+     * 被交换出去的会话写入之后交给Manager, 由它在移除之后钝化.
+     */
+    private void write(Entry batch[]) {
+
+        try {
+            Session sessions[] = new Session[batch.length];
+            for (int i = 0; i < batch.length; i++)
+                sessions[i] = batch[i].session;
+            boolean failed = false;
+            try {
+                manager.writeSessions(sessions);
+            } catch (IOException e) {
+                failed = true;  // This is logged in writeSessions()
+            }
+
+            long timeNow = System.currentTimeMillis();
+            for (int i = 0; i < batch.length; i++) {
+                latency.record(timeNow - batch[i].queued);
+                if (!batch[i].swap)
+                    continue;
+                boolean saved = (sessions[i] instanceof StandardSession) ?
+                    !((StandardSession) sessions[i]).isDirty() : !failed;
+                manager.swappedOut(sessions[i], batch[i].accessed, saved);
+            }
+        } catch (Throwable t) {
+            manager.log(ManagerBase.sm.getString
+                        ("persistentManager.batchSerializeError",
+                         String.valueOf(batch.length), t), t);
+        } finally {
+            done(batch);
+        }
+
+    }
+
+
+    // --------------------------------------------------------- Inner Classes
+
+
+    /**
+     * 一个等待写入的会话.
+     */
+    private static final class Entry {
+
+        Entry(String id, Session session, boolean swap) {
+            this.id = id;
+            this.session = session;
+            this.swap = swap;
+            this.accessed = accessed(session);
+        }
+
+        /**
+         * 会话标识符. 会话被回收之后, 它的标识符不再可用.
+         */
+        final String id;
+
+        /**
+         * 排队的时间.
+         */
+        final long queued = System.currentTimeMillis();
+
+        Session session;
+
+        /**
+         * 写入之后是否把会话从活动会话列表中移除?
+         */
+        boolean swap;
+
+        /**
+         * 排队时会话的访问时间. 如果写入时它已经改变, 会话被重新访问过, 不再被交换出去.
+         */
+        long accessed;
+
+    }
+
+
+}
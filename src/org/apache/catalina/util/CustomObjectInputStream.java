@@ -38,6 +38,6 @@ public final class CustomObjectInputStream extends ObjectInputStream {
      * @exception IOException if an input/output error occurs
      */
     public Class resolveClass(ObjectStreamClass classDesc) throws ClassNotFoundException, IOException {
-        return (classLoader.loadClass(classDesc.getName()));
+        return (Class.forName(classDesc.getName(), false, classLoader));
     }
 }
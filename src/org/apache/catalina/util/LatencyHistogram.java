@@ -0,0 +1,120 @@
+package org.apache.catalina.util;
+
+
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * 一个固定桶的延迟直方图, 用于统计请求的处理时间(毫秒).
+ * 每个桶是一个分段计数器, 所以<code>record()</code>不需要任何锁, 也不分配对象,
+ * 适合在每个请求上调用.
+ * <p>
+ * 百分位数是近似值: 返回包含该百分位的桶的上界.
+ */
+public final class LatencyHistogram {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    public LatencyHistogram() {
+        counts = new LongAdder[BOUNDS.length + 1];
+        for (int i = 0; i < counts.length; i++)
+            counts[i] = new LongAdder();
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * 各个桶的上界(毫秒, 包含). 最后一个桶没有上界.
+     */
+    private static final long BOUNDS[] = {
+        1L, 2L, 5L, 10L, 20L, 50L, 100L, 200L, 500L,
+        1000L, 2000L, 5000L, 10000L, 30000L, 60000L
+    };
+
+
+    /**
+     * 每个桶的计数.
+     */
+    private final LongAdder counts[];
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 返回各个桶的上界(毫秒). 最后一个桶(超过最大上界)不包含在内.
+     */
+    public static long[] getBounds() {
+        return ((long[]) BOUNDS.clone());
+    }
+
+
+    /**
+     * 返回每个桶的计数的快照, 比<code>getBounds()</code>多一个元素.
+     */
+    public long[] getCounts() {
+        long results[] = new long[counts.length];
+        for (int i = 0; i < counts.length; i++)
+            results[i] = counts[i].sum();
+        return (results);
+    }
+
+
+    /**
+     * 返回指定百分位(0到100之间)的近似值(毫秒).
+     * 如果还没有记录任何值, 返回零; 落在最后一个桶中时, 返回<code>Long.MAX_VALUE</code>.
+     *
+     * @param percentile 要计算的百分位
+     */
+    public long getPercentile(double percentile) {
+
+        long snapshot[] = getCounts();
+        long total = 0L;
+        for (int i = 0; i < snapshot.length; i++)
+            total += snapshot[i];
+        if (total == 0L)
+            return (0L);
+
+        long rank = (long) Math.ceil(total * (percentile / 100.0));
+        if (rank < 1L)
+            rank = 1L;
+        long seen = 0L;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return (BOUNDS[i]);
+        }
+        return (Long.MAX_VALUE);
+
+    }
+
+
+    /**
+     * 记录一次处理时间.
+     *
+     * @param time 处理时间(毫秒)
+     */
+    public void record(long time) {
+
+        int i = 0;
+        while ((i < BOUNDS.length) && (time > BOUNDS[i]))
+            i++;
+        counts[i].increment();
+
+    }
+
+
+    /**
+     * 清除所有的计数.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length; i++)
+            counts[i].reset();
+    }
+
+
+}
@@ -0,0 +1,263 @@
+package org.apache.catalina.util;
+
+
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * 会话标识符生成器, 由会话管理器和认证器共享.
+ * <p>
+ * 会话标识符直接由随机数生成器产生的字节编码为十六进制数字, 不再经过消息摘要.
+ * 随机数生成器被放在一个无锁的池中, 每个实例在创建时只初始化一次, 并且同一时刻只被一个线程使用,
+ * 所以生成标识符时不需要获取任何锁. 每个实例一次生成一批随机字节保存在缓冲区中,
+ * 随后的若干个标识符直接从缓冲区中取得.
+ * 池中实例的数目不超过同时生成标识符的线程的最大数目.
+ * <p>
+ * 如果指定了<code>jvmRoute</code>, 它被加在标识符之后, 用'.'分隔.
+ */
+public final class SessionIdGenerator {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * 使用默认的随机数生成器类构造一个生成器.
+     */
+    public SessionIdGenerator() {
+        this(DEFAULT_RANDOM_CLASS, null, DEFAULT_LENGTH);
+    }
+
+
+    /**
+     * 构造一个新的生成器.
+     *
+     * @param randomClass 随机数生成器的Java类名称, 必须是<code>java.util.Random</code>的子类
+     * @param entropy 用于增加随机数生成器初始化的熵的字符串, 或者<code>null</code>
+     * @param length 每个标识符包含的随机字节数
+     *
+     * @exception IllegalArgumentException 如果不能创建指定类的实例, 或者长度不是正数
+     */
+    public SessionIdGenerator(String randomClass, String entropy, int length) {
+
+        if (length <= 0)
+            throw new IllegalArgumentException
+                ("Invalid session id length " + length);
+        try {
+            this.clazz = Class.forName(randomClass);
+            if (!Random.class.isAssignableFrom(clazz))
+                throw new IllegalArgumentException
+                    ("Not a random number generator class " + randomClass);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException
+                ("Cannot load random number generator class " + randomClass);
+        }
+        this.entropy = entropy;
+        this.length = length;
+        this.bufferSize = length * BATCH;
+
+        // Create the first instance now, so any failure is reported here
+        sources.offer(createSource());
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * 每次填充缓冲区时生成的标识符个数.
+     */
+    private static final int BATCH = 32;
+
+
+    /**
+     * 默认的每个标识符包含的随机字节数.
+     */
+    public static final int DEFAULT_LENGTH = 16;
+
+
+    /**
+     * 默认的随机数生成器类.
+     */
+    public static final String DEFAULT_RANDOM_CLASS =
+        "java.security.SecureRandom";
+
+
+    /**
+     * 十六进制数字.
+     */
+    private static final char DIGITS[] = {
+        '0', '1', '2', '3', '4', '5', '6', '7',
+        '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+    };
+
+
+    /**
+     * 每个随机数生成器实例的缓冲区大小.
+     */
+    private final int bufferSize;
+
+
+    /**
+     * 随机数生成器类.
+     */
+    private final Class clazz;
+
+
+    /**
+     * 用于增加随机数生成器初始化的熵的字符串, 或者<code>null</code>.
+     */
+    private final String entropy;
+
+
+    /**
+     * 每个标识符包含的随机字节数.
+     */
+    private final int length;
+
+
+    /**
+     * 当前空闲的随机数生成器实例.
+     */
+    private final ConcurrentLinkedQueue sources = new ConcurrentLinkedQueue();
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * 返回每个标识符包含的随机字节数.
+     */
+    public int getLength() {
+        return (this.length);
+    }
+
+
+    /**
+     * 返回随机数生成器的Java类名称.
+     */
+    public String getRandomClass() {
+        return (clazz.getName());
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 生成并返回一个新的会话标识符, 不带<code>jvmRoute</code>.
+     */
+    public String generateSessionId() {
+        return (generateSessionId(null));
+    }
+
+
+    /**
+     * 生成并返回一个新的会话标识符.
+     *
+     * @param jvmRoute 加在标识符之后的路由, 或者<code>null</code>
+     */
+    public String generateSessionId(String jvmRoute) {
+
+        Source source = (Source) sources.poll();
+        if (source == null)
+            source = createSource();
+
+        if (source.position + length > bufferSize) {
+            source.random.nextBytes(source.buffer);
+            source.position = 0;
+        }
+        int n = length * 2;
+        if (jvmRoute != null)
+            n += jvmRoute.length() + 1;
+        char result[] = new char[n];
+        byte buffer[] = source.buffer;
+        int j = 0;
+        for (int i = source.position; i < source.position + length; i++) {
+            result[j++] = DIGITS[(buffer[i] & 0xf0) >> 4];
+            result[j++] = DIGITS[buffer[i] & 0x0f];
+            buffer[i] = 0;
+        }
+        source.position += length;
+        sources.offer(source);
+
+        if (jvmRoute != null) {
+            result[j++] = '.';
+            jvmRoute.getChars(0, jvmRoute.length(), result, j);
+        }
+        return (new String(result));
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * 创建并初始化一个新的随机数生成器实例.
+     * <code>SecureRandom</code>先使用自己的种子, 熵字符串只作为补充;
+     * 其它的生成器使用当前时间和熵字符串计算的种子.
+     */
+    private Source createSource() {
+
+        Random random = null;
+        try {
+            random = (Random) clazz.newInstance();
+        } catch (Exception e) {
+            throw new IllegalArgumentException
+                ("Cannot create random number generator of class " +
+                 clazz.getName() + ": " + e);
+        }
+
+        long seed = System.currentTimeMillis() ^ System.nanoTime();
+        if (entropy != null) {
+            char chars[] = entropy.toCharArray();
+            for (int i = 0; i < chars.length; i++) {
+                long update = ((long) (byte) chars[i]) << ((i % 8) * 8);
+                seed ^= update;
+            }
+        }
+        if (random instanceof SecureRandom) {
+            // Force self-seeding before supplementing the seed
+            random.nextInt();
+            ((SecureRandom) random).setSeed(seed);
+        } else {
+            random.setSeed(seed);
+        }
+
+        Source source = new Source(random, new byte[bufferSize]);
+        source.position = bufferSize;
+        return (source);
+
+    }
+
+
+    // --------------------------------------------------------- Inner Classes
+
+
+    /**
+     * 一个随机数生成器实例, 以及它预先生成的随机字节.
+     */
+    private static final class Source {
+
+        Source(Random random, byte buffer[]) {
+            this.random = random;
+            this.buffer = buffer;
+        }
+
+        final Random random;
+
+        final byte buffer[];
+
+        /**
+         * 缓冲区中下一个未使用的字节.
+         */
+        int position;
+
+    }
+
+
+}
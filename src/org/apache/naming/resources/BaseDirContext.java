@@ -94,6 +94,18 @@ public abstract class BaseDirContext implements DirContext {
     protected int cacheObjectMaxSize = 32768; // 32 KB
 
 
+    /**
+     * 缓存的最大大小(KB).
+     */
+    protected int cacheMaxSize = 10240; // 10 MB
+
+
+    /**
+     * 压缩形式的缓存的最大大小(KB).
+     */
+    protected int gzipCacheMaxSize = 2048; // 2 MB
+
+
     // ------------------------------------------------------------- Properties
 
     public int getDebug() {
@@ -180,6 +192,38 @@ public abstract class BaseDirContext implements DirContext {
     }
 
 
+    /**
+     * Set cacheMaxSize (KB).
+     */
+    public void setCacheMaxSize(int cacheMaxSize) {
+        this.cacheMaxSize = cacheMaxSize;
+    }
+
+
+    /**
+     * Get cacheMaxSize (KB).
+     */
+    public int getCacheMaxSize() {
+        return cacheMaxSize;
+    }
+
+
+    /**
+     * Set gzipCacheMaxSize (KB).
+     */
+    public void setGzipCacheMaxSize(int gzipCacheMaxSize) {
+        this.gzipCacheMaxSize = gzipCacheMaxSize;
+    }
+
+
+    /**
+     * Get gzipCacheMaxSize (KB).
+     */
+    public int getGzipCacheMaxSize() {
+        return gzipCacheMaxSize;
+    }
+
+
     // --------------------------------------------------------- Public Methods
 
 
@@ -78,6 +78,24 @@ public class FileDirContext extends BaseDirContext {
     protected boolean allowLinking = false;
 
 
+    /**
+     * 是否监视文档根目录, 在文件被修改时使缓存的条目失效, 而不是按TTL重新验证?
+     */
+    protected boolean watched = false;
+
+
+    /**
+     * 包装这个上下文的<code>ProxyDirContext</code>的缓存.
+     */
+    private ResourceCache cache = null;
+
+
+    /**
+     * 监视文档根目录的线程, 如果没有监视, 为<code>null</code>.
+     */
+    private ResourceWatcher watcher = null;
+
+
     // ------------------------------------------------------------- Properties
 
 
@@ -138,13 +156,67 @@ public class FileDirContext extends BaseDirContext {
     }
 
 
+    /**
+     * 设置是否监视文档根目录.
+     */
+    public void setWatched(boolean watched) {
+        this.watched = watched;
+    }
+
+
+    /**
+     * 是否监视文档根目录?
+     */
+    public boolean isWatched() {
+        return watched;
+    }
+
+
+    /**
+     * 缓存的条目是否由文件系统事件使其失效? 如果监视没有启动或者已经失败, 返回<code>false</code>.
+     */
+    boolean isWatching() {
+        ResourceWatcher watcher = this.watcher;
+        return ((watcher != null) && watcher.isRunning());
+    }
+
+
+    /**
+     * 设置监视时要使其失效的缓存. 由<code>ProxyDirContext</code>调用.
+     */
+    void setCache(ResourceCache cache) {
+        this.cache = cache;
+    }
+
+
     // --------------------------------------------------------- Public Methods
 
 
+    /**
+     * 为该目录上下文分配资源. 如果设置了<code>watched</code>, 开始监视文档根目录;
+     * 如果不能监视, 缓存的条目仍然按TTL重新验证.
+     */
+    public void allocate() {
+        super.allocate();
+        if (!watched || (cache == null) || (base == null))
+            return;
+        watcher = new ResourceWatcher(base, cache);
+        try {
+            watcher.start("FileDirContext[" + absoluteBase + "]");
+        } catch (IOException e) {
+            watcher = null;
+        }
+    }
+
+
     /**
      * 释放分配给此目录上下文的任何资源
      */
     public void release() {
+        if (watcher != null) {
+            watcher.stop();
+            watcher = null;
+        }
         caseSensitive = true;
         allowLinking = false;
         absoluteBase = null;
@@ -895,6 +967,23 @@ public class FileDirContext extends BaseDirContext {
         }
         
         
+        /**
+         * 获取规范路径
+         * 
+         * @return String the file's canonical path
+         */
+        public String getCanonicalPath() {
+            if (canonicalPath == null) {
+                try {
+                    canonicalPath = file.getCanonicalPath();
+                } catch (IOException e) {
+                    ; // Not served from the file then
+                }
+            }
+            return canonicalPath;
+        }
+        
+        
         /**
          * 获取资源类型
          * 
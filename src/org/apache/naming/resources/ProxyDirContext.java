@@ -1,11 +1,14 @@
 package org.apache.naming.resources;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Collections;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Hashtable;
-import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 import javax.naming.Context;
 import javax.naming.Name;
@@ -25,7 +28,6 @@ import javax.naming.directory.InvalidSearchFilterException;
 import javax.naming.directory.ModificationItem;
 import javax.naming.directory.SearchControls;
 
-import org.apache.commons.collections.LRUMap;
 import org.apache.naming.StringManager;
 
 /**
@@ -46,10 +48,16 @@ public class ProxyDirContext implements DirContext {
         if (dirContext instanceof BaseDirContext) {
             // 根据关联的目录上下文初始化参数, 像缓存策略一样.
             if (((BaseDirContext) dirContext).isCached()) {
-                cache = Collections.synchronizedMap(new LRUMap(cacheSize));
+                cacheMaxSize = ((BaseDirContext) dirContext).getCacheMaxSize();
+                cache = new ResourceCache(cacheMaxSize * 1024L);
                 cacheTTL = ((BaseDirContext) dirContext).getCacheTTL();
                 cacheObjectMaxSize = 
                     ((BaseDirContext) dirContext).getCacheObjectMaxSize();
+                gzipCache = new ResourceCache
+                    (((BaseDirContext) dirContext).getGzipCacheMaxSize()
+                     * 1024L);
+                if (dirContext instanceof FileDirContext)
+                    ((FileDirContext) dirContext).setCache(cache);
             }
         }
         hostName = (String) env.get(HOST);
@@ -66,7 +74,8 @@ public class ProxyDirContext implements DirContext {
         this.dirContext = dirContext;
         this.vPath = vPath;
         this.cache = proxyDirContext.cache;
-        this.cacheSize = proxyDirContext.cacheSize;
+        this.gzipCache = proxyDirContext.gzipCache;
+        this.cacheMaxSize = proxyDirContext.cacheMaxSize;
         this.cacheTTL = proxyDirContext.cacheTTL;
         this.cacheObjectMaxSize = proxyDirContext.cacheObjectMaxSize;
         this.hostName = proxyDirContext.hostName;
@@ -117,13 +126,13 @@ public class ProxyDirContext implements DirContext {
      * Cache.
      * Path -> Cache entry.
      */
-    protected Map cache = null;
+    protected ResourceCache cache = null;
 
 
     /**
-     * Cache size
+     * 缓存的最大大小(KB)
      */
-    protected int cacheSize = 1000;
+    protected int cacheMaxSize = 10240; // 10 MB
 
 
     /**
@@ -138,6 +147,25 @@ public class ProxyDirContext implements DirContext {
     protected int cacheObjectMaxSize = 32768; // 32 KB
 
 
+    /**
+     * 资源的gzip压缩形式的缓存, 和资源缓存分开计算大小.
+     * Path -> Cache entry, 它的属性记录压缩的资源的版本.
+     */
+    protected ResourceCache gzipCache = null;
+
+
+    /**
+     * 在内存中压缩的资源的最大大小. 更大的资源应该预先压缩为<code>.gz</code>文件.
+     */
+    protected int gzipObjectMaxSize = 1048576; // 1 MB
+
+
+    /**
+     * 计算强ETag的资源的最大大小.
+     */
+    protected long digestObjectMaxSize = 16777216L; // 16 MB
+
+
     /**
      * 不变的名称未发现异常
      */
@@ -155,6 +183,126 @@ public class ProxyDirContext implements DirContext {
     }
 
 
+    /**
+     * 返回资源缓存, 如果没有缓存, 返回<code>null</code>.
+     */
+    public ResourceCache getCache() {
+        return this.cache;
+    }
+
+
+    /**
+     * 返回压缩形式的缓存, 如果没有缓存, 返回<code>null</code>.
+     */
+    public ResourceCache getGzipCache() {
+        return this.gzipCache;
+    }
+
+
+    /**
+     * 返回资源当前内容的gzip压缩形式. 每个版本只压缩一次, 结果保存在压缩形式的缓存中;
+     * 资源被修改之后, 下一次调用重新压缩它.
+     *
+     * @param name 资源的名称
+     * @return 内容是压缩的字节的资源. 如果没有缓存, 资源不存在或者太大, 或者压缩不能使它变小,
+     *  返回<code>null</code>
+     */
+    public Resource lookupGzip(String name) {
+
+        if (gzipCache == null)
+            return (null);
+        CacheEntry source = null;
+        try {
+            source = cacheLookup(name);
+        } catch (NamingException e) {
+            return (null);
+        }
+        if ((source == null) || (source.resource == null))
+            return (null);
+        long lastModified = source.attributes.getLastModified();
+        long contentLength = source.attributes.getContentLength();
+        if ((contentLength < 0) || (contentLength > gzipObjectMaxSize))
+            return (null);
+
+        CacheEntry entry = gzipCache.lookup(name);
+        if ((entry == null)
+            || (entry.attributes.getLastModified() != lastModified)
+            || (entry.attributes.getContentLength() != contentLength)) {
+            entry = new CacheEntry();
+            entry.name = name;
+            // Only one thread compresses a resource, the others wait for it
+            CacheEntry loading = gzipCache.startLoad(entry);
+            if (loading == entry) {
+                try {
+                    gzipLoad(entry, source);
+                } finally {
+                    gzipCache.endLoad(entry);
+                }
+            } else {
+                entry = gzipCache.awaitLoad(loading);
+                if (entry.timestamp < 0)
+                    return (null);
+            }
+        }
+        if (!entry.exists)
+            return (null);
+        return (entry.resource);
+
+    }
+
+
+    /**
+     * 返回资源的缓存条目的响应元数据.
+     *
+     * @param name 资源的名称
+     * @return 元数据. 如果没有缓存, 资源不存在或者不是一个文件, 或者还没有为它的当前版本创建元数据,
+     *  返回<code>null</code>
+     */
+    public ResourceMetadata lookupMetadata(String name) {
+
+        try {
+            CacheEntry entry = cacheLookup(name);
+            if ((entry == null) || (entry.resource == null))
+                return (null);
+            return (entry.metadata);
+        } catch (NamingException e) {
+            return (null);
+        }
+
+    }
+
+
+    /**
+     * 为资源的当前版本创建响应元数据, 保存在它的缓存条目中, 直到资源被修改.
+     *
+     * @param name 资源的名称
+     * @param contentType 资源的内容类型
+     * @param digest 是否在后台计算内容的摘要, 作为强ETag?
+     * @return 元数据. 如果没有缓存, 或者资源不存在或者不是一个文件, 返回<code>null</code>
+     */
+    public ResourceMetadata createMetadata(String name, String contentType,
+                                           boolean digest) {
+
+        CacheEntry entry = null;
+        try {
+            entry = cacheLookup(name);
+        } catch (NamingException e) {
+            return (null);
+        }
+        if ((entry == null) || (entry.resource == null))
+            return (null);
+        ResourceMetadata metadata =
+            new ResourceMetadata(contentType, entry.attributes);
+        entry.metadata = metadata;
+        if (digest && (metadata.getStrongETag() == null)
+            && (metadata.getContentLength() >= 0)
+            && (metadata.getContentLength() <= digestObjectMaxSize))
+            digestLater(entry, metadata);
+        return (metadata);
+
+    }
+
+
     /**
      * 返回此组件的文档根目录
      */
@@ -1127,12 +1275,29 @@ public class ProxyDirContext implements DirContext {
         throws NamingException {
         if (cache == null)
             return (null);
-        CacheEntry cacheEntry = (CacheEntry) cache.get(name);
+        CacheEntry cacheEntry = cache.lookup(name);
         if (cacheEntry == null) {
             cacheEntry = new CacheEntry();
             cacheEntry.name = name;
-            // Load entry
-            cacheLoad(cacheEntry);
+            // Only one thread loads a missing entry, the others wait for it
+            CacheEntry loading = cache.startLoad(cacheEntry);
+            if (loading == cacheEntry) {
+                try {
+                    cacheLoad(cacheEntry);
+                } finally {
+                    cache.endLoad(cacheEntry);
+                }
+            } else {
+                cacheEntry = cache.awaitLoad(loading);
+                // The loading thread failed
+                if (cacheEntry.timestamp < 0)
+                    return (null);
+            }
+        } else if (watching()) {
+            // A change event would have removed it: serve it as is, and
+            // look for missed events in the background
+            if (System.currentTimeMillis() >= cacheEntry.timestamp)
+                revalidateLater(cacheEntry);
         } else {
             if (!validate(cacheEntry)) {
                 if (!revalidate(cacheEntry)) {
@@ -1197,6 +1362,114 @@ public class ProxyDirContext implements DirContext {
     }
 
 
+    /**
+     * 缓存的条目是否由文件系统事件使其失效?
+     */
+    protected boolean watching() {
+        return ((dirContext instanceof FileDirContext)
+                && ((FileDirContext) dirContext).isWatching());
+    }
+
+
+    /**
+     * 在后台重新验证一个过期的条目. 在此期间仍然使用这个条目; 如果它已经改变, 从缓存中删除它.
+     */
+    protected void revalidateLater(final CacheEntry entry) {
+        synchronized (entry) {
+            if (entry.revalidating)
+                return;
+            entry.revalidating = true;
+        }
+        ResourceCache.revalidateLater(new Runnable() {
+            public void run() {
+                try {
+                    if (revalidate(entry))
+                        entry.timestamp = System.currentTimeMillis() + cacheTTL;
+                    else
+                        cache.remove(entry.name, entry);
+                } finally {
+                    synchronized (entry) {
+                        entry.revalidating = false;
+                    }
+                }
+            }
+        });
+    }
+
+
+    /**
+     * 在后台计算资源内容的MD5摘要, 把包含它作为强ETag的元数据放入缓存条目.
+     * 如果在此期间资源被修改, 或者条目的元数据被替换, 丢弃这个摘要.
+     */
+    protected void digestLater(final CacheEntry entry,
+                               final ResourceMetadata metadata) {
+        ResourceCache.revalidateLater(new Runnable() {
+            public void run() {
+                String digest = digest(entry);
+                if ((digest == null) || !revalidate(entry))
+                    return;
+                synchronized (entry) {
+                    if (entry.metadata == metadata)
+                        entry.metadata = metadata.strong(digest);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * 计算资源内容的MD5摘要. 内容从内存读取, 或者直接从资源所在的文件读取.
+     *
+     * @return 带引号的十六进制摘要, 如果不能读取内容, 返回<code>null</code>
+     */
+    protected String digest(CacheEntry entry) {
+
+        MessageDigest md5 = null;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            return (null);
+        }
+        byte content[] = entry.resource.getContent();
+        if (content != null) {
+            md5.update(content);
+        } else {
+            // The resource's own stream may be in use by a request
+            String path = entry.attributes.getCanonicalPath();
+            if (path == null)
+                return (null);
+            InputStream is = null;
+            try {
+                is = new FileInputStream(path);
+                byte buffer[] = new byte[8192];
+                int n = 0;
+                while ((n = is.read(buffer)) >= 0)
+                    md5.update(buffer, 0, n);
+            } catch (IOException e) {
+                return (null);
+            } finally {
+                try {
+                    if (is != null)
+                        is.close();
+                } catch (IOException e) {
+                    ; // Ignore
+                }
+            }
+        }
+
+        byte digest[] = md5.digest();
+        char hex[] = new char[digest.length * 2 + 2];
+        hex[0] = '"';
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2 + 1] = Character.forDigit((digest[i] >> 4) & 0xf, 16);
+            hex[i * 2 + 2] = Character.forDigit(digest[i] & 0xf, 16);
+        }
+        hex[hex.length - 1] = '"';
+        return (new String(hex));
+
+    }
+
+
     /**
      * 加载入缓存
      */
@@ -1277,8 +1550,58 @@ public class ProxyDirContext implements DirContext {
         // Set timestamp
         entry.timestamp = System.currentTimeMillis() + cacheTTL;
 
-        // 添加新条目到缓存
-        cache.put(name, entry);
+        // 添加新条目到缓存, 除非它在加载期间被作废
+        cache.put(entry);
+    }
+
+
+    /**
+     * 压缩一个资源, 把结果加入压缩形式的缓存. 如果压缩不能使资源变小, 缓存一个不存在的条目,
+     * 在资源被修改之前不再尝试压缩它.
+     *
+     * @param entry 要加载的条目
+     * @param source 资源的缓存条目
+     */
+    protected void gzipLoad(CacheEntry entry, CacheEntry source) {
+
+        entry.attributes = new ResourceAttributes();
+        entry.attributes.setLastModified
+            (source.attributes.getLastModified());
+        entry.attributes.setContentLength
+            (source.attributes.getContentLength());
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream
+            ((int) (source.attributes.getContentLength() / 4) + 64);
+        InputStream is = null;
+        try {
+            is = source.resource.streamContent();
+            if (is == null)
+                return;
+            GZIPOutputStream os = new GZIPOutputStream(compressed);
+            byte buffer[] = new byte[4096];
+            int n = 0;
+            while ((n = is.read(buffer)) >= 0)
+                os.write(buffer, 0, n);
+            os.close();
+        } catch (IOException e) {
+            // Not cached: the next request tries again
+            return;
+        } finally {
+            try {
+                if (is != null)
+                    is.close();
+            } catch (IOException e) {
+                ; // Ignore
+            }
+        }
+
+        entry.exists =
+            (compressed.size() < source.attributes.getContentLength());
+        if (entry.exists)
+            entry.resource = new Resource(compressed.toByteArray());
+        entry.timestamp = System.currentTimeMillis();
+        gzipCache.put(entry);
+
     }
 
 
@@ -1288,7 +1611,7 @@ public class ProxyDirContext implements DirContext {
     protected boolean cacheUnload(String name) {
         if (cache == null)
             return false;
-        return (cache.remove(name) != null);
+        return (cache.remove(name));
     }
 
     // ------------------------------------------------- CacheEntry Inner Class
@@ -1297,12 +1620,15 @@ public class ProxyDirContext implements DirContext {
 
         // ------------------------------------------------- Instance Variables
 
-        long timestamp = -1;
+        volatile long timestamp = -1;
         String name = null;
         ResourceAttributes attributes = null;
         Resource resource = null;
         DirContext context = null;
         boolean exists = true;
+        volatile boolean revalidating = false;
+        volatile boolean invalidated = false;
+        volatile ResourceMetadata metadata = null;
 
         // ----------------------------------------------------- Public Methods
 
@@ -1313,6 +1639,9 @@ public class ProxyDirContext implements DirContext {
             resource = null;
             context = null;
             exists = true;
+            revalidating = false;
+            invalidated = false;
+            metadata = null;
         }
 
         public String toString() {
@@ -191,6 +191,12 @@ public class ResourceAttributes implements Attributes {
     protected String strongETag = null;
 
 
+    /**
+     * Canonical path.
+     */
+    protected String canonicalPath = null;
+
+
     /**
      * External attributes.
      */
@@ -560,6 +566,26 @@ public class ResourceAttributes implements Attributes {
     }
     
     
+    /**
+     * Get canonical path.
+     * 
+     * @return 资源所在文件的规范路径, 如果资源不在文件系统中返回<code>null</code>
+     */
+    public String getCanonicalPath() {
+        return canonicalPath;
+    }
+
+
+    /**
+     * Set canonical path.
+     * 
+     * @param canonicalPath New canonical path value
+     */
+    public void setCanonicalPath(String canonicalPath) {
+        this.canonicalPath = canonicalPath;
+    }
+    
+    
     /**
      * Get resource type.
      * 
@@ -0,0 +1,657 @@
+package org.apache.naming.resources;
+
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * <code>ProxyDirContext</code>的资源缓存, 按条目占用的字节数限制大小.
+ * <p>
+ * 查找只读取一个<code>ConcurrentHashMap</code>, 不加锁. 插入, 删除和淘汰在这个对象上同步.
+ * <p>
+ * 淘汰策略近似于W-TinyLFU: 新的条目先进入一个占总容量1%的窗口; 被挤出窗口的条目只有在它的访问频率
+ * 高于主区域中将被淘汰的条目时才被接纳, 否则它自己被淘汰. 所以一次目录遍历只访问一次的资源
+ * 不会把经常访问的资源挤出缓存. 访问频率由一个定期减半的count-min sketch估计,
+ * 它也记录不在缓存中的名称. 两个区域都使用CLOCK: 被访问过的条目在被淘汰之前获得第二次机会.
+ * <p>
+ * 同一个名称的并发加载被合并: 只有第一个线程加载它, 其它线程等待它完成.
+ * 过期的条目可以交给一个所有缓存共用的后台线程重新验证, 在此期间仍然使用原来的条目.
+ */
+
+public final class ResourceCache {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * @param maxSize 缓存的条目占用的最大字节数
+     */
+    public ResourceCache(long maxSize) {
+        this.maxSize = Math.max(ENTRY_OVERHEAD, maxSize);
+        this.windowMax = Math.max(ENTRY_OVERHEAD, this.maxSize / 100);
+        int width = 256;
+        while ((width < (1 << 24)) && (width < this.maxSize / 1024))
+            width <<= 1;
+        this.sketch = new byte[DEPTH * width];
+        this.sketchMask = width - 1;
+        this.sampleSize = 10 * width;
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * 计入每个条目的固定字节数: 名称, 属性和条目本身.
+     */
+    static final int ENTRY_OVERHEAD = 512;
+
+
+    /**
+     * 频率估计的行数.
+     */
+    private static final int DEPTH = 4;
+
+
+    /**
+     * 一个频率计数器的最大值.
+     */
+    private static final int MAX_FREQUENCY = 15;
+
+
+    /**
+     * 名称 -> <code>Node</code>.
+     */
+    private final ConcurrentHashMap entries = new ConcurrentHashMap();
+
+
+    /**
+     * 名称 -> 正在被加载的<code>CacheEntry</code>.
+     */
+    private final ConcurrentHashMap loading = new ConcurrentHashMap();
+
+
+    /**
+     * 查找的次数.
+     */
+    private final AtomicLong accessCount = new AtomicLong();
+
+
+    /**
+     * 命中的次数.
+     */
+    private final AtomicLong hitsCount = new AtomicLong();
+
+
+    /**
+     * 缓存的条目占用的最大字节数.
+     */
+    private final long maxSize;
+
+
+    /**
+     * 窗口占用的最大字节数.
+     */
+    private final long windowMax;
+
+
+    /**
+     * 窗口和主区域的CLOCK队列. 队首是下一个淘汰的候选.
+     */
+    private final Queue window = new Queue();
+
+    private final Queue main = new Queue();
+
+
+    /**
+     * 访问频率的count-min sketch: <code>DEPTH</code>行4位计数器, 每个计数器一个字节.
+     * 计数器的更新不加锁, 并发的更新可能丢失, 这对估计没有影响.
+     */
+    private final byte sketch[];
+
+    private final int sketchMask;
+
+
+    /**
+     * 记录了这么多次访问之后, 所有的计数器减半, 使过去的热点逐渐被遗忘.
+     */
+    private final int sampleSize;
+
+    private int samples = 0;
+
+
+    /**
+     * 所有缓存共用的后台重新验证线程, 空闲时退出.
+     */
+    private static final ThreadPoolExecutor revalidator =
+        new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+                               new LinkedBlockingQueue(),
+                               new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ResourceCache-revalidator");
+                thread.setDaemon(true);
+                return (thread);
+            }
+        });
+
+    static {
+        revalidator.allowCoreThreadTimeOut(true);
+    }
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * 返回查找的次数.
+     */
+    public long getAccessCount() {
+        return (accessCount.get());
+    }
+
+
+    /**
+     * 返回命中的次数.
+     */
+    public long getHitsCount() {
+        return (hitsCount.get());
+    }
+
+
+    /**
+     * 返回缓存的条目占用的最大字节数.
+     */
+    public long getMaxSize() {
+        return (maxSize);
+    }
+
+
+    /**
+     * 返回缓存的条目占用的字节数.
+     */
+    public synchronized long getSize() {
+        return (window.size + main.size);
+    }
+
+
+    /**
+     * 返回缓存的条目数.
+     */
+    public int getEntryCount() {
+        return (entries.size());
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 查找一个条目, 并记录这次访问. 不加锁.
+     *
+     * @param name 名称
+     * @return 条目, 如果没有缓存, 返回<code>null</code>
+     */
+    ProxyDirContext.CacheEntry lookup(String name) {
+
+        accessCount.incrementAndGet();
+        increment(name);
+        Node node = (Node) entries.get(name);
+        if (node == null)
+            return (null);
+        node.referenced = true;
+        hitsCount.incrementAndGet();
+        return (node.entry);
+
+    }
+
+
+    /**
+     * 开始加载一个条目. 如果另一个线程正在加载同一个名称, 返回它的条目,
+     * 调用者应该通过<code>awaitLoad()</code>等待; 否则返回指定的条目, 调用者加载它,
+     * 然后必须调用<code>endLoad()</code>.
+     *
+     * @param entry 要加载的条目
+     */
+    ProxyDirContext.CacheEntry startLoad(ProxyDirContext.CacheEntry entry) {
+
+        Object existing = loading.putIfAbsent(entry.name, entry);
+        return ((existing == null) ?
+                entry : (ProxyDirContext.CacheEntry) existing);
+
+    }
+
+
+    /**
+     * 结束加载一个条目, 唤醒等待它的线程.
+     *
+     * @param entry 加载的条目
+     */
+    void endLoad(ProxyDirContext.CacheEntry entry) {
+
+        synchronized (entry) {
+            loading.remove(entry.name, entry);
+            entry.notifyAll();
+        }
+
+    }
+
+
+    /**
+     * 等待另一个线程加载完一个条目.
+     *
+     * @param entry 正在被加载的条目
+     * @return 加载的条目
+     */
+    ProxyDirContext.CacheEntry awaitLoad(ProxyDirContext.CacheEntry entry) {
+
+        boolean interrupted = false;
+        synchronized (entry) {
+            while (loading.get(entry.name) == entry) {
+                try {
+                    entry.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        return (entry);
+
+    }
+
+
+    /**
+     * 加入或替换一个条目. 如果缓存已满, 按淘汰策略淘汰其它条目或者这个条目本身.
+     * 如果条目在加载期间被<code>remove()</code>, <code>removePrefix()</code>或<code>clear()</code>
+     * 作废, 它的内容可能已经过时, 不加入缓存.
+     *
+     * @param entry 已经加载的条目
+     * @return 是否加入了这个条目?
+     */
+    synchronized boolean put(ProxyDirContext.CacheEntry entry) {
+
+        if (entry.invalidated)
+            return (false);
+        Node node = new Node(entry, size(entry));
+        Node old = (Node) entries.put(entry.name, node);
+        if (old != null)
+            unlink(old);
+        window.addLast(node);
+        node.inWindow = true;
+        evict();
+        return (true);
+
+    }
+
+
+    /**
+     * 删除一个条目.
+     *
+     * @param name 名称
+     * @return 是否删除了一个条目?
+     */
+    synchronized boolean remove(String name) {
+
+        ProxyDirContext.CacheEntry load =
+            (ProxyDirContext.CacheEntry) loading.get(name);
+        if (load != null)
+            load.invalidated = true;
+        return (unload(name));
+
+    }
+
+
+    /**
+     * 删除一个条目, 如果它还没有被替换.
+     *
+     * @param name 名称
+     * @param entry 要删除的条目
+     * @return 是否删除了这个条目?
+     */
+    synchronized boolean remove(String name, ProxyDirContext.CacheEntry entry) {
+
+        Node node = (Node) entries.get(name);
+        if ((node == null) || (node.entry != entry))
+            return (false);
+        return (unload(name));
+
+    }
+
+
+    /**
+     * 删除所有的条目.
+     */
+    synchronized void clear() {
+
+        invalidateLoads("");
+        entries.clear();
+        window.clear();
+        main.clear();
+
+    }
+
+
+    /**
+     * 删除名称以指定前缀开头的所有条目.
+     *
+     * @param prefix 名称的前缀, 例如一个被删除的目录的名称加上<code>/</code>
+     */
+    synchronized void removePrefix(String prefix) {
+
+        invalidateLoads(prefix);
+        Iterator names = entries.keySet().iterator();
+        while (names.hasNext()) {
+            String name = (String) names.next();
+            if (name.startsWith(prefix))
+                unload(name);
+        }
+
+    }
+
+
+    /**
+     * 在后台线程中执行一个重新验证任务.
+     *
+     * @param task 重新验证任务
+     */
+    static void revalidateLater(Runnable task) {
+        revalidator.execute(task);
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * 删除一个条目, 不影响正在加载的条目.
+     *
+     * @param name 名称
+     * @return 是否删除了一个条目?
+     */
+    private boolean unload(String name) {
+
+        Node node = (Node) entries.remove(name);
+        if (node == null)
+            return (false);
+        unlink(node);
+        return (true);
+
+    }
+
+
+    /**
+     * 作废名称以指定前缀开头的正在加载的条目, 使它们不被加入缓存.
+     *
+     * @param prefix 名称的前缀
+     */
+    private void invalidateLoads(String prefix) {
+
+        Iterator loads = loading.values().iterator();
+        while (loads.hasNext()) {
+            ProxyDirContext.CacheEntry load =
+                (ProxyDirContext.CacheEntry) loads.next();
+            if (load.name.startsWith(prefix))
+                load.invalidated = true;
+        }
+
+    }
+
+
+    /**
+     * 把超出窗口的条目移入主区域, 或者淘汰它们.
+     */
+    private void evict() {
+
+        long mainMax = maxSize - windowMax;
+        while (window.size > windowMax) {
+            Node candidate = window.victim();
+            window.remove(candidate);
+            candidate.inWindow = false;
+
+            // TinyLFU admission: the candidate must be more popular
+            // than everything it displaces.  All the victims are chosen
+            // first, so nothing is evicted for a rejected candidate
+            boolean admit = (candidate.size <= mainMax);
+            long needed = main.size + candidate.size - mainMax;
+            if (admit && (needed > 0)) {
+                int frequency = frequency(candidate.entry.name);
+                ArrayList victims = new ArrayList();
+                Node victim = main.victim();
+                while (admit && (needed > 0)) {
+                    if ((victim == null) ||
+                        (frequency <= frequency(victim.entry.name))) {
+                        admit = false;
+                    } else {
+                        victims.add(victim);
+                        needed -= victim.size;
+                        // Recently used nodes keep their second chance
+                        do {
+                            victim = victim.next;
+                        } while ((victim != null) && victim.referenced);
+                    }
+                }
+                for (int i = 0; admit && (i < victims.size()); i++) {
+                    victim = (Node) victims.get(i);
+                    main.remove(victim);
+                    entries.remove(victim.entry.name, victim);
+                }
+            }
+            if (admit)
+                main.addLast(candidate);
+            else
+                entries.remove(candidate.entry.name, candidate);
+        }
+
+    }
+
+
+    /**
+     * 返回一个名称的估计访问频率.
+     */
+    private int frequency(String name) {
+
+        int hash = spread(name.hashCode());
+        int width = sketchMask + 1;
+        int min = MAX_FREQUENCY;
+        for (int i = 0; i < DEPTH; i++) {
+            int count = sketch[i * width + index(hash, i)];
+            if (count < min)
+                min = count;
+        }
+        return (min);
+
+    }
+
+
+    /**
+     * 增加一个名称的访问频率. 达到采样数后所有的计数器减半.
+     */
+    private void increment(String name) {
+
+        int hash = spread(name.hashCode());
+        int width = sketchMask + 1;
+        for (int i = 0; i < DEPTH; i++) {
+            int offset = i * width + index(hash, i);
+            if (sketch[offset] < MAX_FREQUENCY)
+                sketch[offset]++;
+        }
+        if (++samples >= sampleSize) {
+            synchronized (sketch) {
+                if (samples >= sampleSize) {
+                    samples = 0;
+                    for (int i = 0; i < sketch.length; i++)
+                        sketch[i] >>= 1;
+                }
+            }
+        }
+
+    }
+
+
+    /**
+     * 返回一个哈希值在第<code>i</code>行中的位置.
+     */
+    private int index(int hash, int i) {
+
+        int h = hash * (0x9E3779B9 + 2 * i + 1);
+        h ^= h >>> 16;
+        return (h & sketchMask);
+
+    }
+
+
+    /**
+     * 打散字符串的哈希值.
+     */
+    private static int spread(int hash) {
+
+        hash ^= hash >>> 17;
+        hash *= 0xED5AD4BB;
+        hash ^= hash >>> 11;
+        hash *= 0xAC4C1B51;
+        hash ^= hash >>> 15;
+        return (hash);
+
+    }
+
+
+    /**
+     * 返回一个条目占用的字节数.
+     */
+    private static long size(ProxyDirContext.CacheEntry entry) {
+
+        long size = ENTRY_OVERHEAD;
+        if (entry.resource != null) {
+            byte content[] = entry.resource.getContent();
+            if (content != null)
+                size += content.length;
+        }
+        return (size);
+
+    }
+
+
+    /**
+     * 把一个节点从它的队列中移除.
+     */
+    private void unlink(Node node) {
+
+        if (node.inWindow)
+            window.remove(node);
+        else if (node.queued)
+            main.remove(node);
+
+    }
+
+
+    // --------------------------------------------------------- Inner Classes
+
+
+    /**
+     * 一个缓存的条目和它在队列中的位置.
+     */
+    private static final class Node {
+
+        Node(ProxyDirContext.CacheEntry entry, long size) {
+            this.entry = entry;
+            this.size = size;
+        }
+
+        final ProxyDirContext.CacheEntry entry;
+
+        final long size;
+
+        /**
+         * 上次被考虑淘汰之后是否被访问过? 查找时不加锁设置.
+         */
+        volatile boolean referenced = false;
+
+        boolean inWindow = false;
+
+        boolean queued = false;
+
+        Node prev = null;
+
+        Node next = null;
+
+    }
+
+
+    /**
+     * 一个CLOCK队列: 双向链表和它的条目占用的字节数.
+     */
+    private static final class Queue {
+
+        Node head = null;
+
+        Node tail = null;
+
+        long size = 0;
+
+        int count = 0;
+
+        void addLast(Node node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail == null)
+                head = node;
+            else
+                tail.next = node;
+            tail = node;
+            node.queued = true;
+            size += node.size;
+            count++;
+        }
+
+        void remove(Node node) {
+            if (!node.queued)
+                return;
+            if (node.prev == null)
+                head = node.next;
+            else
+                node.prev.next = node.next;
+            if (node.next == null)
+                tail = node.prev;
+            else
+                node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            node.queued = false;
+            size -= node.size;
+            count--;
+        }
+
+        void clear() {
+            head = null;
+            tail = null;
+            size = 0;
+            count = 0;
+        }
+
+        /**
+         * 返回下一个淘汰的条目. 被访问过的条目清除标记后移到队尾, 所以最多遍历一圈.
+         */
+        Node victim() {
+            // Readers may mark nodes again meanwhile: one lap at most
+            for (int i = 0; (i < count) && head.referenced; i++) {
+                Node node = head;
+                node.referenced = false;
+                remove(node);
+                addLast(node);
+            }
+            return (head);
+        }
+
+    }
+
+
+}
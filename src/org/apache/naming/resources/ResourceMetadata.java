@@ -0,0 +1,209 @@
+package org.apache.naming.resources;
+
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+
+/**
+ * 一个资源的响应元数据: 发送它时需要的标头的值, 在资源的缓存条目被加载之后计算一次.
+ * 资源被修改之后它的缓存条目被替换, 新的条目有新的元数据.
+ * <p>
+ * 这个类的对象是不可变的, 可以被多个线程同时使用. 强ETag在后台计算完成之后,
+ * 缓存条目的元数据被替换成一个包含它的新对象.
+ */
+
+public final class ResourceMetadata {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * @param contentType 资源的内容类型
+     * @param attributes 资源的属性
+     */
+    ResourceMetadata(String contentType, ResourceAttributes attributes) {
+
+        this.contentType = contentType;
+        this.contentLength = attributes.getContentLength();
+        this.creation = attributes.getCreation();
+        this.lastModified = attributes.getLastModified();
+        this.eTag = attributes.getETag();
+        this.strongETag = attributes.getETag(true);
+        Date date = attributes.getLastModifiedDate();
+        if (date == null) {
+            this.lastModifiedHttp = null;
+        } else {
+            synchronized (format) {
+                this.lastModifiedHttp = format.format(date);
+            }
+        }
+
+    }
+
+
+    /**
+     * 构建指定元数据的副本, 具有指定的强ETag.
+     */
+    private ResourceMetadata(ResourceMetadata metadata, String strongETag) {
+
+        this.contentType = metadata.contentType;
+        this.contentLength = metadata.contentLength;
+        this.creation = metadata.creation;
+        this.lastModified = metadata.lastModified;
+        this.lastModifiedHttp = metadata.lastModifiedHttp;
+        this.eTag = metadata.eTag;
+        this.strongETag = strongETag;
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * HTTP日期格式.
+     */
+    private static final SimpleDateFormat format =
+        new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+
+    static {
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    }
+
+
+    /**
+     * 内容长度.
+     */
+    private final long contentLength;
+
+
+    /**
+     * 内容类型.
+     */
+    private final String contentType;
+
+
+    /**
+     * 创建时间戳.
+     */
+    private final long creation;
+
+
+    /**
+     * Weak ETag.
+     */
+    private final String eTag;
+
+
+    /**
+     * 最后修改时间戳.
+     */
+    private final long lastModified;
+
+
+    /**
+     * <code>Last-Modified</code>标头的值.
+     */
+    private final String lastModifiedHttp;
+
+
+    /**
+     * Strong ETag.
+     */
+    private final String strongETag;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * 返回内容长度.
+     */
+    public long getContentLength() {
+        return (this.contentLength);
+    }
+
+
+    /**
+     * 返回内容类型, 如果不知道, 返回<code>null</code>.
+     */
+    public String getContentType() {
+        return (this.contentType);
+    }
+
+
+    /**
+     * 返回创建时间戳.
+     */
+    public long getCreation() {
+        return (this.creation);
+    }
+
+
+    /**
+     * 返回弱ETag.
+     */
+    public String getETag() {
+        return (this.eTag);
+    }
+
+
+    /**
+     * 返回最后修改时间戳.
+     */
+    public long getLastModified() {
+        return (this.lastModified);
+    }
+
+
+    /**
+     * 返回<code>Last-Modified</code>标头的值, 如果不知道最后修改日期, 返回<code>null</code>.
+     */
+    public String getLastModifiedHttp() {
+        return (this.lastModifiedHttp);
+    }
+
+
+    /**
+     * 返回强ETag, 如果还没有计算, 返回<code>null</code>.
+     */
+    public String getStrongETag() {
+        return (this.strongETag);
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 返回这个元数据的副本, 具有指定的强ETag.
+     *
+     * @param strongETag 强ETag
+     */
+    ResourceMetadata strong(String strongETag) {
+        return (new ResourceMetadata(this, strongETag));
+    }
+
+
+    /**
+     * 字符串表示形式.
+     */
+    public String toString() {
+
+        StringBuffer sb = new StringBuffer("ResourceMetadata[");
+        sb.append(contentType);
+        sb.append(", ");
+        sb.append(contentLength);
+        sb.append(", ");
+        sb.append((strongETag != null) ? strongETag : eTag);
+        sb.append("]");
+        return (sb.toString());
+
+    }
+
+
+}
@@ -0,0 +1,250 @@
+package org.apache.naming.resources;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * 监视<code>FileDirContext</code>的文档根目录, 在文件被修改时使资源缓存中的条目失效.
+ * <p>
+ * 文档根目录下的每个目录都被注册到一个<code>WatchService</code>; 新建的目录在创建事件到达时注册.
+ * 一个文件被创建, 修改或删除时, 它的条目和它所在目录的条目被删除; 一个目录被删除时, 它下面所有的条目也被删除.
+ * 如果事件丢失(<code>OVERFLOW</code>), 整个缓存被清空.
+ */
+
+final class ResourceWatcher implements Runnable {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * @param base 文档根目录
+     * @param cache 要使其失效的缓存
+     */
+    ResourceWatcher(File base, ResourceCache cache) {
+        this.base = base.toPath();
+        this.cache = cache;
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * 文档根目录.
+     */
+    private final Path base;
+
+
+    /**
+     * 要使其失效的缓存.
+     */
+    private final ResourceCache cache;
+
+
+    /**
+     * <code>WatchKey</code> -> 它的目录的名称, 例如<code>/WEB-INF</code>; 根目录是空字符串.
+     */
+    private final ConcurrentHashMap directories = new ConcurrentHashMap();
+
+
+    /**
+     * 监视线程.
+     */
+    private Thread thread = null;
+
+
+    /**
+     * 监视服务. 关闭它使监视线程退出.
+     */
+    private WatchService watchService = null;
+
+
+    /**
+     * 监视线程是否正在运行?
+     */
+    private volatile boolean running = false;
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 监视是否有效? 如果无效, 缓存的条目必须按TTL重新验证.
+     */
+    boolean isRunning() {
+        return (running);
+    }
+
+
+    /**
+     * 注册所有的目录, 启动监视线程.
+     *
+     * @param name 监视线程的名称
+     *
+     * @exception IOException 如果不能创建监视服务或者注册目录
+     */
+    void start(String name) throws IOException {
+
+        watchService = base.getFileSystem().newWatchService();
+        try {
+            register(base);
+        } catch (IOException e) {
+            watchService.close();
+            throw e;
+        }
+        running = true;
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+
+    }
+
+
+    /**
+     * 停止监视线程.
+     */
+    void stop() {
+
+        running = false;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            ;
+        }
+        if (thread == null)
+            return;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+
+    }
+
+
+    // ------------------------------------------------------ Background Thread
+
+
+    /**
+     * 监视线程: 处理事件, 直到监视服务被关闭.
+     */
+    public void run() {
+
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                String directory = (String) directories.get(key);
+                Iterator events = key.pollEvents().iterator();
+                while (events.hasNext()) {
+                    WatchEvent event = (WatchEvent) events.next();
+                    if ((event.kind() == StandardWatchEventKinds.OVERFLOW) ||
+                        (directory == null)) {
+                        cache.clear();
+                        continue;
+                    }
+                    changed(directory, (Path) event.context(), event.kind());
+                }
+                if (!key.reset()) {
+                    directories.remove(key);
+                    if (directory != null)
+                        cache.remove(directory);
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            ;
+        } catch (InterruptedException e) {
+            ;
+        } finally {
+            // Entries are revalidated by TTL again
+            running = false;
+        }
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * 处理一个文件的事件.
+     *
+     * @param directory 文件所在目录的名称
+     * @param file 文件相对于目录的路径
+     * @param kind 事件的类型
+     */
+    private void changed(String directory, Path file, WatchEvent.Kind kind) {
+
+        String name = directory + "/" + file.toString();
+        cache.remove(name);
+        cache.remove(directory);
+        if (directory.length() == 0)
+            cache.remove("/");
+        if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            cache.removePrefix(name + "/");
+        } else if ((kind == StandardWatchEventKinds.ENTRY_CREATE) &&
+                   Files.isDirectory(base.resolve(name.substring(1)))) {
+            try {
+                register(base.resolve(name.substring(1)));
+            } catch (IOException e) {
+                // Changes below it would go unnoticed
+                cache.clear();
+            }
+            // Files created before it was registered
+            cache.removePrefix(name + "/");
+        }
+
+    }
+
+
+    /**
+     * 注册一个目录和它下面所有的目录.
+     */
+    private void register(Path start) throws IOException {
+
+        Files.walkFileTree(start, new SimpleFileVisitor() {
+            public FileVisitResult preVisitDirectory
+                (Object dir, BasicFileAttributes attrs) throws IOException {
+                Path path = (Path) dir;
+                WatchKey key = path.register
+                    (watchService, new WatchEvent.Kind[] {
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY });
+                directories.put(key, name(path));
+                return (FileVisitResult.CONTINUE);
+            }
+        });
+
+    }
+
+
+    /**
+     * 返回一个路径在缓存中的名称: 相对于文档根目录, 以<code>/</code>分隔, 以<code>/</code>开头.
+     */
+    private String name(Path path) {
+
+        String relative = base.relativize(path).toString();
+        if (relative.length() == 0)
+            return ("");
+        return ("/" + relative.replace(File.separatorChar, '/'));
+
+    }
+
+
+}